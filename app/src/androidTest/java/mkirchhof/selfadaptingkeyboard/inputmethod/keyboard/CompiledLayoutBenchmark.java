@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.keyboard;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.CompiledLayout;
+import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.KeyboardBuilder;
+import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.KeyboardParams;
+
+import static org.junit.Assert.*;
+
+// compares the time to build the keyboards of every shipped layout by parsing their XML with the
+// time to replay their CompiledLayout. The results are written to the log per locale
+@RunWith(AndroidJUnit4.class)
+public class CompiledLayoutBenchmark {
+    final static String TAG = CompiledLayoutBenchmark.class.getSimpleName();
+    final private static int WARMUP = 2;
+    final private static int REPETITIONS = 10;
+
+    Context cn;
+
+    @Before
+    public void setup(){
+        cn = ShippedLayouts.getThemeContext(
+                InstrumentationRegistry.getInstrumentation().getTargetContext());
+        ShippedLayouts.deleteLayoutFiles(cn);
+    }
+
+    @Test
+    public void buildTimeTest() throws Exception {
+        long totalXmlNanos = 0;
+        long totalReplayNanos = 0;
+        for(KeyboardLayoutSet layoutSet : ShippedLayouts.load(cn)){
+            String locale = null;
+            long xmlNanos = 0;
+            long replayNanos = 0;
+            for(int elementId : ShippedLayouts.ELEMENT_IDS){
+                // records the compiled layout
+                KeyboardBuilder<KeyboardParams> recorded = layoutSet.loadKeyboard(elementId, true);
+                if(recorded == null){
+                    continue;
+                }
+                KeyboardId id = recorded.build().mId;
+                locale = id.getLocale() + "/" + id.mSubtype.getKeyboardLayoutSetName();
+                CompiledLayout.waitForSaves();
+                for(int i = 0; i < WARMUP + REPETITIONS; i++){
+                    long start = System.nanoTime();
+                    layoutSet.loadKeyboard(elementId, false).build();
+                    long parsed = System.nanoTime();
+                    KeyboardBuilder<KeyboardParams> replayed =
+                            layoutSet.loadKeyboard(elementId, true);
+                    replayed.build();
+                    long end = System.nanoTime();
+                    assertTrue(replayed.isFromCompiledLayout());
+                    if(i >= WARMUP){
+                        xmlNanos += parsed - start;
+                        replayNanos += end - parsed;
+                    }
+                }
+            }
+            Log.i(TAG, locale + ": XML " + xmlNanos / REPETITIONS / 1000 + " us, compiled layout "
+                    + replayNanos / REPETITIONS / 1000 + " us");
+            totalXmlNanos += xmlNanos;
+            totalReplayNanos += replayNanos;
+        }
+        Log.i(TAG, "All layouts: XML " + totalXmlNanos / REPETITIONS / 1000 +
+                " us, compiled layout " + totalReplayNanos / REPETITIONS / 1000 + " us");
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.keyboard;
+
+import android.content.Context;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.CompiledLayout;
+import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.KeyVisualAttributes;
+import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.KeyboardBuilder;
+import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.KeyboardParams;
+import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.ResolvedLayout;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.Hitboxes;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.ModelStore;
+
+import static org.junit.Assert.*;
+
+// builds every keyboard of every shipped layout from its XML and from its CompiledLayout and
+// checks that both have the same keys. Also reads the keyboards from their ResolvedLayout
+@RunWith(AndroidJUnit4.class)
+public class CompiledLayoutInstrumentationTest {
+    Context cn;
+
+    @Before
+    public void setup(){
+        cn = ShippedLayouts.getThemeContext(
+                InstrumentationRegistry.getInstrumentation().getTargetContext());
+        ShippedLayouts.deleteLayoutFiles(cn);
+    }
+
+    @Test
+    public void replayTest() throws Exception {
+        int keyboards = 0;
+        for(KeyboardLayoutSet layoutSet : ShippedLayouts.load(cn)){
+            for(int elementId : ShippedLayouts.ELEMENT_IDS){
+                KeyboardBuilder<KeyboardParams> xml = layoutSet.loadKeyboard(elementId, false);
+                if(xml == null){
+                    continue;
+                }
+                // the first build parses the XML and records the compiled layout
+                KeyboardBuilder<KeyboardParams> recorded = layoutSet.loadKeyboard(elementId, true);
+                assertFalse(recorded.isFromCompiledLayout());
+                CompiledLayout.waitForSaves();
+                KeyboardBuilder<KeyboardParams> replayed = layoutSet.loadKeyboard(elementId, true);
+                assertTrue(replayed.isFromCompiledLayout());
+
+                Keyboard expected = xml.build();
+                Keyboard actual = replayed.build();
+                String name = expected.mId.getLocale() + " " +
+                        KeyboardId.elementIdToName(elementId);
+                assertKeyboardEquals(name, expected, actual);
+                keyboards++;
+            }
+        }
+        assertTrue(keyboards > 0);
+    }
+
+    @Test
+    public void resolvedLayoutTest() throws Exception {
+        for(KeyboardLayoutSet layoutSet : ShippedLayouts.load(cn)){
+            // some subtypes share a layout
+            ModelStore.get(cn).clear();
+            Keyboard learnt = layoutSet.loadKeyboard(KeyboardId.ELEMENT_ALPHABET, false).build();
+            int layoutHashCode = learnt.mId.layoutHashCode();
+            // only keyboards with learned hitboxes are resolved
+            assertNull(layoutSet.loadResolvedKeyboard(KeyboardId.ELEMENT_ALPHABET));
+            Hitboxes.toHitboxes(learnt).save(cn);
+            KeyboardLayoutSet.onKeyboardLayoutChanged(layoutHashCode);
+
+            // builds the keyboard and saves its resolved layout
+            Keyboard built = layoutSet.getKeyboard(KeyboardId.ELEMENT_ALPHABET);
+            CompiledLayout.waitForSaves();
+            Keyboard resolved = layoutSet.loadResolvedKeyboard(KeyboardId.ELEMENT_ALPHABET);
+            assertNotNull(resolved);
+            assertKeyboardEquals(learnt.mId.getLocale() + " resolved", built, resolved);
+        }
+    }
+
+    @Test
+    public void preloadResolvedLayoutTest() throws Exception {
+        final KeyboardLayoutSet layoutSet = ShippedLayouts.load(cn).get(0);
+        ModelStore.get(cn).clear();
+        Keyboard learnt = layoutSet.loadKeyboard(KeyboardId.ELEMENT_ALPHABET, false).build();
+        Hitboxes.toHitboxes(learnt).save(cn);
+        KeyboardLayoutSet.onKeyboardLayoutChanged(learnt.mId.layoutHashCode());
+        Keyboard built = layoutSet.getKeyboard(KeyboardId.ELEMENT_ALPHABET);
+        CompiledLayout.waitForSaves();
+
+        // after a restart, the UI thread does not read the file itself. It starts the preload
+        // and builds the keyboard meanwhile
+        ResolvedLayout.clearMemory();
+        final Keyboard[] resolved = new Keyboard[1];
+        Runnable loadOnUiThread = new Runnable() {
+            @Override
+            public void run() {
+                resolved[0] = layoutSet.loadResolvedKeyboard(KeyboardId.ELEMENT_ALPHABET);
+            }
+        };
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(loadOnUiThread);
+        assertNull(resolved[0]);
+        ResolvedLayout.waitForPreload();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(loadOnUiThread);
+        assertNotNull(resolved[0]);
+        assertKeyboardEquals(learnt.mId.getLocale() + " preloaded", built, resolved[0]);
+
+        // other threads read the file from the disk
+        ResolvedLayout.clearMemory();
+        Keyboard read = layoutSet.loadResolvedKeyboard(KeyboardId.ELEMENT_ALPHABET);
+        assertNotNull(read);
+        assertKeyboardEquals(learnt.mId.getLocale() + " read", built, read);
+    }
+
+    // compares the keyboards and all of their keys, including the hitboxes, the gaps and the
+    // visual attributes, which Key.equals leaves out
+    static void assertKeyboardEquals(String name, Keyboard expected, Keyboard actual)
+            throws IOException {
+        assertEquals(name, expected.mOccupiedWidth, actual.mOccupiedWidth);
+        assertEquals(name, expected.mOccupiedHeight, actual.mOccupiedHeight);
+        assertEquals(name, expected.mMostCommonKeyWidth, actual.mMostCommonKeyWidth);
+        assertEquals(name, expected.mMostCommonKeyHeight, actual.mMostCommonKeyHeight);
+        assertArrayEquals(name, writeVisualAttributes(expected.mKeyVisualAttributes),
+                writeVisualAttributes(actual.mKeyVisualAttributes));
+        List<Key> expectedKeys = expected.getSortedKeys();
+        List<Key> actualKeys = actual.getSortedKeys();
+        assertEquals(name, expectedKeys.size(), actualKeys.size());
+        for(int i = 0; i < expectedKeys.size(); i++){
+            Key key = expectedKeys.get(i);
+            String keyName = name + " " + key;
+            assertEquals(keyName, key, actualKeys.get(i));
+            assertArrayEquals(keyName, writeResolved(key), writeResolved(actualKeys.get(i)));
+        }
+    }
+
+    private static byte[] writeResolved(Key key) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        key.writeResolvedTo(out);
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    private static byte[] writeVisualAttributes(KeyVisualAttributes attrs) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        KeyVisualAttributes.writeTo(out, attrs);
+        out.flush();
+        return buffer.toByteArray();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.keyboard;
+
+import android.content.Context;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashSet;
+
+import mkirchhof.selfadaptingkeyboard.inputmethod.latin.common.Constants;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.HitboxRaster;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.Hitboxes;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.KeyStat;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.KeyStats;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.ModelStore;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class KeyboardInstrumentationTest {
+    Context cn;
+
+    @Before
+    public void setup(){
+        cn = ShippedLayouts.getThemeContext(
+                InstrumentationRegistry.getInstrumentation().getTargetContext());
+        ShippedLayouts.deleteLayoutFiles(cn);
+        ModelStore.get(cn).clear();
+    }
+
+    // the PC layout has two shift keys. The raster has to send a touch on either of them to the
+    // key that was touched, not to the first key with the same code
+    @Test
+    public void rasterKeysWithDuplicateCodesTest(){
+        KeyboardLayoutSet layoutSet = ShippedLayouts.load(cn, "en_US", "keyboard",
+                Constants.Subtype.ExtraValue.KEYBOARD_LAYOUT_SET + "=pcqwerty,AsciiCapable");
+        Keyboard plain = layoutSet.loadKeyboard(KeyboardId.ELEMENT_ALPHABET, false).build();
+        int layoutHashCode = plain.mId.layoutHashCode();
+
+        // a raster with one learned key, all other cells keep the rectangles of their keys
+        Hitboxes hitb = Hitboxes.toHitboxes(plain);
+        Key learned = plain.getKey('q');
+        KeyStats ks = new KeyStats(layoutHashCode);
+        ks.add(new KeyStat('q', centerX(learned), centerY(learned), 16, 16, 0, 100));
+        HitboxRaster raster = HitboxRaster.compile(ks, hitb);
+        assertNotNull(raster);
+        raster.save(cn);
+        hitb.save(cn);
+        KeyboardLayoutSet.onKeyboardLayoutChanged(layoutHashCode);
+        Keyboard keyboard = layoutSet.getKeyboard(KeyboardId.ELEMENT_ALPHABET);
+
+        HashSet<Integer> codes = new HashSet<>();
+        int duplicates = 0;
+        for(Key key:keyboard.getSortedKeys()){
+            if(key.getCode() == Constants.CODE_UNSPECIFIED){
+                continue;
+            }
+            assertSame(key.toString(), key, keyboard.getRasterKey(centerX(key), centerY(key)));
+            if(!codes.add(key.getCode())){
+                duplicates++;
+            }
+        }
+        assertTrue(duplicates > 0);
+
+        ModelStore.get(cn).clear();
+        HitboxRaster.delete(cn, layoutHashCode);
+    }
+
+    private static int centerX(Key key){
+        return key.getX() + key.getWidth() / 2;
+    }
+
+    private static int centerY(Key key){
+        return key.getY() + key.getHeight() / 2;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.keyboard;
+
+import android.content.Context;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+// checks the keyboard cache of the layout sets, the prewarm and that a build that raced a
+// change of the hitboxes does not cache an outdated keyboard
+@RunWith(AndroidJUnit4.class)
+public class KeyboardLayoutSetInstrumentationTest {
+    Context cn;
+    KeyboardLayoutSet layoutSet;
+
+    @Before
+    public void setup() throws Exception {
+        cn = ShippedLayouts.getThemeContext(
+                InstrumentationRegistry.getInstrumentation().getTargetContext());
+        layoutSet = ShippedLayouts.load(cn).get(0);
+        KeyboardLayoutSet.waitForPrewarm();
+        KeyboardLayoutSet.onKeyboardThemeChanged();
+    }
+
+    @Test
+    public void prewarmTest() throws Exception {
+        KeyboardId symbols = layoutSet.getKeyboard(KeyboardId.ELEMENT_SYMBOLS).mId;
+        KeyboardId alphabet =
+                layoutSet.getKeyboard(KeyboardId.ELEMENT_ALPHABET_MANUAL_SHIFTED).mId;
+        KeyboardLayoutSet.onKeyboardThemeChanged();
+        assertNull(KeyboardLayoutSet.getCachedKeyboard(symbols));
+
+        layoutSet.prewarmKeyboards();
+        KeyboardLayoutSet.waitForPrewarm();
+        Keyboard prewarmed = KeyboardLayoutSet.getCachedKeyboard(symbols);
+        assertNotNull(prewarmed);
+        assertNotNull(KeyboardLayoutSet.getCachedKeyboard(alphabet));
+        // the UI thread gets the prewarmed keyboard
+        assertSame(prewarmed, layoutSet.getKeyboard(KeyboardId.ELEMENT_SYMBOLS));
+
+        // new hitboxes of the symbols only drop the symbol keyboards. They are prewarmed again the
+        // next time the alphabet keyboard is shown, the alphabet keyboards are kept
+        Keyboard keptAlphabet = KeyboardLayoutSet.getCachedKeyboard(alphabet);
+        KeyboardLayoutSet.onKeyboardLayoutChanged(symbols.layoutHashCode());
+        assertNull(KeyboardLayoutSet.getCachedKeyboard(symbols));
+        assertSame(keptAlphabet, KeyboardLayoutSet.getCachedKeyboard(alphabet));
+        layoutSet.prewarmKeyboards();
+        KeyboardLayoutSet.waitForPrewarm();
+        Keyboard rebuilt = KeyboardLayoutSet.getCachedKeyboard(symbols);
+        assertNotNull(rebuilt);
+        assertNotSame(prewarmed, rebuilt);
+        assertSame(keptAlphabet, KeyboardLayoutSet.getCachedKeyboard(alphabet));
+    }
+
+    // a keyboard whose build started before the hitboxes of its layout changed is used, but not
+    // cached. Builds of other layouts are not affected
+    @Test
+    public void invalidationRaceTest() throws Exception {
+        Keyboard symbols = layoutSet.getKeyboard(KeyboardId.ELEMENT_SYMBOLS);
+        Keyboard alphabet = layoutSet.getKeyboard(KeyboardId.ELEMENT_ALPHABET_MANUAL_SHIFTED);
+        KeyboardLayoutSet.onKeyboardThemeChanged();
+
+        long symbolsGeneration = KeyboardLayoutSet.getCurrentGeneration(symbols.mId);
+        long alphabetGeneration = KeyboardLayoutSet.getCurrentGeneration(alphabet.mId);
+        // the builds are running while the hitboxes of the symbols change
+        KeyboardLayoutSet.onKeyboardLayoutChanged(symbols.mId.layoutHashCode());
+        assertSame(symbols, KeyboardLayoutSet.cacheKeyboard(symbols.mId, symbolsGeneration,
+                symbols));
+        assertSame(alphabet, KeyboardLayoutSet.cacheKeyboard(alphabet.mId, alphabetGeneration,
+                alphabet));
+        assertNull(KeyboardLayoutSet.getCachedKeyboard(symbols.mId));
+        assertSame(alphabet, KeyboardLayoutSet.getCachedKeyboard(alphabet.mId));
+
+        // a theme change drops the builds of all layouts
+        long generation = KeyboardLayoutSet.getCurrentGeneration(symbols.mId);
+        KeyboardLayoutSet.onKeyboardThemeChanged();
+        KeyboardLayoutSet.cacheKeyboard(symbols.mId, generation, symbols);
+        assertNull(KeyboardLayoutSet.getCachedKeyboard(symbols.mId));
+
+        // a prewarm that raced the theme change stops and another one builds the keyboards
+        layoutSet.prewarmKeyboards();
+        KeyboardLayoutSet.onKeyboardThemeChanged();
+        KeyboardLayoutSet.waitForPrewarm();
+        layoutSet.prewarmKeyboards();
+        KeyboardLayoutSet.waitForPrewarm();
+        assertNotNull(KeyboardLayoutSet.getCachedKeyboard(symbols.mId));
+    }
+}
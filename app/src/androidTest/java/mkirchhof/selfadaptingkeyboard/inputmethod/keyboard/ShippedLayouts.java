@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.keyboard;
+
+import android.content.Context;
+import android.content.res.XmlResourceParser;
+import android.view.ContextThemeWrapper;
+import android.view.inputmethod.InputMethodSubtype;
+
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import mkirchhof.selfadaptingkeyboard.inputmethod.R;
+import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.ResolvedLayout;
+import mkirchhof.selfadaptingkeyboard.inputmethod.latin.RichInputMethodSubtype;
+import mkirchhof.selfadaptingkeyboard.inputmethod.latin.utils.SubtypeLocaleUtils;
+
+// the keyboard layout sets of the subtypes that the app ships in method.xml, for the tests that
+// build every layout
+final class ShippedLayouts {
+    final static int KEYBOARD_WIDTH = 1080;
+    final static int KEYBOARD_HEIGHT = 700;
+    // every keyboard that a layout set can have
+    final static int[] ELEMENT_IDS = {
+            KeyboardId.ELEMENT_ALPHABET,
+            KeyboardId.ELEMENT_ALPHABET_MANUAL_SHIFTED,
+            KeyboardId.ELEMENT_ALPHABET_AUTOMATIC_SHIFTED,
+            KeyboardId.ELEMENT_ALPHABET_SHIFT_LOCKED,
+            KeyboardId.ELEMENT_ALPHABET_SHIFT_LOCK_SHIFTED,
+            KeyboardId.ELEMENT_SYMBOLS,
+            KeyboardId.ELEMENT_SYMBOLS_SHIFTED,
+            KeyboardId.ELEMENT_PHONE,
+            KeyboardId.ELEMENT_PHONE_SYMBOLS,
+            KeyboardId.ELEMENT_NUMBER
+    };
+
+    private ShippedLayouts() {
+        // This utility class is not publicly instantiable.
+    }
+
+    // the context that the keyboard switcher builds the keyboards with
+    static Context getThemeContext(final Context context) {
+        return new ContextThemeWrapper(context, KeyboardTheme.getKeyboardTheme(context).mStyleId);
+    }
+
+    // a layout set per subtype in method.xml
+    static ArrayList<KeyboardLayoutSet> load(final Context context) throws Exception {
+        SubtypeLocaleUtils.init(context);
+        final ArrayList<KeyboardLayoutSet> layoutSets = new ArrayList<>();
+        final XmlResourceParser parser = context.getResources().getXml(R.xml.method);
+        try {
+            while (parser.next() != XmlPullParser.END_DOCUMENT) {
+                if (parser.getEventType() != XmlPullParser.START_TAG
+                        || !"subtype".equals(parser.getName())) {
+                    continue;
+                }
+                layoutSets.add(load(context, getAttribute(parser, "imeSubtypeLocale"),
+                        getAttribute(parser, "imeSubtypeMode"),
+                        getAttribute(parser, "imeSubtypeExtraValue")));
+            }
+        } finally {
+            parser.close();
+        }
+        return layoutSets;
+    }
+
+    // the layout set of a subtype, e.g. of an additional subtype with a layout that is not shipped
+    static KeyboardLayoutSet load(final Context context, final String locale, final String mode,
+            final String extraValue) {
+        SubtypeLocaleUtils.init(context);
+        final InputMethodSubtype subtype = new InputMethodSubtype.InputMethodSubtypeBuilder()
+                .setSubtypeLocale(locale)
+                .setSubtypeMode(mode)
+                .setSubtypeExtraValue(extraValue)
+                .build();
+        return new KeyboardLayoutSet.Builder(context, null)
+                .setKeyboardGeometry(KEYBOARD_WIDTH, KEYBOARD_HEIGHT)
+                .setSubtype(new RichInputMethodSubtype(subtype))
+                .build();
+    }
+
+    private static String getAttribute(final XmlPullParser parser, final String name) {
+        return parser.getAttributeValue("http://schemas.android.com/apk/res/android", name);
+    }
+
+    // drops the compiled and the resolved layouts, so that the next build of every keyboard
+    // parses its XML
+    static void deleteLayoutFiles(final Context context) {
+        for (final String folder : new String[] { "Layouts", "Keyboards" }) {
+            final File[] files = new File(context.getCacheDir(), folder).listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    file.delete();
+                }
+            }
+        }
+        ResolvedLayout.clearMemory();
+    }
+}
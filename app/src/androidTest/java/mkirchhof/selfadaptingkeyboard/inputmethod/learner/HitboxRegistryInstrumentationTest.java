@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class HitboxRegistryInstrumentationTest {
+    final private static int KEYBOARD_HASH_1 = 1;
+    final private static int KEYBOARD_HASH_2 = -2;
+
+    Context cn;
+    HitboxRegistry registry;
+
+    @Before
+    public void setup(){
+        cn = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        ModelStore.get(cn).clear();
+        registry = HitboxRegistry.get(cn);
+    }
+
+    private static Hitboxes sampleHitboxes(int keyboardHash, int width){
+        Hitboxes hb = new Hitboxes(keyboardHash);
+        hb.add(new Hitbox(1, new Point(0, 0), new Point(width, 0),
+                new Point(0, 40), new Point(width, 40)));
+        hb.add(new Hitbox(2, new Point(width, 0), new Point(60, 0),
+                new Point(width, 40), new Point(60, 40)));
+        return hb;
+    }
+
+    @Test
+    public void publishTest(){
+        assertFalse(registry.getLayout(KEYBOARD_HASH_1).hasHitboxes());
+        long cleared = registry.getVersion(KEYBOARD_HASH_1);
+
+        Hitboxes hb = sampleHitboxes(KEYBOARD_HASH_1, 20);
+        hb.save(cn);
+        HitboxRegistry.Layout first = registry.getLayout(KEYBOARD_HASH_1);
+        assertTrue(first.hasHitboxes());
+        assertTrue(first.getVersion() > cleared);
+        assertTrue(hb.hasSameGeometry(first.getHitboxes().toHitboxes()));
+        // reading does not reload anything
+        assertSame(first, registry.getLayout(KEYBOARD_HASH_1));
+
+        // saving the same hitboxes again publishes a new version that builds the same keyboard
+        hb.save(cn);
+        HitboxRegistry.Layout second = registry.getLayout(KEYBOARD_HASH_1);
+        assertTrue(second.getVersion() > first.getVersion());
+        assertTrue(second.isBuiltSameAs(first));
+
+        sampleHitboxes(KEYBOARD_HASH_1, 30).save(cn);
+        HitboxRegistry.Layout moved = registry.getLayout(KEYBOARD_HASH_1);
+        assertTrue(moved.getVersion() > second.getVersion());
+        assertFalse(moved.isBuiltSameAs(second));
+        assertEquals(30, moved.getHitboxes().getWidth(moved.getHitboxes().indexOfCode(1)));
+
+        // other keyboards keep their version
+        sampleHitboxes(KEYBOARD_HASH_2, 20).save(cn);
+        assertSame(moved, registry.getLayout(KEYBOARD_HASH_1));
+    }
+
+    @Test
+    public void removeTest(){
+        sampleHitboxes(KEYBOARD_HASH_1, 20).save(cn);
+        sampleHitboxes(KEYBOARD_HASH_2, 20).save(cn);
+        long version = registry.getVersion(KEYBOARD_HASH_1);
+
+        assertTrue(ModelStore.get(cn).edit().remove(KEYBOARD_HASH_1, ModelStore.KIND_HITBOXES).commit());
+        assertFalse(registry.getLayout(KEYBOARD_HASH_1).hasHitboxes());
+        assertFalse(Hitboxes.savedHitboxesExists(cn, KEYBOARD_HASH_1));
+        // the reset is a new version as well, so that the keyboard gets rebuilt
+        assertTrue(registry.getVersion(KEYBOARD_HASH_1) > version);
+        assertTrue(registry.getLayout(KEYBOARD_HASH_2).hasHitboxes());
+    }
+
+    @Test
+    public void rasterTest(){
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        ks.add(new KeyStat(1, 10, 20, 16, 16, 0, 100));
+        ks.add(new KeyStat(2, 40, 20, 16, 16, 0, 100));
+        Hitboxes hb = sampleHitboxes(KEYBOARD_HASH_1, 20);
+        HitboxRaster raster = HitboxRaster.compile(ks, hb);
+        assertNotNull(raster);
+        // the raster is saved before its hitboxes and published with them
+        raster.save(cn);
+        hb.save(cn);
+        assertTrue(raster.hasSameCells(registry.getLayout(KEYBOARD_HASH_1).getRaster()));
+        HitboxRaster.delete(cn, KEYBOARD_HASH_1);
+    }
+
+    @Test
+    public void publishLiveTest(){
+        sampleHitboxes(KEYBOARD_HASH_1, 20).save(cn);
+        HitboxRegistry.Layout saved = registry.getLayout(KEYBOARD_HASH_1);
+        long timestamp = ModelStore.get(cn).getTimestamp(KEYBOARD_HASH_1, ModelStore.KIND_HITBOXES);
+
+        // live hitboxes are published in memory only
+        long live = registry.publishLive(sampleHitboxes(KEYBOARD_HASH_1, 25), null,
+                saved.getVersion());
+        assertTrue(live > saved.getVersion());
+        assertEquals(live, registry.getVersion(KEYBOARD_HASH_1));
+        assertEquals(25, registry.getLayout(KEYBOARD_HASH_1).getHitboxes().getWidth(
+                registry.getLayout(KEYBOARD_HASH_1).getHitboxes().indexOfCode(1)));
+        assertEquals(timestamp, (long) ModelStore.get(cn).getTimestamp(KEYBOARD_HASH_1,
+                ModelStore.KIND_HITBOXES));
+
+        // other commits keep them, new hitboxes in the store replace them
+        new KeyStats(KEYBOARD_HASH_1).save(cn);
+        assertEquals(live, registry.getVersion(KEYBOARD_HASH_1));
+        sampleHitboxes(KEYBOARD_HASH_1, 30).save(cn);
+        assertTrue(registry.getVersion(KEYBOARD_HASH_1) > live);
+
+        // hitboxes adapted from an outdated Layout are not published
+        long current = registry.getVersion(KEYBOARD_HASH_1);
+        assertEquals(HitboxRegistry.NO_VERSION, registry.publishLive(
+                sampleHitboxes(KEYBOARD_HASH_1, 25), null, live));
+        assertEquals(current, registry.getVersion(KEYBOARD_HASH_1));
+    }
+
+    @Test
+    public void listenerTest(){
+        final HashSet<Integer> changed = new HashSet<>();
+        HitboxRegistry.LayoutListener listener = new HitboxRegistry.LayoutListener() {
+            @Override
+            public void onLayoutsChanged(Set<Integer> keyboardHashes) {
+                changed.addAll(keyboardHashes);
+            }
+        };
+        registry.addListener(listener);
+        registry.addListener(listener);
+        try{
+            sampleHitboxes(KEYBOARD_HASH_1, 20).save(cn);
+            assertEquals(1, changed.size());
+            assertTrue(changed.contains(KEYBOARD_HASH_1));
+
+            // only the keyboards that got new hitboxes are reported
+            changed.clear();
+            new KeyStats(KEYBOARD_HASH_1).save(cn);
+            assertTrue(changed.isEmpty());
+            sampleHitboxes(KEYBOARD_HASH_2, 20).save(cn);
+            assertEquals(1, changed.size());
+            assertTrue(changed.contains(KEYBOARD_HASH_2));
+
+            changed.clear();
+            ModelStore.get(cn).clear();
+            assertEquals(2, changed.size());
+        } finally {
+            registry.removeListener(listener);
+        }
+        changed.clear();
+        sampleHitboxes(KEYBOARD_HASH_1, 20).save(cn);
+        assertTrue(changed.isEmpty());
+    }
+
+    @Test
+    public void deletedStoreTest(){
+        sampleHitboxes(KEYBOARD_HASH_1, 20).save(cn);
+        assertTrue(ModelStore.getFile(cn).delete());
+        ModelStore.get(cn);
+        assertFalse(registry.getLayout(KEYBOARD_HASH_1).hasHitboxes());
+        assertSame(registry, HitboxRegistry.get(cn));
+    }
+}
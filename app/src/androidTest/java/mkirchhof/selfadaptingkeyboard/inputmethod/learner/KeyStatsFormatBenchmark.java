@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static org.junit.Assert.*;
+
+// compares the time to save and load the KeyStats of a full keyboard in the binary format with
+// the former format of serialized KeyStat objects. The results are written to the log
+@RunWith(AndroidJUnit4.class)
+public class KeyStatsFormatBenchmark {
+    final static String TAG = KeyStatsFormatBenchmark.class.getSimpleName();
+    final private static int KEYBOARD_HASH_1 = 1;
+    final private static int N_KEYS = 40;
+    final private static int N_TOUCHES = 20000;
+    final private static int WARMUP = 5;
+    final private static int REPETITIONS = 50;
+
+    Context cn;
+    KeyStats ks;
+
+    @Before
+    public void setup(){
+        cn = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        ks = new KeyStats(KEYBOARD_HASH_1);
+        ks.setHalfLife(5000);
+        for(int i = 0; i < N_TOUCHES; i++){
+            int key = i * 7 % N_KEYS;
+            ks.add(key, 100 * (key % 10) + i % 37, 150 * (key / 10) + i % 23);
+        }
+    }
+
+    @Test
+    public void binaryFormatTest(){
+        long saveNanos = 0;
+        long loadNanos = 0;
+        for(int i = 0; i < WARMUP + REPETITIONS; i++){
+            long start = System.nanoTime();
+            ks.save(cn);
+            long saved = System.nanoTime();
+            KeyStats loaded = KeyStats.load(cn, KEYBOARD_HASH_1);
+            long end = System.nanoTime();
+            assertEquals(N_KEYS, loaded.size());
+            if(i >= WARMUP){
+                saveNanos += saved - start;
+                loadNanos += end - saved;
+            }
+        }
+        int length = ModelStore.get(cn).find(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS).getLength();
+        Log.i(TAG, "Binary format: " + length + " bytes, save " +
+                saveNanos / REPETITIONS / 1000 + " us, load " + loadNanos / REPETITIONS / 1000 + " us");
+    }
+
+    @Test
+    public void serializedFormatTest() throws Exception {
+        File file = new File(cn.getCacheDir(), "KeyStatsBenchmark.ser");
+        long saveNanos = 0;
+        long loadNanos = 0;
+        for(int i = 0; i < WARMUP + REPETITIONS; i++){
+            long start = System.nanoTime();
+            ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file));
+            oos.writeInt(ks.size());
+            for(KeyStat cur:ks){
+                oos.writeObject(cur);
+            }
+            oos.close();
+            long saved = System.nanoTime();
+            ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
+            KeyStats loaded = new KeyStats(KEYBOARD_HASH_1);
+            int nObjects = ois.readInt();
+            for(int k = 0; k < nObjects; k++){
+                loaded.add((KeyStat) ois.readObject());
+            }
+            ois.close();
+            long end = System.nanoTime();
+            assertEquals(N_KEYS, loaded.size());
+            if(i >= WARMUP){
+                saveNanos += saved - start;
+                loadNanos += end - saved;
+            }
+        }
+        Log.i(TAG, "Serialized format: " + file.length() + " bytes, save " +
+                saveNanos / REPETITIONS / 1000 + " us, load " + loadNanos / REPETITIONS / 1000 + " us");
+        file.delete();
+    }
+}
@@ -17,6 +17,7 @@
 package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
 
 import android.content.Context;
+import android.preference.PreferenceManager;
 import androidx.test.platform.app.InstrumentationRegistry;
 import androidx.test.runner.AndroidJUnit4;
 //import androidx.test.ext.junit.runners.AndroidJUnit4;
@@ -25,6 +26,10 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.util.Iterator;
 
 import static org.junit.Assert.*;
@@ -73,4 +78,64 @@ public class KeyStatsInstrumentationTest {
             assertEquals(cur1.getVarY(), cur2.getVarY(), 10^-4);
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void migrationTest() throws IOException {
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        ks.add(1, 231, 738);
+        ks.add(1, 473, 282);
+        ks.add(2, 228, 283);
+
+        // a file in the format of serialized KeyStat objects from before the ModelStore
+        ModelStore.getFile(cn).delete();
+        PreferenceManager.getDefaultSharedPreferences(cn).edit()
+                .remove(ModelStore.PREF_FILES_IMPORTED).commit();
+        File legacyFile = writeLegacyFile(ks);
+
+        // is moved into the store when it is created
+        KeyStats ks2 = KeyStats.load(cn, KEYBOARD_HASH_1);
+        assertFalse(legacyFile.exists());
+        assertNotNull(ModelStore.get(cn).find(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS));
+        assertEquals(ks.getClock(), ks2.getClock());
+        assertEquals(2, ks2.findCode(1).getN());
+        assertEquals(ks.findCode(1).getMeanX(), ks2.findCode(1).getMeanX(), 1e-9);
+
+        KeyStats ks3 = KeyStats.load(cn, KEYBOARD_HASH_1);
+        assertEquals(ks2.size(), ks3.size());
+        assertEquals(1, ks3.findCode(2).getN());
+    }
+
+    @Test
+    public void importOnceTest() throws IOException {
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        ks.add(1, 231, 738);
+
+        // the files were imported when the store was created
+        ModelStore.get(cn);
+        ModelStore.getFile(cn).delete();
+        File legacyFile = writeLegacyFile(ks);
+        try {
+            // a deleted store is created empty, without looking at the files again
+            ModelStore store = ModelStore.get(cn);
+            assertTrue(ModelStore.getFile(cn).exists());
+            assertTrue(legacyFile.exists());
+            assertNull(store.find(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS));
+            assertSame(store, ModelStore.get(cn));
+        } finally {
+            legacyFile.delete();
+        }
+    }
+
+    private File writeLegacyFile(KeyStats ks) throws IOException {
+        File folder = new File(cn.getFilesDir(), "KeyStats");
+        folder.mkdir();
+        File legacyFile = new File(folder, "KeyStats" + ks.getKeyboardHash() + ".ser");
+        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(legacyFile));
+        oos.writeInt(ks.size());
+        for(KeyStat cur:ks){
+            oos.writeObject(cur);
+        }
+        oos.close();
+        return legacyFile;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class LayoutBackupInstrumentationTest {
+    private static final int KEYBOARD_HASH_1 = 1;
+    private static final int KEYBOARD_HASH_2 = 2;
+
+    private Context mContext;
+
+    @Before
+    public void setup(){
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        cleanUp();
+    }
+
+    private Hitboxes sampleHitboxes(int keyboardHash){
+        Hitboxes hitb = new Hitboxes(keyboardHash);
+        hitb.add(new Hitbox(1, new Point(0, 0), new Point(20, 0), new Point(0, 20), new Point(20, 20)));
+        hitb.add(new Hitbox(2, new Point(20, 0), new Point(40, 0), new Point(20, 20), new Point(40, 20)));
+        return hitb;
+    }
+
+    private KeyStats sampleStats(int keyboardHash){
+        KeyStats ks = new KeyStats(keyboardHash);
+        ks.add(new KeyStat(1, 10, 10, 16, 16, 0, 100));
+        ks.add(new KeyStat(2, 30, 10, 16, 16, 0, 100));
+        return ks;
+    }
+
+    private byte[] exportLayouts(ArrayList<Integer> progress){
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(LayoutBackup.export(mContext, out, record(progress)));
+        return out.toByteArray();
+    }
+
+    private static LayoutBackup.ProgressListener record(final ArrayList<Integer> progress){
+        return new LayoutBackup.ProgressListener() {
+            @Override
+            public void onProgress(int percent) {
+                progress.add(percent);
+            }
+        };
+    }
+
+    @Test
+    public void exportImportTest(){
+        sampleHitboxes(KEYBOARD_HASH_1).save(mContext);
+        sampleStats(KEYBOARD_HASH_1).save(mContext);
+        HitboxRaster raster = HitboxRaster.compile(sampleStats(KEYBOARD_HASH_1),
+                sampleHitboxes(KEYBOARD_HASH_1));
+        raster.save(mContext);
+        ArrayList<Integer> progress = new ArrayList<>();
+        byte[] backup = exportLayouts(progress);
+        assertEquals(100, (int) progress.get(progress.size() - 1));
+
+        // other layouts are learnt in the meantime
+        ModelStore.get(mContext).clear();
+        new File(new File(mContext.getFilesDir(), "Hitboxes"),
+                "HitboxRaster" + KEYBOARD_HASH_1 + ".ser").delete();
+        sampleHitboxes(KEYBOARD_HASH_2).save(mContext);
+        HitboxRaster.compile(sampleStats(KEYBOARD_HASH_2), sampleHitboxes(KEYBOARD_HASH_2))
+                .save(mContext);
+
+        progress.clear();
+        assertTrue(LayoutBackup.restore(mContext, new ByteArrayInputStream(backup), backup.length,
+                record(progress)));
+        assertEquals(100, (int) progress.get(progress.size() - 1));
+
+        // the imported layouts replace the current ones
+        assertTrue(sampleHitboxes(KEYBOARD_HASH_1).hasSameGeometry(
+                Hitboxes.load(mContext, KEYBOARD_HASH_1)));
+        assertEquals(200, KeyStats.load(mContext, KEYBOARD_HASH_1).getN(), 1e-9);
+        assertTrue(raster.hasSameCells(HitboxRaster.load(mContext, KEYBOARD_HASH_1)));
+        assertFalse(Hitboxes.savedHitboxesExists(mContext, KEYBOARD_HASH_2));
+        assertNull(HitboxRaster.load(mContext, KEYBOARD_HASH_2));
+    }
+
+    @Test
+    public void brokenBackupTest(){
+        sampleHitboxes(KEYBOARD_HASH_1).save(mContext);
+        sampleStats(KEYBOARD_HASH_1).save(mContext);
+        byte[] backup = exportLayouts(new ArrayList<Integer>());
+        ModelStore.get(mContext).clear();
+        sampleHitboxes(KEYBOARD_HASH_2).save(mContext);
+
+        // a truncated archive changes nothing
+        byte[] truncated = Arrays.copyOf(backup, backup.length / 2);
+        assertFalse(LayoutBackup.restore(mContext, new ByteArrayInputStream(truncated), -1, null));
+        assertTrue(Hitboxes.savedHitboxesExists(mContext, KEYBOARD_HASH_2));
+        assertFalse(Hitboxes.savedHitboxesExists(mContext, KEYBOARD_HASH_1));
+
+        // neither does anything that is not a backup
+        byte[] garbage = new byte[1000];
+        assertFalse(LayoutBackup.restore(mContext, new ByteArrayInputStream(garbage), -1, null));
+        assertTrue(Hitboxes.savedHitboxesExists(mContext, KEYBOARD_HASH_2));
+
+        File[] staged = new File(mContext.getFilesDir(), "Hitboxes").listFiles();
+        for(File file:staged != null ? staged : new File[0]){
+            assertFalse(file.getName(), file.getName().endsWith(".import"));
+        }
+    }
+
+    @Test
+    public void failedCommitTest(){
+        sampleHitboxes(KEYBOARD_HASH_1).save(mContext);
+        sampleStats(KEYBOARD_HASH_1).save(mContext);
+        HitboxRaster.compile(sampleStats(KEYBOARD_HASH_1), sampleHitboxes(KEYBOARD_HASH_1))
+                .save(mContext);
+        byte[] backup = exportLayouts(new ArrayList<Integer>());
+        cleanUp();
+        sampleHitboxes(KEYBOARD_HASH_2).save(mContext);
+        HitboxRaster raster = HitboxRaster.compile(sampleStats(KEYBOARD_HASH_2),
+                sampleHitboxes(KEYBOARD_HASH_2));
+        raster.save(mContext);
+
+        // the store fails to be replaced after the derived files were moved
+        try{
+            LayoutBackup.restore(mContext, new ByteArrayInputStream(backup), backup.length, null,
+                    new Runnable() {
+                @Override
+                public void run() {
+                    throw new IllegalStateException("crash");
+                }
+            });
+            fail();
+        } catch(IllegalStateException e){
+            // expected
+        }
+
+        // the old derived files are back and match the models
+        assertTrue(Hitboxes.savedHitboxesExists(mContext, KEYBOARD_HASH_2));
+        assertFalse(Hitboxes.savedHitboxesExists(mContext, KEYBOARD_HASH_1));
+        assertTrue(raster.hasSameCells(HitboxRaster.load(mContext, KEYBOARD_HASH_2)));
+        assertNull(HitboxRaster.load(mContext, KEYBOARD_HASH_1));
+        File[] files = new File(mContext.getFilesDir(), "Hitboxes").listFiles();
+        for(File file:files != null ? files : new File[0]){
+            assertFalse(file.getName(), file.getName().endsWith(".import"));
+            assertFalse(file.getName(), file.getName().endsWith(".replaced"));
+        }
+    }
+
+    @Test
+    public void incompleteBackupTest() throws IOException {
+        sampleHitboxes(KEYBOARD_HASH_1).save(mContext);
+        sampleStats(KEYBOARD_HASH_1).save(mContext);
+        HitboxRaster.compile(sampleStats(KEYBOARD_HASH_1), sampleHitboxes(KEYBOARD_HASH_1))
+                .save(mContext);
+        byte[] backup = exportLayouts(new ArrayList<Integer>());
+        cleanUp();
+        sampleHitboxes(KEYBOARD_HASH_2).save(mContext);
+        String rasterEntry = "Hitboxes/HitboxRaster" + KEYBOARD_HASH_1 + ".ser";
+
+        // an archive without the store would delete all layouts
+        byte[] noStore = rewrite(backup, "ModelStore.bin", null);
+        assertFalse(LayoutBackup.restore(mContext, new ByteArrayInputStream(noStore), -1, null));
+        // one that was cut off between two entries lacks some of them
+        byte[] noRaster = rewrite(backup, rasterEntry, null);
+        assertFalse(LayoutBackup.restore(mContext, new ByteArrayInputStream(noRaster), -1, null));
+        // and a derived file that cannot be read is not put in place
+        byte[] brokenRaster = rewrite(backup, null, rasterEntry);
+        assertFalse(LayoutBackup.restore(mContext, new ByteArrayInputStream(brokenRaster), -1,
+                null));
+
+        assertTrue(Hitboxes.savedHitboxesExists(mContext, KEYBOARD_HASH_2));
+        assertFalse(Hitboxes.savedHitboxesExists(mContext, KEYBOARD_HASH_1));
+        assertNull(HitboxRaster.load(mContext, KEYBOARD_HASH_1));
+        File[] files = new File(mContext.getFilesDir(), "Hitboxes").listFiles();
+        for(File file:files != null ? files : new File[0]){
+            assertFalse(file.getName(), file.getName().endsWith(".import"));
+        }
+
+        // the backup itself is fine
+        assertTrue(LayoutBackup.restore(mContext, new ByteArrayInputStream(backup), -1, null));
+        assertNotNull(HitboxRaster.load(mContext, KEYBOARD_HASH_1));
+    }
+
+    // copies an archive without the entry skip and with the content of the entry corrupt
+    // replaced by garbage
+    private static byte[] rewrite(byte[] backup, String skip, String corrupt) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(out);
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(backup));
+        byte[] buffer = new byte[4096];
+        ZipEntry entry;
+        while((entry = zis.getNextEntry()) != null){
+            if(entry.getName().equals(skip)){
+                continue;
+            }
+            zos.putNextEntry(new ZipEntry(entry.getName()));
+            if(entry.getName().equals(corrupt)){
+                zos.write(new byte[100]);
+            } else {
+                int count;
+                while((count = zis.read(buffer)) != -1){
+                    zos.write(buffer, 0, count);
+                }
+            }
+            zos.closeEntry();
+        }
+        zos.close();
+        return out.toByteArray();
+    }
+
+    private void cleanUp(){
+        ModelStore.get(mContext).clear();
+        File folder = new File(mContext.getFilesDir(),"Hitboxes");
+        folder.mkdirs();
+        File[] derived = folder.listFiles();
+        for(File file:derived != null ? derived : new File[0]){
+            file.delete();
+        }
+    }
+}
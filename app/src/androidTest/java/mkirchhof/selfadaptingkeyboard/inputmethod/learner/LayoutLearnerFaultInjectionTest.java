@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FilenameFilter;
+
+import static org.junit.Assert.*;
+
+// Kills LayoutLearner.learn at each of its stages and checks that the next run ends up with the
+// same models as a run that was never interrupted: no keystroke is lost or learnt twice
+@RunWith(AndroidJUnit4.class)
+public class LayoutLearnerFaultInjectionTest {
+    private static final int KEYBOARD_HASH_1 = 1;
+    private static final int[] STAGES = {
+            LayoutLearner.STAGE_CACHE_READ,
+            LayoutLearner.STAGE_MODELS_DERIVED,
+            LayoutLearner.STAGE_STORE_WRITTEN,
+            LayoutLearner.STAGE_COMMITTED,
+            LayoutLearner.STAGE_LOGGER_DELETED
+    };
+
+    private Context mContext;
+
+    @Before
+    public void setup(){
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        cleanUp();
+    }
+
+    // stands in for the process being killed
+    private static class Crash extends RuntimeException {
+    }
+
+    private static LayoutLearner.FaultInjector crashAt(final int stage){
+        return new LayoutLearner.FaultInjector() {
+            @Override
+            public void onStage(int reached) {
+                if(reached == stage){
+                    throw new Crash();
+                }
+            }
+        };
+    }
+
+    @Test
+    public void crashAtEachStageTest(){
+        seed();
+        new LayoutLearner(mContext, 0, 0).learn();
+        KeyStats expectedStats = KeyStats.load(mContext, KEYBOARD_HASH_1);
+        Hitboxes expectedHitb = Hitboxes.load(mContext, KEYBOARD_HASH_1);
+        assertEquals(36, expectedStats.findCode(1).getN());
+
+        for(int stage:STAGES){
+            cleanUp();
+            seed();
+
+            LayoutLearner crashing = new LayoutLearner(mContext, 0, 0);
+            crashing.setFaultInjector(crashAt(stage));
+            try{
+                crashing.learn();
+                fail("learn() did not reach stage " + stage);
+            } catch(Crash e){
+                // expected
+            }
+            new LayoutLearner(mContext, 0, 0).learn();
+
+            KeyStats ks = KeyStats.load(mContext, KEYBOARD_HASH_1);
+            for(int code = 1; code <= 3; code++){
+                assertEquals("stage " + stage + ", key " + code,
+                        expectedStats.findCode(code).getN(), ks.findCode(code).getN(), 1e-9);
+                // Loggers saved within the same millisecond may be learnt in another order
+                assertEquals("stage " + stage + ", key " + code,
+                        expectedStats.findCode(code).getMeanX(), ks.findCode(code).getMeanX(), 0.01);
+            }
+            assertTrue("stage " + stage,
+                    Hitboxes.load(mContext, KEYBOARD_HASH_1).hasSameGeometry(expectedHitb));
+            assertEquals("stage " + stage, 1, ModelStore.get(mContext).list(ModelStore.KIND_HITBOXES).size());
+            assertEquals("stage " + stage, 0, countLoggers());
+        }
+    }
+
+    // Loggers that arrive after a run died between its commit and the deletion of its Loggers
+    // are learnt, the ones of the dead run are not learnt again
+    @Test
+    public void journalTest(){
+        seed();
+        LayoutLearner crashing = new LayoutLearner(mContext, 0, 0);
+        crashing.setFaultInjector(crashAt(LayoutLearner.STAGE_COMMITTED));
+        try{
+            crashing.learn();
+            fail();
+        } catch(Crash e){
+            // expected
+        }
+        assertEquals(3, countLoggers());
+        assertEquals(36, KeyStats.load(mContext, KEYBOARD_HASH_1).findCode(1).getN(), 1e-9);
+
+        Logger logger4 = new Logger();
+        logger4.set(0, 0, 1, 'A', 7, 3, KEYBOARD_HASH_1);
+        logger4.set(1, 1, 1, 'A', 9, 4, KEYBOARD_HASH_1);
+        logger4.save(mContext);
+
+        new LayoutLearner(mContext, 0, 0).learn();
+        KeyStats ks = KeyStats.load(mContext, KEYBOARD_HASH_1);
+        assertEquals(38, ks.findCode(1).getN(), 1e-9);
+        assertEquals(38, ks.findCode(2).getN(), 1e-9);
+        assertEquals(0, countLoggers());
+    }
+
+    // old stats and hitboxes of one keyboard plus three cached Loggers
+    private void seed(){
+        Hitboxes hitb = new Hitboxes(KEYBOARD_HASH_1);
+        hitb.add(new Hitbox(1, new Point(1, 1), new Point(10, 1), new Point(1, 5), new Point(10, 5)));
+        hitb.add(new Hitbox(2, new Point(10, 1), new Point(20, 1), new Point(10, 5), new Point(20, 5)));
+        hitb.add(new Hitbox(3, new Point(20, 1), new Point(30, 1), new Point(20, 5), new Point(30, 5)));
+        hitb.save(mContext);
+
+        KeyStats keySt = new KeyStats(KEYBOARD_HASH_1);
+        keySt.add(new KeyStat(1, 8, 3, 16, 4, 0, 30));
+        keySt.add(new KeyStat(2, 18, 3, 16, 4, 0, 30));
+        keySt.add(new KeyStat(3, 26, 3, 16, 4, 0, 30));
+        keySt.save(mContext);
+
+        Logger logger1 = new Logger();
+        logger1.set(0, 0, 1, 'A', 6, 3, KEYBOARD_HASH_1);
+        logger1.set(1, 1, 1, 'A', 12, 4, KEYBOARD_HASH_1);
+        logger1.set(2, 2, 1, 'A', 11, 4, KEYBOARD_HASH_1);
+        logger1.set(3, 3, 1, 'A', 8, 3, KEYBOARD_HASH_1);
+        logger1.set(4, 4, 1, 'A', 14, 2, KEYBOARD_HASH_1);
+        logger1.set(5, 5, 1, 'A', 12, 5, KEYBOARD_HASH_1);
+        logger1.save(mContext);
+
+        Logger logger2 = new Logger();
+        logger2.set(0, 0, 2, 'B', 18, 3, KEYBOARD_HASH_1);
+        logger2.set(1, 1, 2, 'B', 19, 4, KEYBOARD_HASH_1);
+        logger2.set(2, 2, 2, 'B', 24, 1, KEYBOARD_HASH_1);
+        logger2.set(3, 3, 2, 'B', 23, 2, KEYBOARD_HASH_1);
+        logger2.set(4, 4, 2, 'B', 22, 2, KEYBOARD_HASH_1);
+        logger2.set(5, 5, 2, 'B', 20, 4, KEYBOARD_HASH_1);
+        logger2.set(6, 6, 2, 'B', 19, 2, KEYBOARD_HASH_1);
+        logger2.set(7, 7, 2, 'B', 21, 3, KEYBOARD_HASH_1);
+        logger2.save(mContext);
+
+        Logger logger3 = new Logger();
+        logger3.set(0, 0, 3, 'C', 28, 3, KEYBOARD_HASH_1);
+        logger3.set(1, 1, 3, 'C', 25, 5, KEYBOARD_HASH_1);
+        logger3.set(2, 2, 3, 'C', 29, 5, KEYBOARD_HASH_1);
+        logger3.set(3, 3, 3, 'C', 26, 5, KEYBOARD_HASH_1);
+        logger3.set(4, 4, 3, 'C', 27, 4, KEYBOARD_HASH_1);
+        logger3.set(5, 5, 3, 'C', 28, 4, KEYBOARD_HASH_1);
+        logger3.save(mContext);
+    }
+
+    private File[] listLoggers(){
+        File folder = new File(mContext.getCacheDir(),"Logger");
+        File[] files = folder.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File file, String filename) {
+                return filename.startsWith("Logger") &
+                        (filename.endsWith(".ser") | filename.endsWith(".tmp"));
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+
+    private int countLoggers(){
+        return listLoggers().length;
+    }
+
+    // deletes the Loggers, the ModelStore and the rasters and posture models
+    private void cleanUp(){
+        for(File file:listLoggers()){
+            file.delete();
+        }
+        ModelStore.get(mContext).clear();
+        File[] derived = new File(mContext.getFilesDir(),"Hitboxes").listFiles();
+        if(derived != null){
+            for(File file:derived){
+                file.delete();
+            }
+        }
+    }
+}
@@ -25,8 +25,13 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
@@ -60,12 +65,17 @@ public class LayoutLearnerInstrumentationTest {
             }
         }
 
-        // delete all hitboxes:
+        // delete all hitboxes and KeyStats:
+        ModelStore.get(mContext).clear();
+
+        // delete all rasters and geometries:
         folder = new File(mContext.getFilesDir(),"Hitboxes");
         cachedFiles = folder.listFiles(new FilenameFilter() {
             @Override
             public boolean accept(File file, String filename) {
-                return filename.startsWith("Hitboxes") & filename.endsWith(".ser");
+                return (filename.startsWith("Hitboxes") | filename.startsWith("HitboxRaster") |
+                        filename.startsWith("Geometry") | filename.startsWith("Posture")) &
+                        (filename.endsWith(".bin") | filename.endsWith(".ser"));
             }
         });
         if(cachedFiles != null) {
@@ -74,12 +84,13 @@ public class LayoutLearnerInstrumentationTest {
             }
         }
 
-        // delete all KeyStats:
+        // delete all KeyStats and shared stats:
         folder = new File(mContext.getFilesDir(),"KeyStats");
         cachedFiles = folder.listFiles(new FilenameFilter() {
             @Override
             public boolean accept(File file, String filename) {
-                return filename.startsWith("KeyStats") & filename.endsWith(".ser");
+                return (filename.startsWith("KeyStats") | filename.startsWith("BackoffStats")) &
+                        (filename.endsWith(".bin") | filename.endsWith(".ser"));
             }
         });
         if(cachedFiles != null) {
@@ -171,7 +182,46 @@ public class LayoutLearnerInstrumentationTest {
 
         assertTrue(allFound);
 
-        // assert that the layoutLearner cleaned up the cache properly
+        // assert that the cache is kept until learn() committed what it learnt from it
+        File folder = new File(mContext.getCacheDir(),"Logger");
+        File[] cachedFiles = folder.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File file, String filename) {
+                return filename.startsWith("Logger") & filename.endsWith(".ser");
+            }
+        });
+        assertEquals(3, cachedFiles.length);
+    }
+
+    // Verify that an unreadable Logger is quarantined, while the other ones are still read in
+    @Test
+    public void corruptCacheTest() throws Exception {
+        int KEYBOARD_HASH_1 = 1;
+
+        Logger logger1 = new Logger();
+        logger1.set(0, 0, 1, 'A', 6, 3, KEYBOARD_HASH_1);
+        logger1.set(1, 1, 1, 'A', 12, 4, KEYBOARD_HASH_1);
+        logger1.save(mContext);
+
+        // a Logger that claims more items than it holds
+        File corrupt = new File(logger1.save(mContext));
+        byte[] data = new byte[(int) corrupt.length()];
+        FileInputStream fis = new FileInputStream(corrupt);
+        fis.read(data);
+        fis.close();
+        FileOutputStream fos = new FileOutputStream(corrupt);
+        fos.write(data, 0, data.length / 2);
+        fos.close();
+        assertNull(Logger.load(mContext, corrupt.getPath()));
+
+        LayoutLearner ll = new LayoutLearner(mContext);
+        assertEquals(2, ll.readCache().size());
+        assertFalse(corrupt.exists());
+        assertTrue(new File(new File(mContext.getCacheDir(), LayoutLearner.QUARANTINE_FOLDER),
+                corrupt.getName()).exists());
+
+        // learning commits the readable Logger only
+        assertTrue(ll.learn());
         File folder = new File(mContext.getCacheDir(),"Logger");
         File[] cachedFiles = folder.listFiles(new FilenameFilter() {
             @Override
@@ -229,7 +279,7 @@ public class LayoutLearnerInstrumentationTest {
     }
 
     @Test
-    public void computeAllHitboxesTest(){
+    public void solveAllHitboxesTest(){
         int KEYBOARD_HASH_1 = 1;
         int KEYBOARD_HASH_2 = 2;
 
@@ -261,7 +311,7 @@ public class LayoutLearnerInstrumentationTest {
         kss.add(keySt1);
         kss.add(keySt2);
 
-        LayoutLearner.computeAllHitboxes(kss, hbs, 0, 0);
+        LayoutLearner.solveAllHitboxes(kss, hbs, new BorderSolver(0, 0, 1000));
 
         assertTrue(hbs.getHitboxes(KEYBOARD_HASH_1).findCode(1).getBottomRight().getX() > 10);
         assertTrue(hbs.getHitboxes(KEYBOARD_HASH_1).findCode(2).getBottomRight().getX() > 20);
@@ -323,28 +373,9 @@ public class LayoutLearnerInstrumentationTest {
         Hitboxes newHitb = Hitboxes.load(mContext, KEYBOARD_HASH_1);
 
         // assert that no duplicate data was created
-        File[] hitboxes = null;
-        File[] keyStats = null;
-        File hbFolder = new File(mContext.getFilesDir(),"Hitboxes");
-        if(hbFolder.exists()) {
-            hitboxes = hbFolder.listFiles(new FilenameFilter() {
-                @Override
-                public boolean accept(File file, String filename) {
-                    return filename.startsWith("Hitboxes") & filename.endsWith(".ser");
-                }
-            });
-        }
-        File ksFolder = new File(mContext.getFilesDir(),"KeyStats");
-        if(ksFolder.exists()) {
-            keyStats = ksFolder.listFiles(new FilenameFilter() {
-                @Override
-                public boolean accept(File file, String filename) {
-                    return filename.startsWith("KeyStats") & filename.endsWith(".ser");
-                }
-            });
-        }
-        assertEquals(1, hitboxes.length);
-        assertEquals(1, keyStats.length);
+        ModelStore store = ModelStore.get(mContext);
+        assertEquals(1, store.list(ModelStore.KIND_HITBOXES).size());
+        assertEquals(1, store.list(ModelStore.KIND_KEYSTATS).size());
 
         // assert that KeyStats were updated correctly
         assertEquals(6, newKs.findCode(1).getN());
@@ -363,6 +394,114 @@ public class LayoutLearnerInstrumentationTest {
 
     }
 
+    @Test
+    public void rollbackTest(){
+        int KEYBOARD_HASH_1 = 1;
+
+        Hitboxes hitb = new Hitboxes(KEYBOARD_HASH_1);
+        hitb.add(new Hitbox(1, new Point(1, 1), new Point(10, 1), new Point(1, 5), new Point(10, 5)));
+        hitb.add(new Hitbox(2, new Point(10, 1), new Point(20, 1), new Point(10, 5), new Point(20, 5)));
+        hitb.save(mContext);
+
+        Logger logger1 = new Logger();
+        for(int i = 0; i < 12; i += 2){
+            logger1.set(i, i, 1, 'A', 5 + i % 3, 3, KEYBOARD_HASH_1);
+            logger1.set(i + 1, i + 1, 2, 'B', 14 + i % 3, 3, KEYBOARD_HASH_1);
+        }
+        logger1.save(mContext);
+        LayoutLearner ll = new LayoutLearner(mContext, 0, 0);
+        ll.learn();
+        KeyStats firstKs = KeyStats.load(mContext, KEYBOARD_HASH_1);
+        Hitboxes firstHitb = Hitboxes.load(mContext, KEYBOARD_HASH_1);
+
+        // the second run moves the border between the keys to the right
+        Logger logger2 = new Logger();
+        for(int i = 0; i < 40; i += 2){
+            logger2.set(i, i, 1, 'A', 9 + i % 3, 3, KEYBOARD_HASH_1);
+            logger2.set(i + 1, i + 1, 2, 'B', 18 + i % 3, 3, KEYBOARD_HASH_1);
+        }
+        logger2.save(mContext);
+        ll.learn();
+        assertFalse(Hitboxes.load(mContext, KEYBOARD_HASH_1).hasSameGeometry(firstHitb));
+
+        List<ModelStore.Entry> generations = ModelStore.get(mContext).listGenerations();
+        assertEquals(2, generations.size());
+        assertTrue(ll.rollback(generations.get(1).getKeyboardHash()));
+
+        assertTrue(Hitboxes.load(mContext, KEYBOARD_HASH_1).hasSameGeometry(firstHitb));
+        assertEquals(firstKs.findCode(1).getN(), KeyStats.load(mContext, KEYBOARD_HASH_1).findCode(1).getN());
+        assertNull(HitboxRaster.load(mContext, KEYBOARD_HASH_1));
+
+        // and back to the hitboxes before any run
+        assertTrue(ll.rollback(generations.get(0).getKeyboardHash()));
+        assertTrue(Hitboxes.load(mContext, KEYBOARD_HASH_1).hasSameGeometry(hitb));
+        assertEquals(0, KeyStats.load(mContext, KEYBOARD_HASH_1).size());
+    }
+
+    @Test
+    public void resetTest(){
+        int KEYBOARD_HASH_1 = 1;
+
+        Hitboxes hitb = new Hitboxes(KEYBOARD_HASH_1);
+        hitb.add(new Hitbox(1, new Point(1, 1), new Point(10, 1), new Point(1, 5), new Point(10, 5)));
+        hitb.add(new Hitbox(2, new Point(10, 1), new Point(20, 1), new Point(10, 5), new Point(20, 5)));
+        hitb.save(mContext);
+        Logger logger1 = new Logger();
+        for(int i = 0; i < 12; i += 2){
+            logger1.set(i, i, 1, 'A', 5 + i % 3, 3, KEYBOARD_HASH_1);
+            logger1.set(i + 1, i + 1, 2, 'B', 14 + i % 3, 3, KEYBOARD_HASH_1);
+        }
+        logger1.save(mContext);
+        LayoutLearner ll = new LayoutLearner(mContext, 0, 0);
+        ll.learn();
+        assertNotNull(HitboxRaster.load(mContext, KEYBOARD_HASH_1));
+        String cached = logger1.save(mContext);
+
+        // the keystrokes and all models are gone, the keyboard starts over from its defaults
+        assertTrue(ll.reset());
+        assertFalse(new File(cached).exists());
+        assertTrue(ModelStore.get(mContext).list().isEmpty());
+        assertNull(HitboxRaster.load(mContext, KEYBOARD_HASH_1));
+        assertFalse(Hitboxes.savedHitboxesExists(mContext, KEYBOARD_HASH_1));
+    }
+
+    @Test
+    public void progressTest(){
+        int KEYBOARD_HASH_1 = 1;
+
+        Hitboxes hitb = new Hitboxes(KEYBOARD_HASH_1);
+        hitb.add(new Hitbox(1, new Point(1, 1), new Point(10, 1), new Point(1, 5), new Point(10, 5)));
+        hitb.add(new Hitbox(2, new Point(10, 1), new Point(20, 1), new Point(10, 5), new Point(20, 5)));
+        hitb.save(mContext);
+        for(int n = 0; n < 2; n++){
+            Logger logger = new Logger();
+            for(int i = 0; i < 12; i += 2){
+                logger.set(i, i, 1, 'A', 5 + i % 3, 3, KEYBOARD_HASH_1);
+                logger.set(i + 1, i + 1, 2, 'B', 14 + i % 3, 3, KEYBOARD_HASH_1);
+            }
+            logger.save(mContext);
+        }
+
+        final ArrayList<Integer> stages = new ArrayList<>();
+        LayoutLearner ll = new LayoutLearner(mContext, 0, 0);
+        ll.setProgressListener(new LayoutLearner.ProgressListener() {
+            @Override
+            public void onStage(int stage) {
+                stages.add(stage);
+            }
+        });
+        assertTrue(ll.learn());
+        assertEquals(Arrays.asList(LayoutLearner.STAGE_CACHE_READ, LayoutLearner.STAGE_MODELS_DERIVED,
+                LayoutLearner.STAGE_STORE_WRITTEN, LayoutLearner.STAGE_COMMITTED,
+                LayoutLearner.STAGE_LOGGER_DELETED, LayoutLearner.STAGE_LOGGER_DELETED), stages);
+
+        // a second run right after it has nothing left to learn
+        stages.clear();
+        assertTrue(ll.learn());
+        assertEquals(Arrays.asList(LayoutLearner.STAGE_CACHE_READ), stages);
+        assertEquals(12, KeyStats.load(mContext, KEYBOARD_HASH_1).findCode(1).getN());
+    }
+
     @Test
     public void doWorkWithExistingKeyStatsTest(){
         int KEYBOARD_HASH_1 = 1;
@@ -415,28 +554,9 @@ public class LayoutLearnerInstrumentationTest {
         Hitboxes newHitb = Hitboxes.load(mContext, KEYBOARD_HASH_1);
 
         // assert that no duplicate data was created
-        File[] hitboxes = null;
-        File[] keyStats = null;
-        File hbFolder = new File(mContext.getFilesDir(),"Hitboxes");
-        if(hbFolder.exists()) {
-            hitboxes = hbFolder.listFiles(new FilenameFilter() {
-                @Override
-                public boolean accept(File file, String filename) {
-                    return filename.startsWith("Hitboxes") & filename.endsWith(".ser");
-                }
-            });
-        }
-        File ksFolder = new File(mContext.getFilesDir(),"KeyStats");
-        if(ksFolder.exists()) {
-            keyStats = ksFolder.listFiles(new FilenameFilter() {
-                @Override
-                public boolean accept(File file, String filename) {
-                    return filename.startsWith("KeyStats") & filename.endsWith(".ser");
-                }
-            });
-        }
-        assertEquals(1, hitboxes.length);
-        assertEquals(1, keyStats.length);
+        ModelStore store = ModelStore.get(mContext);
+        assertEquals(1, store.list(ModelStore.KIND_HITBOXES).size());
+        assertEquals(1, store.list(ModelStore.KIND_KEYSTATS).size());
 
         // assert that KeyStats were updated correctly
         assertEquals(36, newKs.findCode(1).getN());
@@ -541,28 +661,9 @@ public class LayoutLearnerInstrumentationTest {
         Hitboxes newHitb2 = Hitboxes.load(mContext, KEYBOARD_HASH_2);
 
         // assert that no duplicate data was created
-        File[] hitboxes = null;
-        File[] keyStats = null;
-        File hbFolder = new File(mContext.getFilesDir(),"Hitboxes");
-        if(hbFolder.exists()) {
-            hitboxes = hbFolder.listFiles(new FilenameFilter() {
-                @Override
-                public boolean accept(File file, String filename) {
-                    return filename.startsWith("Hitboxes") & filename.endsWith(".ser");
-                }
-            });
-        }
-        File ksFolder = new File(mContext.getFilesDir(),"KeyStats");
-        if(ksFolder.exists()) {
-            keyStats = ksFolder.listFiles(new FilenameFilter() {
-                @Override
-                public boolean accept(File file, String filename) {
-                    return filename.startsWith("KeyStats") & filename.endsWith(".ser");
-                }
-            });
-        }
-        assertEquals(2, hitboxes.length);
-        assertEquals(2, keyStats.length);
+        ModelStore store = ModelStore.get(mContext);
+        assertEquals(2, store.list(ModelStore.KIND_HITBOXES).size());
+        assertEquals(2, store.list(ModelStore.KIND_KEYSTATS).size());
 
         // assert that KeyStats were updated correctly
         assertEquals(36, newKs.findCode(1).getN());
@@ -588,4 +689,108 @@ public class LayoutLearnerInstrumentationTest {
                 newHitb2.findCode(4).getBottomLeft().getX());
 
     }
+
+    // Verify that a keyboard in a new size gets its hitboxes from the same layout in another size
+    @Test
+    public void projectLayoutTest(){
+        int KEYBOARD_HASH_1 = 1;
+        int KEYBOARD_HASH_2 = 2;
+
+        // the same row of three keys, once 30 and once 60 pixels per key
+        Hitboxes small = new Hitboxes(KEYBOARD_HASH_1);
+        Hitboxes large = new Hitboxes(KEYBOARD_HASH_2);
+        for(int i = 0; i < 3; i++){
+            small.add(new Hitbox(i + 1, new Point(30 * i, 0), new Point(30 * (i + 1), 0),
+                    new Point(30 * i, 40), new Point(30 * (i + 1), 40)));
+            large.add(new Hitbox(i + 1, new Point(60 * i, 0), new Point(60 * (i + 1), 0),
+                    new Point(60 * i, 40), new Point(60 * (i + 1), 40)));
+        }
+        new KeyboardGeometry(KEYBOARD_HASH_1, "en_US", 0, small).save(mContext);
+        small.save(mContext);
+
+        // key 2 is always hit at its right border on the small keyboard
+        Logger logger = new Logger();
+        for(int i = 0; i < 30; i++){
+            logger.set(3 * i, 3 * i, 1, 'A', 15, 20, KEYBOARD_HASH_1);
+            logger.set(3 * i + 1, 3 * i + 1, 2, 'B', 58, 20, KEYBOARD_HASH_1);
+            logger.set(3 * i + 2, 3 * i + 2, 3, 'C', 75, 20, KEYBOARD_HASH_1);
+        }
+        logger.save(mContext);
+        LayoutLearner ll = new LayoutLearner(mContext, 5, 5);
+        ll.learn();
+
+        // the large keyboard was never used, but key 2 already reaches into key 3
+        KeyboardGeometry geometry = new KeyboardGeometry(KEYBOARD_HASH_2, "en_US", 0, large);
+        geometry.save(mContext);
+        assertTrue(ll.projectLayout(geometry));
+        Hitboxes projected = Hitboxes.load(mContext, KEYBOARD_HASH_2);
+        assertTrue(projected.findCode(2).getTopRight().getX() > 120);
+        assertEquals(projected.findCode(2).getTopRight().getX(),
+                projected.findCode(3).getTopLeft().getX());
+    }
+
+    // Verify that the posture rasters of old hitboxes do not decide hits after new ones are learnt
+    @Test
+    public void postureDroppedTest(){
+        int KEYBOARD_HASH_1 = 1;
+
+        // one row of four keys with the codes 1 to 4
+        Hitboxes hitb = new Hitboxes(KEYBOARD_HASH_1);
+        for(int code = 1; code <= 4; code++){
+            hitb.add(new Hitbox(code, new Point((code - 1) * 100, 0), new Point(code * 100, 0),
+                    new Point((code - 1) * 100, 100), new Point(code * 100, 100)));
+        }
+
+        // sessions of both thumbs. The right thumb hits the two left keys 30 pixels too far right
+        Logger sessions = new Logger();
+        KeyStats sessionStats = new KeyStats(KEYBOARD_HASH_1);
+        int pos = 0;
+        for(int session = 0; session < 10; session++){
+            for(int i = 0; i < 48; i++){
+                int code = i % 4 + 1;
+                int x = (code - 1) * 100 + 50 + (session % 2 == 1 && code <= 2 ? 30 : 0);
+                sessions.set(pos, pos, code, 'a', x, 50, KEYBOARD_HASH_1);
+                sessionStats.add(code, x, 50);
+                pos++;
+            }
+        }
+        ArrayList<Logger.LogItem> touches = new ArrayList<>();
+        Iterator<Logger.LogItem> it = sessions.iterator();
+        while(it.hasNext()){
+            touches.add(it.next());
+        }
+        PostureModel model = PostureModel.fit(touches, hitb, sessionStats, 0);
+        assertNotNull(model);
+        HitboxRaster rightThumb = null;
+        for(int k = 0; k < model.getSize(); k++){
+            if(model.getRaster(k).classify(205, 50) == 2){
+                rightThumb = model.getRaster(k);
+            }
+        }
+        assertNotNull(rightThumb);
+        // the model is saved before the hitboxes, which publish it
+        model.save(mContext);
+        hitb.save(mContext);
+        HitboxRegistry registry = HitboxRegistry.get(mContext);
+        assertNotNull(registry.getLayout(KEYBOARD_HASH_1).getPostureModel());
+
+        // too few touches to fit the postures again, but enough to learn new hitboxes, where the
+        // third key is hit close to its left edge
+        Logger logger = new Logger();
+        for(int i = 0; i < 40; i++){
+            int code = i % 4 + 1;
+            int x = code == 3 ? 212 + i % 5 : (code - 1) * 100 + 48 + i % 5;
+            logger.set(i, i, code, 'a', x, 48 + i % 5, KEYBOARD_HASH_1);
+        }
+        logger.save(mContext);
+        LayoutLearner ll = new LayoutLearner(mContext, 0, 0);
+        assertTrue(ll.learn());
+
+        // the old posture rasters are gone and the new main raster decides the hits
+        assertNull(PostureModel.load(mContext, KEYBOARD_HASH_1));
+        HitboxRegistry.Layout layout = registry.getLayout(KEYBOARD_HASH_1);
+        assertNull(layout.getPostureModel());
+        assertNotNull(layout.getRaster());
+        assertEquals(3, layout.getRaster().classify(205, 50));
+    }
 }
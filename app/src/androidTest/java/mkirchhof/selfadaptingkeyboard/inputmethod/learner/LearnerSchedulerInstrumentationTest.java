@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+import androidx.work.testing.WorkManagerTestInitHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class LearnerSchedulerInstrumentationTest {
+    private Context mContext;
+
+    @Before
+    public void setup(){
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        // the test WorkManager does not run the enqueued work on its own
+        WorkManagerTestInitHelper.initializeTestWorkManager(mContext);
+        reset();
+    }
+
+    @After
+    public void tearDown(){
+        reset();
+    }
+
+    @Test
+    public void lostRunTest() throws Exception {
+        LearnerScheduler.onLoggerSaved(mContext, LearnerSchedule.HEAVY_BACKLOG);
+        LearnerSchedule.Plan planned = LearnerScheduler.getPlannedRun(mContext);
+        assertNotNull(planned);
+        assertEquals(1, getUnfinishedWork().size());
+
+        // the work is gone, e.g. since the app data was cleared, but the preferences still
+        // promise it. Without the check, the backlog would never get another run
+        WorkManager.getInstance(mContext).cancelAllWork().getResult().get();
+        assertEquals(0, getUnfinishedWork().size());
+        LearnerScheduler.init(mContext);
+        LearnerScheduler.waitForVerification();
+
+        assertNotNull(LearnerScheduler.getPlannedRun(mContext));
+        assertEquals(1, getUnfinishedWork().size());
+    }
+
+    @Test
+    public void keepRunTest() throws Exception {
+        LearnerScheduler.onLoggerSaved(mContext, LearnerSchedule.HEAVY_BACKLOG);
+        List<WorkInfo> before = getUnfinishedWork();
+        long runAt = LearnerScheduler.getPlannedRun(mContext).getRunAt();
+
+        // a planned run that still exists is kept as it is
+        LearnerScheduler.init(mContext);
+        LearnerScheduler.waitForVerification();
+        assertEquals(runAt, LearnerScheduler.getPlannedRun(mContext).getRunAt());
+        List<WorkInfo> after = getUnfinishedWork();
+        assertEquals(1, after.size());
+        assertEquals(before.get(0).getId(), after.get(0).getId());
+    }
+
+    // the unfinished work under both names of the scheduled runs
+    private List<WorkInfo> getUnfinishedWork() throws Exception {
+        ArrayList<WorkInfo> unfinished = new ArrayList<>();
+        for(String name:new String[]{LearnerScheduler.WORK_NAME, LearnerScheduler.NEXT_WORK_NAME}){
+            for(WorkInfo info:WorkManager.getInstance(mContext)
+                    .getWorkInfosForUniqueWork(name).get()){
+                if(!info.getState().isFinished()){
+                    unfinished.add(info);
+                }
+            }
+        }
+        return unfinished;
+    }
+
+    // takes the backlog and the planned run over like a run that learns nothing new, and cancels
+    // all work
+    private void reset(){
+        LearnerScheduler.onRunStarted(mContext, Collections.<String>emptySet());
+        WorkManager.getInstance(mContext).cancelAllWork();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class LiveAdapterInstrumentationTest {
+    final private static int KEYBOARD_HASH_1 = 1;
+
+    Context cn;
+    HitboxRegistry registry;
+
+    @Before
+    public void setup(){
+        cn = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        ModelStore.get(cn).clear();
+        new File(new File(cn.getFilesDir(), "Hitboxes"), "Geometry" + KEYBOARD_HASH_1 + ".ser")
+                .delete();
+        registry = HitboxRegistry.get(cn);
+    }
+
+    // one row with two keys that are 200 pixels wide
+    private static Hitboxes sampleHitboxes(){
+        Hitboxes hb = new Hitboxes(KEYBOARD_HASH_1);
+        hb.add(new Hitbox(1, new Point(0, 0), new Point(200, 0),
+                new Point(0, 100), new Point(200, 100)));
+        hb.add(new Hitbox(2, new Point(200, 0), new Point(400, 0),
+                new Point(200, 100), new Point(400, 100)));
+        return hb;
+    }
+
+    // a batch of keystrokes on both keys, the ones on key 1 spread around x1
+    private static ArrayList<LiveAdapter.Touch> sampleBatch(int x1){
+        ArrayList<LiveAdapter.Touch> batch = new ArrayList<>();
+        for(int i = 0; i < LiveAdapter.ADAPT_INTERVAL / 2; i++){
+            int dx = (i % 11 - 5) * 12;
+            batch.add(new LiveAdapter.Touch(1, x1 + dx, 50 + i % 7, KEYBOARD_HASH_1, i));
+            batch.add(new LiveAdapter.Touch(2, 300 - dx, 50 + i % 7, KEYBOARD_HASH_1, i));
+        }
+        return batch;
+    }
+
+    private LiveAdapter newAdapter(){
+        LiveAdapter adapter = new LiveAdapter(cn);
+        adapter.setSolverBudget(60 * 1000);
+        return adapter;
+    }
+
+    private int border(){
+        PackedHitboxes hitb = registry.getLayout(KEYBOARD_HASH_1).getHitboxes();
+        return hitb.getWidth(hitb.indexOfCode(1));
+    }
+
+    @Test
+    public void adaptTest(){
+        sampleHitboxes().save(cn);
+        long saved = registry.getVersion(KEYBOARD_HASH_1);
+
+        LiveAdapter adapter = newAdapter();
+        adapter.adapt(sampleBatch(140));
+        assertTrue(registry.getVersion(KEYBOARD_HASH_1) > saved);
+        assertTrue(border() > 200);
+        // nothing was saved
+        assertNull(ModelStore.get(cn).find(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS));
+    }
+
+    // the live hitboxes are solved from the stats backed off to the shared stats, like the ones
+    // of a learner run
+    @Test
+    public void backoffTest(){
+        Hitboxes defaults = sampleHitboxes();
+        KeyboardGeometry geometry = new KeyboardGeometry(KEYBOARD_HASH_1, "en_US", 0, defaults);
+        geometry.save(cn);
+        // related keyboards hit key 1 far to the right
+        KeyStats related = new KeyStats(KEYBOARD_HASH_1);
+        related.add(new KeyStat(1, 180, 50, 400, 400, 0, 1000));
+        related.add(new KeyStat(2, 300, 50, 400, 400, 0, 1000));
+        BackoffStats backoff = new BackoffStats(LayoutLearner.DEFAULT_DECAY_HALF_LIFE);
+        backoff.update(related, geometry);
+        backoff.save(cn);
+        defaults.save(cn);
+
+        LiveAdapter adapter = newAdapter();
+        adapter.adapt(sampleBatch(100));
+        int backedOff = border();
+
+        // without the shared stats, the same keystrokes keep the border further left
+        ModelStore.get(cn).clear();
+        defaults.save(cn);
+        new File(new File(cn.getFilesDir(), "Hitboxes"), "Geometry" + KEYBOARD_HASH_1 + ".ser")
+                .delete();
+        adapter = newAdapter();
+        adapter.adapt(sampleBatch(100));
+        assertTrue(backedOff > border());
+    }
+
+    // further batches are only published once the interval passed, together
+    @Test
+    public void throttleTest(){
+        sampleHitboxes().save(cn);
+        LiveAdapter adapter = newAdapter();
+        adapter.adapt(sampleBatch(140));
+        long first = registry.getVersion(KEYBOARD_HASH_1);
+        int firstBorder = border();
+
+        adapter.adapt(sampleBatch(160));
+        assertEquals(first, registry.getVersion(KEYBOARD_HASH_1));
+
+        adapter.setMinPublishInterval(0);
+        adapter.adapt(sampleBatch(160));
+        assertTrue(registry.getVersion(KEYBOARD_HASH_1) > first);
+        assertTrue(border() > firstBorder);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class ModelStoreInstrumentationTest {
+    final private static int KEYBOARD_HASH_1 = 1;
+    final private static int KEYBOARD_HASH_2 = -2;
+
+    Context cn;
+    ModelStore store;
+
+    @Before
+    public void setup(){
+        cn = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        store = ModelStore.get(cn);
+        store.clear();
+    }
+
+    private static ByteBuffer bytes(int... values){
+        ByteBuffer buffer = ByteBuffer.allocate(4 * values.length);
+        for(int value:values){
+            buffer.putInt(value);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void putReadTest(){
+        assertTrue(store.edit()
+                .put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, bytes(1, 2, 3))
+                .put(KEYBOARD_HASH_2, ModelStore.KIND_KEYSTATS, 1, bytes(4))
+                .put(KEYBOARD_HASH_1, ModelStore.KIND_HITBOXES, 1, bytes(5, 6))
+                .commit());
+
+        ByteBuffer model = store.read(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS);
+        assertEquals(12, model.remaining());
+        assertEquals(3, model.getInt(8));
+        assertEquals(6, store.read(KEYBOARD_HASH_1, ModelStore.KIND_HITBOXES).getInt(4));
+        assertNull(store.read(KEYBOARD_HASH_2, ModelStore.KIND_HITBOXES));
+
+        assertEquals(3, store.list().size());
+        assertEquals(2, store.list(ModelStore.KIND_KEYSTATS).size());
+        assertEquals(1, store.list(ModelStore.KIND_HITBOXES).size());
+    }
+
+    @Test
+    public void copyOnWriteTest(){
+        store.edit().put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, bytes(1))
+                .put(KEYBOARD_HASH_2, ModelStore.KIND_KEYSTATS, 1, bytes(2)).commit();
+        ByteBuffer old = store.read(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS);
+        long timestamp = store.getTimestamp(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS);
+
+        store.edit().put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, bytes(7, 8)).commit();
+        // views of the old store stay valid
+        assertEquals(1, old.getInt(0));
+        assertEquals(7, store.read(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS).getInt(0));
+        // the other models are kept
+        assertEquals(2, store.read(KEYBOARD_HASH_2, ModelStore.KIND_KEYSTATS).getInt(0));
+        // every save changes the timestamp, even within the same millisecond
+        assertTrue(store.getTimestamp(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS) > timestamp);
+    }
+
+    @Test
+    public void removeTest(){
+        store.edit().put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, bytes(1))
+                .put(KEYBOARD_HASH_1, ModelStore.KIND_HITBOXES, 1, bytes(2))
+                .put(KEYBOARD_HASH_2, ModelStore.KIND_KEYSTATS, 1, bytes(3)).commit();
+
+        assertTrue(store.edit().remove(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS)
+                .remove(KEYBOARD_HASH_2, ModelStore.KIND_HITBOXES).commit());
+        assertNull(store.read(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS));
+        assertEquals(2, store.read(KEYBOARD_HASH_1, ModelStore.KIND_HITBOXES).getInt(0));
+        assertEquals(3, store.read(KEYBOARD_HASH_2, ModelStore.KIND_KEYSTATS).getInt(0));
+        assertEquals(2, store.list().size());
+    }
+
+    @Test
+    public void rollbackTest(){
+        store.edit().put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, bytes(1, 2, 3)).commit();
+        assertTrue(store.listGenerations().isEmpty());
+
+        // a generation changes one model and adds another
+        store.edit().put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, bytes(1, 5, 3))
+                .put(KEYBOARD_HASH_2, ModelStore.KIND_HITBOXES, 1, bytes(4))
+                .asGeneration().commit();
+        assertEquals(1, store.listGenerations().size());
+        int first = store.listGenerations().get(0).getKeyboardHash();
+        // updates in between are undone with the generation before them
+        store.edit().put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, bytes(1, 6, 3)).commit();
+        store.edit().put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, bytes(1, 7, 3, 8))
+                .asGeneration().commit();
+        assertEquals(2, store.listGenerations().size());
+
+        // undo the second generation
+        int second = store.listGenerations().get(1).getKeyboardHash();
+        assertTrue(store.rollback(second).commit());
+        assertEquals(6, store.read(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS).getInt(4));
+        assertEquals(12, store.read(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS).remaining());
+        assertEquals(1, store.listGenerations().size());
+
+        // undo the first one
+        ModelStore.Edit edit = store.rollback(first);
+        assertTrue(edit.getKeyboardHashes().contains(KEYBOARD_HASH_2));
+        assertTrue(edit.commit());
+        assertEquals(2, store.read(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS).getInt(4));
+        assertNull(store.read(KEYBOARD_HASH_2, ModelStore.KIND_HITBOXES));
+        assertTrue(store.listGenerations().isEmpty());
+        assertNull(store.rollback(first));
+    }
+
+    @Test
+    public void stepTest(){
+        store.edit().put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, bytes(1, 2, 3)).commit();
+        // updates without a generation to roll back to are not recorded
+        assertTrue(store.list(ModelStore.KIND_HISTORY_STEP).isEmpty());
+
+        store.edit().put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, bytes(1, 5, 3))
+                .asGeneration().commit();
+        ModelStore.Entry generation = store.listGenerations().get(0);
+        // updates after it add steps and leave the generation alone
+        store.edit().put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, bytes(1, 6, 3)).commit();
+        store.edit().put(KEYBOARD_HASH_2, ModelStore.KIND_HITBOXES, 1, bytes(4)).commit();
+        assertEquals(2, store.list(ModelStore.KIND_HISTORY_STEP).size());
+        assertEquals(generation.getLength(), store.listGenerations().get(0).getLength());
+
+        // the next generation folds them into the one before
+        store.edit().put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, bytes(1, 7, 3))
+                .asGeneration().commit();
+        assertTrue(store.list(ModelStore.KIND_HISTORY_STEP).isEmpty());
+        assertEquals(2, store.listGenerations().size());
+        assertTrue(store.rollback(generation.getKeyboardHash()).commit());
+        assertEquals(2, store.read(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS).getInt(4));
+        assertNull(store.read(KEYBOARD_HASH_2, ModelStore.KIND_HITBOXES));
+    }
+
+    @Test
+    public void maxGenerationsTest(){
+        for(int i = 0; i < ModelStore.MAX_GENERATIONS + 2; i++){
+            store.edit().put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, bytes(i)).asGeneration().commit();
+        }
+        assertEquals(ModelStore.MAX_GENERATIONS, store.listGenerations().size());
+        // the oldest generation that is left can be rolled back to
+        int oldest = store.listGenerations().get(0).getKeyboardHash();
+        assertTrue(store.rollback(oldest).commit());
+        assertEquals(1, store.read(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS).getInt(0));
+        // clearing the store also forgets the history
+        store.edit().put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, bytes(9)).asGeneration().commit();
+        store.clear();
+        assertTrue(store.listGenerations().isEmpty());
+    }
+
+    @Test
+    public void modelsTest(){
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        ks.add(1, 10, 20);
+        ks.add(2, 30, 20);
+        ks.save(cn);
+        Hitboxes hb = new Hitboxes(KEYBOARD_HASH_1);
+        hb.add(new Hitbox(1, new Point(0, 0), new Point(20, 0), new Point(0, 40), new Point(20, 40)));
+        hb.save(cn);
+
+        assertEquals(2, KeyStats.load(cn, KEYBOARD_HASH_1).size());
+        assertTrue(Hitboxes.savedHitboxesExists(cn, KEYBOARD_HASH_1));
+        assertFalse(Hitboxes.savedHitboxesExists(cn, KEYBOARD_HASH_2));
+        assertTrue(hb.hasSameGeometry(Hitboxes.load(cn, KEYBOARD_HASH_1)));
+        assertEquals(40, PackedHitboxes.load(cn, KEYBOARD_HASH_1).getRowHeight(0));
+
+        store.clear();
+        assertEquals(0, KeyStats.load(cn, KEYBOARD_HASH_1).size());
+        assertNull(store.getTimestamp(KEYBOARD_HASH_1, ModelStore.KIND_HITBOXES));
+        assertFalse(Hitboxes.savedHitboxesExists(cn, KEYBOARD_HASH_1));
+        assertNull(PackedHitboxes.load(cn, KEYBOARD_HASH_1));
+    }
+}
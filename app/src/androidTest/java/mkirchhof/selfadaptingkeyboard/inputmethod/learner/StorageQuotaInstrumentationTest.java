@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+import androidx.work.testing.WorkManagerTestInitHelper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class StorageQuotaInstrumentationTest {
+    private static final int KEYBOARD_HASH_1 = 1;
+    private static final int KEYBOARD_HASH_2 = 2;
+
+    private Context mContext;
+
+    @Before
+    public void setup(){
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        cleanUp();
+    }
+
+    private void saveKeyboard(int keyboardHash){
+        Hitboxes hitb = new Hitboxes(keyboardHash);
+        hitb.add(new Hitbox(1, new Point(1, 1), new Point(10, 1), new Point(1, 5), new Point(10, 5)));
+        hitb.add(new Hitbox(2, new Point(10, 1), new Point(20, 1), new Point(10, 5), new Point(20, 5)));
+        hitb.add(new Hitbox(3, new Point(20, 1), new Point(30, 1), new Point(20, 5), new Point(30, 5)));
+        hitb.save(mContext);
+
+        KeyStats ks = new KeyStats(keyboardHash);
+        ks.add(new KeyStat(1, 6, 3, 16, 4, 0, 30));
+        ks.save(mContext);
+    }
+
+    private File saveLogger(char letter, int code){
+        Logger logger = new Logger();
+        for(int i = 0; i < 6; i++){
+            logger.set(i, i, code, letter, 5 + 10 * (code - 1) + i % 3, 3, KEYBOARD_HASH_1);
+        }
+        return new File(logger.save(mContext));
+    }
+
+    @Test
+    public void staleKeyboardsTest() throws IOException, InterruptedException {
+        ModelStore store = ModelStore.get(mContext);
+        saveKeyboard(KEYBOARD_HASH_1);
+        long lastUsed = store.getTimestamp(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS);
+        File geometry = new File(new File(mContext.getFilesDir(), "Hitboxes"),
+                "Geometry" + KEYBOARD_HASH_1 + ".ser");
+        FileOutputStream fos = new FileOutputStream(geometry);
+        fos.write(1);
+        fos.close();
+        Thread.sleep(5);
+        saveKeyboard(KEYBOARD_HASH_2);
+
+        // keyboard 1 was last used more than a second ago, keyboard 2 was not
+        long now = lastUsed + 1001;
+        StorageQuota quota = new StorageQuota(mContext, Long.MAX_VALUE, 1000L);
+
+        // cached keystrokes could belong to any keyboard, so nothing is dropped before they are learnt
+        File logger = saveLogger('A', 1);
+        quota.enforce(null, now);
+        assertNotNull(store.find(KEYBOARD_HASH_1, ModelStore.KIND_HITBOXES));
+        logger.delete();
+
+        StorageQuota.Usage before = quota.getUsage();
+        quota.enforce(null, now);
+        assertNull(store.find(KEYBOARD_HASH_1, ModelStore.KIND_HITBOXES));
+        assertNull(store.find(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS));
+        assertNotNull(store.find(KEYBOARD_HASH_2, ModelStore.KIND_HITBOXES));
+        assertNotNull(store.find(KEYBOARD_HASH_2, ModelStore.KIND_KEYSTATS));
+        assertFalse(geometry.exists());
+        StorageQuota.Usage after = quota.getUsage();
+        assertEquals(2, before.getKeyboards());
+        assertEquals(1, after.getKeyboards());
+        assertTrue(after.getTotalBytes() < before.getTotalBytes());
+    }
+
+    @Test
+    public void evictOldestLoggersTest(){
+        File oldest = saveLogger('A', 1);
+        File middle = saveLogger('B', 2);
+        File newest = saveLogger('C', 3);
+        long now = System.currentTimeMillis();
+        oldest.setLastModified(now - 3000);
+        middle.setLastModified(now - 2000);
+        newest.setLastModified(now - 1000);
+
+        // one Logger too much. Without a learner, the Loggers cannot be folded into the stats
+        StorageQuota.Usage usage = new StorageQuota(mContext, Long.MAX_VALUE, 1000L).getUsage();
+        assertEquals(3, usage.getLoggers());
+        StorageQuota quota = new StorageQuota(mContext,
+                usage.getTotalBytes() - newest.length() / 2, StorageQuota.DEFAULT_STALE_DAYS);
+        usage = quota.enforce(null);
+
+        assertFalse(oldest.exists());
+        assertTrue(middle.exists());
+        assertTrue(newest.exists());
+        assertEquals(2, usage.getLoggers());
+        assertTrue(usage.getTotalBytes() <= quota.getBudgetBytes());
+    }
+
+    @Test
+    public void foldLoggersTest(){
+        saveKeyboard(KEYBOARD_HASH_1);
+        saveLogger('A', 1);
+        saveLogger('B', 2);
+
+        // the cached keystrokes are learnt instead of being thrown away
+        StorageQuota quota = new StorageQuota(mContext, 1, StorageQuota.DEFAULT_STALE_DAYS);
+        StorageQuota.Usage usage = quota.enforce(new LayoutLearner(mContext, 0, 0));
+
+        assertEquals(0, usage.getLoggers());
+        assertEquals(1, usage.getKeyboards());
+        KeyStats ks = KeyStats.load(mContext, KEYBOARD_HASH_1);
+        assertEquals(36, ks.findCode(1).getN(), 1e-9);
+        assertEquals(6, ks.findCode(2).getN(), 1e-9);
+    }
+
+    @Test
+    public void usageTest(){
+        ModelStore store = ModelStore.get(mContext);
+        saveKeyboard(KEYBOARD_HASH_1);
+        saveKeyboard(KEYBOARD_HASH_2);
+        long written = store.getTimestamp(KEYBOARD_HASH_2, ModelStore.KIND_KEYSTATS);
+        StorageQuota quota = new StorageQuota(mContext, Long.MAX_VALUE, 1000L);
+
+        // keyboard 1 was learnt on just now, but it was last typed on long before
+        KeyboardUsage.record(mContext, Collections.singleton(KEYBOARD_HASH_1), written - 5000);
+        KeyboardUsage.record(mContext, Collections.singleton(KEYBOARD_HASH_2), written + 4990);
+        assertEquals(1, quota.dropStaleKeyboards(written + 500));
+        assertNull(store.find(KEYBOARD_HASH_1, ModelStore.KIND_HITBOXES));
+        assertFalse(KeyboardUsage.load(mContext).containsKey(KEYBOARD_HASH_1));
+
+        // keyboard 2 is still typed on, so its models are kept however old they are
+        assertEquals(0, quota.dropStaleKeyboards(written + 5000));
+        assertNotNull(store.find(KEYBOARD_HASH_2, ModelStore.KIND_HITBOXES));
+        assertNotNull(store.find(KEYBOARD_HASH_2, ModelStore.KIND_KEYSTATS));
+    }
+
+    @Test
+    public void checkTest(){
+        WorkManagerTestInitHelper.initializeTestWorkManager(mContext);
+        saveKeyboard(KEYBOARD_HASH_1);
+        File oldest = saveLogger('A', 1);
+        File newest = saveLogger('B', 2);
+        long now = System.currentTimeMillis();
+        oldest.setLastModified(now - 2000);
+        newest.setLastModified(now - 1000);
+        long total = new StorageQuota(mContext, Long.MAX_VALUE, 1000L).getUsage().getTotalBytes();
+
+        // the IME does not learn the cache, it asks for an urgent run that does
+        StorageQuota quota = new StorageQuota(mContext, total - 1, StorageQuota.DEFAULT_STALE_DAYS);
+        StorageQuota.Usage usage = quota.check(now);
+        assertEquals(2, usage.getLoggers());
+        assertTrue(oldest.exists());
+        assertTrue(LearnerScheduler.getPlannedRun(mContext).isUrgent());
+
+        // unless the run did not come in time and the cache takes twice the budget
+        quota = new StorageQuota(mContext, total / StorageQuota.HARD_LIMIT_FACTOR - 1,
+                StorageQuota.DEFAULT_STALE_DAYS);
+        usage = quota.check(now);
+        assertFalse(oldest.exists());
+        assertTrue(usage.getLoggers() < 2);
+    }
+
+    // deletes the Loggers, the ModelStore and the rasters, posture models and geometries
+    private void cleanUp(){
+        File[] loggers = new File(mContext.getCacheDir(),"Logger").listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File file, String filename) {
+                return filename.startsWith("Logger");
+            }
+        });
+        for(File file:loggers != null ? loggers : new File[0]){
+            file.delete();
+        }
+        ModelStore.get(mContext).clear();
+        File folder = new File(mContext.getFilesDir(),"Hitboxes");
+        folder.mkdirs();
+        File[] derived = folder.listFiles();
+        for(File file:derived != null ? derived : new File[0]){
+            file.delete();
+        }
+    }
+}
@@ -22,10 +22,14 @@ import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Locale;
 
 import mkirchhof.selfadaptingkeyboard.inputmethod.R;
+import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.CompiledLayout;
 import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.KeyDrawParams;
 import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.KeySpecParser;
 import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.KeyStyle;
@@ -34,6 +38,7 @@ import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.KeyboardIcon
 import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.KeyboardParams;
 import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.KeyboardRow;
 import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.MoreKeySpec;
+import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.ResolvedLayout;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.common.Constants;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.common.StringUtils;
 
@@ -556,6 +561,127 @@ public class Key implements Comparable<Key> {
         mHashCode = computeHashCode(this);
     }
 
+    /**
+     * Create a key with the given position whose attributes were resolved from the XML before and
+     * are read from a {@link CompiledLayout}.
+     *
+     * @param in the stream that {@link #writeTo(DataOutputStream)} wrote the attributes to.
+     * @param params the keyboard building parameters.
+     * @param row the row that this key belongs to. row's x-coordinate will be the right edge of
+     *        this key.
+     * @param keyXPos the x-coordinate of the key, including its gap.
+     * @param keyWidth the width of the key, including its gap.
+     */
+    public Key(final DataInputStream in, final KeyboardParams params, final KeyboardRow row,
+               final float keyXPos, final float keyWidth) throws IOException {
+        this(in, params, row, keyXPos, keyWidth, params.mHorizontalGap);
+    }
+
+    // a spacer has no horizontal gap
+    private Key(final DataInputStream in, final KeyboardParams params, final KeyboardRow row,
+                final float keyXPos, final float keyWidth, final int horizontalGap)
+            throws IOException {
+        // Horizontal gap is divided equally to both sides of the key.
+        this(in, Math.round(keyXPos + horizontalGap / 2.0f), row.getKeyY(),
+                Math.round(keyWidth - horizontalGap), row.getRowHeight() - params.mVerticalGap,
+                horizontalGap, params.mVerticalGap, new Rect(Math.round(keyXPos), row.getKeyY(),
+                        Math.round(keyXPos + keyWidth) + 1, row.getKeyY() + row.getRowHeight()));
+        // Update row to have current x coordinate.
+        row.setXPos(keyXPos + keyWidth);
+    }
+
+    /**
+     * Create a key whose position, including the learned hitboxes, and attributes were resolved
+     * completely before and are read from a {@link ResolvedLayout}.
+     *
+     * @param in the stream that {@link #writeResolvedTo(DataOutputStream)} wrote the key to.
+     */
+    public Key(final DataInputStream in) throws IOException {
+        // the arguments are evaluated from left to right, in the order they were written
+        this(in, in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                in.readInt(), new Rect(in.readInt(), in.readInt(), in.readInt(), in.readInt()));
+    }
+
+    // reads the attributes that writeTo wrote and takes the given position
+    private Key(final DataInputStream in, final int x, final int y, final int width,
+                final int height, final int horizontalGap, final int verticalGap,
+                final Rect hitBox) throws IOException {
+        mX = x;
+        mY = y;
+        mWidth = width;
+        mHeight = height;
+        mHorizontalGap = horizontalGap;
+        mVerticalGap = verticalGap;
+        mHitBox.set(hitBox);
+
+        mCode = in.readInt();
+        mLabel = CompiledLayout.readString(in);
+        mHintLabel = CompiledLayout.readString(in);
+        mLabelFlags = in.readInt();
+        mIconId = in.readInt();
+        final int moreKeysCount = in.readInt();
+        if (moreKeysCount >= 0) {
+            mMoreKeys = new MoreKeySpec[moreKeysCount];
+            for (int i = 0; i < moreKeysCount; i++) {
+                mMoreKeys[i] = new MoreKeySpec(in);
+            }
+        } else {
+            mMoreKeys = null;
+        }
+        mMoreKeysColumnAndFlags = in.readInt();
+        mBackgroundType = in.readInt();
+        mActionFlags = in.readInt();
+        final String outputText = CompiledLayout.readString(in);
+        final int altCode = in.readInt();
+        final int disabledIconId = in.readInt();
+        final int visualInsetsLeft = in.readInt();
+        final int visualInsetsRight = in.readInt();
+        mOptionalAttributes = OptionalAttributes.newInstance(outputText, altCode,
+                disabledIconId, visualInsetsLeft, visualInsetsRight);
+        mKeyVisualAttributes = KeyVisualAttributes.readFrom(in);
+        mHashCode = computeHashCode(this);
+    }
+
+    // writes the position of the key and then its attributes
+    public void writeResolvedTo(final DataOutputStream out) throws IOException {
+        out.writeInt(mX);
+        out.writeInt(mY);
+        out.writeInt(mWidth);
+        out.writeInt(mHeight);
+        out.writeInt(mHorizontalGap);
+        out.writeInt(mVerticalGap);
+        out.writeInt(mHitBox.left);
+        out.writeInt(mHitBox.top);
+        out.writeInt(mHitBox.right);
+        out.writeInt(mHitBox.bottom);
+        writeTo(out);
+    }
+
+    // writes the attributes that do not depend on the position of the key
+    public void writeTo(final DataOutputStream out) throws IOException {
+        out.writeInt(mCode);
+        CompiledLayout.writeString(out, mLabel);
+        CompiledLayout.writeString(out, mHintLabel);
+        out.writeInt(mLabelFlags);
+        out.writeInt(mIconId);
+        out.writeInt(mMoreKeys == null ? -1 : mMoreKeys.length);
+        if (mMoreKeys != null) {
+            for (final MoreKeySpec moreKey : mMoreKeys) {
+                moreKey.writeTo(out);
+            }
+        }
+        out.writeInt(mMoreKeysColumnAndFlags);
+        out.writeInt(mBackgroundType);
+        out.writeInt(mActionFlags);
+        final OptionalAttributes attrs = mOptionalAttributes;
+        CompiledLayout.writeString(out, attrs == null ? null : attrs.mOutputText);
+        out.writeInt(attrs == null ? CODE_UNSPECIFIED : attrs.mAltCode);
+        out.writeInt(attrs == null ? ICON_UNDEFINED : attrs.mDisabledIconId);
+        out.writeInt(attrs == null ? 0 : attrs.mVisualInsetsLeft);
+        out.writeInt(attrs == null ? 0 : attrs.mVisualInsetsRight);
+        KeyVisualAttributes.writeTo(out, mKeyVisualAttributes);
+    }
+
     /**
      * Copy constructor for DynamicGridKeyboard.GridKey.
      *
@@ -1092,6 +1218,16 @@ public class Key implements Comparable<Key> {
             super(null /* keySpec */, keyAttr, keyStyle, params, row);
         }
 
+        public Spacer(final DataInputStream in, final KeyboardParams params,
+                final KeyboardRow row, final float keyXPos, final float keyWidth)
+                throws IOException {
+            super(in, params, row, keyXPos, keyWidth, 0 /* horizontalGap */);
+        }
+
+        public Spacer(final DataInputStream in) throws IOException {
+            super(in);
+        }
+
         /**
          * This constructor is being used only for divider in more keys keyboard.
          */
@@ -92,6 +92,13 @@ public class KeyDetector {
         final int touchX = getTouchX(x);
         final int touchY = getTouchY(y);
 
+        // A learned raster classifies the point with a single lookup. Points it does not cover
+        // fall through to the rectangular key areas below.
+        final Key rasterKey = mKeyboard.getRasterKey(touchX, touchY);
+        if (rasterKey != null) {
+            return rasterKey;
+        }
+
         int minDistance = Integer.MAX_VALUE;
         Key primaryKey = null;
         for (final Key key: mKeyboard.getNearestKeys(touchX, touchY)) {
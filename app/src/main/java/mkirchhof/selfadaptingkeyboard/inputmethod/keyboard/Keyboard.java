@@ -19,6 +19,7 @@ package mkirchhof.selfadaptingkeyboard.inputmethod.keyboard;
 import android.util.SparseArray;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -26,6 +27,9 @@ import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.KeyVisualAtt
 import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.KeyboardIconsSet;
 import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.KeyboardParams;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.common.Constants;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.HitboxRaster;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.PostureDetector;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.PostureModel;
 
 /**
  * Loads an XML description of a keyboard and stores the attributes of the keys. A keyboard
@@ -86,6 +90,15 @@ public class Keyboard {
 
     private final ProximityInfo mProximityInfo;
 
+    /** Learned touch classification raster, or null if touches are classified by rectangles */
+    private final HitboxRaster mHitboxRaster;
+    /** The keys referenced by the raster's code indices (entries may be null) */
+    private final Key[] mRasterKeys;
+    /** Detects the typing posture if rasters were learned per posture, or null */
+    private final PostureDetector mPostureDetector;
+    /** The raster of the current posture, or mHitboxRaster */
+    private volatile HitboxRaster mActiveRaster;
+
     public Keyboard(final KeyboardParams params) {
         mId = params.mId;
         mThemeId = params.mThemeId;
@@ -109,6 +122,19 @@ public class Keyboard {
         mProximityInfo = new ProximityInfo(params.GRID_WIDTH, params.GRID_HEIGHT,
                 mOccupiedWidth, mOccupiedHeight, mMostCommonKeyWidth,
                 mSortedKeys);
+
+        mHitboxRaster = params.mHitboxRaster;
+        mRasterKeys = mHitboxRaster != null ? getRasterKeys(mHitboxRaster, mSortedKeys) : null;
+        // the posture rasters can only replace the raster if they refer to the same keys
+        final PostureModel postureModel = params.mPostureModel;
+        if (mHitboxRaster != null && postureModel != null && postureModel.getSize() > 0 &&
+                Arrays.equals(postureModel.getRaster(0).getCodes(), mHitboxRaster.getCodes())) {
+            mPostureDetector = new PostureDetector(postureModel);
+            mActiveRaster = mPostureDetector.getRaster();
+        } else {
+            mPostureDetector = null;
+            mActiveRaster = mHitboxRaster;
+        }
     }
 
     /**
@@ -142,6 +168,65 @@ public class Keyboard {
         }
     }
 
+    /**
+     * Finds the keys that the code indices of a raster refer to. Several keys may have the same
+     * code (e.g. two shift keys, or keys that output different texts), so each key takes the
+     * index of the hitbox of its code that is closest to it.
+     * @param raster the raster of the keyboard
+     * @param keys the keys of the keyboard
+     * @return the key of each code index of the raster (entries may be null)
+     */
+    static Key[] getRasterKeys(final HitboxRaster raster, final List<Key> keys) {
+        final int[] codes = raster.getCodes();
+        final Key[] rasterKeys = new Key[codes.length];
+        for (final Key key : keys) {
+            if (key.getCode() == Constants.CODE_UNSPECIFIED) {
+                continue;
+            }
+            final int index = raster.indexOf(key.getCode(), key.getX() + key.getWidth() / 2,
+                    key.getY() + key.getHeight() / 2);
+            if (index >= 0 && rasterKeys[index] == null) {
+                rasterKeys[index] = key;
+            }
+        }
+        return rasterKeys;
+    }
+
+    /**
+     * Classifies a touch point with the learned raster.
+     * @param x the x-coordinate of the point
+     * @param y the y-coordinate of the point
+     * @return the key the raster assigns to the point, or null if there is no raster or the
+     * point has to be classified by the rectangular key areas.
+     */
+    public Key getRasterKey(final int x, final int y) {
+        final HitboxRaster raster = mActiveRaster;
+        if (raster == null) {
+            return null;
+        }
+        final int index = raster.classifyIndex(x, y);
+        return index < 0 ? null : mRasterKeys[index];
+    }
+
+    /**
+     * Tells the posture detector about a typed key, which may switch the raster to the one of
+     * another typing posture. This takes constant time and does not rebuild the keyboard.
+     * @param code the code of the typed key
+     * @param x the x-coordinate of the touch
+     * @param y the y-coordinate of the touch
+     */
+    public void onTouch(final int code, final int x, final int y) {
+        if (mPostureDetector == null) {
+            return;
+        }
+        final Key key = getKey(code);
+        if (key == null) {
+            return;
+        }
+        mActiveRaster = mPostureDetector.onTouch(x, y, key.getXInclGap(), key.getYInclGap(),
+                key.getWidthInclGap(), key.getHeightInclGap(), mOccupiedWidth);
+    }
+
     public boolean hasKey(final Key aKey) {
         if (mKeyCache.indexOfValue(aKey) >= 0) {
             return true;
@@ -35,6 +35,7 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
+import android.os.Process;
 import android.text.InputType;
 import android.util.Log;
 import android.util.SparseArray;
@@ -47,15 +48,24 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.IOException;
 import java.lang.ref.SoftReference;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 import mkirchhof.selfadaptingkeyboard.inputmethod.R;
 import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.KeyboardBuilder;
 import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.KeyboardParams;
+import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.ResolvedLayout;
 import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.UniqueKeysCache;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.InputAttributes;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.RichInputMethodSubtype;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.utils.InputTypeUtils;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.utils.XmlParseUtils;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.HitboxRegistry;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.LayoutSeeder;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.PackedHitboxes;
 
 import static mkirchhof.selfadaptingkeyboard.inputmethod.latin.common.Constants.ImeOption.NO_SETTINGS_KEY;
 
@@ -88,7 +98,37 @@ public final class KeyboardLayoutSet {
     private static final Keyboard[] sForcibleKeyboardCache = new Keyboard[FORCIBLE_CACHE_SIZE];
     private static final HashMap<KeyboardId, SoftReference<Keyboard>> sKeyboardCache =
             new HashMap<>();
+    // is shared by the keys of the alphabet keyboards and is thread-safe
     private static final UniqueKeysCache sUniqueKeysCache = UniqueKeysCache.newInstance();
+    static {
+        sUniqueKeysCache.setEnabled(true);
+    }
+    // Keyboards are built without a lock, both on the UI thread and in the background, so that
+    // the UI thread never waits for a background build. If both build the same keyboard, the one
+    // that is cached first wins. sKeyboardCache, sForcibleKeyboardCache and the generations are
+    // guarded by sKeyboardCache itself, which is never held during a build
+    // is increased whenever all cached keyboards are dropped, so that a build that started before
+    // does not put an outdated keyboard into the cache and a prewarm that started before stops
+    private static int sCacheGeneration = 0;
+    // the same for the keyboards of each layout whose hitboxes changed. A layout that changed
+    // does not affect the builds of the other layouts
+    private static final HashMap<Integer, Integer> sLayoutGenerations = new HashMap<>();
+
+    // the keyboards that can be switched to from the alphabet keyboard, most likely first. The
+    // mode of the editor maps them to the number and phone keyboards
+    private static final int[] PREWARMED_ELEMENT_IDS = {
+            KeyboardId.ELEMENT_ALPHABET_AUTOMATIC_SHIFTED,
+            KeyboardId.ELEMENT_ALPHABET_MANUAL_SHIFTED,
+            KeyboardId.ELEMENT_SYMBOLS,
+            KeyboardId.ELEMENT_SYMBOLS_SHIFTED,
+            KeyboardId.ELEMENT_ALPHABET_SHIFT_LOCKED
+    };
+    private static final ExecutorService sPrewarmExecutor = Executors.newSingleThreadExecutor();
+    // the layout set whose keyboards are being prewarmed, or null. Only the keyboards of the
+    // latest layout set are prewarmed, and only until all cached keyboards are dropped. It is
+    // cleared once the prewarm is done, so that it does not keep the layout set
+    private static final AtomicReference<KeyboardLayoutSet> sPrewarmedLayoutSet =
+            new AtomicReference<>();
 
     @SuppressWarnings("serial")
     public static final class KeyboardLayoutSetException extends RuntimeException {
@@ -131,12 +171,40 @@ public final class KeyboardLayoutSet {
         clearKeyboardCache();
     }
 
-    public static void onKeyboardLayoutChanged(){
-        clearKeyboardCache();
+    // drops the cached keyboards of a layout whose hitboxes changed, so that they are built again.
+    // The keyboards of all other layouts stay cached
+    public static void onKeyboardLayoutChanged(final int layoutHashCode){
+        synchronized (sKeyboardCache) {
+            final Iterator<KeyboardId> it = sKeyboardCache.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().layoutHashCode() == layoutHashCode) {
+                    it.remove();
+                }
+            }
+            for (int i = 0; i < sForcibleKeyboardCache.length; i++) {
+                if (sForcibleKeyboardCache[i] != null
+                        && sForcibleKeyboardCache[i].mId.layoutHashCode() == layoutHashCode) {
+                    sForcibleKeyboardCache[i] = null;
+                }
+            }
+            final Integer generation = sLayoutGenerations.get(layoutHashCode);
+            sLayoutGenerations.put(layoutHashCode, generation == null ? 1 : generation + 1);
+        }
+    }
+
+    // returns the generation that a keyboard is built in. Has to be called while holding
+    // sKeyboardCache
+    private static long getGeneration(final KeyboardId id) {
+        final Integer layoutGeneration = sLayoutGenerations.get(id.layoutHashCode());
+        return ((long) sCacheGeneration << 32)
+                | (layoutGeneration == null ? 0 : layoutGeneration & 0xFFFFFFFFL);
     }
 
     private static void clearKeyboardCache() {
-        sKeyboardCache.clear();
+        synchronized (sKeyboardCache) {
+            sKeyboardCache.clear();
+            sCacheGeneration++;
+        }
         sUniqueKeysCache.clear();
     }
 
@@ -182,41 +250,196 @@ public final class KeyboardLayoutSet {
     }
 
     private Keyboard getKeyboard(final ElementParams elementParams, final KeyboardId id) {
-        final SoftReference<Keyboard> ref = sKeyboardCache.get(id);
-        final Keyboard cachedKeyboard = (ref == null) ? null : ref.get();
+        final Keyboard cachedKeyboard = getCachedKeyboard(id);
         if (cachedKeyboard != null) {
-            if (DEBUG_CACHE) {
-                Log.d(TAG, "keyboard cache size=" + sKeyboardCache.size() + ": HIT  id=" + id);
-            }
             return cachedKeyboard;
         }
+        final long generation;
+        synchronized (sKeyboardCache) {
+            generation = getGeneration(id);
+        }
 
-        final KeyboardBuilder<KeyboardParams> builder =
-                new KeyboardBuilder<>(mContext, new KeyboardParams(sUniqueKeysCache));
-        sUniqueKeysCache.setEnabled(id.isAlphabetKeyboard());
-        builder.setAllowRedundantMoreKes(elementParams.mAllowRedundantMoreKeys);
+        final long start = System.nanoTime();
         final int keyboardXmlId = elementParams.mKeyboardXmlId;
-        builder.load(keyboardXmlId, id);
-        final Keyboard keyboard = builder.build();
-        sKeyboardCache.put(id, new SoftReference<>(keyboard));
-        if ((id.mElementId == KeyboardId.ELEMENT_ALPHABET
-                || id.mElementId == KeyboardId.ELEMENT_ALPHABET_AUTOMATIC_SHIFTED)) {
-            // We only forcibly cache the primary, "ALPHABET", layouts.
-            for (int i = sForcibleKeyboardCache.length - 1; i >= 1; --i) {
-                sForcibleKeyboardCache[i] = sForcibleKeyboardCache[i - 1];
+        final UniqueKeysCache keysCache = id.isAlphabetKeyboard()
+                ? sUniqueKeysCache : UniqueKeysCache.NO_CACHE;
+        final Keyboard keyboard;
+        final String source;
+        final PackedHitboxes hitb;
+        // a keyboard that was resolved with the current hitboxes before needs no builder
+        final KeyboardParams resolvedParams = new KeyboardParams(keysCache);
+        resolvedParams.mId = id;
+        resolvedParams.mAllowRedundantMoreKeys = elementParams.mAllowRedundantMoreKeys;
+        if (ResolvedLayout.load(mContext, keyboardXmlId, resolvedParams)) {
+            keyboard = new Keyboard(resolvedParams);
+            hitb = HitboxRegistry.peek(mContext).getLayout(id.layoutHashCode()).getHitboxes();
+            source = " from its resolved layout";
+        } else {
+            final KeyboardParams params = new KeyboardParams(keysCache);
+            final KeyboardBuilder<KeyboardParams> builder =
+                    load(elementParams, id, params, true);
+            keyboard = builder.build();
+            hitb = builder.getHitboxes();
+            ResolvedLayout.save(mContext, keyboardXmlId, params, builder.getLayout());
+            source = builder.isFromCompiledLayout() ? " from its compiled layout" : " from XML";
+        }
+        // the learner starts from the keys as they are built without learned hitboxes
+        if (hitb == null || hitb.size() == 0) {
+            LayoutSeeder.seedInBackground(mContext, keyboard);
+        }
+        Log.d(TAG, "Built " + KeyboardId.elementIdToName(id.mElementId) + " keyboard for "
+                + id.getLocale() + source + " in " + (System.nanoTime() - start) / 1000
+                + " us");
+        return cacheKeyboard(id, generation, keyboard);
+    }
+
+    // caches a keyboard that was built in the given generation and returns the keyboard to use
+    static Keyboard cacheKeyboard(final KeyboardId id, final long generation,
+            final Keyboard keyboard) {
+        synchronized (sKeyboardCache) {
+            if (generation != getGeneration(id)) {
+                // the hitboxes or the theme changed during the build
+                return keyboard;
+            }
+            // another thread built the same keyboard in the meantime
+            final Keyboard builtKeyboard = getCachedKeyboard(id);
+            if (builtKeyboard != null) {
+                return builtKeyboard;
+            }
+            sKeyboardCache.put(id, new SoftReference<>(keyboard));
+            if ((id.mElementId == KeyboardId.ELEMENT_ALPHABET
+                    || id.mElementId == KeyboardId.ELEMENT_ALPHABET_AUTOMATIC_SHIFTED)) {
+                // We only forcibly cache the primary, "ALPHABET", layouts.
+                for (int i = sForcibleKeyboardCache.length - 1; i >= 1; --i) {
+                    sForcibleKeyboardCache[i] = sForcibleKeyboardCache[i - 1];
+                }
+                sForcibleKeyboardCache[0] = keyboard;
+                if (DEBUG_CACHE) {
+                    Log.d(TAG, "forcing caching of keyboard with id=" + id);
+                }
             }
-            sForcibleKeyboardCache[0] = keyboard;
             if (DEBUG_CACHE) {
-                Log.d(TAG, "forcing caching of keyboard with id=" + id);
+                Log.d(TAG, "keyboard cache size=" + sKeyboardCache.size() + ": LOAD id=" + id);
             }
         }
-        if (DEBUG_CACHE) {
-            Log.d(TAG, "keyboard cache size=" + sKeyboardCache.size() + ": "
-                    + ((ref == null) ? "LOAD" : "GCed") + " id=" + id);
-        }
         return keyboard;
     }
 
+    private KeyboardBuilder<KeyboardParams> load(final ElementParams elementParams,
+            final KeyboardId id, final KeyboardParams params, final boolean useCompiledLayout) {
+        final KeyboardBuilder<KeyboardParams> builder = new KeyboardBuilder<>(mContext, params);
+        builder.setAllowRedundantMoreKes(elementParams.mAllowRedundantMoreKeys);
+        builder.setUseCompiledLayout(useCompiledLayout);
+        builder.load(elementParams.mKeyboardXmlId, id);
+        return builder;
+    }
+
+    // loads the keyboard of the given element without the caches and the ResolvedLayout, either
+    // from the XML or from its CompiledLayout. Returns null if the layout set has no such element.
+    // Lets the tests compare both ways of building a keyboard
+    KeyboardBuilder<KeyboardParams> loadKeyboard(final int elementId,
+            final boolean useCompiledLayout) {
+        final ElementParams elementParams =
+                mParams.mKeyboardLayoutSetElementIdToParamsMap.get(elementId);
+        if (elementParams == null) {
+            return null;
+        }
+        return load(elementParams, new KeyboardId(elementId, mParams), new KeyboardParams(),
+                useCompiledLayout);
+    }
+
+    // reads the keyboard of the given element from its ResolvedLayout without the caches.
+    // Returns null if there is no resolved layout for the current hitboxes
+    Keyboard loadResolvedKeyboard(final int elementId) {
+        final ElementParams elementParams =
+                mParams.mKeyboardLayoutSetElementIdToParamsMap.get(elementId);
+        if (elementParams == null) {
+            return null;
+        }
+        final KeyboardParams params = new KeyboardParams();
+        params.mId = new KeyboardId(elementId, mParams);
+        params.mAllowRedundantMoreKeys = elementParams.mAllowRedundantMoreKeys;
+        if (!ResolvedLayout.load(mContext, elementParams.mKeyboardXmlId, params)) {
+            return null;
+        }
+        return new Keyboard(params);
+    }
+
+    // returns the generation that a keyboard is built in now. Lets the tests race a build against
+    // a change of the hitboxes
+    static long getCurrentGeneration(final KeyboardId id) {
+        synchronized (sKeyboardCache) {
+            return getGeneration(id);
+        }
+    }
+
+    static Keyboard getCachedKeyboard(final KeyboardId id) {
+        synchronized (sKeyboardCache) {
+            final SoftReference<Keyboard> ref = sKeyboardCache.get(id);
+            final Keyboard cachedKeyboard = (ref == null) ? null : ref.get();
+            if (DEBUG_CACHE && cachedKeyboard != null) {
+                Log.d(TAG, "keyboard cache size=" + sKeyboardCache.size() + ": HIT  id=" + id);
+            }
+            return cachedKeyboard;
+        }
+    }
+
+    // builds the keyboards that the user can switch to from the alphabet keyboard on a
+    // background thread, so that the first switch to them is a cache hit instead of a build on
+    // the UI thread. Is called whenever the alphabet keyboard is shown. Keyboards that are still
+    // cached are not built again
+    public void prewarmKeyboards() {
+        if (sPrewarmedLayoutSet.getAndSet(this) == this) {
+            // the keyboards of this layout set are being prewarmed already
+            return;
+        }
+        final int generation;
+        synchronized (sKeyboardCache) {
+            generation = sCacheGeneration;
+        }
+        sPrewarmExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    for (final int elementId : PREWARMED_ELEMENT_IDS) {
+                        // the editor changed and another layout set is used by now, or all
+                        // keyboards were dropped and are prewarmed again once they are shown
+                        if (!isPrewarming(generation)) {
+                            return;
+                        }
+                        try {
+                            getKeyboard(elementId);
+                        } catch (RuntimeException e) {
+                            Log.w(TAG, "Failed to prewarm keyboard "
+                                    + KeyboardId.elementIdToName(elementId), e);
+                        }
+                    }
+                } finally {
+                    sPrewarmedLayoutSet.compareAndSet(KeyboardLayoutSet.this, null);
+                }
+            }
+        });
+    }
+
+    private boolean isPrewarming(final int generation) {
+        if (sPrewarmedLayoutSet.get() != this) {
+            return false;
+        }
+        synchronized (sKeyboardCache) {
+            return sCacheGeneration == generation;
+        }
+    }
+
+    // blocks until the keyboards that prewarmKeyboards() was called for are built
+    static void waitForPrewarm() throws InterruptedException, ExecutionException {
+        sPrewarmExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
     public static final class Builder {
         private final Context mContext;
         private final String mPackageName;
@@ -39,11 +39,16 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.inputmethod.EditorInfo;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
 import mkirchhof.selfadaptingkeyboard.inputmethod.R;
 import mkirchhof.selfadaptingkeyboard.inputmethod.event.Event;
 import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.KeyboardLayoutSet.KeyboardLayoutSetException;
 import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.KeyboardState;
 import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.KeyboardTextsSet;
+import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal.ResolvedLayout;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.InputView;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.LatinIME;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.RichInputMethodManager;
@@ -53,7 +58,7 @@ import mkirchhof.selfadaptingkeyboard.inputmethod.latin.utils.CapsModeUtils;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.utils.LanguageOnSpacebarUtils;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.utils.RecapitalizeStatus;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.utils.ResourceUtils;
-import mkirchhof.selfadaptingkeyboard.inputmethod.learner.Hitboxes;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.HitboxRegistry;
 
 public final class KeyboardSwitcher implements KeyboardState.SwitchActions {
     private static final String TAG = KeyboardSwitcher.class.getSimpleName();
@@ -71,7 +76,20 @@ public final class KeyboardSwitcher implements KeyboardState.SwitchActions {
     private final KeyboardTextsSet mKeyboardTextsSet = new KeyboardTextsSet();
 
     private KeyboardTheme mKeyboardTheme;
-    private Long mLayoutLastUpdated;
+    // last known published hitboxes of each keyboard layout (see HitboxRegistry)
+    private final HashMap<Integer, HitboxRegistry.Layout> mLayouts = new HashMap<>();
+    // layouts that got new hitboxes since the last updateKeyboardLayout(). Filled by the
+    // HitboxRegistry on the thread that published them
+    private final HashSet<Integer> mChangedLayouts = new HashSet<>();
+    private final HitboxRegistry.LayoutListener mLayoutListener =
+            new HitboxRegistry.LayoutListener() {
+        @Override
+        public void onLayoutsChanged(final Set<Integer> keyboardHashes) {
+            synchronized (mChangedLayouts) {
+                mChangedLayouts.addAll(keyboardHashes);
+            }
+        }
+    };
     private Context mThemeContext;
 
     private static final KeyboardSwitcher sInstance = new KeyboardSwitcher();
@@ -92,6 +110,11 @@ public final class KeyboardSwitcher implements KeyboardState.SwitchActions {
         mLatinIME = latinIme;
         mRichImm = RichInputMethodManager.getInstance();
         mState = new KeyboardState(this);
+        // starts filling the registry in the background. The keyboards built before it is done
+        // are rebuilt by updateKeyboardLayout() like after any other publish
+        HitboxRegistry.peek(latinIme).addListener(mLayoutListener);
+        // and reading the resolved layouts, which the first keyboards are taken from
+        ResolvedLayout.preloadInBackground(latinIme);
     }
 
     public void updateKeyboardTheme() {
@@ -113,6 +136,8 @@ public final class KeyboardSwitcher implements KeyboardState.SwitchActions {
         return false;
     }
 
+    // rebuilds the keyboards whose hitboxes changed since the last call. Is called at a safe
+    // point, when the input view is started
     public void updateKeyboardLayout(){
         final boolean layoutUpdated = updateKeyboardLayoutWrapper(mLatinIME);
         if(layoutUpdated && mKeyboardView != null){
@@ -120,23 +145,32 @@ public final class KeyboardSwitcher implements KeyboardState.SwitchActions {
         }
     }
 
+    // drops the cached keyboards of the changed layouts and returns whether the current keyboard
+    // is one of them
     private boolean updateKeyboardLayoutWrapper(final Context context){
-        Keyboard curKeyboard = getKeyboard();
-        if(curKeyboard != null){
-            final int layoutHashCode = curKeyboard.mId.layoutHashCode();
-            Long lastUpdate = Hitboxes.lastUpdateHitboxes(context, layoutHashCode);
-            // update necessary if:
-            // last known file creation time is null, but now isnt null (new hitboxes file created)
-            // last known file is not null, but now it is (hitboxes got deleted and reset)
-            // newer hitboxes file available (layout got updated)
-            if(!(mLayoutLastUpdated == null & lastUpdate == null) &&
-                    (mLayoutLastUpdated == null || lastUpdate == null || !mLayoutLastUpdated.equals(lastUpdate))){
-                mLayoutLastUpdated = lastUpdate;
-                KeyboardLayoutSet.onKeyboardLayoutChanged();
-                return true;
+        final HashSet<Integer> changed;
+        synchronized(mChangedLayouts){
+            if(mChangedLayouts.isEmpty()){
+                return false;
             }
+            changed = new HashSet<>(mChangedLayouts);
+            mChangedLayouts.clear();
         }
-        return false;
+        final HitboxRegistry registry = HitboxRegistry.peek(context);
+        final Keyboard curKeyboard = getKeyboard();
+        boolean currentChanged = false;
+        for(final Integer layoutHashCode:changed){
+            HitboxRegistry.Layout layout = registry.getLayout(layoutHashCode);
+            HitboxRegistry.Layout known = mLayouts.put(layoutHashCode, layout);
+            // nothing to do if the hitboxes were only saved again with the same geometry and rasters
+            if(known != null && layout.isBuiltSameAs(known)){
+                continue;
+            }
+            KeyboardLayoutSet.onKeyboardLayoutChanged(layoutHashCode);
+            currentChanged |= curKeyboard != null &&
+                    curKeyboard.mId.layoutHashCode() == layoutHashCode;
+        }
+        return currentChanged;
     }
 
     public void loadKeyboard(final EditorInfo editorInfo, final SettingsValues settingsValues,
@@ -191,6 +225,11 @@ public final class KeyboardSwitcher implements KeyboardState.SwitchActions {
         final int languageOnSpacebarFormatType = LanguageOnSpacebarUtils
                 .getLanguageOnSpacebarFormatType(newKeyboard.mId.mSubtype);
         keyboardView.startDisplayLanguageOnSpacebar(subtypeChanged, languageOnSpacebarFormatType);
+        // the keyboards that the user switches to from here are built while they are typing.
+        // In number and phone fields, the requested alphabet is mapped to another element
+        if (keyboardId < KeyboardId.ELEMENT_SYMBOLS) {
+            mKeyboardLayoutSet.prewarmKeyboards();
+        }
     }
 
     public Keyboard getKeyboard() {
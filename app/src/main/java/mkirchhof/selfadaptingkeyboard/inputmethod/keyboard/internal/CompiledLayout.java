@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.Key;
+import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.KeyboardId;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.AtomicFileWriter;
+
+// A keyboard layout XML file compiled for one KeyboardId. Most of the time of building a keyboard
+// is spent on parsing the XML with its includes, switches, key styles and text references, but
+// the result only depends on the KeyboardId, the theme and the installed app. So the
+// KeyboardBuilder records the keys it resolved while parsing into a CompiledLayout, which is
+// saved to the cache folder, and replays the file the next time instead of parsing the XML.
+// The position of a key is stored as the keyXPos and keyWidth of the XML, so the learned hitboxes
+// are applied during the replay just like during the parsing and do not invalidate the file.
+// A file is named by the hash of its identity string and also contains the full string, so a
+// different app version, theme or configuration is a miss and the file is overwritten.
+public final class CompiledLayout {
+    private static final String TAG = CompiledLayout.class.getSimpleName();
+    // has to be increased whenever the format of the file changes
+    private static final int FORMAT_VERSION = 1;
+    // the oldest files are deleted when there are more
+    private static final int MAX_FILES = 64;
+    private static final String FOLDER = "Layouts";
+
+    // the operations of the builder in the order they occurred
+    static final int OP_ROW = 1;
+    static final int OP_X_POS = 2;
+    static final int OP_KEY = 3;
+    static final int OP_SPACER = 4;
+    static final int OP_END_ROW = 5;
+    static final int OP_END_KEYBOARD = 6;
+
+    // files are written one after another, so they never clash
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+    private static String sAppVersion;
+
+    private final String mIdentity;
+    private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream mOut = new DataOutputStream(mBuffer);
+    private boolean mIsValid = true;
+
+    // starts recording the layout of the given identity
+    public CompiledLayout(final String identity) {
+        mIdentity = identity;
+    }
+
+    // everything that the result of parsing a keyboard XML depends on. themeId is the one of the
+    // keyboard style of the context, since the XML may switch on it
+    public static String getIdentity(final Context context, final int xmlId, final KeyboardId id,
+                                     final int themeId, final boolean allowRedundantMoreKeys) {
+        final Configuration config = context.getResources().getConfiguration();
+        return Arrays.toString(new Object[] {
+                FORMAT_VERSION,
+                getAppVersion(context),
+                Build.VERSION.SDK_INT,
+                xmlId,
+                themeId,
+                allowRedundantMoreKeys,
+                id.mElementId,
+                id.mMode,
+                id.mWidth,
+                id.mHeight,
+                id.getLocale(),
+                id.mSubtype.getKeyboardLayoutSetName(),
+                id.passwordInput(),
+                id.mClobberSettingsKey,
+                id.mLanguageSwitchKeyEnabled,
+                id.isMultiLine(),
+                id.imeAction(),
+                id.mCustomActionLabel,
+                id.navigateNext(),
+                id.navigatePrevious(),
+                id.mShowMoreKeys,
+                id.mShowNumberRow,
+                config.orientation,
+                config.densityDpi,
+                config.smallestScreenWidthDp
+        });
+    }
+
+    // the resources change with every installed apk, even if the version code stays the same
+    private static synchronized String getAppVersion(final Context context) {
+        if (sAppVersion == null) {
+            try {
+                final PackageInfo info = context.getPackageManager().getPackageInfo(
+                        context.getPackageName(), 0);
+                sAppVersion = info.versionCode + "/" + info.lastUpdateTime;
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to get the app version: " + e.toString());
+                sAppVersion = "";
+            }
+        }
+        return sAppVersion;
+    }
+
+    private static File getFile(final Context context, final String identity) {
+        return new File(new File(context.getCacheDir(), FOLDER),
+                Integer.toHexString(identity.hashCode()) + ".bin");
+    }
+
+    // returns the recorded operations of the layout with the given identity or null if it was
+    // not compiled yet
+    public static DataInputStream open(final Context context, final String identity) {
+        return open(getFile(context, identity), identity);
+    }
+
+    // returns the contents of a file written by saveInBackground, or null if it does not exist,
+    // belongs to another identity or is corrupt
+    static DataInputStream open(final File file, final String identity) {
+        return open(read(file), identity);
+    }
+
+    // returns the data of a file that was read before if it belongs to the identity, else null
+    static DataInputStream open(final Content content, final String identity) {
+        if (content == null || !identity.equals(content.mIdentity)) {
+            return null;
+        }
+        return new DataInputStream(new ByteArrayInputStream(content.mData));
+    }
+
+    // reads a file written by saveInBackground. Returns null if it does not exist or is corrupt
+    static Content read(final File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                final String identity = in.readUTF();
+                final byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                final CRC32 crc = new CRC32();
+                crc.update(data);
+                if (crc.getValue() != in.readLong()) {
+                    Log.e(TAG, "Corrupt file " + file.getName());
+                    return null;
+                }
+                return new Content(identity, data);
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to read " + file.getName() + ": " + e.toString());
+        }
+        return null;
+    }
+
+    // the identity and the data of a file written by saveInBackground
+    static final class Content {
+        final String mIdentity;
+        final byte[] mData;
+
+        Content(final String identity, final byte[] data) {
+            mIdentity = identity;
+            mData = data;
+        }
+    }
+
+    // the keyboard attributes. Has to be called first
+    public void setParams(final KeyboardParams params) {
+        try {
+            writeParams(mOut, params);
+        } catch (IOException e) {
+            invalidate(e);
+        }
+    }
+
+    // writes the keyboard attributes that the XML defines
+    static void writeParams(final DataOutputStream out, final KeyboardParams params)
+            throws IOException {
+        out.writeInt(params.mThemeId);
+        out.writeInt(params.mTopPadding);
+        out.writeInt(params.mBottomPadding);
+        out.writeInt(params.mLeftPadding);
+        out.writeInt(params.mRightPadding);
+        out.writeInt(params.mBaseWidth);
+        out.writeInt(params.mBaseHeight);
+        out.writeInt(params.mDefaultKeyWidth);
+        out.writeInt(params.mDefaultRowHeight);
+        out.writeInt(params.mHorizontalGap);
+        out.writeInt(params.mVerticalGap);
+        out.writeInt(params.mMoreKeysTemplate);
+        out.writeInt(params.mMaxMoreKeysKeyboardColumn);
+        KeyVisualAttributes.writeTo(out, params.mKeyVisualAttributes);
+    }
+
+    // reads the keyboard attributes that writeParams wrote
+    static void readParams(final DataInputStream in, final KeyboardParams params)
+            throws IOException {
+        params.mThemeId = in.readInt();
+        params.mTopPadding = in.readInt();
+        params.mBottomPadding = in.readInt();
+        params.mLeftPadding = in.readInt();
+        params.mRightPadding = in.readInt();
+        params.mBaseWidth = in.readInt();
+        params.mBaseHeight = in.readInt();
+        params.mDefaultKeyWidth = in.readInt();
+        params.mDefaultRowHeight = in.readInt();
+        params.mHorizontalGap = in.readInt();
+        params.mVerticalGap = in.readInt();
+        params.mMoreKeysTemplate = in.readInt();
+        params.mMaxMoreKeysKeyboardColumn = in.readInt();
+        params.mKeyVisualAttributes = KeyVisualAttributes.readFrom(in);
+    }
+
+    public void startRow(final KeyboardRow row) {
+        try {
+            mOut.writeByte(OP_ROW);
+            mOut.writeInt(row.getDefinedRowHeight());
+        } catch (IOException e) {
+            invalidate(e);
+        }
+    }
+
+    // an include that moves the current x-coordinate of the row
+    public void setXPos(final float keyXSpec) {
+        try {
+            mOut.writeByte(OP_X_POS);
+            mOut.writeFloat(keyXSpec);
+        } catch (IOException e) {
+            invalidate(e);
+        }
+    }
+
+    // hitboxCode is the code that the learned hitboxes of the key are stored under
+    public void addKey(final Key key, final int hitboxCode, final float keyXSpec,
+                       final float keyWidthSpec) {
+        try {
+            mOut.writeByte(key.isSpacer() ? OP_SPACER : OP_KEY);
+            mOut.writeInt(hitboxCode);
+            mOut.writeFloat(keyXSpec);
+            mOut.writeFloat(keyWidthSpec);
+            key.writeTo(mOut);
+        } catch (IOException e) {
+            invalidate(e);
+        }
+    }
+
+    public void endRow() {
+        try {
+            mOut.writeByte(OP_END_ROW);
+        } catch (IOException e) {
+            invalidate(e);
+        }
+    }
+
+    // the layout uses something that cannot be replayed and is not saved
+    public void invalidate() {
+        mIsValid = false;
+    }
+
+    private void invalidate(final IOException e) {
+        Log.e(TAG, "Failed to record compiled layout: " + e.toString());
+        mIsValid = false;
+    }
+
+    // finishes the recording and writes it to the cache folder on a background thread
+    public void save(final Context context) {
+        try {
+            mOut.writeByte(OP_END_KEYBOARD);
+            mOut.flush();
+        } catch (IOException e) {
+            invalidate(e);
+        }
+        if (!mIsValid) {
+            return;
+        }
+        saveInBackground(getFile(context, mIdentity), mIdentity, mBuffer.toByteArray());
+    }
+
+    // writes the data with the identity that open expects on a background thread
+    static void saveInBackground(final File file, final String identity, final byte[] data) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(file, identity, data);
+            }
+        });
+    }
+
+    // waits until the files that were handed to saveInBackground so far are written. Lets the
+    // tests replay a layout right after it was recorded
+    public static void waitForSaves() throws InterruptedException, ExecutionException {
+        sExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    private static void write(final File file, final String identity, final byte[] data) {
+        try {
+            final File folder = file.getParentFile();
+            if (!folder.exists()) {
+                folder.mkdir();
+            }
+            trim(folder);
+            // the keyboard never reads a partially written file
+            final CRC32 crc = new CRC32();
+            crc.update(data);
+            AtomicFileWriter.write(file, new AtomicFileWriter.Content() {
+                @Override
+                public void writeTo(final OutputStream os) throws IOException {
+                    final DataOutputStream out = new DataOutputStream(os);
+                    out.writeUTF(identity);
+                    out.writeInt(data.length);
+                    out.write(data);
+                    out.writeLong(crc.getValue());
+                    out.flush();
+                }
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to save " + file.getName() + ": " + e.toString());
+        }
+    }
+
+    // deletes the oldest files, which mostly belong to previous versions of the app
+    private static void trim(final File folder) {
+        final File[] files = folder.listFiles();
+        if (files == null || files.length < MAX_FILES) {
+            return;
+        }
+        final long[] lastModified = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+        }
+        Arrays.sort(lastModified);
+        final long threshold = lastModified[files.length - MAX_FILES / 2];
+        for (final File file : files) {
+            if (file.lastModified() < threshold) {
+                file.delete();
+            }
+        }
+    }
+
+    // writes a string that may be null
+    public static void writeString(final DataOutputStream out, final String s)
+            throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    public static String readString(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
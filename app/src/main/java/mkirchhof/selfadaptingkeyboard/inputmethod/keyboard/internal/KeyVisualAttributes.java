@@ -20,6 +20,10 @@ import android.content.res.TypedArray;
 import android.graphics.Typeface;
 import android.util.SparseIntArray;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 import mkirchhof.selfadaptingkeyboard.inputmethod.R;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.utils.ResourceUtils;
 
@@ -140,4 +144,69 @@ public final class KeyVisualAttributes {
         mHintLabelOffCenterRatio = ResourceUtils.getFraction(keyAttr,
                 R.styleable.Keyboard_Key_keyHintLabelOffCenterRatio, 0.0f);
     }
+
+    // reads attributes that were written by writeTo, which may be null
+    public static KeyVisualAttributes readFrom(final DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        return new KeyVisualAttributes(in);
+    }
+
+    public static void writeTo(final DataOutputStream out, final KeyVisualAttributes attrs)
+            throws IOException {
+        out.writeBoolean(attrs != null);
+        if (attrs == null) {
+            return;
+        }
+        // only the style of the typeface can be defined in the XML
+        out.writeInt(attrs.mTypeface == null ? -1 : attrs.mTypeface.getStyle());
+        out.writeFloat(attrs.mLetterRatio);
+        out.writeInt(attrs.mLetterSize);
+        out.writeFloat(attrs.mLabelRatio);
+        out.writeInt(attrs.mLabelSize);
+        out.writeFloat(attrs.mLargeLetterRatio);
+        out.writeFloat(attrs.mHintLetterRatio);
+        out.writeFloat(attrs.mShiftedLetterHintRatio);
+        out.writeFloat(attrs.mHintLabelRatio);
+        out.writeFloat(attrs.mPreviewTextRatio);
+        out.writeInt(attrs.mTextColor);
+        out.writeInt(attrs.mTextInactivatedColor);
+        out.writeInt(attrs.mTextShadowColor);
+        out.writeInt(attrs.mFunctionalTextColor);
+        out.writeInt(attrs.mHintLetterColor);
+        out.writeInt(attrs.mHintLabelColor);
+        out.writeInt(attrs.mShiftedLetterHintInactivatedColor);
+        out.writeInt(attrs.mShiftedLetterHintActivatedColor);
+        out.writeInt(attrs.mPreviewTextColor);
+        out.writeFloat(attrs.mHintLabelVerticalAdjustment);
+        out.writeFloat(attrs.mLabelOffCenterRatio);
+        out.writeFloat(attrs.mHintLabelOffCenterRatio);
+    }
+
+    private KeyVisualAttributes(final DataInputStream in) throws IOException {
+        final int typefaceStyle = in.readInt();
+        mTypeface = typefaceStyle < 0 ? null : Typeface.defaultFromStyle(typefaceStyle);
+        mLetterRatio = in.readFloat();
+        mLetterSize = in.readInt();
+        mLabelRatio = in.readFloat();
+        mLabelSize = in.readInt();
+        mLargeLetterRatio = in.readFloat();
+        mHintLetterRatio = in.readFloat();
+        mShiftedLetterHintRatio = in.readFloat();
+        mHintLabelRatio = in.readFloat();
+        mPreviewTextRatio = in.readFloat();
+        mTextColor = in.readInt();
+        mTextInactivatedColor = in.readInt();
+        mTextShadowColor = in.readInt();
+        mFunctionalTextColor = in.readInt();
+        mHintLetterColor = in.readInt();
+        mHintLabelColor = in.readInt();
+        mShiftedLetterHintInactivatedColor = in.readInt();
+        mShiftedLetterHintActivatedColor = in.readInt();
+        mPreviewTextColor = in.readInt();
+        mHintLabelVerticalAdjustment = in.readFloat();
+        mLabelOffCenterRatio = in.readFloat();
+        mHintLabelOffCenterRatio = in.readFloat();
+    }
 }
@@ -45,6 +45,7 @@ import android.util.Xml;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Locale;
@@ -59,8 +60,8 @@ import mkirchhof.selfadaptingkeyboard.inputmethod.latin.common.StringUtils;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.utils.ResourceUtils;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.utils.XmlParseUtils;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.utils.XmlParseUtils.ParseException;
-import mkirchhof.selfadaptingkeyboard.inputmethod.learner.Hitbox;
-import mkirchhof.selfadaptingkeyboard.inputmethod.learner.Hitboxes;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.HitboxRegistry;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.PackedHitboxes;
 
 /**
  * Keyboard Building helper.
@@ -164,7 +165,14 @@ public class KeyboardBuilder<KP extends KeyboardParams> {
     private boolean mTopEdge;
     private Key mRightEdgeKey = null;
 
-    private Hitboxes hitb = null;
+    // the learned hitboxes, looked up straight from the saved file
+    private PackedHitboxes hitb = null;
+    private HitboxRegistry.Layout mLayout = null;
+
+    private boolean mUseCompiledLayout = false;
+    // records the parsed XML, null if it is not compiled
+    private CompiledLayout mCompiledLayout = null;
+    private boolean mIsFromCompiledLayout = false;
 
     public KeyboardBuilder(final Context context, final KP params) {
         Log.d(TAG, "Called KeyboardBuilder");
@@ -182,13 +190,45 @@ public class KeyboardBuilder<KP extends KeyboardParams> {
         mParams.mAllowRedundantMoreKeys = enabled;
     }
 
+    // whether the keyboard is replayed from its CompiledLayout instead of parsing the XML, if it
+    // was compiled before
+    public void setUseCompiledLayout(final boolean enabled) {
+        mUseCompiledLayout = enabled;
+    }
+
+    public boolean isFromCompiledLayout() {
+        return mIsFromCompiledLayout;
+    }
+
+    // the learned hitboxes that the keyboard was built with, null if there are none
+    public PackedHitboxes getHitboxes() {
+        return hitb;
+    }
+
+    // the Layout of the HitboxRegistry that the keyboard was built from
+    public HitboxRegistry.Layout getLayout() {
+        return mLayout;
+    }
+
     public KeyboardBuilder<KP> load(final int xmlId, final KeyboardId id) {
         Log.d(TAG, "called load");
         mParams.mId = id;
 
-        hitb = Hitboxes.load(mContext, mParams.mId.layoutHashCode());
+        // everything the adapted keyboard is built from is already in memory
+        HitboxRegistry.Layout layout = HitboxRegistry.peek(mContext).getLayout(
+                mParams.mId.layoutHashCode());
+        mLayout = layout;
+        hitb = layout.getHitboxes();
         if(hitb != null){
-            Log.d(TAG, "Loaded Hitboxes for layout " + mParams.mId.layoutHashCode());
+            Log.d(TAG, "Loaded Hitboxes for layout " + mParams.mId.layoutHashCode() +
+                    " in version " + layout.getVersion());
+        }
+        mParams.mHitboxRaster = layout.getRaster();
+        mParams.mPostureModel = layout.getPostureModel();
+
+        if (mUseCompiledLayout && loadCompiledLayout(xmlId)) {
+            mIsFromCompiledLayout = true;
+            return this;
         }
 
         final XmlResourceParser parser = mResources.getXml(xmlId);
@@ -206,14 +246,101 @@ public class KeyboardBuilder<KP extends KeyboardParams> {
         return this;
     }
 
+    // replays the CompiledLayout of the XML file if there is one. Otherwise starts to record it
+    private boolean loadCompiledLayout(final int xmlId) {
+        // the root element of the keyboard XML files does not change the keyboard style, so the
+        // theme and the icons are the same as during the parsing
+        final TypedArray keyboardAttr = mContext.obtainStyledAttributes(
+                null, R.styleable.Keyboard, R.attr.keyboardStyle, R.style.Keyboard);
+        try {
+            final int themeId = keyboardAttr.getInt(R.styleable.Keyboard_themeId, 0);
+            final String identity = CompiledLayout.getIdentity(mContext, xmlId, mParams.mId,
+                    themeId, mParams.mAllowRedundantMoreKeys);
+            final DataInputStream in = CompiledLayout.open(mContext, identity);
+            if (in != null) {
+                mParams.mIconsSet.loadIcons(keyboardAttr);
+                try {
+                    replay(in);
+                    return true;
+                } catch (IOException | RuntimeException e) {
+                    // the XML is parsed after all and overwrites the file
+                    Log.e(TAG, "Failed to replay compiled layout: " + e.toString());
+                    mParams.clearKeys();
+                    mCurrentY = 0;
+                    mCurrentRow = null;
+                    mLeftEdge = false;
+                    mTopEdge = false;
+                    mRightEdgeKey = null;
+                }
+            }
+            mCompiledLayout = new CompiledLayout(identity);
+            return false;
+        } finally {
+            keyboardAttr.recycle();
+        }
+    }
+
+    // builds the keys like parseKeyboard does, but from the operations it recorded
+    private void replay(final DataInputStream in) throws IOException {
+        final KeyboardParams params = mParams;
+        params.mOccupiedHeight = params.mId.mHeight;
+        params.mOccupiedWidth = params.mId.mWidth;
+        CompiledLayout.readParams(in, params);
+        startKeyboard();
+        KeyboardRow row = null;
+        while (true) {
+            final int op = in.readByte();
+            switch (op) {
+            case CompiledLayout.OP_ROW:
+                final int definedRowHeight = in.readInt();
+                int rowHeight = definedRowHeight;
+                if (hitb != null && hitb.getRowHeight(mCurrentY) >= 0) {
+                    rowHeight = hitb.getRowHeight(mCurrentY);
+                }
+                row = new KeyboardRow(params, mCurrentY, rowHeight, definedRowHeight);
+                startRow(row);
+                break;
+            case CompiledLayout.OP_X_POS:
+                row.setXPos(row.getKeyX(in.readFloat()));
+                break;
+            case CompiledLayout.OP_KEY:
+            case CompiledLayout.OP_SPACER:
+                final int hitboxCode = in.readInt();
+                float keyXPos = row.getKeyX(in.readFloat());
+                float keyWidth = row.getKeyWidth(in.readFloat(), keyXPos);
+                final Key key;
+                if (op == CompiledLayout.OP_SPACER) {
+                    key = new Key.Spacer(in, params, row, keyXPos, keyWidth);
+                } else {
+                    // Insert the customized hitboxes
+                    if (hitb != null) {
+                        int curBox = hitb.indexOfCode(hitboxCode);
+                        if (curBox >= 0) {
+                            keyXPos = hitb.getLeft(curBox);
+                            keyWidth = hitb.getWidth(curBox);
+                        }
+                    }
+                    key = new Key(in, params, row, keyXPos, keyWidth);
+                }
+                endKey(key);
+                break;
+            case CompiledLayout.OP_END_ROW:
+                endRow(row);
+                row = null;
+                break;
+            case CompiledLayout.OP_END_KEYBOARD:
+                endKeyboard();
+                return;
+            default:
+                throw new IOException("Unknown operation " + op);
+            }
+        }
+    }
+
+    // builds the keyboard without touching the disk. The models of a keyboard without learned
+    // hitboxes are seeded by the caller (see LayoutSeeder)
     public Keyboard build() {
         Log.d(TAG, "Called build()");
-        Keyboard keyb = new Keyboard(mParams);
-        // save relevant info about this keyboard
-        if(!Hitboxes.savedHitboxesExists(mContext, keyb.mId.layoutHashCode())){
-            Hitboxes hitb = Hitboxes.toHitboxes(keyb);
-            hitb.save(mContext);
-        }
         return new Keyboard(mParams);
     }
 
@@ -247,6 +374,9 @@ public class KeyboardBuilder<KP extends KeyboardParams> {
                 final String tag = parser.getName();
                 if (TAG_KEYBOARD.equals(tag)) {
                     parseKeyboardAttributes(parser);
+                    if (mCompiledLayout != null) {
+                        mCompiledLayout.setParams(mParams);
+                    }
                     startKeyboard();
                     parseKeyboardContent(parser, false);
                     return;
@@ -361,11 +491,9 @@ public class KeyboardBuilder<KP extends KeyboardParams> {
             if (keyboardAttr.hasValue(R.styleable.Keyboard_verticalGap)) {
                 throw new XmlParseUtils.IllegalAttribute(parser, TAG_ROW, "verticalGap");
             }
-            int rowHeight;
             if(hitb != null){
-                Hitbox keyAtThisRow = hitb.findRowStart(mCurrentY);
-                if(keyAtThisRow != null){
-                    rowHeight = keyAtThisRow.getHeight();
+                int rowHeight = hitb.getRowHeight(mCurrentY);
+                if(rowHeight >= 0){
                     return new KeyboardRow(mResources, mParams, parser, mCurrentY, rowHeight);
                 }
             }
@@ -420,12 +548,15 @@ public class KeyboardBuilder<KP extends KeyboardParams> {
             }
             return;
         }
+        // the keys of grid rows are not recorded
+        if (mCompiledLayout != null) {
+            mCompiledLayout.invalidate();
+        }
         int rowHeight;
         final KeyboardRow gridRows;
         if(hitb != null){
-            Hitbox keyAtThisRow = hitb.findRowStart(mCurrentY);
-            if(keyAtThisRow != null){
-                rowHeight = keyAtThisRow.getHeight();
+            rowHeight = hitb.getRowHeight(mCurrentY);
+            if(rowHeight >= 0){
                 gridRows = new KeyboardRow(mResources, mParams, parser, mCurrentY, rowHeight);
             } else {
                 gridRows = new KeyboardRow(mResources, mParams, parser, mCurrentY);
@@ -456,9 +587,8 @@ public class KeyboardBuilder<KP extends KeyboardParams> {
         for (int index = 0; index < counts; index += numColumns) {
             final KeyboardRow row;
             if(hitb != null){
-                Hitbox keyAtThisRow = hitb.findRowStart(mCurrentY);
-                if(keyAtThisRow != null){
-                    rowHeight = keyAtThisRow.getHeight();
+                rowHeight = hitb.getRowHeight(mCurrentY);
+                if(rowHeight >= 0){
                     row = new KeyboardRow(mResources, mParams, parser, mCurrentY, rowHeight);
                 } else {
                     row = new KeyboardRow(mResources, mParams, parser, mCurrentY);
@@ -504,10 +634,10 @@ public class KeyboardBuilder<KP extends KeyboardParams> {
                 int height = row.getRowHeight();
                 // Insert the customized hitboxes
                 if(hitb != null){
-                    Hitbox curBox = hitb.findCode(code);
-                    if(curBox != null) {
-                        x = curBox.getTopLeft().getX();
-                        width = curBox.getWidth() - mParams.mHorizontalGap;
+                    int curBox = hitb.indexOfCode(code);
+                    if(curBox >= 0) {
+                        x = hitb.getLeft(curBox);
+                        width = hitb.getWidth(curBox) - mParams.mHorizontalGap;
                     }
                 }
                 final Key key = new Key(label, KeyboardIconsSet.ICON_UNDEFINED, code, outputText,
@@ -536,12 +666,16 @@ public class KeyboardBuilder<KP extends KeyboardParams> {
         if (TextUtils.isEmpty(keySpec)) {
             throw new ParseException("Empty keySpec", parser);
         }
+        final int hitboxCode = KeySpecParser.getCode(keySpec);
+        // has to be read before the key moves the row
+        final float keyXSpec = mCompiledLayout != null ? row.getKeyXSpec(keyAttr) : 0;
+        final float keyWidthSpec = mCompiledLayout != null ? row.getKeyWidthSpec(keyAttr) : 0;
         final Key key;
         if(hitb != null){
-            Hitbox curBox = hitb.findCode(KeySpecParser.getCode(keySpec));
-            if(curBox != null) {
-                int x = curBox.getTopLeft().getX();
-                int width = curBox.getWidth();
+            int curBox = hitb.indexOfCode(hitboxCode);
+            if(curBox >= 0) {
+                int x = hitb.getLeft(curBox);
+                int width = hitb.getWidth(curBox);
                 key = new Key(keySpec, keyAttr, keyStyle, mParams, row, x, width);
             } else {
                 key = new Key(keySpec, keyAttr, keyStyle, mParams, row);
@@ -550,6 +684,9 @@ public class KeyboardBuilder<KP extends KeyboardParams> {
             key = new Key(keySpec, keyAttr, keyStyle, mParams, row);
         }
         keyAttr.recycle();
+        if (mCompiledLayout != null) {
+            mCompiledLayout.addKey(key, hitboxCode, keyXSpec, keyWidthSpec);
+        }
         if (DEBUG) {
             startEndTag("<%s%s %s moreKeys=%s />", TAG_KEY, (key.isEnabled() ? "" : " disabled"),
                     key, Arrays.toString(key.getMoreKeys()));
@@ -568,8 +705,13 @@ public class KeyboardBuilder<KP extends KeyboardParams> {
         final TypedArray keyAttr = mResources.obtainAttributes(
                 Xml.asAttributeSet(parser), R.styleable.Keyboard_Key);
         final KeyStyle keyStyle = mParams.mKeyStyles.getKeyStyle(keyAttr, parser);
+        final float keyXSpec = mCompiledLayout != null ? row.getKeyXSpec(keyAttr) : 0;
+        final float keyWidthSpec = mCompiledLayout != null ? row.getKeyWidthSpec(keyAttr) : 0;
         final Key spacer = new Key.Spacer(keyAttr, keyStyle, mParams, row);
         keyAttr.recycle();
+        if (mCompiledLayout != null) {
+            mCompiledLayout.addKey(spacer, Constants.CODE_UNSPECIFIED, keyXSpec, keyWidthSpec);
+        }
         if (DEBUG) startEndTag("<%s />", TAG_SPACER);
         XmlParseUtils.checkEndTag(TAG_SPACER, parser);
         endKey(spacer);
@@ -610,7 +752,11 @@ public class KeyboardBuilder<KP extends KeyboardParams> {
                     R.styleable.Keyboard_Include_keyboardLayout, 0);
             if (row != null) {
                 // Override current x coordinate.
-                row.setXPos(row.getKeyX(keyAttr));
+                final float keyXSpec = row.getKeyXSpec(keyAttr);
+                row.setXPos(row.getKeyX(keyXSpec));
+                if (mCompiledLayout != null) {
+                    mCompiledLayout.setXPos(keyXSpec);
+                }
                 // Push current Row attributes and update with new attributes.
                 row.pushRowAttributes(keyAttr);
             }
@@ -866,6 +1012,9 @@ public class KeyboardBuilder<KP extends KeyboardParams> {
     }
 
     private void startRow(final KeyboardRow row) {
+        if (mCompiledLayout != null) {
+            mCompiledLayout.startRow(row);
+        }
         addEdgeSpace(mParams.mLeftPadding, row);
         mCurrentRow = row;
         mLeftEdge = true;
@@ -884,6 +1033,9 @@ public class KeyboardBuilder<KP extends KeyboardParams> {
         mCurrentY += row.getRowHeight();
         mCurrentRow = null;
         mTopEdge = false;
+        if (mCompiledLayout != null) {
+            mCompiledLayout.endRow();
+        }
     }
 
     private void endKey(final Key key) {
@@ -904,6 +1056,10 @@ public class KeyboardBuilder<KP extends KeyboardParams> {
         // previously expected.
         final int actualHeight = mCurrentY - mParams.mVerticalGap + mParams.mBottomPadding;
         mParams.mOccupiedHeight = Math.max(mParams.mOccupiedHeight, actualHeight);
+        if (mCompiledLayout != null) {
+            mCompiledLayout.save(mContext);
+            mCompiledLayout = null;
+        }
     }
 
     private void addEdgeSpace(final float width, final KeyboardRow row) {
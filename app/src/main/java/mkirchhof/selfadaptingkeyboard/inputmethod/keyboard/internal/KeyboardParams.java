@@ -26,6 +26,8 @@ import java.util.TreeSet;
 import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.Key;
 import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.KeyboardId;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.common.Constants;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.HitboxRaster;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.PostureModel;
 
 public class KeyboardParams {
     public KeyboardId mId;
@@ -70,6 +72,11 @@ public class KeyboardParams {
     private final UniqueKeysCache mUniqueKeysCache;
     public boolean mAllowRedundantMoreKeys;
 
+    /** Learned touch classification raster of this layout, may be null */
+    public HitboxRaster mHitboxRaster;
+    /** Learned rasters of the typing postures of this layout, may be null */
+    public PostureModel mPostureModel;
+
     public int mMostCommonKeyHeight = 0;
     public int mMostCommonKeyWidth = 0;
 
@@ -113,6 +120,19 @@ public class KeyboardParams {
         }
     }
 
+    // forgets all keys that were added, e.g. because a CompiledLayout could not be replayed
+    public void clearKeys() {
+        mSortedKeys.clear();
+        mShiftKeys.clear();
+        mAltCodeKeysWhileTyping.clear();
+        mHeightHistogram.clear();
+        mWidthHistogram.clear();
+        mMaxHeightCount = 0;
+        mMaxWidthCount = 0;
+        mMostCommonKeyHeight = 0;
+        mMostCommonKeyWidth = 0;
+    }
+
     public void removeRedundantMoreKeys() {
         if (mAllowRedundantMoreKeys) {
             return;
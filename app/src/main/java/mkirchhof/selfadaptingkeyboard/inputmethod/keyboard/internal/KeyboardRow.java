@@ -57,6 +57,8 @@ public final class KeyboardRow {
     private final KeyboardParams mParams;
     /** The height of this row. */
     private final int mRowHeight;
+    // the height that the XML defines, before the learned hitboxes override it
+    private final int mDefinedRowHeight;
 
     private final ArrayDeque<RowAttributes> mRowAttributesStack = new ArrayDeque<>();
 
@@ -85,6 +87,14 @@ public final class KeyboardRow {
                     Key.BACKGROUND_TYPE_NORMAL);
         }
 
+        // default attributes of a row that is replayed from a CompiledLayout. Its keys do not
+        // need them, since they are resolved already
+        public RowAttributes(final float defaultKeyWidth) {
+            mDefaultKeyWidth = defaultKeyWidth;
+            mDefaultKeyLabelFlags = 0;
+            mDefaultBackgroundType = Key.BACKGROUND_TYPE_NORMAL;
+        }
+
         /**
          * Parse and update key attributes using default attributes. This constructor is used
          * to parse include tag.
@@ -115,6 +125,7 @@ public final class KeyboardRow {
                 R.styleable.Keyboard);
         mRowHeight = (int)ResourceUtils.getDimensionOrFraction(keyboardAttr,
                 R.styleable.Keyboard_rowHeight, params.mBaseHeight, params.mDefaultRowHeight);
+        mDefinedRowHeight = mRowHeight;
         keyboardAttr.recycle();
         final TypedArray keyAttr = res.obtainAttributes(Xml.asAttributeSet(parser),
                 R.styleable.Keyboard_Key);
@@ -132,6 +143,8 @@ public final class KeyboardRow {
         final TypedArray keyboardAttr = res.obtainAttributes(Xml.asAttributeSet(parser),
                 R.styleable.Keyboard);
         mRowHeight = height;
+        mDefinedRowHeight = (int)ResourceUtils.getDimensionOrFraction(keyboardAttr,
+                R.styleable.Keyboard_rowHeight, params.mBaseHeight, params.mDefaultRowHeight);
         keyboardAttr.recycle();
         final TypedArray keyAttr = res.obtainAttributes(Xml.asAttributeSet(parser),
                 R.styleable.Keyboard_Key);
@@ -143,10 +156,26 @@ public final class KeyboardRow {
         mCurrentX = 0.0f;
     }
 
+    // creates a row that is replayed from a CompiledLayout instead of being parsed
+    public KeyboardRow(final KeyboardParams params, final int y, final int height,
+                       final int definedHeight) {
+        mParams = params;
+        mRowHeight = height;
+        mDefinedRowHeight = definedHeight;
+        mRowAttributesStack.push(new RowAttributes(params.mDefaultKeyWidth));
+
+        mCurrentY = y;
+        mCurrentX = 0.0f;
+    }
+
     public int getRowHeight() {
         return mRowHeight;
     }
 
+    public int getDefinedRowHeight() {
+        return mDefinedRowHeight;
+    }
+
     public void pushRowAttributes(final TypedArray keyAttr) {
         final RowAttributes newAttributes = new RowAttributes(
                 keyAttr, mRowAttributesStack.peek(), mParams.mBaseWidth);
@@ -182,11 +211,24 @@ public final class KeyboardRow {
     }
 
     public float getKeyX(final TypedArray keyAttr) {
+        return getKeyX(getKeyXSpec(keyAttr));
+    }
+
+    // returns the keyXPos attribute, which does not depend on the keys before, or NaN if the key
+    // simply follows them
+    public float getKeyXSpec(final TypedArray keyAttr) {
         if (keyAttr == null || !keyAttr.hasValue(R.styleable.Keyboard_Key_keyXPos)) {
-            return mCurrentX;
+            return Float.NaN;
         }
-        final float keyXPos = keyAttr.getFraction(R.styleable.Keyboard_Key_keyXPos,
+        return keyAttr.getFraction(R.styleable.Keyboard_Key_keyXPos,
                 mParams.mBaseWidth, mParams.mBaseWidth, 0);
+    }
+
+    public float getKeyX(final float keyXSpec) {
+        if (Float.isNaN(keyXSpec)) {
+            return mCurrentX;
+        }
+        final float keyXPos = keyXSpec;
         if (keyXPos >= 0) {
             return keyXPos + mParams.mLeftPadding;
         }
@@ -200,6 +242,11 @@ public final class KeyboardRow {
     }
 
     public float getKeyWidth(final TypedArray keyAttr, final float keyXPos) {
+        return getKeyWidth(getKeyWidthSpec(keyAttr), keyXPos);
+    }
+
+    // returns the width of the key or NaN if it fills the row up to the right edge of the keyboard
+    public float getKeyWidthSpec(final TypedArray keyAttr) {
         if (keyAttr == null) {
             return getDefaultKeyWidth();
         }
@@ -207,13 +254,20 @@ public final class KeyboardRow {
                 R.styleable.Keyboard_Key_keyWidth, KEYWIDTH_NOT_ENUM);
         switch (widthType) {
         case KEYWIDTH_FILL_RIGHT:
+            return Float.NaN;
+        default: // KEYWIDTH_NOT_ENUM
+            return keyAttr.getFraction(R.styleable.Keyboard_Key_keyWidth,
+                    mParams.mBaseWidth, mParams.mBaseWidth, getDefaultKeyWidth());
+        }
+    }
+
+    public float getKeyWidth(final float keyWidthSpec, final float keyXPos) {
+        if (Float.isNaN(keyWidthSpec)) {
             // If keyWidth is fillRight, the actual key width will be determined to fill
             // out the area up to the right edge of the keyboard.
             final int keyboardRightEdge = mParams.mOccupiedWidth - mParams.mRightPadding;
             return keyboardRightEdge - keyXPos;
-        default: // KEYWIDTH_NOT_ENUM
-            return keyAttr.getFraction(R.styleable.Keyboard_Key_keyWidth,
-                    mParams.mBaseWidth, mParams.mBaseWidth, getDefaultKeyWidth());
         }
+        return keyWidthSpec;
     }
 }
@@ -19,6 +19,9 @@ package mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal;
 import android.text.TextUtils;
 import android.util.SparseIntArray;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Locale;
@@ -70,6 +73,21 @@ public final class MoreKeySpec {
         mIconId = KeySpecParser.getIconId(moreKeySpec);
     }
 
+    // reads a more key that was resolved before from a CompiledLayout
+    public MoreKeySpec(final DataInputStream in) throws IOException {
+        mCode = in.readInt();
+        mLabel = CompiledLayout.readString(in);
+        mOutputText = CompiledLayout.readString(in);
+        mIconId = in.readInt();
+    }
+
+    public void writeTo(final DataOutputStream out) throws IOException {
+        out.writeInt(mCode);
+        CompiledLayout.writeString(out, mLabel);
+        CompiledLayout.writeString(out, mOutputText);
+        out.writeInt(mIconId);
+    }
+
     public Key buildKey(final int x, final int y, final int labelFlags,
             final KeyboardParams params) {
         return new Key(mLabel, mIconId, mCode, mOutputText, null /* hintLabel */, labelFlags,
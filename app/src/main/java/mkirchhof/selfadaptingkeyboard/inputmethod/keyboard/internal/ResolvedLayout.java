@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.internal;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import mkirchhof.selfadaptingkeyboard.inputmethod.R;
+import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.Key;
+import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.KeyboardId;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.HitboxRegistry;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.PackedHitboxes;
+
+// The keys of a built keyboard with their final positions, which already include the learned
+// hitboxes. Even replaying a CompiledLayout resolves every key again, so after a cold start the
+// first keyboard still takes a while. Instead, the keyboard is read from its ResolvedLayout as it
+// is. A file is saved per KeyboardId, so new hitboxes overwrite the old file. It is only used if
+// the identity of its CompiledLayout and the checksum of the current hitboxes match.
+// Keyboards without learned hitboxes are replayed from their CompiledLayout, which already yields
+// their final keys, and the LayoutSeeder saves their initial Hitboxes and KeyboardGeometry.
+// The files are read on a background thread (see preloadInBackground) and kept in memory, so the
+// UI thread never waits for the disk. It builds the keyboards whose files are not read yet.
+public final class ResolvedLayout {
+    private static final String TAG = ResolvedLayout.class.getSimpleName();
+    // has to be increased whenever the format of the file changes
+    private static final int FORMAT_VERSION = 1;
+    private static final String FOLDER = "Keyboards";
+
+    // the files that were read or written in this process by name. Guarded by itself
+    private static final HashMap<String, CompiledLayout.Content> sContents = new HashMap<>();
+    private static boolean sPreloadStarted = false;
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private ResolvedLayout() {
+        // This utility class is not publicly instantiable.
+    }
+
+    private static String getIdentity(final Context context, final int xmlId, final KeyboardId id,
+                                      final int themeId, final boolean allowRedundantMoreKeys,
+                                      final HitboxRegistry.Layout layout) {
+        return Arrays.toString(new Object[] {
+                FORMAT_VERSION,
+                CompiledLayout.getIdentity(context, xmlId, id, themeId, allowRedundantMoreKeys),
+                layout.getChecksum()
+        });
+    }
+
+    private static File getFile(final Context context, final KeyboardId id) {
+        return new File(new File(context.getCacheDir(), FOLDER),
+                Integer.toHexString(id.hashCode()) + ".bin");
+    }
+
+    // the attributes of the keyboard style, like the KeyboardBuilder uses for a CompiledLayout
+    private static TypedArray obtainKeyboardAttributes(final Context context) {
+        return context.obtainStyledAttributes(
+                null, R.styleable.Keyboard, R.attr.keyboardStyle, R.style.Keyboard);
+    }
+
+    private static boolean isLearned(final PackedHitboxes hitb) {
+        return hitb != null && hitb.size() > 0;
+    }
+
+    // reads all files on a background thread, unless that was started already. Is called when
+    // the keyboard is set up, so the files are in memory before the first keyboard is shown
+    public static void preloadInBackground(final Context context) {
+        synchronized (sContents) {
+            if (sPreloadStarted) {
+                return;
+            }
+            sPreloadStarted = true;
+        }
+        final File folder = new File(context.getCacheDir(), FOLDER);
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final File[] files = folder.listFiles();
+                for (final File file : files != null ? files : new File[0]) {
+                    final CompiledLayout.Content content = CompiledLayout.read(file);
+                    if (content == null) {
+                        continue;
+                    }
+                    synchronized (sContents) {
+                        // a file that was saved in the meantime is newer
+                        if (!sContents.containsKey(file.getName())) {
+                            sContents.put(file.getName(), content);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    // blocks until the files that preloadInBackground started to read are in memory
+    public static void waitForPreload() throws InterruptedException, ExecutionException {
+        sExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    // forgets the files that were read or written so far, like a new process. Lets the tests
+    // read them from the disk again
+    public static void clearMemory() {
+        synchronized (sContents) {
+            sContents.clear();
+            sPreloadStarted = false;
+        }
+    }
+
+    // the file of a keyboard. The UI thread only takes it from memory and starts the preload if
+    // it is not there, other threads read it from the disk
+    private static CompiledLayout.Content getContent(final Context context, final KeyboardId id) {
+        final File file = getFile(context, id);
+        synchronized (sContents) {
+            final CompiledLayout.Content content = sContents.get(file.getName());
+            if (content != null) {
+                return content;
+            }
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            preloadInBackground(context);
+            return null;
+        }
+        final CompiledLayout.Content content = CompiledLayout.read(file);
+        if (content != null) {
+            synchronized (sContents) {
+                if (!sContents.containsKey(file.getName())) {
+                    sContents.put(file.getName(), content);
+                }
+            }
+        }
+        return content;
+    }
+
+    // fills params with the keys of the keyboard if it was resolved with the current hitboxes
+    // before. mId and mAllowRedundantMoreKeys of params have to be set already
+    public static boolean load(final Context context, final int xmlId,
+                               final KeyboardParams params) {
+        final HitboxRegistry.Layout layout = HitboxRegistry.peek(context).getLayout(
+                params.mId.layoutHashCode());
+        final PackedHitboxes hitb = layout.getHitboxes();
+        if (!isLearned(hitb)) {
+            return false;
+        }
+        final TypedArray keyboardAttr = obtainKeyboardAttributes(context);
+        try {
+            final int themeId = keyboardAttr.getInt(R.styleable.Keyboard_themeId, 0);
+            final DataInputStream in = CompiledLayout.open(getContent(context, params.mId),
+                    getIdentity(context, xmlId, params.mId, themeId,
+                            params.mAllowRedundantMoreKeys, layout));
+            if (in == null) {
+                return false;
+            }
+            try {
+                read(in, params);
+            } catch (IOException | RuntimeException e) {
+                // the keyboard is built after all and overwrites the file
+                Log.e(TAG, "Failed to read resolved layout: " + e.toString());
+                params.clearKeys();
+                return false;
+            }
+            params.mIconsSet.loadIcons(keyboardAttr);
+        } finally {
+            keyboardAttr.recycle();
+        }
+        final Resources res = context.getResources();
+        params.GRID_WIDTH = res.getInteger(R.integer.config_keyboard_grid_width);
+        params.GRID_HEIGHT = res.getInteger(R.integer.config_keyboard_grid_height);
+        params.mHitboxRaster = layout.getRaster();
+        params.mPostureModel = layout.getPostureModel();
+        return true;
+    }
+
+    private static void read(final DataInputStream in, final KeyboardParams params)
+            throws IOException {
+        params.mOccupiedHeight = in.readInt();
+        params.mOccupiedWidth = in.readInt();
+        CompiledLayout.readParams(in, params);
+        final int mostCommonKeyHeight = in.readInt();
+        final int mostCommonKeyWidth = in.readInt();
+        final int keyCount = in.readInt();
+        for (int i = 0; i < keyCount; i++) {
+            params.onAddKey(in.readBoolean() ? new Key.Spacer(in) : new Key(in));
+        }
+        // the histogram of the keys breaks ties by the order of the XML, which is lost here
+        params.mMostCommonKeyHeight = mostCommonKeyHeight;
+        params.mMostCommonKeyWidth = mostCommonKeyWidth;
+    }
+
+    // saves the keys of a keyboard that was just built from params with the given Layout of the
+    // HitboxRegistry
+    public static void save(final Context context, final int xmlId, final KeyboardParams params,
+                            final HitboxRegistry.Layout layout) {
+        if (!isLearned(layout.getHitboxes())) {
+            return;
+        }
+        // params belong to the caller, so only writing the file is left to the background
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(buffer);
+        try {
+            out.writeInt(params.mOccupiedHeight);
+            out.writeInt(params.mOccupiedWidth);
+            CompiledLayout.writeParams(out, params);
+            out.writeInt(params.mMostCommonKeyHeight);
+            out.writeInt(params.mMostCommonKeyWidth);
+            out.writeInt(params.mSortedKeys.size());
+            for (final Key key : params.mSortedKeys) {
+                out.writeBoolean(key.isSpacer());
+                key.writeResolvedTo(out);
+            }
+            out.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to record resolved layout: " + e.toString());
+            return;
+        }
+        final TypedArray keyboardAttr = obtainKeyboardAttributes(context);
+        final int themeId = keyboardAttr.getInt(R.styleable.Keyboard_themeId, 0);
+        keyboardAttr.recycle();
+        final String identity = getIdentity(context, xmlId, params.mId, themeId,
+                params.mAllowRedundantMoreKeys, layout);
+        final byte[] data = buffer.toByteArray();
+        final File file = getFile(context, params.mId);
+        synchronized (sContents) {
+            sContents.put(file.getName(), new CompiledLayout.Content(identity, data));
+        }
+        CompiledLayout.saveInBackground(file, identity, data);
+    }
+}
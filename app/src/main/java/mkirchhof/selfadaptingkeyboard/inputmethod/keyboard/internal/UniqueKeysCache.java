@@ -40,10 +40,11 @@ public abstract class UniqueKeysCache {
         return new UniqueKeysCacheImpl();
     }
 
+    // may be shared by keyboards that are built on different threads
     private static final class UniqueKeysCacheImpl extends UniqueKeysCache {
         private final HashMap<Key, Key> mCache;
 
-        private boolean mEnabled;
+        private volatile boolean mEnabled;
 
         UniqueKeysCacheImpl() {
             mCache = new HashMap<>();
@@ -55,12 +56,12 @@ public abstract class UniqueKeysCache {
         }
 
         @Override
-        public void clear() {
+        public synchronized void clear() {
             mCache.clear();
         }
 
         @Override
-        public Key getUniqueKey(final Key key) {
+        public synchronized Key getUniqueKey(final Key key) {
             if (!mEnabled) {
                 return key;
             }
@@ -67,6 +67,7 @@ import android.view.inputmethod.InputMethodSubtype;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.Locale;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import mkirchhof.selfadaptingkeyboard.inputmethod.R;
@@ -92,7 +93,11 @@ import mkirchhof.selfadaptingkeyboard.inputmethod.latin.utils.IntentUtils;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.utils.LeakGuardHandlerWrapper;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.utils.ResourceUtils;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.utils.ViewLayoutUtils;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.KeyboardUsage;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.LearnerScheduler;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.LiveAdapter;
 import mkirchhof.selfadaptingkeyboard.inputmethod.learner.Logger;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.StorageQuota;
 
 /**
  * Input method implementation for Qwerty'ish keyboard.
@@ -112,6 +117,7 @@ public class LatinIME extends InputMethodService implements KeyboardActionListen
     final InputLogic mInputLogic = new InputLogic(this /* LatinIME */);
 
     private Logger mLogger;
+    private LiveAdapter mLiveAdapter;
     private InputConnection mIC;
 
     // TODO: Move these {@link View}s to {@link KeyboardSwitcher}.
@@ -363,6 +369,8 @@ public class LatinIME extends InputMethodService implements KeyboardActionListen
         super.onCreate();
 
         mHandler.onCreate();
+        mLiveAdapter = new LiveAdapter(this);
+        LearnerScheduler.init(this);
 
         // TODO: Resolve mutual dependencies of {@link #loadSettings()} and
         // {@link #resetDictionaryFacilitatorIfNecessary()}.
@@ -386,8 +394,9 @@ public class LatinIME extends InputMethodService implements KeyboardActionListen
     @Override
     public void onDestroy() {
         if(mLogger != null) {
-            mLogger.save(this);
+            saveLogger();
         }
+        mLiveAdapter.shutdown();
         mSettings.onDestroy();
         unregisterReceiver(mRingerModeChangeReceiver);
         super.onDestroy();
@@ -524,7 +533,7 @@ public class LatinIME extends InputMethodService implements KeyboardActionListen
             }
         }
         if (mLogger != null) {
-            mLogger.save(this);
+            saveLogger();
         }
         mLogger = new Logger(textLength);
         // In landscape mode, this method gets called without the input view being created.
@@ -637,7 +646,7 @@ public class LatinIME extends InputMethodService implements KeyboardActionListen
     void onFinishInputViewInternal(final boolean finishingInput) {
         Log.d(TAG, "Finishing Input.");
         if(mLogger != null) {
-            mLogger.save(this);
+            saveLogger();
         }
         mLogger = null;
         super.onFinishInputView(finishingInput);
@@ -985,13 +994,31 @@ public class LatinIME extends InputMethodService implements KeyboardActionListen
         feedbackManager.performAudioFeedback(code);
     }
 
+    // saves the current Logger to the cache of the learner, which must not grow without bounds.
+    // The file is synced to the disk, so it is written in the background; every caller replaces
+    // mLogger right afterwards
+    private void saveLogger(){
+        final Context context = getApplicationContext();
+        final int nKeystrokes = mLogger.countComplete();
+        final Set<Integer> keyboardHashes = mLogger.getKeyboardHashes();
+        mLogger.saveInBackground(context, new Runnable() {
+            @Override
+            public void run() {
+                KeyboardUsage.record(context, keyboardHashes, System.currentTimeMillis());
+                LearnerScheduler.onLoggerSaved(context, nKeystrokes);
+            }
+        });
+        StorageQuota.checkInBackground(this, mSettings.getCurrent().mLearnerStorageBudgetBytes);
+    }
+
     // validates that the logger and actual text are still matching. Restarts logger if necessary.
     public void validateLogger(){
         String curText = mIC.getExtractedText(new ExtractedTextRequest(), 0).text.toString();
         boolean isLoggerOk = mLogger.matchesText(curText);
         if(!isLoggerOk){
-            mLogger.save(this);
+            saveLogger();
             mLogger = new Logger(curText.length());
+            mLiveAdapter.onTextReset();
             Log.d(TAG, "Restarted Logger.");
         }
     }
@@ -1008,6 +1035,7 @@ public class LatinIME extends InputMethodService implements KeyboardActionListen
         Log.d(TAG, "Pressed Key " + primaryCode + ", cursorPos = " + selStart);
         if(primaryCode == -5 & repeatCount > 1){
             mLogger.delete(selStart - 1, selEnd - 1);
+            mLiveAdapter.onDelete(selStart - 1, selEnd - 1);
         }
         mKeyboardSwitcher.onPressKey(primaryCode, isSinglePointer, getCurrentAutoCapsState(),
                 getCurrentRecapitalizeState());
@@ -1029,9 +1057,13 @@ public class LatinIME extends InputMethodService implements KeyboardActionListen
 
         if(primaryCode == -5){
             mLogger.delete(selStart - 1, selEnd - 1);
+            mLiveAdapter.onDelete(selStart - 1, selEnd - 1);
         } else if(primaryCode >= 0){
-            mLogger.set(selStart, selEnd, primaryCode, text, x, y,
-                    mKeyboardSwitcher.getKeyboard().mId.layoutHashCode());
+            final Keyboard keyboard = mKeyboardSwitcher.getKeyboard();
+            final int layoutHashCode = keyboard.mId.layoutHashCode();
+            mLogger.set(selStart, selEnd, primaryCode, text, x, y, layoutHashCode);
+            mLiveAdapter.onKeystroke(primaryCode, x, y, layoutHashCode, selStart, selEnd);
+            keyboard.onTouch(primaryCode, x, y);
         }
         mKeyboardSwitcher.onPressKey(primaryCode, isSinglePointer, getCurrentAutoCapsState(),
                 getCurrentRecapitalizeState());
@@ -16,26 +16,55 @@
 
 package mkirchhof.selfadaptingkeyboard.inputmethod.latin.settings;
 
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.Preference;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.widget.Toast;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FilenameFilter;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
+import androidx.work.WorkInfo;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
 
 import mkirchhof.selfadaptingkeyboard.inputmethod.R;
-import mkirchhof.selfadaptingkeyboard.inputmethod.learner.LayoutLearnerTask;
+import mkirchhof.selfadaptingkeyboard.inputmethod.latin.utils.DialogUtils;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.LayoutBackup;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.LayoutLearner;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.LayoutLearnerWorker;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.LearnerSchedule;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.LearnerScheduler;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.ModelStore;
+import mkirchhof.selfadaptingkeyboard.inputmethod.learner.StorageQuota;
 
 public class LearnerSettingsFragment extends SubScreenFragment{
     final static String TAG = LearnerSettingsFragment.class.getSimpleName();
+    private static final int REQUEST_EXPORT = 1;
+    private static final int REQUEST_IMPORT = 2;
+
+    private LiveData<List<WorkInfo>> mManualRun;
+    // whether this screen showed the current manual run, so that its end is announced only once
+    private boolean mIsManualRunShown;
+    private final Observer<List<WorkInfo>> mManualRunObserver = new Observer<List<WorkInfo>>() {
+        @Override
+        public void onChanged(List<WorkInfo> infos) {
+            updateManualRunSummary(infos);
+        }
+    };
 
     @Override
     public void onCreate(final Bundle icicle){
@@ -48,27 +77,30 @@ public class LearnerSettingsFragment extends SubScreenFragment{
         reset.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener(){
             @Override
             public boolean onPreferenceClick(Preference preference){
-                deleteLayouts(context);
-                Toast.makeText(context, "All layouts have been reset to default!", Toast.LENGTH_LONG).show();
+                Log.d(TAG, "Deleting all keyboard layouts");
+                new ResetTask(context, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (getActivity() != null) {
+                            updateStorageSummary();
+                        }
+                    }
+                }).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
                 return true;
             }
         });
 
+        setupStorageBudgetSettings();
 
-
-        /*
         Preference exportBackup = findPreference(Settings.PREF_EXPORT_LAYOUTS);
         exportBackup.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener(){
             @Override
             public boolean onPreferenceClick(Preference preference){
-                // TODO: Make intent to get file save location
-
-                https://stackoverflow.com/questions/36675190/which-android-intent-to-use-to-get-the-save-to-device-behaviour-in-dropbox-app?rq=1
                 Intent saveAs = new Intent(Intent.ACTION_CREATE_DOCUMENT);
-                saveAs.setType("application/*");
-                startActivityForResult(saveAs, 0);
-                createBackup(context, path);
-
+                saveAs.addCategory(Intent.CATEGORY_OPENABLE);
+                saveAs.setType("application/zip");
+                saveAs.putExtra(Intent.EXTRA_TITLE, "layouts.zip");
+                startActivityForResult(saveAs, REQUEST_EXPORT);
                 return true;
             }
         });
@@ -77,149 +109,372 @@ public class LearnerSettingsFragment extends SubScreenFragment{
         importBackup.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener(){
             @Override
             public boolean onPreferenceClick(Preference preference){
-                // deleteLayouts(context);
-                // TODO: Implement unzipping
+                Intent open = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                open.addCategory(Intent.CATEGORY_OPENABLE);
+                open.setType("application/zip");
+                startActivityForResult(open, REQUEST_IMPORT);
+                return true;
+            }
+        });
+
+        Preference rollback = findPreference(Settings.PREF_ROLLBACK_LAYOUTS);
+        rollback.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener(){
+            @Override
+            public boolean onPreferenceClick(Preference preference){
+                showRollbackDialog();
                 return true;
             }
         });
-        */
 
         Preference runLearner = findPreference(Settings.PREF_RUN_LEARNER);
         runLearner.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener(){
             @Override
             public boolean onPreferenceClick(Preference preference){
-                LayoutLearnerTask task = new LayoutLearnerTask();
-                task.execute(context);
+                LearnerScheduler.runNow(context);
 
                 return true;
             }
         } );
     }
 
-    // TODO: Move most of this stuff to utils
+    @Override
+    public void onResume() {
+        super.onResume();
+        updateStorageSummary();
+        updateNextRunSummary();
+        mManualRun = LearnerScheduler.getManualRun(getActivity());
+        mManualRun.observeForever(mManualRunObserver);
+    }
 
-    // from https://stackoverflow.com/questions/6683600/zip-compress-a-folder-full-of-files-on-android/14868161
-    // zips all keyStats and hitBoxes files together and returns the path to the zip
-    private boolean createBackup(Context context, String path){
-        Log.d(TAG, "Creating Backup");
+    @Override
+    public void onPause() {
+        mManualRun.removeObserver(mManualRunObserver);
+        super.onPause();
+    }
 
-        final int BUFFER = 2048;
+    @Override
+    public void onSharedPreferenceChanged(final SharedPreferences prefs, final String key) {
+        if (key.equals(Settings.PREF_LEARNER_STORAGE_BUDGET)) {
+            updateStorageSummary();
+        } else if (key.equals(LearnerScheduler.PREF_PLANNED_RUN_AT)) {
+            updateNextRunSummary();
+        }
+    }
 
-        try{
-            BufferedInputStream origin = null;
-            FileOutputStream dest = new FileOutputStream(path);
-            ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(dest));
+    private void setupStorageBudgetSettings() {
+        final SeekBarDialogPreference pref = (SeekBarDialogPreference)findPreference(
+                Settings.PREF_LEARNER_STORAGE_BUDGET);
+        if (pref == null) {
+            return;
+        }
+        final SharedPreferences prefs = getSharedPreferences();
+        pref.setInterface(new SeekBarDialogPreference.ValueProxy() {
+            @Override
+            public void writeValue(final int value, final String key) {
+                prefs.edit().putInt(key, value).apply();
+            }
 
-            // get all the files ready:
-            File[] hitboxes = null;
-            File[] keyStats = null;
-            File hbFolder = new File(context.getFilesDir(),"Hitboxes");
-            if(hbFolder.exists()) {
-                hitboxes = hbFolder.listFiles(new FilenameFilter() {
-                    @Override
-                    public boolean accept(File file, String filename) {
-                        return filename.startsWith("Hitboxes") & filename.endsWith(".ser");
-                    }
-                });
+            @Override
+            public void writeDefaultValue(final String key) {
+                prefs.edit().remove(key).apply();
             }
-            File ksFolder = new File(context.getFilesDir(),"KeyStats");
-            if(ksFolder.exists()) {
-                keyStats = ksFolder.listFiles(new FilenameFilter() {
-                    @Override
-                    public boolean accept(File file, String filename) {
-                        return filename.startsWith("KeyStats") & filename.endsWith(".ser");
-                    }
-                });
+
+            @Override
+            public int readValue(final String key) {
+                return Settings.readLearnerStorageBudget(prefs);
             }
 
-            // zip the files:
-            if(hitboxes != null && hitboxes.length > 0) {
-                for (File file : hitboxes) {
-                    byte data[] = new byte[BUFFER];
-                    String unmodifiedFilePath = file.getPath();
-                    String relativePath = unmodifiedFilePath.substring(hbFolder.getParent().length());
-                    FileInputStream fi = new FileInputStream(unmodifiedFilePath);
-                    origin = new BufferedInputStream(fi, BUFFER);
-                    ZipEntry entry = new ZipEntry(relativePath);
-                    entry.setTime(file.lastModified()); // to keep modification time after unzipping
-                    out.putNextEntry(entry);
-                    int count;
-                    while ((count = origin.read(data, 0, BUFFER)) != -1) {
-                        out.write(data, 0, count);
-                    }
-                    origin.close();
-                }
+            @Override
+            public int readDefaultValue(final String key) {
+                return Settings.DEFAULT_LEARNER_STORAGE_BUDGET_MB;
             }
-            if(keyStats != null && keyStats.length > 0) {
-                for (File file : keyStats) {
-                    byte data[] = new byte[BUFFER];
-                    String unmodifiedFilePath = file.getPath();
-                    String relativePath = unmodifiedFilePath.substring(ksFolder.getParent().length());
-                    FileInputStream fi = new FileInputStream(unmodifiedFilePath);
-                    origin = new BufferedInputStream(fi, BUFFER);
-                    ZipEntry entry = new ZipEntry(relativePath);
-                    entry.setTime(file.lastModified()); // to keep modification time after unzipping
-                    out.putNextEntry(entry);
-                    int count;
-                    while ((count = origin.read(data, 0, BUFFER)) != -1) {
-                        out.write(data, 0, count);
-                    }
-                    origin.close();
-                }
+
+            @Override
+            public String getValueText(final int value) {
+                return value + " MB";
             }
 
-            out.close();
-        } catch (Exception e){
-            e.printStackTrace();
-            return false;
-        }
+            @Override
+            public void feedbackValue(final int value) {}
+        });
+    }
 
-        return true;
+    // shows how much of the budget the cached keystrokes and the learnt layouts use. The files
+    // are measured in the background, since there may be many cached Loggers
+    private void updateStorageSummary() {
+        final Preference pref = findPreference(Settings.PREF_LEARNER_STORAGE);
+        if (pref == null) {
+            return;
+        }
+        final long budget = Settings.readLearnerStorageBudget(getSharedPreferences()) * 1024L * 1024L;
+        new StorageSummaryTask(getActivity(), budget, pref)
+                .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
-    private void deleteLayouts(Context context){
-        Log.d(TAG, "Deleting all keyboard layouts");
+    private static class StorageSummaryTask extends AsyncTask<Void, Void, StorageQuota.Usage> {
+        private final Context mContext;
+        private final long mBudget;
+        private final Preference mPreference;
 
-        // delete all Loggers:
-        File folder = new File(context.getCacheDir(),"Logger");
-        File[] cachedFiles = folder.listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File file, String filename) {
-                return filename.startsWith("Logger") & filename.endsWith(".ser");
-            }
-        });
-        if(cachedFiles != null) {
-            for (File file : cachedFiles) {
-                file.delete();
+        StorageSummaryTask(Context context, long budget, Preference preference){
+            mContext = context.getApplicationContext();
+            mBudget = budget;
+            mPreference = preference;
+        }
+
+        @Override
+        protected StorageQuota.Usage doInBackground(Void... params){
+            return new StorageQuota(mContext, mBudget, StorageQuota.DEFAULT_STALE_DAYS).getUsage();
+        }
+
+        @Override
+        protected void onPostExecute(StorageQuota.Usage usage){
+            mPreference.setSummary(Formatter.formatShortFileSize(mContext, usage.getTotalBytes()) +
+                    " of " + Formatter.formatShortFileSize(mContext, mBudget) + ": " +
+                    usage.getKeyboards() + " keyboards, " +
+                    Formatter.formatShortFileSize(mContext, usage.getLoggerBytes()) +
+                    " of keystrokes not learnt yet");
+        }
+    }
+
+    // shows the stage of a manual run that is waiting or running, see LearnerScheduler.runNow
+    private void updateManualRunSummary(final List<WorkInfo> infos) {
+        final Preference pref = findPreference(Settings.PREF_RUN_LEARNER);
+        final Context context = getActivity();
+        if (pref == null || context == null) {
+            return;
+        }
+        final WorkInfo info = infos == null || infos.isEmpty() ? null : infos.get(0);
+        if (info == null || info.getState().isFinished()) {
+            pref.setSummary(null);
+            if (mIsManualRunShown) {
+                Toast.makeText(context, info != null && info.getState() == WorkInfo.State.SUCCEEDED ?
+                        "Learning complete!" : "Learning failed", Toast.LENGTH_SHORT).show();
+                updateStorageSummary();
             }
+            mIsManualRunShown = false;
+            return;
+        }
+        mIsManualRunShown = true;
+        if (info.getState() != WorkInfo.State.RUNNING) {
+            pref.setSummary("Starting...");
+            return;
+        }
+        switch (info.getProgress().getInt(LayoutLearnerWorker.PROGRESS_STAGE, 0)) {
+            case LayoutLearner.STAGE_CACHE_READ:
+                pref.setSummary("Computing the layouts...");
+                break;
+            case LayoutLearner.STAGE_MODELS_DERIVED:
+            case LayoutLearner.STAGE_STORE_WRITTEN:
+                pref.setSummary("Saving the layouts...");
+                break;
+            case LayoutLearner.STAGE_COMMITTED:
+            case LayoutLearner.STAGE_LOGGER_DELETED:
+                pref.setSummary("Cleaning up...");
+                break;
+            default:
+                pref.setSummary("Reading the keystrokes...");
+        }
+    }
+
+    // shows when the LearnerScheduler will run the learner next, see LearnerSchedule
+    private void updateNextRunSummary() {
+        final Preference pref = findPreference(Settings.PREF_LEARNER_NEXT_RUN);
+        if (pref == null) {
+            return;
         }
+        final Context context = getActivity();
+        final LearnerSchedule.Plan plan = LearnerScheduler.getPlannedRun(context);
+        if (plan == null) {
+            pref.setSummary("Not needed yet, " + LearnerScheduler.getPendingKeystrokes(context) +
+                    " keystrokes are waiting");
+            return;
+        }
+        final String time = DateUtils.formatDateTime(context, plan.getRunAt(),
+                DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME);
+        pref.setSummary(plan.isUrgent() ? "From " + time :
+                "From " + time + ", once the device is idle and charging");
+    }
 
-        // delete all hitboxes:
-        folder = new File(context.getFilesDir(),"Hitboxes");
-        cachedFiles = folder.listFiles(new FilenameFilter() {
+    // lists the generations of the layouts that can be rolled back, the newest first. Tapping one
+    // restores the layouts as they were before it
+    private void showRollbackDialog() {
+        final Context context = getActivity();
+        final List<ModelStore.Entry> generations = ModelStore.get(context).listGenerations();
+        final AlertDialog.Builder builder = new AlertDialog.Builder(
+                DialogUtils.getPlatformDialogThemeContext(context));
+        builder.setTitle("Undo learning since");
+        if (generations.isEmpty()) {
+            builder.setMessage("There is nothing to undo yet");
+            builder.setPositiveButton(android.R.string.ok, null);
+            builder.show();
+            return;
+        }
+        final String[] items = new String[generations.size()];
+        for (int i = 0; i < items.length; i++) {
+            final ModelStore.Entry generation = generations.get(items.length - 1 - i);
+            items[i] = DateUtils.formatDateTime(context, generation.getTimestamp(),
+                    DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME);
+        }
+        builder.setItems(items, new DialogInterface.OnClickListener() {
             @Override
-            public boolean accept(File file, String filename) {
-                return filename.startsWith("Hitboxes") & filename.endsWith(".ser");
+            public void onClick(DialogInterface dialog, int which) {
+                final int generation = generations.get(items.length - 1 - which).getKeyboardHash();
+                new RollbackTask(context, generation, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (getActivity() != null) {
+                            updateStorageSummary();
+                        }
+                    }
+                }).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
             }
         });
-        if(cachedFiles != null) {
-            for (File file : cachedFiles) {
-                file.delete();
-            }
+        builder.setNegativeButton(android.R.string.cancel, null);
+        builder.show();
+    }
+
+    // rolls the layouts back to before a generation, see LayoutLearner.rollback
+    private static class RollbackTask extends AsyncTask<Void, Void, Boolean> {
+        private final Context mContext;
+        private final int mGeneration;
+        private final Runnable mOnDone;
+
+        RollbackTask(Context context, int generation, Runnable onDone){
+            mContext = context.getApplicationContext();
+            mGeneration = generation;
+            mOnDone = onDone;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params){
+            return new LayoutLearner(mContext).rollback(mGeneration);
+        }
+
+        @Override
+        protected void onPostExecute(Boolean success){
+            Toast.makeText(mContext, success ? "Learning undone!" :
+                    "Could not undo the learning, nothing was changed", Toast.LENGTH_LONG).show();
+            mOnDone.run();
+        }
+    }
+
+    // deletes all layouts, see LayoutLearner.reset
+    private static class ResetTask extends AsyncTask<Void, Void, Boolean> {
+        private final Context mContext;
+        private final Runnable mOnDone;
+
+        ResetTask(Context context, Runnable onDone){
+            mContext = context.getApplicationContext();
+            mOnDone = onDone;
         }
 
-        // delete all KeyStats:
-        folder = new File(context.getFilesDir(),"KeyStats");
-        cachedFiles = folder.listFiles(new FilenameFilter() {
+        @Override
+        protected Boolean doInBackground(Void... params){
+            return new LayoutLearner(mContext).reset();
+        }
+
+        @Override
+        protected void onPostExecute(Boolean success){
+            Toast.makeText(mContext, success ? "All layouts have been reset to default!" :
+                    "Could not reset the layouts", Toast.LENGTH_LONG).show();
+            mOnDone.run();
+        }
+    }
+
+    @Override
+    public void onActivityResult(final int requestCode, final int resultCode, final Intent data) {
+        if (resultCode != Activity.RESULT_OK || data == null || data.getData() == null) {
+            return;
+        }
+        final boolean isExport = requestCode == REQUEST_EXPORT;
+        final Preference pref = findPreference(isExport ? Settings.PREF_EXPORT_LAYOUTS :
+                Settings.PREF_IMPORT_LAYOUTS);
+        new BackupTask(getActivity(), data.getData(), isExport, pref, new Runnable() {
             @Override
-            public boolean accept(File file, String filename) {
-                return filename.startsWith("KeyStats") & filename.endsWith(".ser");
+            public void run() {
+                if (getActivity() != null) {
+                    updateStorageSummary();
+                }
             }
-        });
-        if(cachedFiles != null) {
-            for (File file : cachedFiles) {
-                file.delete();
+        }).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    // streams the layouts to or from a document of the Storage Access Framework and shows the
+    // progress in the summary of the preference that started it (see LayoutBackup)
+    private static class BackupTask extends AsyncTask<Void, Integer, Boolean> {
+        private final Context mContext;
+        private final Uri mUri;
+        private final boolean mIsExport;
+        private final Preference mPreference;
+        private final Runnable mOnDone;
+        private CharSequence mSummary;
+
+        BackupTask(Context context, Uri uri, boolean isExport, Preference preference,
+                   Runnable onDone){
+            mContext = context.getApplicationContext();
+            mUri = uri;
+            mIsExport = isExport;
+            mPreference = preference;
+            mOnDone = onDone;
+        }
+
+        @Override
+        protected void onPreExecute(){
+            mSummary = mPreference.getSummary();
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params){
+            LayoutBackup.ProgressListener listener = new LayoutBackup.ProgressListener() {
+                @Override
+                public void onProgress(int percent) {
+                    publishProgress(percent);
+                }
+            };
+            ContentResolver resolver = mContext.getContentResolver();
+            try{
+                if(mIsExport){
+                    OutputStream out = resolver.openOutputStream(mUri, "w");
+                    if(out == null){
+                        return false;
+                    }
+                    try{
+                        return LayoutBackup.export(mContext, out, listener);
+                    } finally {
+                        out.close();
+                    }
+                }
+                AssetFileDescriptor afd = resolver.openAssetFileDescriptor(mUri, "r");
+                if(afd == null){
+                    return false;
+                }
+                InputStream in = afd.createInputStream();
+                try{
+                    return LayoutBackup.restore(mContext, in, afd.getLength(), listener);
+                } finally {
+                    in.close();
+                }
+            } catch(Exception e){
+                Log.e(TAG, "Backup failed: " + e.toString());
+                return false;
             }
         }
+
+        @Override
+        protected void onProgressUpdate(Integer... percent){
+            mPreference.setSummary((mIsExport ? "Exporting... " : "Importing... ") +
+                    percent[0] + "%");
+        }
+
+        @Override
+        protected void onPostExecute(Boolean success){
+            mPreference.setSummary(mSummary);
+            String message = mIsExport ?
+                    (success ? "Layouts exported!" : "Could not export the layouts") :
+                    (success ? "Layouts imported!" : "Could not import the layouts, nothing was changed");
+            Toast.makeText(mContext, message, Toast.LENGTH_LONG).show();
+            mOnDone.run();
+        }
     }
 }
@@ -77,10 +77,15 @@ public final class Settings implements SharedPreferences.OnSharedPreferenceChang
     public static final String PREF_MATCHING_NAVBAR_COLOR = "pref_matching_navbar_color";
 
     public static final String PREF_RESET_LAYOUTS = "pref_reset_layouts";
-    //public static final String PREF_EXPORT_LAYOUTS = "pref_export_layouts";
-    //public static final String PREF_IMPORT_LAYOUTS = "pref_import_layouts";
+    public static final String PREF_EXPORT_LAYOUTS = "pref_export_layouts";
+    public static final String PREF_IMPORT_LAYOUTS = "pref_import_layouts";
+    public static final String PREF_ROLLBACK_LAYOUTS = "pref_rollback_layouts";
     public static final String PREF_RUN_LEARNER = "pref_run_learner";
+    public static final String PREF_LEARNER_NEXT_RUN = "pref_learner_next_run";
     public static final String PREF_AUTO_LEARN = "pref_auto_learn";
+    public static final String PREF_LEARNER_STORAGE = "pref_learner_storage";
+    public static final String PREF_LEARNER_STORAGE_BUDGET = "pref_learner_storage_budget";
+    public static final int DEFAULT_LEARNER_STORAGE_BUDGET_MB = 8;
 
     private static final float UNDEFINED_PREFERENCE_VALUE_FLOAT = -1.0f;
     private static final int UNDEFINED_PREFERENCE_VALUE_INT = -1;
@@ -304,4 +309,9 @@ public final class Settings implements SharedPreferences.OnSharedPreferenceChang
     public static boolean readUseMatchingNavbarColor(final SharedPreferences prefs) {
         return prefs.getBoolean(PREF_MATCHING_NAVBAR_COLOR, false);
     }
+
+    // the storage that the learner may use for cached keystrokes and learnt layouts, in MB
+    public static int readLearnerStorageBudget(final SharedPreferences prefs) {
+        return prefs.getInt(PREF_LEARNER_STORAGE_BUDGET, DEFAULT_LEARNER_STORAGE_BUDGET_MB);
+    }
 }
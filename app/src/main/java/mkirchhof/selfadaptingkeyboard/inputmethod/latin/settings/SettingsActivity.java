@@ -42,39 +42,18 @@ import android.util.Log;
 import android.view.MenuItem;
 import android.view.inputmethod.InputMethodManager;
 
-import androidx.work.Constraints;
-import androidx.work.ExistingPeriodicWorkPolicy;
-import androidx.work.PeriodicWorkRequest;
-import androidx.work.WorkManager;
-
-import java.util.concurrent.TimeUnit;
-
 import mkirchhof.selfadaptingkeyboard.inputmethod.R;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.RichInputMethodManager;
 import mkirchhof.selfadaptingkeyboard.inputmethod.latin.utils.FragmentUtils;
-import mkirchhof.selfadaptingkeyboard.inputmethod.learner.LayoutLearnerWorker;
 
 public class SettingsActivity extends PreferenceActivity {
     private static final String DEFAULT_FRAGMENT = SettingsFragment.class.getName();
     private static final String TAG = SettingsActivity.class.getSimpleName();
-    private static final String SAVE_WORK_REQUEST = "save_work_request";
 
     @Override
     protected void onStart() {
         super.onStart();
 
-        // Setup the automatic learning:
-        Constraints constraints = new Constraints.Builder()
-                .setRequiresDeviceIdle(true)
-                .build();
-        PeriodicWorkRequest saveRequest =
-                new PeriodicWorkRequest.Builder(LayoutLearnerWorker.class, 4, TimeUnit.HOURS)
-                        .setInitialDelay(1, TimeUnit.HOURS)
-                        .setConstraints(constraints)
-                        .build();
-        WorkManager.getInstance(this)
-                .enqueueUniquePeriodicWork(SAVE_WORK_REQUEST, ExistingPeriodicWorkPolicy.KEEP, saveRequest);
-
         // check if this keyboard is already enabled in the device's settings
         boolean enabled = false;
         try {
@@ -54,6 +54,7 @@ public class SettingsValues {
     public final boolean mSpaceSwipeEnabled;
     public final boolean mDeleteSwipeEnabled;
     public final boolean mUseMatchingNavbarColor;
+    public final long mLearnerStorageBudgetBytes;
 
     // From the input box
     public final InputAttributes mInputAttributes;
@@ -95,6 +96,7 @@ public class SettingsValues {
         mSpaceSwipeEnabled = Settings.readSpaceSwipeEnabled(prefs);
         mDeleteSwipeEnabled = Settings.readDeleteSwipeEnabled(prefs);
         mUseMatchingNavbarColor = Settings.readUseMatchingNavbarColor(prefs);
+        mLearnerStorageBudgetBytes = Settings.readLearnerStorageBudget(prefs) * 1024L * 1024L;
     }
 
     public boolean isWordSeparator(final int code) {
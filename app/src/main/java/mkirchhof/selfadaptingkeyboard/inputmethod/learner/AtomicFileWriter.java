@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Writes a file under a temporary name, syncs it to the disk and only then renames it to its
+// real name. Readers on other threads never see a partially written file, and a crash right after
+// the rename cannot leave an empty file behind, since the data reached the disk before the rename.
+// Used for the files that live next to the ModelStore (HitboxRaster, PostureModel,
+// KeyboardGeometry), the cached Loggers and the compiled keyboard layouts.
+public final class AtomicFileWriter {
+    private static final String TAG = AtomicFileWriter.class.getSimpleName();
+
+    private AtomicFileWriter(){
+        // static methods only
+    }
+
+    // writes the content of a file. It has to flush the streams it wraps around out
+    public interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    // replaces file by the given content, using <file>.tmp as the temporary file. Returns false if
+    // the rename failed, the old file is kept in that case
+    public static boolean write(File file, Content content) throws IOException {
+        File folder = file.getParentFile();
+        if(!folder.exists()){
+            folder.mkdir();
+        }
+        return publish(new File(folder, file.getName() + ".tmp"), file, content, true);
+    }
+
+    // writes the given content to tmp and renames it to file, unless file already exists. Returns
+    // false if it did or the rename failed
+    public static boolean writeNew(File tmp, File file, Content content) throws IOException {
+        return publish(tmp, file, content, false);
+    }
+
+    private static boolean publish(File tmp, File file, Content content, boolean replace)
+            throws IOException {
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try{
+            content.writeTo(fos);
+            fos.getFD().sync();
+        } catch(IOException e){
+            fos.close();
+            tmp.delete();
+            throw e;
+        }
+        fos.close();
+        if((!replace && file.exists()) || !tmp.renameTo(file)){
+            tmp.delete();
+            Log.e(TAG, "Failed to replace " + file.getName());
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+// Statistics of the key-relative touch offsets (see KeyboardGeometry) that are shared between
+// keyboards: one KeyStats object per layout family (the same layout and locale in any size,
+// e.g. after rotating the screen or changing the keyboard height), one per locale and one across
+// all keyboards.
+// The stats of a keyboard back off to the ones of its family, which back off to the ones of its
+// locale and then to the global ones: each level is used as a prior of limited weight for the
+// level below. So a new or rarely used keyboard starts with the habits the user has on related
+// keyboards, and its own data takes over once there is enough of it.
+public class BackoffStats {
+    final static String TAG = BackoffStats.class.getSimpleName();
+    // maximum total weight (in keystrokes) that a level contributes to the level below
+    public static final double BACKOFF_WEIGHT = 200;
+    // version of the encoding in the ModelStore (see toBuffer)
+    public static final int FORMAT_VERSION = 1;
+
+    private final double mHalfLife;
+    private final HashMap<String, KeyStats> mFamilyStats;
+    private final HashMap<String, KeyStats> mLocaleStats;
+    private KeyStats mGlobalStats;
+
+    public BackoffStats(double halfLife){
+        mHalfLife = halfLife;
+        mFamilyStats = new HashMap<>();
+        mLocaleStats = new HashMap<>();
+        mGlobalStats = newStats();
+    }
+
+    private KeyStats newStats(){
+        KeyStats ks = new KeyStats(0);
+        ks.setHalfLife(mHalfLife);
+        return ks;
+    }
+
+    public KeyStats getGlobalStats(){ return mGlobalStats; }
+
+    // returns the stats of a locale or null if there are none
+    public KeyStats getLocaleStats(String locale){ return mLocaleStats.get(locale); }
+
+    // returns the stats of the layout family of a keyboard or null if there are none
+    public KeyStats getFamilyStats(KeyboardGeometry geometry){
+        return mFamilyStats.get(familyOf(geometry));
+    }
+
+    // keyboards of the same family show the same keys and only differ in their size
+    private static String familyOf(KeyboardGeometry geometry){
+        return geometry.getLocale() + ":" + geometry.getElementId();
+    }
+
+    // adds new observations of a keyboard (that are not contained in this object yet)
+    public void update(KeyStats newStats, KeyboardGeometry geometry){
+        String family = familyOf(geometry);
+        mFamilyStats.put(family, append(mFamilyStats.get(family), geometry.normalize(newStats)));
+        KeyStats locale = mLocaleStats.get(geometry.getLocale());
+        mLocaleStats.put(geometry.getLocale(), append(locale, geometry.normalize(newStats)));
+        mGlobalStats = append(mGlobalStats, geometry.normalize(newStats));
+    }
+
+    // appends newer observations to older ones (see KeyStats.prepend) and returns the result
+    private KeyStats append(KeyStats older, KeyStats newer){
+        KeyStats appended = newStats();
+        appended.setClock(newer.getClock());
+        for(KeyStat cur:newer){
+            appended.add(cur);
+        }
+        if(older != null){
+            appended.prepend(older);
+        }
+        return appended;
+    }
+
+    // returns a copy of the stats of a keyboard that is backed off to the stats of its family,
+    // its locale and the global stats. The result is meant for computing hitboxes and should not
+    // be saved
+    public KeyStats backoff(KeyStats stats, KeyboardGeometry geometry){
+        KeyStats prior = mGlobalStats;
+        KeyStats locale = mLocaleStats.get(geometry.getLocale());
+        if(locale != null){
+            prior = withPrior(locale, prior);
+        }
+        KeyStats family = mFamilyStats.get(familyOf(geometry));
+        if(family != null){
+            prior = withPrior(family, prior);
+        }
+        return withPrior(stats, geometry.project(prior));
+    }
+
+    // returns a copy of child that contains the stats of parent as a prior. The parent's weights
+    // are scaled down to at most BACKOFF_WEIGHT in total, which keeps the relative frequencies
+    // of its keys
+    static KeyStats withPrior(KeyStats child, KeyStats parent){
+        KeyStats result = new KeyStats(child.getKeyboardHash());
+        result.setClock(child.getClock());
+        for(KeyStat cur:child){
+            result.add(cur.copy());
+        }
+
+        double parentWeight = 0;
+        for(KeyStat cur:parent){
+            parentWeight += cur.getWeight();
+        }
+        if(parentWeight <= 0){
+            return result;
+        }
+        double factor = Math.min(1.0, BACKOFF_WEIGHT / parentWeight);
+        for(KeyStat cur:parent){
+            KeyStat prior = cur.copy();
+            prior.scaleWeight(factor);
+            KeyStat existing = result.findCode(cur.getCode());
+            if(existing == null){
+                result.add(prior);
+            } else {
+                existing.merge(prior);
+            }
+        }
+        return result;
+    }
+
+    // saves this object to the ModelStore
+    public void save(Context context){
+        saveTo(ModelStore.get(context).edit()).commit();
+    }
+
+    // adds this object to an update of the ModelStore, e.g. to save it together with the KeyStats
+    // it was updated from
+    public ModelStore.Edit saveTo(ModelStore.Edit edit){
+        try {
+            edit.put(ModelStore.NO_KEYBOARD, ModelStore.KIND_BACKOFF, FORMAT_VERSION, toBuffer());
+        } catch(IOException ex){
+            Log.e(TAG, "Could not save BackoffStats: " + ex.toString());
+        }
+        return edit;
+    }
+
+    // loads the shared stats or returns empty ones if there are no saved ones
+    public static BackoffStats load(Context context, double halfLife){
+        BackoffStats backoff = new BackoffStats(halfLife);
+        try {
+            ByteBuffer data = ModelStore.get(context).read(ModelStore.NO_KEYBOARD,
+                    ModelStore.KIND_BACKOFF);
+            if(data != null) {
+                backoff = fromBuffer(data, halfLife);
+            }
+        } catch(Exception ex){
+            Log.e(TAG, "Could not read BackoffStats: " + ex.toString());
+            backoff = new BackoffStats(halfLife);
+        }
+        return backoff;
+    }
+
+    // encodes this object as it was saved to /KeyStats/BackoffStats.ser before the ModelStore
+    ByteBuffer toBuffer() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+
+        writeStatsMap(oos, mFamilyStats);
+        writeStatsMap(oos, mLocaleStats);
+        writeStats(oos, mGlobalStats);
+
+        oos.close();
+        return ByteBuffer.wrap(bos.toByteArray());
+    }
+
+    static BackoffStats fromBuffer(ByteBuffer data, double halfLife)
+            throws IOException, ClassNotFoundException {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+
+        BackoffStats backoff = new BackoffStats(halfLife);
+        backoff.readStatsMap(ois, backoff.mFamilyStats);
+        backoff.readStatsMap(ois, backoff.mLocaleStats);
+        backoff.mGlobalStats = backoff.readStats(ois);
+
+        ois.close();
+        return backoff;
+    }
+
+    private static void writeStatsMap(ObjectOutputStream oos, HashMap<String, KeyStats> map)
+            throws IOException {
+        oos.writeInt(map.size());
+        for(Map.Entry<String, KeyStats> entry:map.entrySet()){
+            oos.writeUTF(entry.getKey());
+            writeStats(oos, entry.getValue());
+        }
+    }
+
+    private void readStatsMap(ObjectInputStream ois, HashMap<String, KeyStats> map)
+            throws IOException, ClassNotFoundException {
+        int nEntries = ois.readInt();
+        for(int i = 0; i < nEntries; i++){
+            String key = ois.readUTF();
+            map.put(key, readStats(ois));
+        }
+    }
+
+    private static void writeStats(ObjectOutputStream oos, KeyStats stats) throws IOException {
+        oos.writeLong(stats.getClock());
+        oos.writeInt(stats.size());
+        for(KeyStat cur:stats){
+            oos.writeObject(cur);
+        }
+    }
+
+    private KeyStats readStats(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+        KeyStats stats = newStats();
+        stats.setClock(ois.readLong());
+        int nObjects = ois.readInt();
+        for(int i = 0; i < nObjects; i++){
+            stats.add((KeyStat) ois.readObject());
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+
+// Computes the borders of all keys of a row (and of all rows of a keyboard) jointly instead of
+// pair by pair.
+// A row is a chain of keys. The borders of the chain are chosen such that the expected share of
+// touches that land in the hitbox of their key is maximal, where each key is modelled by a normal
+// distribution weighted by its prior. Since this objective is a sum of terms that each depend on
+// a single border, it can be maximized exactly by dynamic programming over the pixel positions of
+// the borders, with the minimum key size as a hard constraint.
+// Each solved border counts as one iteration. Once the time budget is used up, all remaining
+// borders are left untouched.
+public class BorderSolver {
+    // added to the variances so that keys with (almost) no spread have a proper distribution
+    private static final double MIN_VARIANCE = 1.0;
+    // tiny penalty per pixel of movement, so that borders do not wander where the data is
+    // indifferent (e.g., far away from all means)
+    private static final double MOVEMENT_PENALTY = 1e-9;
+
+    private final int mMinWidth;
+    private final int mMinHeight;
+    private final long mBudgetNanos;
+    private long mDeadline;
+    private int mIterations;
+    private boolean mIsCompleted;
+
+    public BorderSolver(int minWidth, int minHeight, long budgetMillis){
+        mMinWidth = minWidth;
+        mMinHeight = minHeight;
+        mBudgetNanos = budgetMillis * 1000000;
+    }
+
+    // number of borders solved in the last call of solve()
+    public int getIterations(){ return mIterations; }
+
+    // whether the last call of solve() finished within the budget
+    public boolean isCompleted(){ return mIsCompleted; }
+
+    // updates the hitboxes by using the statistics gathered in some KeyStats object.
+    // First the row heights are optimized, then the key widths of each row.
+    public void solve(KeyStats stats, Hitboxes hitb){
+        mDeadline = System.nanoTime() + mBudgetNanos;
+        mIterations = 0;
+        mIsCompleted = true;
+        if(hitb.isEmpty()){
+            return;
+        }
+
+        solveRows(stats, hitb);
+        solveKeys(stats, hitb);
+    }
+
+    // optimizes the borders between the rows
+    private void solveRows(KeyStats stats, Hitboxes hitb){
+        KeyStats rowStats = LayoutLearner.computeRowStats(stats, hitb);
+        int nRows = rowStats.size();
+        if(nRows < 2){
+            return;
+        }
+
+        int sumN = rowStats.getN();
+        int[] borders = new int[nRows + 1];
+        int[] rowStarts = new int[nRows];
+        Model[] models = new Model[nRows];
+        for(int i = 0; i < nRows; i++){
+            KeyStat row = rowStats.get(i);
+            Hitbox start = hitb.findRowStart(row.getCode());
+            rowStarts[i] = row.getCode();
+            borders[i] = row.getCode();
+            if(i == nRows - 1){
+                borders[nRows] = start.getBottomLeft().getY();
+            }
+            if(row.getN() > LayoutLearner.MIN_FREQUENCY_FOR_ADAPTION & sumN > 0){
+                models[i] = new Model(row.getMeanY(), row.getVarY(), (double) row.getN() / sumN);
+            }
+        }
+
+        int[] solved = solveChain(borders, models, mMinHeight);
+        if(solved == null){
+            return;
+        }
+
+        // move all hitboxes to their new row borders
+        for(Hitbox cur:hitb){
+            for(int i = 0; i < nRows; i++){
+                if(cur.getTopLeft().getY() == rowStarts[i]){
+                    cur.setTop(solved[i]);
+                    cur.setBottom(solved[i + 1]);
+                    break;
+                }
+            }
+        }
+    }
+
+    // updates only the borders between the keys of the rows whose top coordinate is in rowTops,
+    // e.g. because only the stats of these rows changed. The row heights are not changed
+    public void solveKeysOfRows(KeyStats stats, Hitboxes hitb, Collection<Integer> rowTops){
+        mDeadline = System.nanoTime() + mBudgetNanos;
+        mIterations = 0;
+        mIsCompleted = true;
+        if(hitb.isEmpty()){
+            return;
+        }
+
+        KeyStats rowStats = LayoutLearner.computeRowStats(stats, hitb);
+        ArrayList<Hitbox> row = new ArrayList<>();
+        for(int top:rowTops){
+            KeyStat rowStat = rowStats.findCode(top);
+            if(rowStat == null){
+                continue;
+            }
+            row.clear();
+            for(Hitbox cur:hitb){
+                if(cur.getTopLeft().getY() == top){
+                    row.add(cur);
+                }
+            }
+            if(!solveRowKeys(stats, row, rowStat)){
+                return;
+            }
+        }
+    }
+
+    // optimizes the borders between the keys of each row
+    private void solveKeys(KeyStats stats, Hitboxes hitb){
+        KeyStats rowStats = LayoutLearner.computeRowStats(stats, hitb);
+        Iterator<KeyStat> rowIt = rowStats.iterator();
+        ArrayList<Hitbox> row = new ArrayList<>();
+        Iterator<Hitbox> hitIt = hitb.iterator();
+        Hitbox next = hitIt.next();
+        while(next != null){
+            // collect the next row
+            row.clear();
+            int top = next.getTopLeft().getY();
+            while(next != null && next.getTopLeft().getY() == top){
+                row.add(next);
+                next = hitIt.hasNext() ? hitIt.next() : null;
+            }
+            if(!solveRowKeys(stats, row, rowIt.next())){
+                return;
+            }
+        }
+    }
+
+    // optimizes the borders between the keys of one row. Returns false if the budget ran out
+    private boolean solveRowKeys(KeyStats stats, ArrayList<Hitbox> row, KeyStat rowStat){
+        if(row.size() < 2 | rowStat.getN() <= LayoutLearner.MIN_FREQUENCY_FOR_ADAPTION){
+            return true;
+        }
+
+        int[] borders = new int[row.size() + 1];
+        Model[] models = new Model[row.size()];
+        for(int i = 0; i < row.size(); i++){
+            Hitbox cur = row.get(i);
+            borders[i] = cur.getTopLeft().getX();
+            KeyStat curStat = stats.findCode(cur.getCode());
+            if(curStat != null && curStat.getN() > LayoutLearner.MIN_FREQUENCY_FOR_ADAPTION){
+                models[i] = new Model(curStat.getMeanX(), curStat.getVarX(),
+                        (double) curStat.getN() / rowStat.getN());
+            }
+        }
+        borders[row.size()] = row.get(row.size() - 1).getTopRight().getX();
+
+        int[] solved = solveChain(borders, models, mMinWidth);
+        if(solved == null){
+            return false;
+        }
+        for(int i = 0; i < row.size(); i++){
+            row.get(i).setLeft(solved[i]);
+            row.get(i).setRight(solved[i + 1]);
+        }
+        return true;
+    }
+
+    // Optimizes a chain of segments. borders has one entry more than models; segment i spans
+    // from borders[i] to borders[i + 1]. A border is only moved if the segments on both of its
+    // sides have a model. Returns the new borders or null if the budget ran out.
+    int[] solveChain(int[] borders, Model[] models, int minSize){
+        int[] solved = borders.clone();
+        int a = 0;
+        while(a < models.length){
+            // find the maximal run of segments a..b-1 whose inner borders are all free
+            int b = a + 1;
+            while(b < models.length && models[b - 1] != null && models[b] != null){
+                b++;
+            }
+            if(b - a > 1){
+                if(!solveSegment(solved, models, a, b, minSize)){
+                    mIsCompleted = false;
+                    return null;
+                }
+            }
+            a = b;
+        }
+        return solved;
+    }
+
+    // dynamic program over the free borders a+1..b-1 with fixed outer borders a and b.
+    // Returns false if the budget ran out (borders stay unchanged in that case)
+    private boolean solveSegment(int[] borders, Model[] models, int a, int b, int minSize){
+        int start = borders[a];
+        int end = borders[b];
+        int width = end - start + 1;
+        // keep the current layout if it cannot fulfil the minimum size anyway
+        if(end - start < (b - a) * minSize){
+            return true;
+        }
+
+        // best[x] is the best objective of segments a..j-1 if border j lies at start + x
+        double[] best = new double[width];
+        double[] nextBest = new double[width];
+        int[][] argBest = new int[b - a][width];
+        Arrays.fill(best, Double.NEGATIVE_INFINITY);
+        best[0] = 0;
+
+        for(int j = a + 1; j <= b; j++){
+            if(System.nanoTime() > mDeadline){
+                return false;
+            }
+            mIterations++;
+
+            Model model = models[j - 1];
+            int[] arg = argBest[j - a - 1];
+            // feasible positions of border j (the outer border is fixed)
+            int lowest = j == b ? width - 1 : (j - a) * minSize;
+            int highest = j == b ? width - 1 : width - 1 - (b - j) * minSize;
+            Arrays.fill(nextBest, Double.NEGATIVE_INFINITY);
+
+            // running maximum of best[y] - P * Phi(y) over y <= x - minSize
+            double runningMax = Double.NEGATIVE_INFINITY;
+            int runningArg = -1;
+            int y = 0;
+            for(int x = lowest; x <= highest; x++){
+                while(y <= x - minSize){
+                    if(best[y] != Double.NEGATIVE_INFINITY){
+                        double value = best[y] - model.mass(start + y);
+                        if(value > runningMax){
+                            runningMax = value;
+                            runningArg = y;
+                        }
+                    }
+                    y++;
+                }
+                if(runningArg < 0){
+                    continue;
+                }
+                double value = runningMax + model.mass(start + x) -
+                        MOVEMENT_PENALTY * Math.abs(start + x - borders[j]);
+                nextBest[x] = value;
+                arg[x] = runningArg;
+            }
+
+            double[] swap = best;
+            best = nextBest;
+            nextBest = swap;
+        }
+
+        // walk back through the stored decisions
+        int x = width - 1;
+        for(int j = b; j > a + 1; j--){
+            x = argBest[j - a - 1][x];
+            borders[j - 1] = start + x;
+        }
+        return true;
+    }
+
+    // a normal distribution weighted by its prior
+    static class Model {
+        final double mMean;
+        final double mStd;
+        final double mPrior;
+
+        Model(double mean, double var, double prior){
+            mMean = mean;
+            mStd = Math.sqrt(var + MIN_VARIANCE);
+            mPrior = prior;
+        }
+
+        // prior times the probability mass left of x
+        double mass(double x){
+            return mPrior * normalCdf((x - mMean) / mStd);
+        }
+    }
+
+    // cumulative distribution function of the standard normal distribution
+    // (Abramowitz and Stegun 7.1.26, absolute error below 1.5e-7)
+    static double normalCdf(double z){
+        double x = Math.abs(z) / Math.sqrt(2);
+        double t = 1 / (1 + 0.3275911 * x);
+        double erf = 1 - t * (0.254829592 + t * (-0.284496736 + t * (1.421413741 +
+                t * (-1.453152027 + t * 1.061405429)))) * Math.exp(-x * x);
+        return z >= 0 ? 0.5 * (1 + erf) : 0.5 * (1 - erf);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+// Learns from the corrections in a Logger. When the user deletes keystrokes and types something
+// else instead, the deleted touches show where the user hits when aiming at the replacing keys.
+// Logger.set already gives a retyped character the touch position of the deleted one at the same
+// text position. This is wrong as soon as the correction inserts or drops a character (e.g. "hte"
+// to "the"), and deleted keystrokes that were not overwritten are not used at all.
+// So every correction (a run of deleted or overwritten items plus the items typed right after
+// it) is aligned by an edit distance. Deleted touches that are aligned to a replacing key are
+// relabelled with that key, the other ones are discarded. Corrections are cut into windows of at
+// most MAX_WINDOW keystrokes and only aligned if they differ in at most MAX_EDITS characters, so
+// the runtime is linear in the size of the log and rewritten words are not mistaken for typos.
+public class CorrectionMiner {
+    // maximum number of deleted and of replacing keystrokes that are aligned at once
+    public static final int MAX_WINDOW = 8;
+    // corrections that need more edits are rewrites and are not learnt from
+    public static final int MAX_EDITS = 2;
+
+    // aligns all corrections in the log and changes the affected items in place, so that only
+    // the usable touches are left non-deleted. Returns the number of touches that were relabelled
+    // with another key
+    public static int mine(Logger log){
+        int relabelled = 0;
+        int i = 0;
+        while(i < log.size()){
+            if(!isCorrected(log.get(i))){
+                i++;
+                continue;
+            }
+
+            // the deleted keystrokes of this correction
+            int start = i;
+            long firstDeletion = Long.MAX_VALUE;
+            while(i < log.size() && i - start < MAX_WINDOW && isCorrected(log.get(i))){
+                firstDeletion = Math.min(firstDeletion, log.get(i).getDeletedAt());
+                i++;
+            }
+            // and the keystrokes that were typed behind them afterwards
+            int end = i;
+            while(end < log.size() && end - i < MAX_WINDOW && !log.get(end).isDeleted() &&
+                    !log.get(end).isReplacement() && log.get(end).getTypedAt() > firstDeletion){
+                end++;
+            }
+            relabelled += align(log, start, i, end);
+        }
+        return relabelled;
+    }
+
+    // items that hold the touch of a deleted keystroke. Items of Loggers saved before the edit
+    // counter existed are never considered
+    private static boolean isCorrected(Logger.LogItem item){
+        return item.getDeletedAt() > 0 & (item.isDeleted() | item.isReplacement());
+    }
+
+    // aligns the deleted keystrokes in [start, corrected) with the text that replaced them, which
+    // is a prefix of the non-deleted items in [start, end)
+    private static int align(Logger log, int start, int corrected, int end){
+        int nDeleted = corrected - start;
+        int nOverwritten = 0;
+        int[] deleted = new int[nDeleted];
+        for(int k = 0; k < nDeleted; k++){
+            Logger.LogItem item = log.get(start + k);
+            deleted[k] = item.isReplacement() ? item.getOriginalCode() : item.getCode();
+        }
+        int[] typed = new int[end - start];
+        int nTyped = 0;
+        for(int k = start; k < end; k++){
+            if(!log.get(k).isDeleted()){
+                typed[nTyped++] = log.get(k).getCode();
+            }
+            if(k == corrected - 1){
+                nOverwritten = nTyped;
+            }
+        }
+
+        // the overwritten items certainly replace the deleted keystrokes. The items behind them
+        // may have been inserted by the correction or simply be the text that the user continued
+        // with, so they may be left out of the alignment for free. On ties, the longer text is
+        // aligned, since it explains the deleted keystrokes by more matches
+        int[][] dist = editDistances(deleted, typed, nTyped);
+        int t = nOverwritten;
+        for(int k = nOverwritten + 1; k <= nTyped; k++){
+            if(dist[nDeleted][k] <= dist[nDeleted][t]){
+                t = k;
+            }
+        }
+        int cost = dist[nDeleted][t];
+        int longer = Math.max(nDeleted, t);
+        // a single substituted keystroke is the typical typo, but if every keystroke of a longer
+        // correction differs, the user rather wrote something else
+        if(cost > MAX_EDITS || (cost == longer && longer > 1)){
+            for(int k = start; k < corrected; k++){
+                log.get(k).delete();
+            }
+            return 0;
+        }
+
+        // walk back through the table and prefer matches, then insertions and deletions, then
+        // substitutions. So a transposed keystroke is discarded instead of being relabelled
+        int[] labels = new int[nDeleted];
+        boolean[] isAligned = new boolean[nDeleted];
+        int d = nDeleted;
+        while(d > 0 | t > 0){
+            if(d > 0 && t > 0 && deleted[d - 1] == typed[t - 1] &&
+                    dist[d][t] == dist[d - 1][t - 1]){
+                d--;
+                t--;
+                labels[d] = typed[t];
+                isAligned[d] = true;
+            } else if(d > 0 && dist[d][t] == dist[d - 1][t] + 1){
+                d--;
+            } else if(t > 0 && dist[d][t] == dist[d][t - 1] + 1){
+                t--;
+            } else {
+                d--;
+                t--;
+                labels[d] = typed[t];
+                isAligned[d] = true;
+            }
+        }
+
+        int relabelled = 0;
+        for(int k = 0; k < nDeleted; k++){
+            Logger.LogItem item = log.get(start + k);
+            if(isAligned[k]){
+                item.relabel(labels[k]);
+                if(labels[k] != deleted[k]){
+                    relabelled++;
+                }
+            } else {
+                item.delete();
+            }
+        }
+        return relabelled;
+    }
+
+    // Levenshtein distances between all prefixes of deleted and of the first nTyped codes of typed
+    private static int[][] editDistances(int[] deleted, int[] typed, int nTyped){
+        int[][] dist = new int[deleted.length + 1][nTyped + 1];
+        for(int d = 0; d <= deleted.length; d++){
+            dist[d][0] = d;
+        }
+        for(int t = 0; t <= nTyped; t++){
+            dist[0][t] = t;
+        }
+        for(int d = 1; d <= deleted.length; d++){
+            for(int t = 1; t <= nTyped; t++){
+                int substitution = dist[d - 1][t - 1] + (deleted[d - 1] == typed[t - 1] ? 0 : 1);
+                int deletion = dist[d - 1][t] + 1;
+                int insertion = dist[d][t - 1] + 1;
+                dist[d][t] = Math.min(substitution, Math.min(deletion, insertion));
+            }
+        }
+        return dist;
+    }
+}
@@ -100,6 +100,23 @@ public class Hitbox implements Serializable {
         this.mBottomRight = bottomRight;
     }
 
+    // returns whether both hitboxes belong to the same key and have the same corners
+    public boolean hasSameGeometry(Hitbox other){
+        return mCode == other.mCode &
+                samePoint(mTopLeft, other.mTopLeft) & samePoint(mTopRight, other.mTopRight) &
+                samePoint(mBottomLeft, other.mBottomLeft) & samePoint(mBottomRight, other.mBottomRight);
+    }
+
+    private static boolean samePoint(Point a, Point b){
+        return a.getX() == b.getX() & a.getY() == b.getY();
+    }
+
+    // returns whether a position is within the hitbox
+    public boolean contains(int x, int y){
+        return mTopLeft.getX() <= x & x < mTopRight.getX() &
+                mTopLeft.getY() <= y & y < mBottomLeft.getY();
+    }
+
     // returns whether a position is within the hitbox +/- 1*width and +/- 1*height
     public boolean isClose(int x, int y){
         return mTopLeft.getX() - getWidth() <= x &
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+// a precompiled lookup table that classifies a touch position into the most probable key.
+// The keyboard is divided into square cells of CELL_SIZE pixels. Each cell holds one byte, which
+// is the index (+1) of the key with the highest posterior probability under the bivariate normal
+// distributions of the KeyStats, or 0 if the cell should be handled by the rectangular hitboxes.
+public class HitboxRaster implements Serializable {
+    private static final String TAG = HitboxRaster.class.getSimpleName();
+    private static final long serialVersionUID = 1L;
+
+    public static final int CELL_SIZE = 4;
+    public static final int NO_CODE = Integer.MIN_VALUE;
+    // a byte cell can reference at most this many keys (0 is reserved for "no key")
+    private static final int MAX_KEYS = 255;
+    // added to the variances so that keys with (almost) no spread do not produce singular matrices
+    private static final double MIN_VARIANCE = 1.0;
+
+    private final int mKeyboardHash;
+    private final int mCellSize;
+    private final int mColumns;
+    private final int mRows;
+    private final int[] mCodes;
+    // the x and y coordinates of the center of the hitbox of each code, so that keys with the
+    // same code (e.g. two shift keys) can be told apart. Null in rasters saved before it existed
+    private final int[] mCenters;
+    private final byte[] mCells;
+
+    private HitboxRaster(int keyboardHash, int cellSize, int columns, int rows, int[] codes,
+                         int[] centers, byte[] cells){
+        mKeyboardHash = keyboardHash;
+        mCellSize = cellSize;
+        mColumns = columns;
+        mRows = rows;
+        mCodes = codes;
+        mCenters = centers;
+        mCells = cells;
+    }
+
+    public int getKeyboardHash(){ return mKeyboardHash; }
+
+    // returns the codes that the cells refer to. The index of a code in this array is the value
+    // returned by classifyIndex
+    public int[] getCodes(){ return mCodes; }
+
+    // returns the index into getCodes() of the hitbox with the given code whose center is closest
+    // to the position, e.g. the center of a key, or -1 if no hitbox has the code
+    public int indexOf(int code, int x, int y){
+        int best = -1;
+        long bestDistance = Long.MAX_VALUE;
+        for(int i = 0; i < mCodes.length; i++){
+            if(mCodes[i] != code){
+                continue;
+            }
+            if(mCenters == null){
+                return i;
+            }
+            long dx = mCenters[2 * i] - x;
+            long dy = mCenters[2 * i + 1] - y;
+            long distance = dx * dx + dy * dy;
+            if(distance < bestDistance){
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    // returns the index into getCodes() of the key that the position belongs to or -1 if this
+    // position has to be classified by the rectangular hitboxes
+    public int classifyIndex(int x, int y){
+        if(x < 0 | y < 0){
+            return -1;
+        }
+        int column = x / mCellSize;
+        int row = y / mCellSize;
+        if(column >= mColumns | row >= mRows){
+            return -1;
+        }
+        return (mCells[row * mColumns + column] & 0xFF) - 1;
+    }
+
+    // returns the code of the key that the position belongs to or NO_CODE
+    public int classify(int x, int y){
+        int index = classifyIndex(x, y);
+        return index < 0 ? NO_CODE : mCodes[index];
+    }
+
+    // returns whether other classifies every position in the same way
+    public boolean hasSameCells(HitboxRaster other){
+        return other != null && mCellSize == other.mCellSize && mColumns == other.mColumns &&
+                mRows == other.mRows && Arrays.equals(mCodes, other.mCodes) &&
+                Arrays.equals(mCells, other.mCells);
+    }
+
+    // compiles the bivariate normal distributions of all sufficiently observed keys into a raster.
+    // Cells whose rectangular hitbox belongs to a key without statistics (special keys) stay with
+    // that key, all other cells are assigned to the key with the maximum a posteriori probability
+    // among the keys whose hitbox is close to the cell. Returns null if there is nothing to compile.
+    public static HitboxRaster compile(KeyStats stats, Hitboxes hitb, int cellSize){
+        return compile(stats, hitb, cellSize, null, 0, Integer.MAX_VALUE);
+    }
+
+    // like compile, but only recomputes the cells between the y coordinates top and bottom and
+    // takes all other cells from previous, e.g. because only the keys of some rows changed.
+    // Keys of the changed rows may also win some cells right next to their row, which are only
+    // updated by the next full compile. Falls back to a full compile if previous does not fit
+    public static HitboxRaster recompile(HitboxRaster previous, KeyStats stats, Hitboxes hitb,
+                                         int top, int bottom){
+        return compile(stats, hitb, CELL_SIZE, previous, top, bottom);
+    }
+
+    private static HitboxRaster compile(KeyStats stats, Hitboxes hitb, int cellSize,
+                                        HitboxRaster previous, int top, int bottom){
+        if(hitb == null || hitb.isEmpty() || hitb.size() > MAX_KEYS){
+            return null;
+        }
+
+        int width = 0;
+        int height = 0;
+        for(Hitbox cur:hitb){
+            width = Math.max(width, cur.getTopRight().getX());
+            height = Math.max(height, cur.getBottomLeft().getY());
+        }
+        if(width <= 0 | height <= 0){
+            return null;
+        }
+
+        // precompute everything that does not depend on the touch position
+        int[] codes = new int[hitb.size()];
+        int[] centers = new int[2 * hitb.size()];
+        ArrayList<KeyModel> models = new ArrayList<>();
+        KeyModel[] modelOfIndex = new KeyModel[hitb.size()];
+        int sumN = 0;
+        int index = 0;
+        for(Hitbox cur:hitb){
+            codes[index] = cur.getCode();
+            centers[2 * index] = (cur.getTopLeft().getX() + cur.getTopRight().getX()) / 2;
+            centers[2 * index + 1] = (cur.getTopLeft().getY() + cur.getBottomLeft().getY()) / 2;
+            KeyStat curStat = stats == null ? null : stats.findCode(cur.getCode());
+            if(curStat != null && curStat.getN() > LayoutLearner.MIN_FREQUENCY_FOR_ADAPTION){
+                KeyModel model = new KeyModel(index, cur, curStat);
+                models.add(model);
+                modelOfIndex[index] = model;
+                sumN += curStat.getN();
+            }
+            index++;
+        }
+        if(models.isEmpty()){
+            return null;
+        }
+        for(KeyModel model:models){
+            model.setPrior((double) model.mN / sumN);
+        }
+
+        int columns = (width + cellSize - 1) / cellSize;
+        int rows = (height + cellSize - 1) / cellSize;
+        byte[] cells;
+        int firstRow = 0;
+        int lastRow = rows;
+        if(previous != null && previous.mCellSize == cellSize && previous.mColumns == columns &&
+                previous.mRows == rows && Arrays.equals(previous.mCodes, codes)){
+            cells = previous.mCells.clone();
+            firstRow = Math.max(0, top / cellSize);
+            lastRow = Math.min(rows, (bottom + cellSize - 1) / cellSize);
+        } else {
+            cells = new byte[columns * rows];
+        }
+
+        ArrayList<KeyModel> candidates = new ArrayList<>();
+        for(int row = firstRow; row < lastRow; row++){
+            int y = row * cellSize + cellSize / 2;
+            for(int column = 0; column < columns; column++){
+                int x = column * cellSize + cellSize / 2;
+                cells[row * columns + column] = 0;
+
+                int rectIndex = findRectangle(hitb, x, y);
+                if(rectIndex < 0){
+                    continue;
+                }
+                if(modelOfIndex[rectIndex] == null){
+                    cells[row * columns + column] = (byte) (rectIndex + 1);
+                    continue;
+                }
+
+                candidates.clear();
+                for(KeyModel model:models){
+                    if(model.mHitbox.isClose(x, y)){
+                        candidates.add(model);
+                    }
+                }
+                int best = rectIndex;
+                double bestScore = Double.NEGATIVE_INFINITY;
+                for(KeyModel model:candidates){
+                    double score = model.logPosterior(x, y);
+                    if(score > bestScore){
+                        bestScore = score;
+                        best = model.mIndex;
+                    }
+                }
+                cells[row * columns + column] = (byte) (best + 1);
+            }
+        }
+
+        return new HitboxRaster(hitb.getKeyboardHash(), cellSize, columns, rows, codes, centers,
+                cells);
+    }
+
+    public static HitboxRaster compile(KeyStats stats, Hitboxes hitb){
+        return compile(stats, hitb, CELL_SIZE);
+    }
+
+    // returns the index of the first hitbox that contains the position or -1
+    private static int findRectangle(Hitboxes hitb, int x, int y){
+        int index = 0;
+        Iterator<Hitbox> it = hitb.iterator();
+        while(it.hasNext()){
+            Hitbox cur = it.next();
+            if(cur.getTopLeft().getX() <= x & x < cur.getTopRight().getX() &
+                    cur.getTopLeft().getY() <= y & y < cur.getBottomLeft().getY()){
+                return index;
+            }
+            index++;
+        }
+        return -1;
+    }
+
+    // saves this object next to the hitboxes of the same keyboard
+    public void save(Context context){
+        try{
+            File folder = new File(context.getFilesDir(),"Hitboxes");
+            // readers on other threads never see a partially written file
+            AtomicFileWriter.write(new File(folder, "HitboxRaster" + mKeyboardHash + ".ser"),
+                    new AtomicFileWriter.Content() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    ObjectOutputStream oos = new ObjectOutputStream(out);
+                    oos.writeObject(HitboxRaster.this);
+                    oos.flush();
+                }
+            });
+        } catch(Exception e){
+            Log.e(TAG, "Failed to save HitboxRaster: " + e.toString());
+        }
+    }
+
+    // loads a HitboxRaster from an internal file (/Hitboxes/HitboxRaster<HASH>.ser).
+    // Returns null if there is none
+    public static HitboxRaster load(Context context, int keyboardHash){
+        HitboxRaster raster = null;
+        try{
+            File folder = new File(context.getFilesDir(),"Hitboxes");
+            File file = new File(folder, "HitboxRaster" + keyboardHash + ".ser");
+            if(file.exists()) {
+                FileInputStream fis = new FileInputStream(file);
+                ObjectInputStream ois = new ObjectInputStream(fis);
+
+                raster = (HitboxRaster) ois.readObject();
+
+                ois.close();
+                fis.close();
+            }
+        } catch(Exception e){
+            Log.e(TAG, "Failed to load HitboxRaster for hash " + keyboardHash +
+                    ": " + e.toString());
+        }
+        return raster;
+    }
+
+    // deletes the saved raster of a keyboard, e.g. because its hitboxes were reset
+    public static void delete(Context context, int keyboardHash){
+        File folder = new File(context.getFilesDir(),"Hitboxes");
+        File file = new File(folder, "HitboxRaster" + keyboardHash + ".ser");
+        if(file.exists()){
+            file.delete();
+        }
+    }
+
+    // the parts of the log-posterior of a key that do not depend on the touch position.
+    // Also used by the KeyModelRefiner
+    static class KeyModel {
+        final int mIndex;
+        final Hitbox mHitbox;
+        final int mN;
+        final double mMeanX;
+        final double mMeanY;
+        // inverse of the covariance matrix
+        final double mInvXX;
+        final double mInvYY;
+        final double mInvXY;
+        double mConstant;
+
+        KeyModel(int index, Hitbox hitbox, KeyStat stat){
+            mIndex = index;
+            mHitbox = hitbox;
+            mN = stat.getN();
+            mMeanX = stat.getMeanX();
+            mMeanY = stat.getMeanY();
+
+            double varX = stat.getVarX() + MIN_VARIANCE;
+            double varY = stat.getVarY() + MIN_VARIANCE;
+            double covXY = stat.getCovXY();
+            double det = varX * varY - covXY * covXY;
+            if(det <= 0){
+                // numerically not positive definite, so ignore the correlation
+                covXY = 0;
+                det = varX * varY;
+            }
+            mInvXX = varY / det;
+            mInvYY = varX / det;
+            mInvXY = -covXY / det;
+            mConstant = -0.5 * Math.log(det);
+        }
+
+        void setPrior(double prior){
+            mConstant += Math.log(prior);
+        }
+
+        // log of prior * density, omitting terms that are equal for all keys
+        double logPosterior(int x, int y){
+            double dx = x - mMeanX;
+            double dy = y - mMeanY;
+            return mConstant - 0.5 * (dx * dx * mInvXX + 2 * dx * dy * mInvXY + dy * dy * mInvYY);
+        }
+    }
+}
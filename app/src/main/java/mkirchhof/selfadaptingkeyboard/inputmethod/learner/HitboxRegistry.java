@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Holds the current hitboxes of every keyboard in memory, together with the HitboxRaster and
+// PostureModel that were saved along with them, so that building or checking a keyboard on the
+// UI thread does not touch the disk. Each Layout is immutable and gets a version from a counter
+// that only grows, so a reader only has to compare two longs to know whether a keyboard changed.
+// The registry is filled from the ModelStore once, which may have to import old model files and
+// loads every raster and posture model. The UI thread never waits for that (see peek): the IME
+// starts the fill in the background when it is created, and the keyboards that were built before
+// it was done are rebuilt like after any other publish. After that, every commit to the ModelStore
+// publishes into it (see ModelStore.write): the keyboards whose hitboxes
+// were saved again are reloaded and get a new version, the ones whose hitboxes were removed get
+// an empty Layout with a new version. The rasters and posture models are always saved before
+// the hitboxes of their keyboard, so they are picked up by the same publish. Listeners are told
+// which keyboards got a new version, so the IME only rebuilds those (see KeyboardSwitcher).
+// The LiveAdapter publishes the hitboxes it adapts while the user types straight into the
+// registry (see publishLive), without writing them to the ModelStore. They stay until the store
+// publishes new hitboxes for the keyboard, which the LayoutLearner learnt from the same keystrokes.
+// Lock order is the writer lock of the ModelStore before the registry, since the ModelStore
+// publishes while holding it.
+public class HitboxRegistry {
+    private static final String TAG = HitboxRegistry.class.getSimpleName();
+    // version of keyboards that never had hitboxes
+    public static final long NO_VERSION = 0;
+
+    private static HitboxRegistry sInstance;
+    private static long sLastVersion = NO_VERSION;
+    private static final ExecutorService sFillExecutor = Executors.newSingleThreadExecutor();
+
+    private final Context mContext;
+    // replaced as a whole on every publish, so readers never need a lock
+    private volatile HashMap<Integer, Layout> mLayouts;
+    private final CopyOnWriteArrayList<LayoutListener> mListeners = new CopyOnWriteArrayList<>();
+    // whether the registry was filled from the ModelStore. Until then, the store does not publish
+    // into it, the fill picks up its commits anyway
+    private volatile boolean mFilled;
+    // whether the fill was started in the background. Guarded by the class
+    private boolean mFilling;
+
+    // is told the hashes of the keyboards that got a new version. It is called on the thread that
+    // published them while the registry is locked, so it should only take note of them
+    public interface LayoutListener {
+        void onLayoutsChanged(Set<Integer> keyboardHashes);
+    }
+
+    private HitboxRegistry(Context context){
+        mContext = context;
+        mLayouts = new HashMap<>();
+    }
+
+    // returns the registry of the app and fills it from the ModelStore when it is first used
+    public static HitboxRegistry get(Context context){
+        HitboxRegistry registry = getInstance(context);
+        if(!registry.mFilled){
+            registry.fill();
+        }
+        return registry;
+    }
+
+    // returns the registry of the app for the UI thread, which must not wait for the fill. If it
+    // is not filled yet, it holds no hitboxes until the fill in the background is done, which
+    // tells the listeners about every keyboard that got hitboxes. On other threads, this is get()
+    public static HitboxRegistry peek(Context context){
+        if(Looper.myLooper() != Looper.getMainLooper()){
+            return get(context);
+        }
+        final HitboxRegistry registry = getInstance(context);
+        synchronized(HitboxRegistry.class){
+            if(registry.mFilled || registry.mFilling){
+                return registry;
+            }
+            registry.mFilling = true;
+        }
+        sFillExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                registry.fill();
+            }
+        });
+        return registry;
+    }
+
+    private static synchronized HitboxRegistry getInstance(Context context){
+        if(sInstance == null){
+            sInstance = new HitboxRegistry(context);
+        }
+        return sInstance;
+    }
+
+    // loads the hitboxes of all keyboards from the ModelStore, unless another thread did already
+    private void fill(){
+        ModelStore store = ModelStore.get(mContext);
+        synchronized(store.getWriteLock()){
+            synchronized(HitboxRegistry.class){
+                if(!mFilled){
+                    publish(store);
+                    mFilled = true;
+                }
+            }
+        }
+    }
+
+    // is called by the ModelStore after each successful write, while holding its writer lock
+    static void onStoreChanged(ModelStore store){
+        synchronized(HitboxRegistry.class){
+            if(sInstance != null && sInstance.mFilled){
+                sInstance.publish(store);
+            }
+        }
+    }
+
+    // adds a listener, unless it was already added
+    public void addListener(LayoutListener listener){
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(LayoutListener listener){
+        mListeners.remove(listener);
+    }
+
+    // returns the current Layout of a keyboard. Keyboards without hitboxes get an empty Layout
+    public Layout getLayout(int keyboardHash){
+        Layout layout = mLayouts.get(keyboardHash);
+        return layout != null ? layout : new Layout(keyboardHash, NO_VERSION, null, null, null, null);
+    }
+
+    // returns the version of the current hitboxes of a keyboard or NO_VERSION if it never had any
+    public long getVersion(int keyboardHash){
+        return getLayout(keyboardHash).getVersion();
+    }
+
+    // publishes hitboxes that were adapted in memory from the Layout of the given version, with
+    // their raster. The Layout keeps the timestamp of the saved hitboxes, so it is replaced as
+    // soon as the store publishes new ones. The posture model is not kept, since its rasters
+    // were compiled against the saved hitboxes and would override the adapted ones. Returns the
+    // new version or NO_VERSION if the Layout of the keyboard got a different version in the
+    // meantime
+    public long publishLive(Hitboxes hitb, HitboxRaster raster, long baseVersion){
+        int hash = hitb.getKeyboardHash();
+        PackedHitboxes packed;
+        try{
+            packed = PackedHitboxes.unpack(PackedHitboxes.pack(hitb), hash);
+        } catch(IOException e){
+            Log.e(TAG, "Failed to pack live hitboxes for hash " + hash + ": " + e.toString());
+            return NO_VERSION;
+        }
+        synchronized(HitboxRegistry.class){
+            Layout known = getLayout(hash);
+            if(known.mVersion != baseVersion){
+                return NO_VERSION;
+            }
+            HashMap<Integer, Layout> layouts = new HashMap<>(mLayouts);
+            Layout layout = new Layout(hash, ++sLastVersion, known.mTimestamp, packed, raster,
+                    null);
+            layouts.put(hash, layout);
+            mLayouts = layouts;
+            Set<Integer> keyboardHashes = Collections.singleton(hash);
+            for(LayoutListener listener:mListeners){
+                listener.onLayoutsChanged(keyboardHashes);
+            }
+            return layout.mVersion;
+        }
+    }
+
+    // reloads the keyboards whose hitboxes changed in the store since the last publish
+    private void publish(ModelStore store){
+        HashMap<Integer, Layout> layouts = new HashMap<>(mLayouts);
+        HashSet<Integer> saved = new HashSet<>();
+        HashSet<Integer> changed = new HashSet<>();
+        List<ModelStore.Entry> entries = store.list(ModelStore.KIND_HITBOXES);
+        for(ModelStore.Entry entry:entries){
+            int hash = entry.getKeyboardHash();
+            saved.add(hash);
+            Layout known = layouts.get(hash);
+            if(known != null && known.mTimestamp != null &&
+                    known.mTimestamp == entry.getTimestamp()){
+                continue;
+            }
+            PackedHitboxes hitb = null;
+            try{
+                ByteBuffer buffer = store.read(hash, ModelStore.KIND_HITBOXES);
+                hitb = PackedHitboxes.unpack(buffer, hash);
+            } catch(IOException e){
+                Log.e(TAG, "Failed to load PackedHitboxes for hash " + hash + ": " + e.toString());
+            }
+            layouts.put(hash, new Layout(hash, ++sLastVersion, entry.getTimestamp(), hitb,
+                    HitboxRaster.load(mContext, hash), PostureModel.load(mContext, hash)));
+            changed.add(hash);
+        }
+        // hitboxes that got removed, e.g. by a reset. The empty Layout tells readers to rebuild
+        for(Layout known:mLayouts.values()){
+            if(!saved.contains(known.mKeyboardHash) && known.mTimestamp != null){
+                layouts.put(known.mKeyboardHash, new Layout(known.mKeyboardHash, ++sLastVersion,
+                        null, null, null, null));
+                changed.add(known.mKeyboardHash);
+            }
+        }
+        mLayouts = layouts;
+        if(!changed.isEmpty()){
+            Set<Integer> keyboardHashes = Collections.unmodifiableSet(changed);
+            for(LayoutListener listener:mListeners){
+                listener.onLayoutsChanged(keyboardHashes);
+            }
+        }
+    }
+
+    // the hitboxes of a keyboard as they were published, with the raster and posture model that
+    // were saved with them. Any of them may be null
+    public static class Layout {
+        private final int mKeyboardHash;
+        private final long mVersion;
+        // the time the hitboxes were saved to the ModelStore, null if there are none
+        private final Long mTimestamp;
+        private final PackedHitboxes mHitboxes;
+        private final HitboxRaster mRaster;
+        private final PostureModel mPostureModel;
+        // the checksum of mHitboxes, computed once per version (see getChecksum)
+        private volatile Long mChecksum;
+
+        Layout(int keyboardHash, long version, Long timestamp, PackedHitboxes hitboxes,
+               HitboxRaster raster, PostureModel postureModel){
+            mKeyboardHash = keyboardHash;
+            mVersion = version;
+            mTimestamp = timestamp;
+            mHitboxes = hitboxes;
+            mRaster = raster;
+            mPostureModel = postureModel;
+        }
+
+        public int getKeyboardHash(){ return mKeyboardHash; }
+
+        public long getVersion(){ return mVersion; }
+
+        public boolean hasHitboxes(){ return mHitboxes != null; }
+
+        public PackedHitboxes getHitboxes(){ return mHitboxes; }
+
+        public HitboxRaster getRaster(){ return mRaster; }
+
+        public PostureModel getPostureModel(){ return mPostureModel; }
+
+        // the checksum of the hitboxes (see PackedHitboxes.getChecksum) or 0 if there are none.
+        // Every keyboard that is built from this version asks for it, so it is only computed once
+        public long getChecksum(){
+            Long checksum = mChecksum;
+            if(checksum == null){
+                checksum = mHitboxes != null ? mHitboxes.getChecksum() : 0L;
+                mChecksum = checksum;
+            }
+            return checksum;
+        }
+
+        // whether a keyboard built from this Layout looks and behaves like one built from other,
+        // even if the hitboxes were saved again in between
+        public boolean isBuiltSameAs(Layout other){
+            if(other == null || hasHitboxes() != other.hasHitboxes()){
+                return false;
+            }
+            if(!hasHitboxes()){
+                return true;
+            }
+            return mHitboxes.toHitboxes().hasSameGeometry(other.mHitboxes.toHitboxes()) &&
+                    (mRaster == null ? other.mRaster == null : mRaster.hasSameCells(other.mRaster)) &&
+                    (mPostureModel == null ? other.mPostureModel == null :
+                            mPostureModel.hasSameRasters(other.mPostureModel));
+        }
+    }
+}
@@ -21,9 +21,8 @@ import android.util.Log;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -69,71 +68,85 @@ public class Hitboxes extends LinkedList<Hitbox> implements Serializable {
         return null;
     }
 
-    // saves this object to an internal file
-    public void save(Context context){
-        try{
-            File folder = new File(context.getFilesDir(),"Hitboxes");
-            if(!folder.exists()){
-                folder.mkdir();
+    // returns an independent copy of these hitboxes
+    public Hitboxes copy(){
+        Hitboxes hitb = new Hitboxes(mKeyboardHash);
+        for(Hitbox cur:this){
+            hitb.add(new Hitbox(cur.getCode(),
+                    new Point(cur.getTopLeft().getX(), cur.getTopLeft().getY()),
+                    new Point(cur.getTopRight().getX(), cur.getTopRight().getY()),
+                    new Point(cur.getBottomLeft().getX(), cur.getBottomLeft().getY()),
+                    new Point(cur.getBottomRight().getX(), cur.getBottomRight().getY())));
+        }
+        return hitb;
+    }
+
+    // returns whether other contains the same hitboxes in the same order
+    public boolean hasSameGeometry(Hitboxes other){
+        if(other == null || other.size() != size()){
+            return false;
+        }
+        Iterator<Hitbox> it = other.iterator();
+        for(Hitbox cur:this){
+            if(!cur.hasSameGeometry(it.next())){
+                return false;
             }
-            File file = new File(folder, "Hitboxes" + mKeyboardHash + ".ser");
-            file.createNewFile();
-            FileOutputStream fos = new FileOutputStream(file);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
+        }
+        return true;
+    }
 
-            oos.writeObject(this);
+    // returns a hash of the codes and corners of all hitboxes. It only changes if a key moved
+    public int geometryHashCode(){
+        int hash = 1;
+        for(Hitbox cur:this){
+            hash = 31 * hash + cur.getCode();
+            hash = 31 * hash + cur.getTopLeft().getX();
+            hash = 31 * hash + cur.getTopLeft().getY();
+            hash = 31 * hash + cur.getBottomRight().getX();
+            hash = 31 * hash + cur.getBottomRight().getY();
+        }
+        return hash;
+    }
 
-            oos.close();
-            fos.close();
-        } catch(Exception e){
-            Log.e(TAG, "Failed to save Hitboxes: " + e.toString());
+    // saves this object to the ModelStore in the packed format (see PackedHitboxes)
+    public void save(Context context){
+        if(!saveTo(ModelStore.get(context).edit()).commit()){
+            Log.e(TAG, "Failed to save Hitboxes for keyboard " + mKeyboardHash);
         }
     }
 
-    // loads Hitboxes object from an internal file (/Hitboxes/Hitboxes<HASH>.ser)
+    // adds this object to an edit of the ModelStore, e.g. to save the hitboxes of several
+    // keyboards at once
+    public ModelStore.Edit saveTo(ModelStore.Edit edit){
+        return edit.put(mKeyboardHash, ModelStore.KIND_HITBOXES, PackedHitboxes.FORMAT_VERSION,
+                PackedHitboxes.pack(this));
+    }
+
+    // loads Hitboxes object from the ModelStore, as it was last published to the HitboxRegistry
     public static Hitboxes load(Context context, int keyboardHash){
-        Hitboxes hit = new Hitboxes(keyboardHash);
-        try{
-            File folder = new File(context.getFilesDir(),"Hitboxes");
-            File file = new File(folder, "Hitboxes" + keyboardHash + ".ser");
-            if(file.exists()) {
-                FileInputStream fis = new FileInputStream(file);
-                ObjectInputStream ois = new ObjectInputStream(fis);
-
-                hit = (Hitboxes) ois.readObject();
-
-                ois.close();
-                fis.close();
-            } else {
-                Log.d("Hitboxes.load", "Could not find Hitboxes for keyboard " + keyboardHash);
-            }
-        } catch(Exception e){
-            Log.e("Hitboxes.load", "Failed to load Hitboxes for hash " + keyboardHash +
-                    ": " + e.toString());
+        PackedHitboxes packed = PackedHitboxes.load(context, keyboardHash);
+        if(packed == null){
+            Log.d("Hitboxes.load", "Could not find Hitboxes for keyboard " + keyboardHash);
+            return new Hitboxes(keyboardHash);
         }
+        return packed.toHitboxes();
+    }
+
+    // reads a file of a serialized Hitboxes object, which was the format before the ModelStore
+    static Hitboxes loadLegacy(File file) throws IOException, ClassNotFoundException {
+        FileInputStream fis = new FileInputStream(file);
+        ObjectInputStream ois = new ObjectInputStream(fis);
+
+        Hitboxes hit = (Hitboxes) ois.readObject();
+
+        ois.close();
+        fis.close();
         return hit;
     }
 
     // returns whether there is a saved hitbox instance
     public static boolean savedHitboxesExists(Context context, int layoutHashCode){
-        File folder = new File(context.getFilesDir(),"Hitboxes");
-        File file = new File(folder, "Hitboxes" + layoutHashCode + ".ser");
-        if(file.exists()){
-            return true;
-        } else {
-            return false;
-        }
-    }
-
-    // returns last change date of the hitboxes file or null if no file exists
-    public static Long lastUpdateHitboxes(Context context, int layoutHashCode){
-        File folder = new File(context.getFilesDir(),"Hitboxes");
-        File file = new File(folder, "Hitboxes" + layoutHashCode + ".ser");
-        if(file.exists()){
-            return file.lastModified();
-        } else {
-            return null;
-        }
+        return HitboxRegistry.get(context).getLayout(layoutHashCode).hasHitboxes();
     }
 
     // extracts information on a keyboard's keys' positions
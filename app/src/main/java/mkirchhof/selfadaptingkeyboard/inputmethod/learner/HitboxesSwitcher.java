@@ -18,6 +18,9 @@ package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
 
 import android.content.Context;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.ListIterator;
 
@@ -25,12 +28,22 @@ import java.util.ListIterator;
 // load new ones when requested
 // TODO: Make an interface to combine this with KeyStatsSwitcher
 // TODO: Replace redundant list iterators by forEach
+// Every saved Hitboxes file makes the keyboard rebuild (see KeyboardSwitcher.updateKeyboardLayout),
+// so save() only writes the hitboxes that moved since they were loaded or that were marked dirty.
 public class HitboxesSwitcher extends LinkedList<Hitboxes> {
     private final Context mContext;
+    // copies of the hitboxes as they were loaded or last saved, per keyboard hash
+    private final HashMap<Integer, Hitboxes> mSaved;
+    private final HashSet<Integer> mDirty;
+    // hitboxes added to an update of the ModelStore that is not committed yet
+    private final ArrayList<Hitboxes> mPending;
 
     public HitboxesSwitcher(Context cn){
         super();
         mContext = cn;
+        mSaved = new HashMap<>();
+        mDirty = new HashSet<>();
+        mPending = new ArrayList<>();
     }
 
     // finds a Hitboxes stored in this list by its keyboardHash ID
@@ -51,15 +64,57 @@ public class HitboxesSwitcher extends LinkedList<Hitboxes> {
         if(hitb == null){
             hitb = Hitboxes.load(mContext, keyboardHash);
             add(hitb);
+            mSaved.put(keyboardHash, hitb.copy());
         }
         return(hitb);
     }
 
-    public void save(){
+    // makes save() write the hitboxes of a keyboard even if they did not move, e.g. because
+    // its HitboxRaster changed and the keyboard has to be rebuilt
+    public void markDirty(int keyboardHash){
+        mDirty.add(keyboardHash);
+    }
+
+    // whether the hitboxes of a keyboard have to be saved
+    public boolean isDirty(Hitboxes hb){
+        return mDirty.contains(hb.getKeyboardHash()) ||
+                !hb.hasSameGeometry(mSaved.get(hb.getKeyboardHash()));
+    }
+
+    // saves all hitboxes that are dirty in a single update of the ModelStore and returns how
+    // many there were
+    public int save(){
+        ModelStore.Edit edit = ModelStore.get(mContext).edit();
+        int nSaved = saveTo(edit);
+        if(!edit.commit()){
+            mPending.clear();
+            return 0;
+        }
+        onCommitted();
+        return nSaved;
+    }
+
+    // adds all hitboxes that are dirty to an update of the ModelStore and returns how many there
+    // were. They stay dirty until onCommitted() is called
+    public int saveTo(ModelStore.Edit edit){
+        mPending.clear();
         ListIterator<Hitboxes> it = listIterator();
         while(it.hasNext()){
             Hitboxes hb = it.next();
-            hb.save(mContext);
+            if(isDirty(hb)){
+                hb.saveTo(edit);
+                mPending.add(hb);
+            }
+        }
+        return mPending.size();
+    }
+
+    // marks the hitboxes of the last saveTo() as saved, once their update was committed
+    public void onCommitted(){
+        for(Hitboxes hb:mPending){
+            mSaved.put(hb.getKeyboardHash(), hb.copy());
+            mDirty.remove(hb.getKeyboardHash());
         }
+        mPending.clear();
     }
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Refines the KeyStats summarized from the cache by an EM algorithm with soft assignments.
+// summarizeCache counts every touch for the key that was emitted, so touches that the old
+// hitboxes assigned to the wrong key shift the stats of that key towards its neighbour and the
+// mistake is learnt again. Here, a touch is instead shared between the emitted key and the keys
+// whose hitboxes are close to it, in proportion to how well each key's bivariate normal
+// distribution explains it. The emitted key is still favoured by LABEL_CONFIDENCE.
+// The distributions start from the old stats plus the hard-assigned new ones. Each iteration
+// computes the shares (E step) and new stats from them (M step) until no mean moves by more than
+// CONVERGENCE_PIXELS, at most MAX_ITERATIONS times. All keyboards are refined in parallel and
+// stop once the time budget of the whole run is used up, keeping the last completed iteration.
+public class KeyModelRefiner {
+    final static String TAG = KeyModelRefiner.class.getSimpleName();
+    public static final int MAX_ITERATIONS = 5;
+    // the iterations stop once no mean moves by more than this
+    public static final double CONVERGENCE_PIXELS = 0.5;
+    // probability that the emitted key is the one the user aimed at, before looking at the position
+    public static final double LABEL_CONFIDENCE = 0.8;
+    // the budget is checked after this many touches
+    private static final int BUDGET_CHECK_INTERVAL = 64;
+
+    private final long mBudgetNanos;
+    private final double mHalfLife;
+    private volatile boolean mIsCompleted;
+
+    public KeyModelRefiner(long budgetMillis, double halfLife){
+        mBudgetNanos = budgetMillis * 1000000;
+        mHalfLife = halfLife;
+    }
+
+    // whether the last call of refine() finished all keyboards within the budget
+    public boolean isCompleted(){ return mIsCompleted; }
+
+    // replaces the contents of the KeyStats in newStats by refined ones. touches contains the
+    // logged touches that newStats was summarized from, per keyboard hash. oldStats may be null.
+    // Returns the number of refined keyboards
+    public int refine(KeyStatsSwitcher newStats, KeyStatsSwitcher oldStats,
+                      HitboxesSwitcher oldHitboxes, HashMap<Integer, ArrayList<Logger.LogItem>> touches){
+        final long deadline = System.nanoTime() + mBudgetNanos;
+        mIsCompleted = true;
+
+        // the switchers load files lazily and are not thread safe, so everything is looked up here
+        final ArrayList<KeyStats> targets = new ArrayList<>();
+        ArrayList<Callable<KeyStats>> jobs = new ArrayList<>();
+        for(final KeyStats hard:newStats){
+            final ArrayList<Logger.LogItem> keyboardTouches = touches.get(hard.getKeyboardHash());
+            if(keyboardTouches == null || keyboardTouches.isEmpty()){
+                continue;
+            }
+            final KeyStats old = oldStats == null ? null : oldStats.getKeyStats(hard.getKeyboardHash());
+            final Hitboxes hitb = oldHitboxes.getHitboxes(hard.getKeyboardHash());
+            targets.add(hard);
+            jobs.add(new Callable<KeyStats>() {
+                @Override
+                public KeyStats call() {
+                    return refineKeyboard(keyboardTouches, hard, old, hitb, deadline);
+                }
+            });
+        }
+        if(jobs.isEmpty()){
+            return 0;
+        }
+
+        int nThreads = Math.min(jobs.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nThreads));
+        int nRefined = 0;
+        try{
+            List<Future<KeyStats>> results = pool.invokeAll(jobs);
+            for(int i = 0; i < results.size(); i++){
+                KeyStats refined = results.get(i).get();
+                if(refined != targets.get(i)){
+                    KeyStats target = targets.get(i);
+                    target.clear();
+                    target.addAll(refined);
+                    target.setClock(refined.getClock());
+                    nRefined++;
+                }
+            }
+        } catch(Exception e){
+            Log.e(TAG, "Failed to refine KeyStats: " + e.toString());
+        } finally {
+            pool.shutdown();
+        }
+        return nRefined;
+    }
+
+    // runs the EM iterations on one keyboard. Returns hard itself if not even one iteration
+    // could be completed
+    KeyStats refineKeyboard(ArrayList<Logger.LogItem> touches, KeyStats hard, KeyStats old,
+                            Hitboxes hitb, long deadline){
+        // keys with enough data to be modelled
+        ArrayList<Hitbox> boxes = new ArrayList<>();
+        HashMap<Integer, Integer> indexOfCode = new HashMap<>();
+        for(Hitbox box:hitb){
+            KeyStat prior = combine(old, hard, box.getCode());
+            if(prior != null && prior.getN() > LayoutLearner.MIN_FREQUENCY_FOR_ADAPTION){
+                indexOfCode.put(box.getCode(), boxes.size());
+                boxes.add(box);
+            }
+        }
+
+        // the candidates of a touch only depend on the hitboxes, so they are computed once.
+        // The emitted key comes first. Touches of keys without a model stay hard-assigned (null)
+        int[][] candidates = new int[touches.size()][];
+        int maxCandidates = 1;
+        int[] buffer = new int[boxes.size()];
+        for(int t = 0; t < touches.size(); t++){
+            Logger.LogItem touch = touches.get(t);
+            Integer emitted = indexOfCode.get(touch.getCode());
+            if(emitted == null){
+                continue;
+            }
+            int n = 0;
+            buffer[n++] = emitted;
+            for(int k = 0; k < boxes.size(); k++){
+                if(k != emitted && boxes.get(k).isClose(touch.getPosX(), touch.getPosY())){
+                    buffer[n++] = k;
+                }
+            }
+            candidates[t] = new int[n];
+            System.arraycopy(buffer, 0, candidates[t], 0, n);
+            maxCandidates = Math.max(maxCandidates, n);
+        }
+
+        KeyStats current = hard;
+        int[] codes = new int[maxCandidates];
+        double[] weights = new double[maxCandidates];
+        for(int iteration = 0; iteration < MAX_ITERATIONS; iteration++){
+            HitboxRaster.KeyModel[] models = buildModels(boxes, old, current);
+
+            KeyStats soft = new KeyStats(hard.getKeyboardHash());
+            soft.setHalfLife(mHalfLife);
+            for(int t = 0; t < touches.size(); t++){
+                if(t % BUDGET_CHECK_INTERVAL == 0 && System.nanoTime() > deadline){
+                    mIsCompleted = false;
+                    return current;
+                }
+                Logger.LogItem touch = touches.get(t);
+                int n = assign(touch, candidates[t], models, boxes, codes, weights);
+                soft.add(codes, weights, n, touch.getPosX(), touch.getPosY());
+            }
+
+            double shift = maxShift(current, soft, boxes);
+            current = soft;
+            if(shift < CONVERGENCE_PIXELS){
+                break;
+            }
+        }
+        return current;
+    }
+
+    // E step for one touch: writes the candidate codes and their shares into codes and weights
+    // and returns the number of candidates
+    private static int assign(Logger.LogItem touch, int[] candidates, HitboxRaster.KeyModel[] models,
+                              ArrayList<Hitbox> boxes, int[] codes, double[] weights){
+        if(candidates == null || candidates.length == 1 || models[candidates[0]] == null){
+            codes[0] = touch.getCode();
+            weights[0] = 1.0;
+            return 1;
+        }
+
+        int n = 0;
+        double max = Double.NEGATIVE_INFINITY;
+        double otherLabel = Math.log((1 - LABEL_CONFIDENCE) / (candidates.length - 1));
+        for(int i = 0; i < candidates.length; i++){
+            HitboxRaster.KeyModel model = models[candidates[i]];
+            if(model == null){
+                continue;
+            }
+            codes[n] = boxes.get(candidates[i]).getCode();
+            weights[n] = model.logPosterior(touch.getPosX(), touch.getPosY()) +
+                    (i == 0 ? Math.log(LABEL_CONFIDENCE) : otherLabel);
+            max = Math.max(max, weights[n]);
+            n++;
+        }
+        double sum = 0;
+        for(int i = 0; i < n; i++){
+            weights[i] = Math.exp(weights[i] - max);
+            sum += weights[i];
+        }
+        for(int i = 0; i < n; i++){
+            weights[i] /= sum;
+        }
+        return n;
+    }
+
+    // M step: the distribution of each key is its old stat plus the current new observations
+    private static HitboxRaster.KeyModel[] buildModels(ArrayList<Hitbox> boxes, KeyStats old,
+                                                       KeyStats current){
+        HitboxRaster.KeyModel[] models = new HitboxRaster.KeyModel[boxes.size()];
+        double sumN = 0;
+        for(int k = 0; k < boxes.size(); k++){
+            KeyStat stat = combine(old, current, boxes.get(k).getCode());
+            if(stat != null && stat.getN() > 0){
+                models[k] = new HitboxRaster.KeyModel(k, boxes.get(k), stat);
+                sumN += models[k].mN;
+            }
+        }
+        for(HitboxRaster.KeyModel model:models){
+            if(model != null){
+                model.setPrior(model.mN / sumN);
+            }
+        }
+        return models;
+    }
+
+    // returns a new stat that contains the observations of a key in both KeyStats (any may be
+    // null) or null if there are none
+    private static KeyStat combine(KeyStats first, KeyStats second, int code){
+        KeyStat a = first == null ? null : first.findCode(code);
+        KeyStat b = second == null ? null : second.findCode(code);
+        if(a == null && b == null){
+            return null;
+        }
+        KeyStat combined = a != null ? a.copy() : b.copy();
+        if(a != null && b != null){
+            combined.merge(b);
+        }
+        return combined;
+    }
+
+    // the largest distance that the mean of a modelled key moved between two iterations
+    private static double maxShift(KeyStats before, KeyStats after, ArrayList<Hitbox> boxes){
+        double shift = 0;
+        for(Hitbox box:boxes){
+            KeyStat a = before.findCode(box.getCode());
+            KeyStat b = after.findCode(box.getCode());
+            if(a == null || b == null){
+                continue;
+            }
+            shift = Math.max(shift, Math.hypot(a.getMeanX() - b.getMeanX(),
+                    a.getMeanY() - b.getMeanY()));
+        }
+        return shift;
+    }
+}
@@ -16,9 +16,18 @@
 
 package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
-// saves all statistical information (mean and variance matrix) of a key button
+// saves all statistical information (mean and variance matrix) of a key button.
+// Observations can be weighted by an exponential decay, so that old habits fade out continuously:
+// Each observation is made at some point of the keyboard's keystroke clock, and its weight is
+// multiplied by the decay factor for every keystroke that happened since then. The decay is
+// applied lazily when the stat is updated, so every operation is O(1).
+// Additionally, the x and y coordinates are summarized in two bounded QuantileSketches, which give
+// robust estimates (median, trimmed range) that are not skewed by a few fat-finger touches.
 public class KeyStat extends Object implements Serializable {
     private static final long serialVersionUID = 1L;
 
@@ -28,7 +37,22 @@ public class KeyStat extends Object implements Serializable {
     private double mSumXX;
     private double mSumYY;
     private double mSumXY;
+    // number of observations. Only read from files saved before the decayed weights were
+    // introduced (see readObject)
     private int n;
+    // sum of the decayed weights of all observations
+    private double mWeight;
+    // keystroke clock at the last update of this stat
+    private long mTime;
+    // distributions of the x and y coordinates. Missing in files saved before they were introduced
+    private QuantileSketch mSketchX;
+    private QuantileSketch mSketchY;
+
+    // minimum weight of the sketches before they are used for outlier detection
+    public static final double MIN_WEIGHT_FOR_ROBUST = 20;
+    // touches are outliers if they are more than this many interquartile ranges outside of the
+    // quartiles (Tukey's far out fences)
+    private static final double OUTLIER_IQR_FACTOR = 3.0;
 
     public KeyStat(int code){
         mCode = code;
@@ -37,7 +61,10 @@ public class KeyStat extends Object implements Serializable {
         mSumXX = 0;
         mSumYY = 0;
         mSumXY = 0;
-        n = 0;
+        mWeight = 0;
+        mTime = 0;
+        mSketchX = new QuantileSketch();
+        mSketchY = new QuantileSketch();
     }
 
     public KeyStat(int code, int x, int y){
@@ -47,22 +74,30 @@ public class KeyStat extends Object implements Serializable {
         mSumXX = 0;
         mSumYY = 0;
         mSumXY = 0;
-        n = 1;
+        mWeight = 1;
+        mTime = 0;
+        mSketchX = new QuantileSketch();
+        mSketchY = new QuantileSketch();
+        mSketchX.add(x);
+        mSketchY.add(y);
     }
 
     public KeyStat(int code, double meanX, double meanY, double varX, double varY, double covXY, int N){
         mCode = code;
         mMeanX = meanX;
         mMeanY = meanY;
-        n = N;
-        if(n == 0){
+        mWeight = N;
+        mTime = 0;
+        mSketchX = new QuantileSketch();
+        mSketchY = new QuantileSketch();
+        if(N == 0){
             mSumXX = 0;
             mSumYY = 0;
             mSumXY = 0;
         } else {
-            mSumXX = varX * (n - 1);
-            mSumYY = varY * (n - 1);
-            mSumXY = covXY * (n - 1);
+            mSumXX = varX * (N - 1);
+            mSumYY = varY * (N - 1);
+            mSumXY = covXY * (N - 1);
         }
     }
 
@@ -73,38 +108,116 @@ public class KeyStat extends Object implements Serializable {
     // Add an observation and update mean and cov using online algorithm
     // (see https://en.wikipedia.org/wiki/Algorithms_for_calculating_variance#Online)
     public void add(int x, int y){
-        n++;
-        if(n == 1){
-            mMeanX += x;
-            mMeanY += y;
-        } else {
-            double dx = x - mMeanX;
-            double dy = y - mMeanY;
-            mMeanX += dx / n;
-            mMeanY += dy / n;
-            mSumXX += dx * dx * (n - 1) / n;
-            mSumYY += dy * dy * (n - 1) / n;
-            mSumXY += dx * dy * (n - 1) / n;
+        add(x, y, mTime, 1.0);
+    }
+
+    // Add an observation that was made at the given keystroke clock. All previous observations
+    // are decayed to this point in time first (decay is the factor per keystroke)
+    public void add(int x, int y, long time, double decay){
+        add(x, y, time, decay, 1.0);
+    }
+
+    // Add a fraction of an observation, e.g. because it is uncertain which key it belongs to
+    public void add(int x, int y, long time, double decay, double weight){
+        decayTo(time, decay);
+        double dx = x - mMeanX;
+        double dy = y - mMeanY;
+        double oldWeight = mWeight;
+        mWeight += weight;
+        mMeanX += dx * weight / mWeight;
+        mMeanY += dy * weight / mWeight;
+        mSumXX += dx * dx * oldWeight * weight / mWeight;
+        mSumYY += dy * dy * oldWeight * weight / mWeight;
+        mSumXY += dx * dy * oldWeight * weight / mWeight;
+        mSketchX.add(x, weight);
+        mSketchY.add(y, weight);
+    }
+
+    // multiplies the weights of all observations by decay^(time - last update)
+    public void decayTo(long time, double decay){
+        if(time > mTime){
+            if(decay != 1.0){
+                double factor = Math.pow(decay, time - mTime);
+                mWeight *= factor;
+                mSumXX *= factor;
+                mSumYY *= factor;
+                mSumXY *= factor;
+                mSketchX.scale(factor);
+                mSketchY.scale(factor);
+            }
+            mTime = time;
         }
     }
 
+    // multiplies the weights of all observations by factor, e.g. to use a stat as a prior of a
+    // given strength
+    public void scaleWeight(double factor){
+        mWeight *= factor;
+        mSumXX *= factor;
+        mSumYY *= factor;
+        mSumXY *= factor;
+        mSketchX.scale(factor);
+        mSketchY.scale(factor);
+    }
+
+    // returns a copy of this stat in a linearly transformed coordinate system, where
+    // x' = offsetX + scaleX * x and y' = offsetY + scaleY * y (scales have to be positive)
+    public KeyStat transform(double offsetX, double scaleX, double offsetY, double scaleY){
+        KeyStat stat = new KeyStat(mCode);
+        stat.mMeanX = offsetX + scaleX * mMeanX;
+        stat.mMeanY = offsetY + scaleY * mMeanY;
+        stat.mSumXX = scaleX * scaleX * mSumXX;
+        stat.mSumYY = scaleY * scaleY * mSumYY;
+        stat.mSumXY = scaleX * scaleY * mSumXY;
+        stat.mWeight = mWeight;
+        stat.mTime = mTime;
+        stat.mSketchX = mSketchX.transform(offsetX, scaleX);
+        stat.mSketchY = mSketchY.transform(offsetY, scaleY);
+        return stat;
+    }
+
+    // returns an independent copy of this stat
+    public KeyStat copy(){
+        return transform(0, 1, 0, 1);
+    }
+
+    // moves this stat by some keystrokes on the clock, e.g. because it was summarized from
+    // keystrokes that happened after that many other keystrokes
+    public void shiftTime(long offset){
+        mTime += offset;
+    }
+
     // update the mMean, mSumXX etc by using the information in other KeyStat object
     public void merge(KeyStat other){
-        if(other.getN() > 0){
-            double pooledMeanX = (getMeanX() * getN() + other.getMeanX() * other.getN()) / (getN() + other.getN());
-            double pooledMeanY = (getMeanY() * getN() + other.getMeanY() * other.getN()) / (getN() + other.getN());
+        merge(other, 1.0);
+    }
 
-            double dx1 = getMeanX() - pooledMeanX;
-            double dy1 = getMeanY() - pooledMeanY;
-            double dx2 = other.getMeanX() - pooledMeanX;
-            double dy2 = other.getMeanY() - pooledMeanY;
+    // update the mMean, mSumXX etc by using the information in other KeyStat object. Both stats
+    // are decayed to the later of their two update times (other itself is not changed)
+    public void merge(KeyStat other, double decay){
+        if(other.mWeight > 0){
+            long time = Math.max(mTime, other.mTime);
+            decayTo(time, decay);
+            double otherFactor = decay == 1.0 ? 1.0 : Math.pow(decay, time - other.mTime);
+            double otherWeight = other.mWeight * otherFactor;
+            double weight = mWeight + otherWeight;
+
+            double pooledMeanX = (mMeanX * mWeight + other.mMeanX * otherWeight) / weight;
+            double pooledMeanY = (mMeanY * mWeight + other.mMeanY * otherWeight) / weight;
+
+            double dx1 = mMeanX - pooledMeanX;
+            double dy1 = mMeanY - pooledMeanY;
+            double dx2 = other.mMeanX - pooledMeanX;
+            double dy2 = other.mMeanY - pooledMeanY;
 
             mMeanX = pooledMeanX;
             mMeanY = pooledMeanY;
-            mSumXX = mSumXX + n * dx1 * dx1 + other.getVarX() * (other.getN() - 1) + other.getN() * dx2 * dx2;
-            mSumYY = mSumYY + n * dy1 * dy1 + other.getVarY() * (other.getN() - 1) + other.getN() * dy2 * dy2;
-            mSumXY = mSumXY + n * dx1 * dy1 + other.getCovXY() * (other.getN() - 1) + other.getN() * dx2 * dy2;
-            n += other.getN();
+            mSumXX = mSumXX + mWeight * dx1 * dx1 + other.mSumXX * otherFactor + otherWeight * dx2 * dx2;
+            mSumYY = mSumYY + mWeight * dy1 * dy1 + other.mSumYY * otherFactor + otherWeight * dy2 * dy2;
+            mSumXY = mSumXY + mWeight * dx1 * dy1 + other.mSumXY * otherFactor + otherWeight * dx2 * dy2;
+            mWeight = weight;
+            mSketchX.merge(other.mSketchX, otherFactor);
+            mSketchY.merge(other.mSketchY, otherFactor);
         }
     }
 
@@ -115,56 +228,151 @@ public class KeyStat extends Object implements Serializable {
     public double getMeanY(){ return mMeanY;}
 
     public double getVarX(){
-        if(n <= 1) {
+        if(mWeight <= 1) {
             return 0;
         } else {
-            return mSumXX / (n - 1);
+            return mSumXX / (mWeight - 1);
         }
     }
 
     public double getVarY(){
-        if(n <= 1) {
+        if(mWeight <= 1) {
             return 0;
         } else {
-            return mSumYY / (n - 1);
+            return mSumYY / (mWeight - 1);
         }
     }
 
     public double getCovXY(){
-        if(n <= 1) {
+        if(mWeight <= 1) {
             return 0;
         } else {
-            return mSumXY / (n - 1);
+            return mSumXY / (mWeight - 1);
+        }
+    }
+
+    // returns the effective number of observations (the sum of their decayed weights), rounded
+    public int getN(){ return (int) Math.round(mWeight);}
+
+    public double getWeight(){ return mWeight; }
+
+    public long getTime(){ return mTime; }
+
+    public QuantileSketch getSketchX(){ return mSketchX; }
+
+    public QuantileSketch getSketchY(){ return mSketchY; }
+
+    // whether the sketches hold enough data for robust estimates
+    public boolean hasRobustEstimates(){
+        return mSketchX.getTotalWeight() >= MIN_WEIGHT_FOR_ROBUST &
+                mSketchY.getTotalWeight() >= MIN_WEIGHT_FOR_ROBUST;
+    }
+
+    public double getMedianX(){ return mSketchX.median(); }
+
+    public double getMedianY(){ return mSketchY.median(); }
+
+    // checks whether a touch lies outside of the far out fences of the x or y distribution.
+    // Always false if there are no robust estimates yet
+    public boolean isOutlier(int x, int y){
+        if(!hasRobustEstimates()){
+            return false;
         }
+        return isOutlier(mSketchX, x) | isOutlier(mSketchY, y);
     }
 
-    public int getN(){ return n;}
+    private static boolean isOutlier(QuantileSketch sketch, double value){
+        double lower = sketch.quantile(0.25);
+        double upper = sketch.quantile(0.75);
+        double range = OUTLIER_IQR_FACTOR * (upper - lower);
+        return value < lower - range | value > upper + range;
+    }
 
     // multiply n by some factor. Use with caution. Currently only used for a special case in LayoutLearnerWorker
-    public void multiplyN(double factor) { n = (int) Math.round(factor * n); }
+    // The weight is not rounded, so that repeated calls do not add up rounding errors
+    public void multiplyN(double factor) { mWeight = factor * mWeight; }
 
     @Override
     public String toString(){
         return "" + mCode + "," + mMeanX + "," + mMeanY + "," + mSumXX + "," + mSumYY + "," +
-                mSumXY + "," + n;
+                mSumXY + "," + mWeight + "," + mTime;
     }
 
     // delete a part of the learnt data to reduce its size to the given percentage
-    // Returns the actual percentage that was reduced (due to rounding)
+    // Returns the actual percentage that was reduced. Since the weights are not rounded, this is
+    // the given percentage unless it is invalid
     public double reduceData(double percentage){
         if(percentage < 0 | percentage > 1){
             return 1.0;
         }
 
-        // due to rounding, we will not be able to reduce the data exactly by this percentage,
-        // find the closest possible percentage
-        double actualPerc =  Math.floor(percentage * n) / n;
+        mSumXX = percentage * mSumXX;
+        mSumXY = percentage * mSumXY;
+        mSumYY = percentage * mSumYY;
+        mWeight = percentage * mWeight;
+        mSketchX.scale(percentage);
+        mSketchY.scale(percentage);
+
+        return percentage;
+    }
+
+    // size of a record in the binary KeyStats format (see writeRecord)
+    static final int RECORD_BYTES = 4 + 6 * 8 + 8;
 
-        mSumXX = actualPerc * mSumXX;
-        mSumXY = actualPerc * mSumXY;
-        mSumYY = actualPerc * mSumYY;
-        n = (int) Math.round(actualPerc * n);
+    // writes code, means, sums, weight and time in a fixed layout of RECORD_BYTES bytes
+    void writeRecord(ByteBuffer buffer){
+        buffer.putInt(mCode);
+        buffer.putDouble(mMeanX);
+        buffer.putDouble(mMeanY);
+        buffer.putDouble(mSumXX);
+        buffer.putDouble(mSumYY);
+        buffer.putDouble(mSumXY);
+        buffer.putDouble(mWeight);
+        buffer.putLong(mTime);
+    }
+
+    // decodes a stat without creating empty sketches first, see read
+    private KeyStat(){
+    }
+
+    // reads the record written by writeRecord from the records and the sketches written by
+    // writeSketches from the sketches, so that each stat is decoded in one go
+    static KeyStat read(ByteBuffer records, ByteBuffer sketches) throws IOException {
+        KeyStat stat = new KeyStat();
+        stat.mCode = records.getInt();
+        stat.mMeanX = records.getDouble();
+        stat.mMeanY = records.getDouble();
+        stat.mSumXX = records.getDouble();
+        stat.mSumYY = records.getDouble();
+        stat.mSumXY = records.getDouble();
+        stat.mWeight = records.getDouble();
+        stat.mTime = records.getLong();
+        stat.mSketchX = QuantileSketch.readFrom(sketches);
+        stat.mSketchY = QuantileSketch.readFrom(sketches);
+        return stat;
+    }
+
+    // returns the number of bytes that writeSketches needs
+    int getSketchBytes(){
+        return mSketchX.getBinarySize() + mSketchY.getBinarySize();
+    }
+
+    void writeSketches(ByteBuffer buffer){
+        mSketchX.writeTo(buffer);
+        mSketchY.writeTo(buffer);
+    }
 
-        return actualPerc;
+    // files saved before the decayed weights were introduced only contain the number of
+    // observations, which is their weight without decay
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if(mWeight == 0 & n > 0){
+            mWeight = n;
+        }
+        n = 0;
+        if(mSketchX == null | mSketchY == null){
+            mSketchX = new QuantileSketch();
+            mSketchY = new QuantileSketch();
+        }
     }
-}
\ No newline at end of file
+}
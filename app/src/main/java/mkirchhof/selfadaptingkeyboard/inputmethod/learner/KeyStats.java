@@ -23,26 +23,50 @@ import androidx.annotation.NonNull;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.ListIterator;
 
-// stores statistical information of all keys of a keyboard in KeyStat objects
+// stores statistical information of all keys of a keyboard in KeyStat objects.
+// Every key press advances the keystroke clock of the keyboard, which is used to exponentially
+// decay old observations (see KeyStat)
 public class KeyStats extends LinkedList<KeyStat>{
     final static String TAG = KeyStats.class.getSimpleName();
     private final int mKeyboardHash;
+    private long mClock;
+    // factor by which the weight of an observation decays per keystroke (1.0 = no decay)
+    private double mDecay;
+
+    // binary file format (see toBuffer). FORMAT_VERSION has to be increased whenever the layout
+    // changes, and fromBuffer has to keep reading the older versions
+    private static final int MAGIC = 0x4B535442; // "KSTB"
+    public static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 8 + 4;
 
     public KeyStats(int keyboardHash){
         super();
         mKeyboardHash = keyboardHash;
+        mClock = 0;
+        mDecay = 1.0;
     }
 
     public int getKeyboardHash(){ return mKeyboardHash; }
 
-    // merges the information on means and variances of two keyboards (two learning sessions of the same keyboard)
+    // returns the number of keystrokes this object has seen
+    public long getClock(){ return mClock; }
+
+    // sets the keystroke clock, e.g. of a copy of another KeyStats object
+    public void setClock(long clock){ mClock = clock; }
+
+    // sets after how many keystrokes the weight of an observation is halved (0 = never)
+    public void setHalfLife(double halfLife){
+        mDecay = halfLife > 0 ? Math.pow(0.5, 1 / halfLife) : 1.0;
+    }
+
+    // merges the information on means and variances of two keyboards (two learning sessions of
+    // the same keyboard). Both have to use the same keystroke clock
     public void merge(@NonNull KeyStats other){
         ListIterator<KeyStat> it = other.listIterator();
         while(it.hasNext()){
@@ -51,18 +75,61 @@ public class KeyStats extends LinkedList<KeyStat>{
             if(existingKeyStat == null){
                 add(cur);
             } else {
-                existingKeyStat.merge(cur);
+                existingKeyStat.merge(cur, mDecay);
+            }
+        }
+        mClock = Math.max(mClock, other.getClock());
+    }
+
+    // merges older information into this object, e.g. the saved KeyStats into the ones that were
+    // just summarized from the cache. Afterwards, the keystrokes of this object are counted as
+    // if they happened after all keystrokes of older and all stats are decayed to the same time
+    public void prepend(@NonNull KeyStats older){
+        long offset = older.getClock();
+        for(KeyStat cur:this){
+            cur.shiftTime(offset);
+        }
+        mClock += offset;
+
+        for(KeyStat cur:older){
+            KeyStat existingKeyStat = findCode(cur.getCode());
+            if(existingKeyStat == null){
+                add(cur);
+            } else {
+                existingKeyStat.merge(cur, mDecay);
             }
         }
+
+        for(KeyStat cur:this){
+            cur.decayTo(mClock, mDecay);
+        }
     }
 
     // Adds a new Key press to one of the KeyStat objects or to a new one
     public void add(int code, int x, int y){
+        mClock++;
         KeyStat existingKeyStat = findCode(code);
         if(existingKeyStat == null){
-            add(new KeyStat(code, x, y));
-        } else {
-            existingKeyStat.add(x, y);
+            existingKeyStat = new KeyStat(code);
+            add(existingKeyStat);
+        }
+        existingKeyStat.add(x, y, mClock, mDecay);
+    }
+
+    // Adds a key press whose key is uncertain. Each of the first count codes gets the share of
+    // the observation given in weights
+    public void add(int[] codes, double[] weights, int count, int x, int y){
+        mClock++;
+        for(int i = 0; i < count; i++){
+            if(weights[i] <= 0){
+                continue;
+            }
+            KeyStat existingKeyStat = findCode(codes[i]);
+            if(existingKeyStat == null){
+                existingKeyStat = new KeyStat(codes[i]);
+                add(existingKeyStat);
+            }
+            existingKeyStat.add(x, y, mClock, mDecay, weights[i]);
         }
     }
 
@@ -79,54 +146,101 @@ public class KeyStats extends LinkedList<KeyStat>{
         return null;
     }
 
-    // writes all KeyStat objects managed by this object to an internal file
-    public void save(Context context){
-        try {
-            File folder = new File(context.getFilesDir(),"KeyStats");
-            if(!folder.exists()){
-                folder.mkdir();
-            }
-            File file = new File(folder, "KeyStats" + mKeyboardHash + ".ser");
-            file.createNewFile();
-            FileOutputStream fos = new FileOutputStream(file);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-
-            // write number of objects to the file so that the load method will know when the file ends
-            // (otherwise, this is only possible in ObjectInputStream by using exceptions which is bad style)
-            oos.writeInt(size());
-            ListIterator<KeyStat> it = listIterator();
-            while(it.hasNext()){
-                KeyStat cur = it.next();
-                oos.writeObject(cur);
-            }
+    // encodes this object in the binary format: a header (magic number, format version, keyboard
+    // hash, keystroke clock and number of keys), one record of KeyStat.RECORD_BYTES per key and
+    // then the sketches of all keys. The fixed-size records come first, so that they can be read
+    // without looking at the variable-size sketches
+    ByteBuffer toBuffer(){
+        int nBytes = HEADER_BYTES + size() * KeyStat.RECORD_BYTES;
+        for(KeyStat cur:this){
+            nBytes += cur.getSketchBytes();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(nBytes);
+        buffer.putInt(MAGIC);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putInt(mKeyboardHash);
+        buffer.putLong(mClock);
+        buffer.putInt(size());
+        for(KeyStat cur:this){
+            cur.writeRecord(buffer);
+        }
+        for(KeyStat cur:this){
+            cur.writeSketches(buffer);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // decodes a KeyStats object written by toBuffer. Throws an IOException if the buffer does not
+    // hold the stats of the given keyboard in a known version of the format
+    static KeyStats fromBuffer(ByteBuffer buffer, int keyboardHash) throws IOException {
+        KeyStats ks = new KeyStats(keyboardHash);
+        int nKeys = readHeader(buffer, keyboardHash, ks);
+        // the records and the sketches of a key are read side by side
+        ByteBuffer sketches = buffer.duplicate();
+        sketches.position(buffer.position() + nKeys * KeyStat.RECORD_BYTES);
+        for(int i = 0; i < nKeys; i++){
+            ks.add(KeyStat.read(buffer, sketches));
+        }
+        buffer.position(sketches.position());
+        return ks;
+    }
+
+    // checks that the buffer holds a complete KeyStats object of the given keyboard, like
+    // fromBuffer but without decoding it
+    static void check(ByteBuffer buffer, int keyboardHash) throws IOException {
+        int nKeys = readHeader(buffer, keyboardHash, null);
+        buffer.position(buffer.position() + nKeys * KeyStat.RECORD_BYTES);
+        for(int i = 0; i < 2 * nKeys; i++){
+            QuantileSketch.skip(buffer);
+        }
+    }
+
+    // reads the header, stores the keystroke clock in ks unless it is null and returns the number
+    // of keys. Afterwards, the buffer is at the first record
+    private static int readHeader(ByteBuffer buffer, int keyboardHash, KeyStats ks)
+            throws IOException {
+        if(buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC){
+            throw new IOException("Not a KeyStats file");
+        }
+        int version = buffer.getInt();
+        if(version < 1 || version > FORMAT_VERSION){
+            throw new IOException("Unknown KeyStats format version " + version);
+        }
+        int hash = buffer.getInt();
+        if(hash != keyboardHash){
+            throw new IOException("File holds the KeyStats of keyboard " + hash);
+        }
+        long clock = buffer.getLong();
+        if(ks != null){
+            ks.mClock = clock;
+        }
+        int nKeys = buffer.getInt();
+        if(nKeys < 0 || buffer.remaining() < (long) nKeys * KeyStat.RECORD_BYTES){
+            throw new IOException("Truncated KeyStats file");
+        }
+        return nKeys;
+    }
 
-            fos.close();
-            oos.close();
-        } catch(IOException ex){
-            Log.e(TAG, "Could not save KeyStats: " + ex.toString());
+    // writes all KeyStat objects managed by this object to the ModelStore
+    public void save(Context context){
+        if(!saveTo(ModelStore.get(context).edit()).commit()){
+            Log.e(TAG, "Could not save KeyStats for keyboard " + mKeyboardHash);
         }
     }
 
-    // loads KeyStat objects from a saved file
-    // TODO: serialize the whole object instead of its ingredients
+    // adds this object to an edit of the ModelStore, e.g. to save the stats of several keyboards
+    // at once
+    public ModelStore.Edit saveTo(ModelStore.Edit edit){
+        return edit.put(mKeyboardHash, ModelStore.KIND_KEYSTATS, FORMAT_VERSION, toBuffer());
+    }
+
+    // loads KeyStat objects from the ModelStore
     public static KeyStats load(Context context, int keyboardHash){
-        KeyStats ks = new KeyStats(keyboardHash);
         try {
-            File folder = new File(context.getFilesDir(),"KeyStats");
-            File file = new File(folder, "KeyStats" + keyboardHash + ".ser");
-            if(file.exists()) {
-                FileInputStream fis = new FileInputStream(file);
-                ObjectInputStream ois = new ObjectInputStream(fis);
-
-                int nObjects = ois.readInt();
-                KeyStat cur;
-                for (int i = 0; i < nObjects; i++) {
-                    cur = (KeyStat) ois.readObject();
-                    ks.add(cur);
-                }
-
-                fis.close();
-                ois.close();
+            ByteBuffer buffer = ModelStore.get(context).read(keyboardHash, ModelStore.KIND_KEYSTATS);
+            if(buffer != null) {
+                return fromBuffer(buffer, keyboardHash);
             } else {
                 Log.d("KeyStats.load", "Could not find KeyStats for keyboard " + keyboardHash);
             }
@@ -134,6 +248,26 @@ public class KeyStats extends LinkedList<KeyStat>{
             Log.e("KeyStats.load", "Could not read KeyStats for hash " + keyboardHash +
                     ": " + ex.toString());
         }
+        return new KeyStats(keyboardHash);
+    }
+
+    // reads a file of serialized KeyStat objects, which was the format before FORMAT_VERSION 1
+    static KeyStats loadLegacy(File file, int keyboardHash) throws IOException,
+            ClassNotFoundException {
+        KeyStats ks = new KeyStats(keyboardHash);
+        FileInputStream fis = new FileInputStream(file);
+        ObjectInputStream ois = new ObjectInputStream(fis);
+
+        int nObjects = ois.readInt();
+        KeyStat cur;
+        for (int i = 0; i < nObjects; i++) {
+            cur = (KeyStat) ois.readObject();
+            ks.add(cur);
+            ks.mClock = Math.max(ks.mClock, cur.getTime());
+        }
+
+        fis.close();
+        ois.close();
         return ks;
     }
 
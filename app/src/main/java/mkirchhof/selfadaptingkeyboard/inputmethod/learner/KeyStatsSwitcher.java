@@ -27,10 +27,17 @@ import java.util.ListIterator;
 // TODO: Refactor so that this class always loads all possible KeyStats?
 public class KeyStatsSwitcher extends LinkedList<KeyStats> {
     private final Context mContext;
+    private final double mHalfLife;
 
     public KeyStatsSwitcher(Context cn){
+        this(cn, 0);
+    }
+
+    // halfLife is given to every KeyStats object of this switcher (see KeyStats.setHalfLife)
+    public KeyStatsSwitcher(Context cn, double halfLife){
         super();
         mContext = cn;
+        mHalfLife = halfLife;
     }
 
     // finds a KeyStats stored in this list by its keyboardHash ID
@@ -50,6 +57,7 @@ public class KeyStatsSwitcher extends LinkedList<KeyStats> {
         KeyStats ks = findKeyboardHash(keyboardHash);
         if(ks == null){
             ks = KeyStats.load(mContext, keyboardHash);
+            ks.setHalfLife(mHalfLife);
             this.add(ks);
         }
         return ks;
@@ -58,6 +66,7 @@ public class KeyStatsSwitcher extends LinkedList<KeyStats> {
     // explicitely creates a new KeyStats object regardless of whether some already exists in a file
     public KeyStats createKeyStats(int keyboardHash){
         KeyStats ks = new KeyStats(keyboardHash);
+        ks.setHalfLife(mHalfLife);
         this.add(ks);
         return ks;
     }
@@ -76,11 +85,26 @@ public class KeyStatsSwitcher extends LinkedList<KeyStats> {
         }
     }
 
+    // merges the older KeyStats of other into the KeyStats of this switcher
+    // (see KeyStats.prepend; KeyStats that are only in other are ignored)
+    public void prepend(KeyStatsSwitcher older){
+        for(KeyStats ks:this){
+            ks.prepend(older.getKeyStats(ks.getKeyboardHash()));
+        }
+    }
+
+    // saves all KeyStats in a single update of the ModelStore
     public void save(){
+        saveTo(ModelStore.get(mContext).edit()).commit();
+    }
+
+    // adds all KeyStats to an update of the ModelStore
+    public ModelStore.Edit saveTo(ModelStore.Edit edit){
         ListIterator<KeyStats> it = this.listIterator();
         while(it.hasNext()){
             KeyStats ks = it.next();
-            ks.save(mContext);
+            ks.saveTo(edit);
         }
+        return edit;
     }
 }
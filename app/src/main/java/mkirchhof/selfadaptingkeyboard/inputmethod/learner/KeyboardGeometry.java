@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.Keyboard;
+import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.KeyboardId;
+
+// stores the default (unlearned) key positions of a keyboard together with the locale and the
+// kind of layout it shows. This is the reference to translate touch positions into key-relative
+// coordinates: the offset from the key's default centre divided by the key's default size.
+// In these coordinates, the statistics of different keyboards can be compared and shared
+public class KeyboardGeometry implements Serializable {
+    final static String TAG = KeyboardGeometry.class.getSimpleName();
+    private static final long serialVersionUID = 1L;
+
+    private final int mKeyboardHash;
+    private final String mLocale;
+    // simplified element id (see KeyboardId.simplifyElementId)
+    private final int mElementId;
+    private final Hitboxes mDefaults;
+
+    public KeyboardGeometry(int keyboardHash, String locale, int elementId, Hitboxes defaults){
+        mKeyboardHash = keyboardHash;
+        mLocale = locale;
+        mElementId = elementId;
+        mDefaults = defaults;
+    }
+
+    public int getKeyboardHash(){ return mKeyboardHash; }
+
+    public String getLocale(){ return mLocale; }
+
+    public int getElementId(){ return mElementId; }
+
+    public Hitboxes getDefaults(){ return mDefaults; }
+
+    // translates a stat into key-relative coordinates. Returns null for unknown keys
+    public KeyStat normalize(KeyStat stat){
+        Hitbox box = mDefaults.findCode(stat.getCode());
+        if(box == null || box.getWidth() <= 0 || box.getHeight() <= 0){
+            return null;
+        }
+        double width = box.getWidth();
+        double height = box.getHeight();
+        return stat.transform(-centerX(box) / width, 1 / width, -centerY(box) / height, 1 / height);
+    }
+
+    // translates all stats of a keyboard into key-relative coordinates
+    public KeyStats normalize(KeyStats stats){
+        KeyStats normalized = new KeyStats(mKeyboardHash);
+        normalized.setClock(stats.getClock());
+        for(KeyStat cur:stats){
+            KeyStat stat = normalize(cur);
+            if(stat != null){
+                normalized.add(stat);
+            }
+        }
+        return normalized;
+    }
+
+    // translates a stat in key-relative coordinates into the coordinates of this keyboard.
+    // Returns null for keys that this keyboard does not have
+    public KeyStat project(KeyStat normalized){
+        Hitbox box = mDefaults.findCode(normalized.getCode());
+        if(box == null || box.getWidth() <= 0 || box.getHeight() <= 0){
+            return null;
+        }
+        return normalized.transform(centerX(box), box.getWidth(), centerY(box), box.getHeight());
+    }
+
+    // translates all stats in key-relative coordinates into the coordinates of this keyboard
+    public KeyStats project(KeyStats normalized){
+        KeyStats stats = new KeyStats(mKeyboardHash);
+        stats.setClock(normalized.getClock());
+        for(KeyStat cur:normalized){
+            KeyStat stat = project(cur);
+            if(stat != null){
+                stats.add(stat);
+            }
+        }
+        return stats;
+    }
+
+    private static double centerX(Hitbox box){
+        return box.getTopLeft().getX() + box.getWidth() / 2.0;
+    }
+
+    private static double centerY(Hitbox box){
+        return box.getTopLeft().getY() + box.getHeight() / 2.0;
+    }
+
+    // extracts the geometry of a keyboard. Only meaningful for keyboards that were built without
+    // learned hitboxes
+    public static KeyboardGeometry toGeometry(Keyboard kb){
+        return new KeyboardGeometry(kb.mId.layoutHashCode(), kb.mId.getLocale().toString(),
+                KeyboardId.simplifyElementId(kb.mId.mElementId), Hitboxes.toHitboxes(kb));
+    }
+
+    // saves this object to an internal file (/Hitboxes/Geometry<HASH>.ser)
+    public void save(Context context){
+        try{
+            File folder = new File(context.getFilesDir(),"Hitboxes");
+            // readers on other threads never see a partially written file
+            AtomicFileWriter.write(new File(folder, "Geometry" + mKeyboardHash + ".ser"),
+                    new AtomicFileWriter.Content() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    ObjectOutputStream oos = new ObjectOutputStream(out);
+                    oos.writeObject(KeyboardGeometry.this);
+                    oos.flush();
+                }
+            });
+        } catch(Exception e){
+            Log.e(TAG, "Failed to save KeyboardGeometry: " + e.toString());
+        }
+    }
+
+    // loads the geometry of a keyboard or returns null if it is not known
+    public static KeyboardGeometry load(Context context, int keyboardHash){
+        KeyboardGeometry geometry = null;
+        try{
+            File folder = new File(context.getFilesDir(),"Hitboxes");
+            File file = new File(folder, "Geometry" + keyboardHash + ".ser");
+            if(file.exists()) {
+                FileInputStream fis = new FileInputStream(file);
+                ObjectInputStream ois = new ObjectInputStream(fis);
+
+                geometry = (KeyboardGeometry) ois.readObject();
+
+                ois.close();
+                fis.close();
+            }
+        } catch(Exception e){
+            Log.e(TAG, "Failed to load KeyboardGeometry for hash " + keyboardHash +
+                    ": " + e.toString());
+        }
+        return geometry;
+    }
+
+    // returns whether the geometry of a keyboard is known
+    public static boolean exists(Context context, int keyboardHash){
+        File folder = new File(context.getFilesDir(),"Hitboxes");
+        return new File(folder, "Geometry" + keyboardHash + ".ser").exists();
+    }
+}
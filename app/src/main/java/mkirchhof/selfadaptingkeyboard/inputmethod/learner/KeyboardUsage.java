@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+// Remembers when each keyboard was last typed on, so that the StorageQuota drops the models of
+// the keyboards that are not used anymore. The timestamps in the ModelStore only tell when the
+// models were last written, which a projection, the LiveAdapter or a restored backup also do
+// without the keyboard being used. The IME records the keyboards of every Logger it saves.
+// Saved to an internal file (/Hitboxes/Usage.ser) as the number of keyboards followed by a
+// keyboard hash and a time for each of them
+public class KeyboardUsage {
+    private static final String TAG = KeyboardUsage.class.getSimpleName();
+    // a recorded use is only rewritten once it is this old, so that saving a Logger does not
+    // sync the file every time. Keyboards go stale after days, so this does not matter for them
+    static final long RESOLUTION_MILLIS = 60 * 60 * 1000;
+
+    private KeyboardUsage(){
+        // static methods only
+    }
+
+    // records that the given keyboards were used at the given time
+    public static synchronized void record(Context context, Collection<Integer> keyboardHashes,
+                                           long now){
+        HashMap<Integer, Long> lastUsed = load(context);
+        boolean changed = false;
+        for(Integer keyboardHash:keyboardHashes){
+            Long used = lastUsed.get(keyboardHash);
+            if(used == null || used < now - RESOLUTION_MILLIS){
+                lastUsed.put(keyboardHash, now);
+                changed = true;
+            }
+        }
+        if(changed){
+            save(context, lastUsed);
+        }
+    }
+
+    // forgets the given keyboards
+    static synchronized void remove(Context context, Collection<Integer> keyboardHashes){
+        HashMap<Integer, Long> lastUsed = load(context);
+        if(lastUsed.keySet().removeAll(keyboardHashes)){
+            save(context, lastUsed);
+        }
+    }
+
+    // the time each recorded keyboard was last used. Is empty if none was recorded or the file
+    // could not be read
+    static synchronized HashMap<Integer, Long> load(Context context){
+        HashMap<Integer, Long> lastUsed = new HashMap<>();
+        File file = getFile(context);
+        if(!file.exists()){
+            return lastUsed;
+        }
+        DataInputStream in = null;
+        try{
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            int n = in.readInt();
+            for(int i = 0; i < n; i++){
+                int keyboardHash = in.readInt();
+                lastUsed.put(keyboardHash, in.readLong());
+            }
+        } catch(IOException e){
+            Log.e(TAG, "Failed to load the keyboard usage: " + e.toString());
+            lastUsed.clear();
+        } finally {
+            if(in != null){
+                try{
+                    in.close();
+                } catch(IOException e){
+                    Log.e(TAG, "Failed to close the keyboard usage: " + e.toString());
+                }
+            }
+        }
+        return lastUsed;
+    }
+
+    private static void save(Context context, final HashMap<Integer, Long> lastUsed){
+        try{
+            AtomicFileWriter.write(getFile(context), new AtomicFileWriter.Content() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    DataOutputStream dos = new DataOutputStream(out);
+                    dos.writeInt(lastUsed.size());
+                    for(Map.Entry<Integer, Long> used:lastUsed.entrySet()){
+                        dos.writeInt(used.getKey());
+                        dos.writeLong(used.getValue());
+                    }
+                    dos.flush();
+                }
+            });
+        } catch(IOException e){
+            Log.e(TAG, "Failed to save the keyboard usage: " + e.toString());
+        }
+    }
+
+    private static File getFile(Context context){
+        return new File(new File(context.getFilesDir(), "Hitboxes"), "Usage.ser");
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+// Exports the learned layouts to one zip archive and imports them again, e.g. to move them to a
+// new device. The archive holds a version entry, the ModelStore (KeyStats, Hitboxes and the
+// BackoffStats of all keyboards) and the files derived from it (rasters, posture models and
+// geometries). Both directions stream in a single pass with large buffers and should run on a
+// background thread. The version entry comes first and also holds the number of the entries after
+// it, so that an import can tell an archive that was cut off between two entries.
+// An import is checked completely before anything is changed: the archive must hold the store and
+// all entries, every model is decoded and every derived file is staged next to its destination
+// and decoded there. Then, while no LayoutLearner runs, the derived
+// files are moved into place and the models are swapped in by a single update of the ModelStore,
+// so the keyboard switches to the imported layouts at once and is never blocked (see ModelStore).
+// The old derived files are kept aside until that update succeeded and are put back otherwise.
+public class LayoutBackup {
+    private static final String TAG = LayoutBackup.class.getSimpleName();
+    // 2: the version entry holds the number of entries. Archives of version 1 are still imported
+    // without that check, they are the only copy of the user's layouts
+    public static final int FORMAT_VERSION = 2;
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final String VERSION_ENTRY = "LayoutBackup.version";
+    private static final String STORE_ENTRY = "ModelStore.bin";
+    private static final String DERIVED_FOLDER = "Hitboxes";
+    private static final String STAGING_SUFFIX = ".import";
+    private static final String REPLACED_SUFFIX = ".replaced";
+
+    // is told how far an export or import got
+    public interface ProgressListener {
+        void onProgress(int percent);
+    }
+
+    // writes all learned layouts to out. Returns whether that succeeded
+    public static boolean export(Context context, OutputStream out, ProgressListener listener){
+        File store = ModelStore.getFile(context);
+        File[] derived = listDerived(context);
+        long total = store.length();
+        for(File file:derived){
+            total += file.length();
+        }
+        Progress progress = new Progress(total, listener);
+        byte[] buffer = new byte[BUFFER_BYTES];
+        try{
+            ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(out, BUFFER_BYTES));
+            zip.putNextEntry(new ZipEntry(VERSION_ENTRY));
+            DataOutputStream dos = new DataOutputStream(zip);
+            dos.writeInt(FORMAT_VERSION);
+            // the store and the derived files
+            dos.writeInt(1 + derived.length);
+            dos.flush();
+            zip.closeEntry();
+            // the store is replaced instead of being changed, so the opened file stays consistent
+            if(store.exists()){
+                copyEntry(zip, STORE_ENTRY, store, buffer, progress);
+            } else {
+                zip.putNextEntry(new ZipEntry(STORE_ENTRY));
+                zip.write(ModelStore.emptyStore());
+                zip.closeEntry();
+            }
+            for(File file:derived){
+                copyEntry(zip, DERIVED_FOLDER + "/" + file.getName(), file, buffer, progress);
+            }
+            zip.finish();
+            zip.flush();
+            progress.done();
+            return true;
+        } catch(IOException e){
+            Log.e(TAG, "Failed to export layouts: " + e.toString());
+            return false;
+        }
+    }
+
+    private static void copyEntry(ZipOutputStream zip, String name, File file, byte[] buffer,
+                                  Progress progress) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(file.lastModified());
+        zip.putNextEntry(entry);
+        FileInputStream fis = new FileInputStream(file);
+        try{
+            int count;
+            while((count = fis.read(buffer)) != -1){
+                zip.write(buffer, 0, count);
+                progress.add(count);
+            }
+        } finally {
+            fis.close();
+        }
+        zip.closeEntry();
+    }
+
+    // replaces the learned layouts by the ones in an exported archive of totalBytes (-1 if
+    // unknown). Nothing is changed if the archive is broken. Returns whether that succeeded
+    public static boolean restore(Context context, InputStream in, long totalBytes,
+                                  ProgressListener listener){
+        return restore(context, in, totalBytes, listener, null);
+    }
+
+    // like restore(), but runs beforeReplace right before the ModelStore is replaced (see
+    // ModelStore.Edit.commit). Lets tests fail an import after the derived files were moved
+    static boolean restore(Context context, InputStream in, long totalBytes,
+                           ProgressListener listener, Runnable beforeReplace){
+        Progress progress = new Progress(totalBytes, listener);
+        File folder = new File(context.getFilesDir(), DERIVED_FOLDER);
+        folder.mkdirs();
+        ArrayList<File> staged = new ArrayList<>();
+        // the old derived files and the imported ones in their place, until the commit succeeded
+        ArrayList<File> replaced = new ArrayList<>();
+        ArrayList<File> placed = new ArrayList<>();
+        boolean committed = false;
+        try{
+            ByteBuffer storeData = null;
+            boolean hasVersion = false;
+            // the number of entries after the version entry (-1 = unknown)
+            int expectedEntries = -1;
+            int nEntries = 0;
+            byte[] buffer = new byte[BUFFER_BYTES];
+            ZipInputStream zip = new ZipInputStream(new BufferedInputStream(
+                    new CountingInputStream(in, progress), BUFFER_BYTES));
+            ZipEntry entry;
+            while((entry = zip.getNextEntry()) != null){
+                String name = entry.getName();
+                if(name.equals(VERSION_ENTRY)){
+                    DataInputStream dis = new DataInputStream(zip);
+                    int version = dis.readInt();
+                    if(version < 1 || version > FORMAT_VERSION){
+                        throw new IOException("Unknown backup version " + version);
+                    }
+                    if(version >= 2){
+                        expectedEntries = dis.readInt();
+                    }
+                    hasVersion = true;
+                } else if(name.equals(STORE_ENTRY)){
+                    storeData = readEntry(zip, buffer);
+                    nEntries++;
+                } else if(name.startsWith(DERIVED_FOLDER + "/") && isDerived(
+                        name.substring(DERIVED_FOLDER.length() + 1))){
+                    String derivedName = name.substring(DERIVED_FOLDER.length() + 1);
+                    File file = new File(folder, derivedName + STAGING_SUFFIX);
+                    // the file is deleted again if it turns out to be broken
+                    staged.add(file);
+                    writeEntry(zip, file, buffer);
+                    checkDerived(file, derivedName);
+                    nEntries++;
+                } else {
+                    Log.w(TAG, "Skipping unknown entry " + name);
+                }
+                zip.closeEntry();
+            }
+            if(!hasVersion){
+                throw new IOException("Not a layout backup");
+            }
+            if(storeData == null){
+                throw new IOException("The backup has no models");
+            }
+            if(expectedEntries >= 0 && nEntries != expectedEntries){
+                throw new IOException("The backup is incomplete, it has " + nEntries + " of " +
+                        expectedEntries + " entries");
+            }
+
+            ModelStore store = ModelStore.get(context);
+            synchronized(LayoutLearner.sRunLock){
+                ModelStore.Edit edit = prepareEdit(store, storeData);
+
+                // the derived files go first, since the HitboxRegistry loads them when the new
+                // Hitboxes are published
+                for(File file:listDerived(context)){
+                    File aside = new File(folder, file.getName() + REPLACED_SUFFIX);
+                    if(!file.renameTo(aside)){
+                        throw new IOException("Could not move " + file.getName() + " aside");
+                    }
+                    replaced.add(aside);
+                }
+                for(File file:staged){
+                    String name = file.getName().substring(0,
+                            file.getName().length() - STAGING_SUFFIX.length());
+                    File destination = new File(folder, name);
+                    if(!file.renameTo(destination)){
+                        throw new IOException("Could not move " + name + " into place");
+                    }
+                    placed.add(destination);
+                }
+                staged.clear();
+                if(!edit.commit(beforeReplace)){
+                    throw new IOException("Could not update the model store");
+                }
+                committed = true;
+            }
+            progress.done();
+            Log.i(TAG, "Imported " + placed.size() + " files and " +
+                    store.list().size() + " models");
+            return true;
+        } catch(IOException e){
+            Log.e(TAG, "Failed to import layouts: " + e.toString());
+            return false;
+        } finally {
+            for(File file:staged){
+                file.delete();
+            }
+            if(!committed){
+                for(File file:placed){
+                    file.delete();
+                }
+            }
+            for(File file:replaced){
+                String name = file.getName().substring(0,
+                        file.getName().length() - REPLACED_SUFFIX.length());
+                if(committed || !file.renameTo(new File(folder, name))){
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    // checks every model of an exported store and returns an update that replaces the models of
+    // the current store by them. Models of other kinds (e.g. the journal and the history) are kept
+    static ModelStore.Edit prepareEdit(ModelStore store, ByteBuffer storeData) throws IOException {
+        // an import can be rolled back like a learner run
+        ModelStore.Edit edit = store.edit().asGeneration();
+        HashSet<Long> keys = new HashSet<>();
+        if(storeData != null){
+            for(ModelStore.Entry entry:ModelStore.readIndex(storeData)){
+                if(!isReplaced(entry.getKind())){
+                    continue;
+                }
+                ByteBuffer data = ModelStore.slice(storeData, entry);
+                int keyboardHash = entry.getKeyboardHash();
+                try{
+                    if(entry.getKind() == ModelStore.KIND_KEYSTATS){
+                        KeyStats.check(data.duplicate(), keyboardHash);
+                    } else if(entry.getKind() == ModelStore.KIND_HITBOXES){
+                        PackedHitboxes.unpack(data.duplicate(), keyboardHash);
+                    } else {
+                        BackoffStats.fromBuffer(data.duplicate(), 0);
+                    }
+                } catch(ClassNotFoundException e){
+                    throw new IOException("Invalid model " + entry + ": " + e.toString());
+                }
+                edit.put(keyboardHash, entry.getKind(), entry.getVersion(), data);
+                keys.add(key(keyboardHash, entry.getKind()));
+            }
+        }
+        for(ModelStore.Entry entry:store.list()){
+            if(isReplaced(entry.getKind()) &&
+                    !keys.contains(key(entry.getKeyboardHash(), entry.getKind()))){
+                edit.remove(entry.getKeyboardHash(), entry.getKind());
+            }
+        }
+        return edit;
+    }
+
+    private static boolean isReplaced(int kind){
+        return kind == ModelStore.KIND_KEYSTATS || kind == ModelStore.KIND_HITBOXES ||
+                kind == ModelStore.KIND_BACKOFF;
+    }
+
+    private static long key(int keyboardHash, int kind){
+        return ((long) keyboardHash << 32) | (kind & 0xFFFFFFFFL);
+    }
+
+    private static boolean isDerived(String name){
+        return name.indexOf('/') < 0 && !name.endsWith(".tmp") && !name.endsWith(STAGING_SUFFIX) &&
+                (name.startsWith("HitboxRaster") | name.startsWith("Posture") |
+                        name.startsWith("Geometry")) && name.endsWith(".ser");
+    }
+
+    private static File[] listDerived(Context context){
+        File[] files = new File(context.getFilesDir(), DERIVED_FOLDER).listFiles();
+        ArrayList<File> derived = new ArrayList<>();
+        for(File file:files != null ? files : new File[0]){
+            if(isDerived(file.getName())){
+                derived.add(file);
+            }
+        }
+        return derived.toArray(new File[derived.size()]);
+    }
+
+    private static ByteBuffer readEntry(ZipInputStream zip, byte[] buffer) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(BUFFER_BYTES);
+        int count;
+        while((count = zip.read(buffer)) != -1){
+            bos.write(buffer, 0, count);
+        }
+        return ByteBuffer.wrap(bos.toByteArray());
+    }
+
+    // decodes a staged derived file, so that a broken one fails the import before anything is
+    // changed instead of being dropped by the keyboard later on
+    private static void checkDerived(File file, String name) throws IOException {
+        Class<?> type = name.startsWith("HitboxRaster") ? HitboxRaster.class
+                : name.startsWith("Posture") ? PostureModel.class : KeyboardGeometry.class;
+        FileInputStream fis = new FileInputStream(file);
+        try{
+            ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(fis,
+                    BUFFER_BYTES));
+            Object derived = ois.readObject();
+            if(!type.isInstance(derived)){
+                throw new IOException(name + " holds a " + derived.getClass().getSimpleName());
+            }
+        } catch(ClassNotFoundException e){
+            throw new IOException("Invalid file " + name + ": " + e.toString());
+        } catch(RuntimeException e){
+            throw new IOException("Invalid file " + name + ": " + e.toString());
+        } finally {
+            fis.close();
+        }
+    }
+
+    private static void writeEntry(ZipInputStream zip, File file, byte[] buffer)
+            throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try{
+            int count;
+            while((count = zip.read(buffer)) != -1){
+                fos.write(buffer, 0, count);
+            }
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+    }
+
+    // reports whole percents of the bytes processed so far
+    private static class Progress {
+        private final long mTotal;
+        private final ProgressListener mListener;
+        private long mDone;
+        private int mPercent = -1;
+
+        Progress(long total, ProgressListener listener){
+            mTotal = total;
+            mListener = listener;
+        }
+
+        void add(long bytes){
+            mDone += bytes;
+            if(mTotal > 0){
+                report((int) Math.min(99, mDone * 100 / mTotal));
+            }
+        }
+
+        void done(){
+            report(100);
+        }
+
+        private void report(int percent){
+            if(percent != mPercent && mListener != null){
+                mPercent = percent;
+                mListener.onProgress(percent);
+            }
+        }
+    }
+
+    // counts the compressed bytes of an import
+    private static class CountingInputStream extends FilterInputStream {
+        private final Progress mProgress;
+
+        CountingInputStream(InputStream in, Progress progress){
+            super(in);
+            mProgress = progress;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b != -1){
+                mProgress.add(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if(count > 0){
+                mProgress.add(count);
+            }
+            return count;
+        }
+    }
+}
@@ -19,21 +19,73 @@ package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
 import android.content.Context;
 import android.util.Log;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.ListIterator;
+import java.util.List;
 
 public class LayoutLearner {
     public static final int MIN_FREQUENCY_FOR_ADAPTION = 5;
-    private final int NUMBER_DATA_POINTS_CAP = 7500;
+    // after how many keystrokes on a keyboard an observation only counts half
+    public static final int DEFAULT_DECAY_HALF_LIFE = 5000;
+    // time the KeyModelRefiner may spend per run when learning in the background
+    public static final int REFINEMENT_BUDGET_MILLIS = 2000;
     private final int MIN_DP_WIDTH = 18;
     private final int MIN_DP_HEIGHT = 24;
+    // time the BorderSolver may spend on a single keyboard
+    private final int BORDER_SOLVER_BUDGET_MILLIS = 500;
     private final int MIN_PIXEL_WIDTH;
     private final int MIN_PIXEL_HEIGHT;
+    // version of the journal record in the ModelStore (see writeJournal)
+    private static final int JOURNAL_VERSION = 1;
+
+    // the points of learn() at which a FaultInjector and the ProgressListener are called
+    // the cache is read, nothing is written yet
+    public static final int STAGE_CACHE_READ = 1;
+    // the rasters and posture models are written, the ModelStore is not
+    public static final int STAGE_MODELS_DERIVED = 2;
+    // the new ModelStore is written and synced, but does not replace the old one yet
+    public static final int STAGE_STORE_WRITTEN = 3;
+    // the ModelStore is replaced, no Logger file is deleted yet
+    public static final int STAGE_COMMITTED = 4;
+    // a Logger file was deleted (called once per file)
+    public static final int STAGE_LOGGER_DELETED = 5;
+
+    // lets tests make a run fail at a given stage, e.g. by throwing an exception
+    interface FaultInjector {
+        void onStage(int stage);
+    }
+
+    // is told which stage a run reached, e.g. to show the progress of a manual run
+    public interface ProgressListener {
+        void onStage(int stage);
+    }
 
     final static String TAG = LayoutLearner.class.getSimpleName();
+    // two runs at once would learn the same Loggers twice. Imports take it as well (see
+    // LayoutBackup.restore), so that they do not interleave with a run
+    static final Object sRunLock = new Object();
     Context mContext;
+    private int mDecayHalfLife = DEFAULT_DECAY_HALF_LIFE;
+    private long mRefinementBudgetMillis = 0;
+    // the Logger files that the last readCache() learnt from
+    private final ArrayList<File> mConsumed = new ArrayList<>();
+    // the cached Loggers that could not be read are moved to this folder of the cache
+    static final String QUARANTINE_FOLDER = "LoggerQuarantine";
+    private static final int MAX_QUARANTINED = 8;
+    private FaultInjector mFaultInjector;
+    private ProgressListener mProgressListener;
 
     public LayoutLearner(Context context){
         mContext = context;
@@ -47,86 +99,401 @@ public class LayoutLearner {
         MIN_PIXEL_HEIGHT = minPixelHeight;
     }
 
-    public void learn(){
+    // sets after how many keystrokes on a keyboard an observation only counts half (0 = never)
+    public void setDecayHalfLife(int halfLife){
+        mDecayHalfLife = halfLife;
+    }
+
+    public int getDecayHalfLife(){ return mDecayHalfLife; }
+
+    // sets how long the soft-assignment refinement of the new KeyStats may take per run
+    // (see KeyModelRefiner, 0 = no refinement)
+    public void setRefinementBudget(long millis){
+        mRefinementBudgetMillis = millis;
+    }
+
+    public int getMinPixelWidth(){ return MIN_PIXEL_WIDTH; }
+
+    public int getMinPixelHeight(){ return MIN_PIXEL_HEIGHT; }
+
+    void setFaultInjector(FaultInjector faultInjector){
+        mFaultInjector = faultInjector;
+    }
+
+    public void setProgressListener(ProgressListener progressListener){
+        mProgressListener = progressListener;
+    }
+
+    private void reach(int stage){
+        if(mFaultInjector != null){
+            mFaultInjector.onStage(stage);
+        }
+        if(mProgressListener != null){
+            mProgressListener.onStage(stage);
+        }
+    }
+
+    // A run is a transaction: the cached Loggers are the journal of keystrokes that were not
+    // learnt yet. Everything learnt from them is committed in one update of the ModelStore,
+    // together with the names of the Loggers, and only then are the Loggers deleted. If the run
+    // dies before the commit, the next run learns the same Loggers again from the same old state.
+    // If it dies after the commit, the next run deletes the Loggers named in the journal record
+    // instead of learning them twice (see readCache). Runs are serialized. Returns false if the
+    // cache could not be learnt and is kept for the next run
+    public boolean learn(){
+        synchronized(sRunLock){
+            return runTransaction();
+        }
+    }
+
+    private boolean runTransaction(){
         Log.i(TAG, "Launching LayoutLearner");
         logStatus();
 
         // read cache
-        Logger cache = readCache();
+        ArrayList<Logger> loggers = readCachedLoggers();
+        reach(STAGE_CACHE_READ);
+        if(mConsumed.isEmpty()){
+            Log.i(TAG, "LayoutLearner done, nothing to learn.");
+            return true;
+        }
+
+        // learn from the touches that the user corrected. The edit history of each Logger has
+        // its own text positions and clock, so the corrections are mined before they are merged
+        int relabelled = 0;
+        Logger cache = new Logger();
+        for(Logger logger:loggers){
+            relabelled += CorrectionMiner.mine(logger);
+            cache.append(logger);
+        }
         Log.d(TAG, "Found " + cache.size() + " logged keystrokes");
+        Log.d(TAG, "Relabelled " + relabelled + " corrected keystrokes");
 
         // summarize cache into corresponding keyStats
         HitboxesSwitcher oldHitboxes = new HitboxesSwitcher(mContext);
-        KeyStatsSwitcher newStats = summarizeCache(cache, oldHitboxes);
-
-        // merge with the existing KeyStats and cap data (so that new value will be weighted more
-        // than old data by exponential smoothing)
-        KeyStatsSwitcher oldStats = new KeyStatsSwitcher(mContext);
-        for(KeyStats ks:newStats){
-            oldStats.getKeyStats(ks.getKeyboardHash());
+        KeyStatsSwitcher oldStats = new KeyStatsSwitcher(mContext, mDecayHalfLife);
+        KeyStatsSwitcher newStats = summarizeCache(cache, oldHitboxes, oldStats);
+        HashMap<Integer, ArrayList<Logger.LogItem>> touches =
+                collectTouches(cache, oldHitboxes, oldStats);
+        if(mRefinementBudgetMillis > 0){
+            KeyModelRefiner refiner = new KeyModelRefiner(mRefinementBudgetMillis, mDecayHalfLife);
+            int nRefined = refiner.refine(newStats, oldStats, oldHitboxes, touches);
+            Log.d(TAG, "Refined the KeyStats of " + nRefined + " keyboards" +
+                    (refiner.isCompleted() ? "" : " (budget used up)"));
         }
-        newStats.merge(oldStats);
+
+        // share the new observations with related keyboards
+        BackoffStats backoff = BackoffStats.load(mContext, mDecayHalfLife);
+        HashMap<Integer, KeyboardGeometry> geometries = new HashMap<>();
         for(KeyStats ks:newStats){
-            ks.reduceData(Math.min(((double) NUMBER_DATA_POINTS_CAP) / Math.min(1, ks.getN()), 1.0));
+            KeyboardGeometry geometry = KeyboardGeometry.load(mContext, ks.getKeyboardHash());
+            if(geometry != null){
+                geometries.put(ks.getKeyboardHash(), geometry);
+                backoff.update(ks, geometry);
+            }
         }
-        newStats.save();
 
-        // compute the key hitboxes
-        computeAllHitboxes(newStats, oldHitboxes, MIN_PIXEL_WIDTH, MIN_PIXEL_HEIGHT);
-        oldHitboxes.save();
+        // append the new observations to the existing KeyStats. Old observations fade out
+        // continuously with an exponential decay, so new values are weighted more than old data
+        newStats.prepend(oldStats);
+
+        // compute the key hitboxes from the stats backed off to the ones of related keyboards
+        KeyStatsSwitcher solveStats = backoffAll(newStats, backoff, geometries);
+        solveAllHitboxes(solveStats, oldHitboxes,
+                new BorderSolver(MIN_PIXEL_WIDTH, MIN_PIXEL_HEIGHT, BORDER_SOLVER_BUDGET_MILLIS));
+        // the rasters have to be written first, since new Hitboxes trigger the rebuild. They are
+        // derived from the committed state, so a run that dies after this only leaves them ahead
+        // of it until the next run writes them again
+        compileAllRasters(solveStats, oldHitboxes);
+        fitAllPostures(solveStats, oldHitboxes, touches);
+        reach(STAGE_MODELS_DERIVED);
+
+        // commit everything that was learnt from the cache at once, as a generation that the
+        // user can roll back if the layouts got worse (see rollback)
+        ModelStore.Edit edit = ModelStore.get(mContext).edit().asGeneration();
+        backoff.saveTo(edit);
+        newStats.saveTo(edit);
+        int nSaved = oldHitboxes.saveTo(edit);
+        writeJournal(edit, mConsumed);
+        boolean committed = edit.commit(new Runnable() {
+            @Override
+            public void run() {
+                reach(STAGE_STORE_WRITTEN);
+            }
+        });
+        if(!committed){
+            Log.e(TAG, "Could not commit what was learnt, the cache is kept for the next run");
+            return false;
+        }
+        oldHitboxes.onCommitted();
+        Log.d(TAG, "Saved the Hitboxes of " + nSaved + " changed keyboards");
+        reach(STAGE_COMMITTED);
+
+        // advance the journal
+        for(File file:mConsumed){
+            file.delete();
+            reach(STAGE_LOGGER_DELETED);
+        }
+        mConsumed.clear();
 
         Log.i(TAG, "LayoutLearner done.");
         logStatus();
+        return true;
     }
 
-    // reads all Logger objects saved in the cache and appends them together to one Logger object
-    public Logger readCache(){
-        Logger allLogs = new Logger();
-        try{
-            // get a list of all saved Logger objects in cache
-            File folder = new File(mContext.getCacheDir(),"Logger");
-            if(!folder.exists()){
-                return allLogs;
+    // undoes a generation of the models (a learner run or an import) and all newer ones, see
+    // ModelStore.rollback. The rasters and posture models of the keyboards that are rolled back
+    // were derived from the undone models, so they are dropped and the next run compiles them
+    // again. Returns whether it succeeded
+    public boolean rollback(int generation){
+        synchronized(sRunLock){
+            ModelStore.Edit edit = ModelStore.get(mContext).rollback(generation);
+            if(edit == null){
+                return false;
+            }
+            // the derived files go first, since the restored hitboxes make the keyboards rebuild
+            for(Integer keyboardHash:edit.getKeyboardHashes()){
+                HitboxRaster.delete(mContext, keyboardHash);
+                PostureModel.delete(mContext, keyboardHash);
             }
-            File[] cachedFiles = folder.listFiles(new FilenameFilter() {
+            if(!edit.commit()){
+                return false;
+            }
+            Log.i(TAG, "Rolled back to the models before generation " + generation);
+            return true;
+        }
+    }
+
+    // deletes the cached keystrokes and the learnt layouts of all keyboards, so that they start
+    // over from their defaults. Waits for a running run, which would write the models again.
+    // Returns whether the models could be deleted
+    public boolean reset(){
+        synchronized(sRunLock){
+            // delete all Loggers:
+            deleteFiles(new File(mContext.getCacheDir(), "Logger"), new FilenameFilter() {
                 @Override
                 public boolean accept(File file, String filename) {
                     return filename.startsWith("Logger") & filename.endsWith(".ser");
                 }
             });
 
-            // append all cached Loggers together
-            for(File file:cachedFiles){
-                Logger cur = Logger.load(mContext, file.getPath());
-                allLogs.append(cur);
+            // delete the hitboxes and KeyStats of all keyboards:
+            if(!ModelStore.get(mContext).clear()){
+                return false;
+            }
+
+            // delete their rasters and posture models (and files of the old format):
+            deleteFiles(new File(mContext.getFilesDir(), "Hitboxes"), new FilenameFilter() {
+                @Override
+                public boolean accept(File file, String filename) {
+                    return (filename.startsWith("Hitboxes") | filename.startsWith("HitboxRaster") |
+                            filename.startsWith("Posture")) &
+                            (filename.endsWith(".bin") | filename.endsWith(".ser"));
+                }
+            });
+
+            // delete the stats shared between keyboards (and files of the old format):
+            deleteFiles(new File(mContext.getFilesDir(), "KeyStats"), new FilenameFilter() {
+                @Override
+                public boolean accept(File file, String filename) {
+                    return (filename.startsWith("KeyStats") | filename.startsWith("BackoffStats")) &
+                            (filename.endsWith(".bin") | filename.endsWith(".ser"));
+                }
+            });
+            Log.i(TAG, "Reset all layouts");
+            return true;
+        }
+    }
+
+    private static void deleteFiles(File folder, FilenameFilter filter){
+        File[] files = folder.listFiles(filter);
+        if(files != null){
+            for(File file:files){
                 file.delete();
             }
+        }
+    }
+
+    // computes the hitboxes of a keyboard that was just seen for the first time from the shared
+    // stats of related keyboards (e.g. the same layout in another size), so that it does not
+    // have to be learnt from scratch. It runs like a learner run, so it never overwrites what a
+    // run or a live update saved in the meantime. Keyboards that already have stats of their own
+    // are left to the learner. Returns whether hitboxes were saved
+    public boolean projectLayout(KeyboardGeometry geometry){
+        synchronized(sRunLock){
+            if(ModelStore.get(mContext).find(geometry.getKeyboardHash(),
+                    ModelStore.KIND_KEYSTATS) != null){
+                return false;
+            }
+            BackoffStats backoff = BackoffStats.load(mContext, mDecayHalfLife);
+            KeyStats stats = backoff.backoff(new KeyStats(geometry.getKeyboardHash()), geometry);
+            if(stats.getN() <= MIN_FREQUENCY_FOR_ADAPTION){
+                return false;
+            }
 
-            Log.d(TAG, "Read " + cachedFiles.length + " cached Loggers");
-        } catch(Exception e){
-            Log.e(TAG, "Failed to load cache: " + e.toString());
+            Hitboxes hitb = geometry.getDefaults().copy();
+            BorderSolver solver = new BorderSolver(MIN_PIXEL_WIDTH, MIN_PIXEL_HEIGHT,
+                    BORDER_SOLVER_BUDGET_MILLIS);
+            solver.solve(stats, hitb);
+            // the raster has to be written first, since a new Hitboxes file triggers the rebuild.
+            // A posture model would replace it, but belongs to other hitboxes
+            PostureModel.delete(mContext, geometry.getKeyboardHash());
+            HitboxRaster raster = HitboxRaster.compile(stats, hitb);
+            if(raster != null){
+                raster.save(mContext);
+            }
+            hitb.save(mContext);
+            Log.i(TAG, "Projected Hitboxes of keyboard " + geometry.getKeyboardHash() +
+                    " from related keyboards");
+            return true;
         }
+    }
 
+    // reads all Logger objects saved in the cache and appends them together to one Logger object.
+    // The files are kept until learn() committed what it learnt from them. Files that the last
+    // committed run already learnt from are deleted instead of being read again
+    public Logger readCache(){
+        Logger allLogs = new Logger();
+        for(Logger logger:readCachedLoggers()){
+            allLogs.append(logger);
+        }
         return allLogs;
     }
 
+    // reads the Logger objects saved in the cache like readCache, but keeps them apart. A file that
+    // cannot be read is moved to the quarantine, so that it neither blocks the other files nor is
+    // consumed as if it had been learnt
+    public ArrayList<Logger> readCachedLoggers(){
+        ArrayList<Logger> loggers = new ArrayList<>();
+        mConsumed.clear();
+        // get a list of all saved Logger objects in cache
+        File folder = new File(mContext.getCacheDir(),"Logger");
+        File[] cachedFiles = folder.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File file, String filename) {
+                return filename.startsWith("Logger") & filename.endsWith(".ser");
+            }
+        });
+        if(cachedFiles == null){
+            return loggers;
+        }
+
+        // the oldest first, since newer keystrokes are weighted more (see KeyStats.setHalfLife)
+        sortOldestFirst(cachedFiles);
+        HashSet<String> learnt = readJournal();
+        for(File file:cachedFiles){
+            if(learnt.contains(file.getName())){
+                file.delete();
+                continue;
+            }
+            Logger logger = Logger.load(mContext, file.getPath());
+            if(logger == null){
+                quarantine(file);
+                continue;
+            }
+            loggers.add(logger);
+            mConsumed.add(file);
+        }
+
+        Log.d(TAG, "Read " + mConsumed.size() + " cached Loggers");
+        return loggers;
+    }
+
+    // moves a Logger file that could not be read out of the cache. Only the newest few are kept
+    // for debugging, the cache must not grow without bounds
+    private void quarantine(File file){
+        File folder = new File(mContext.getCacheDir(), QUARANTINE_FOLDER);
+        if(!folder.exists()){
+            folder.mkdir();
+        }
+        if(!file.renameTo(new File(folder, file.getName()))){
+            Log.e(TAG, "Failed to quarantine " + file.getName());
+            file.delete();
+            return;
+        }
+        Log.e(TAG, "Quarantined unreadable Logger " + file.getName());
+        File[] quarantined = folder.listFiles();
+        if(quarantined == null || quarantined.length <= MAX_QUARANTINED){
+            return;
+        }
+        sortOldestFirst(quarantined);
+        for(int i = 0; i < quarantined.length - MAX_QUARANTINED; i++){
+            quarantined[i].delete();
+        }
+    }
+
+    // sorts files by their modification date and name
+    static void sortOldestFirst(File[] files){
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                if(a.lastModified() != b.lastModified()){
+                    return a.lastModified() < b.lastModified() ? -1 : 1;
+                }
+                return a.getName().compareTo(b.getName());
+            }
+        });
+    }
+
+    // adds the names of the Logger files that a run learnt from to its update of the ModelStore.
+    // The record replaces the one of the previous run, whose Loggers are deleted by then
+    private static void writeJournal(ModelStore.Edit edit, ArrayList<File> consumed){
+        try{
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeInt(consumed.size());
+            for(File file:consumed){
+                dos.writeUTF(file.getName());
+            }
+            dos.close();
+            edit.put(ModelStore.NO_KEYBOARD, ModelStore.KIND_JOURNAL, JOURNAL_VERSION,
+                    ByteBuffer.wrap(bos.toByteArray()));
+        } catch(IOException e){
+            Log.e(TAG, "Failed to write the journal: " + e.toString());
+        }
+    }
+
+    // returns the names of the Logger files that the last committed run learnt from
+    private HashSet<String> readJournal(){
+        HashSet<String> names = new HashSet<>();
+        ByteBuffer data = ModelStore.get(mContext).read(ModelStore.NO_KEYBOARD,
+                ModelStore.KIND_JOURNAL);
+        if(data == null){
+            return names;
+        }
+        try{
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+            int nNames = dis.readInt();
+            for(int i = 0; i < nNames; i++){
+                names.add(dis.readUTF());
+            }
+            dis.close();
+        } catch(IOException e){
+            Log.e(TAG, "Failed to read the journal: " + e.toString());
+        }
+        return names;
+    }
+
     // Takes the cache and summarizes the logged button presses into a KeyStats object.
     // Uses oldHitboxes for outlier removal
     public KeyStatsSwitcher summarizeCache(Logger cache, HitboxesSwitcher oldHitboxes){
-        KeyStatsSwitcher kss = new KeyStatsSwitcher(mContext);
+        return summarizeCache(cache, oldHitboxes, null);
+    }
+
+    // Takes the cache and summarizes the logged button presses into a KeyStats object.
+    // Touches are outliers if they lie outside of their key's hitbox and far outside of the
+    // quartiles of the key's previous touches in oldStats. Keys without enough previous touches
+    // fall back to the rough check whether the touch is close to the hitbox in oldHitboxes
+    public KeyStatsSwitcher summarizeCache(Logger cache, HitboxesSwitcher oldHitboxes,
+                                           KeyStatsSwitcher oldStats){
+        KeyStatsSwitcher kss = new KeyStatsSwitcher(mContext, mDecayHalfLife);
 
         Iterator<Logger.LogItem> it = cache.iterator();
         while(it.hasNext()){
             Logger.LogItem cur = it.next();
-            boolean isTooFarAway = false;
-            if(oldHitboxes != null){
-                Hitbox hitb = oldHitboxes.getHitboxes(cur.getKeyboardHash()).findCode(cur.getCode());
-                if(hitb != null) {
-                    isTooFarAway = !hitb.isClose(cur.getPosX(), cur.getPosY());
-                }
-            }
-
-            if(!isTooFarAway & !cur.isDeleted()){
+            if(isUsable(cur, oldHitboxes, oldStats)){
                 // we have to explicitly look this up or else getKeyStats will load old existing KeyStats objects
                 if(!kss.hasKeyStats(cur.getKeyboardHash())){
                     kss.createKeyStats(cur.getKeyboardHash());
@@ -138,27 +505,121 @@ public class LayoutLearner {
         return kss;
     }
 
-    // wrapper that applies computeHitboxes to all KeyStats and Hitboxes inside the switchers
-    public static void computeAllHitboxes(KeyStatsSwitcher kss, HitboxesSwitcher hbs,
-                                          int minWidth, int minHeight){
-        ListIterator<KeyStats> it = kss.listIterator();
+    // returns the touches that summarizeCache uses, grouped by their keyboard hash
+    public HashMap<Integer, ArrayList<Logger.LogItem>> collectTouches(Logger cache,
+            HitboxesSwitcher oldHitboxes, KeyStatsSwitcher oldStats){
+        HashMap<Integer, ArrayList<Logger.LogItem>> touches = new HashMap<>();
+        Iterator<Logger.LogItem> it = cache.iterator();
         while(it.hasNext()){
-            KeyStats ks = it.next();
+            Logger.LogItem cur = it.next();
+            if(isUsable(cur, oldHitboxes, oldStats)){
+                ArrayList<Logger.LogItem> keyboardTouches = touches.get(cur.getKeyboardHash());
+                if(keyboardTouches == null){
+                    keyboardTouches = new ArrayList<>();
+                    touches.put(cur.getKeyboardHash(), keyboardTouches);
+                }
+                keyboardTouches.add(cur);
+            }
+        }
+        return touches;
+    }
+
+    // whether a logged touch is neither deleted nor an outlier
+    private boolean isUsable(Logger.LogItem cur, HitboxesSwitcher oldHitboxes,
+                             KeyStatsSwitcher oldStats){
+        if(cur.isDeleted()){
+            return false;
+        }
+        boolean isTooFarAway = false;
+        Hitbox hitb = null;
+        if(oldHitboxes != null){
+            hitb = oldHitboxes.getHitboxes(cur.getKeyboardHash()).findCode(cur.getCode());
+        }
+        KeyStat oldStat = null;
+        if(oldStats != null){
+            oldStat = oldStats.getKeyStats(cur.getKeyboardHash()).findCode(cur.getCode());
+        }
+        if(oldStat != null && oldStat.hasRobustEstimates()){
+            isTooFarAway = oldStat.isOutlier(cur.getPosX(), cur.getPosY()) &
+                    (hitb == null || !hitb.contains(cur.getPosX(), cur.getPosY()));
+        } else if(hitb != null) {
+            isTooFarAway = !hitb.isClose(cur.getPosX(), cur.getPosY());
+        }
+        return !isTooFarAway;
+    }
+
+    // backs off the KeyStats of all keyboards with a known geometry to the shared stats
+    // (see BackoffStats). The other KeyStats are used as they are
+    public KeyStatsSwitcher backoffAll(KeyStatsSwitcher kss, BackoffStats backoff,
+                                       HashMap<Integer, KeyboardGeometry> geometries){
+        KeyStatsSwitcher backedOff = new KeyStatsSwitcher(mContext, mDecayHalfLife);
+        for(KeyStats ks:kss){
+            KeyboardGeometry geometry = geometries.get(ks.getKeyboardHash());
+            backedOff.add(geometry == null ? ks : backoff.backoff(ks, geometry));
+        }
+        return backedOff;
+    }
+
+    // wrapper that applies the joint BorderSolver to all KeyStats and Hitboxes inside the switchers
+    public static void solveAllHitboxes(KeyStatsSwitcher kss, HitboxesSwitcher hbs,
+                                        BorderSolver solver){
+        for(KeyStats ks:kss){
             Hitboxes hb = hbs.getHitboxes(ks.getKeyboardHash());
-            Log.d(TAG, "Computing Hitboxes of keyboard " + ks.getKeyboardHash());
-            computeHitboxes(ks, hb, minWidth, minHeight);
+            solver.solve(ks, hb);
+            Log.d(TAG, "Solved Hitboxes of keyboard " + ks.getKeyboardHash() + " in " +
+                    solver.getIterations() + " iterations" +
+                    (solver.isCompleted() ? "" : " (budget exceeded)"));
+        }
+    }
+
+    // compiles the touch classification raster of each keyboard in the switchers and saves the
+    // ones that changed. Their keyboards are marked dirty, so that the new raster gets used
+    public void compileAllRasters(KeyStatsSwitcher kss, HitboxesSwitcher hbs){
+        for(KeyStats ks:kss){
+            HitboxRaster raster = HitboxRaster.compile(ks, hbs.getHitboxes(ks.getKeyboardHash()));
+            if(raster != null &&
+                    !raster.hasSameCells(HitboxRaster.load(mContext, ks.getKeyboardHash()))){
+                raster.save(mContext);
+                hbs.markDirty(ks.getKeyboardHash());
+            }
+        }
+    }
+
+    // fits the posture models of all keyboards with enough new touches (see PostureModel) and
+    // saves them. Keyboards whose posture rasters changed are marked dirty, so that they get used.
+    // Has to be called after compileAllRasters. The posture rasters replace the main raster, so a
+    // keyboard without enough touches only keeps its previous model if neither its hitboxes nor
+    // its raster changed. Otherwise the model was compiled against the old hitboxes and is dropped
+    public void fitAllPostures(KeyStatsSwitcher kss, HitboxesSwitcher hbs,
+                               HashMap<Integer, ArrayList<Logger.LogItem>> touches){
+        for(KeyStats ks:kss){
+            int keyboardHash = ks.getKeyboardHash();
+            Hitboxes hitb = hbs.getHitboxes(keyboardHash);
+            ArrayList<Logger.LogItem> keyboardTouches = touches.get(keyboardHash);
+            PostureModel model = keyboardTouches == null ? null :
+                    PostureModel.fit(keyboardTouches, hitb, ks, mDecayHalfLife);
+            PostureModel saved = PostureModel.load(mContext, keyboardHash);
+            if(model != null){
+                // saving an unchanged model would only rebuild the keyboard
+                if(!model.hasSameRasters(saved)){
+                    hbs.markDirty(keyboardHash);
+                    model.save(mContext);
+                }
+                Log.d(TAG, "Found " + model.getSize() + " postures on keyboard " + keyboardHash);
+            } else if(saved != null && hbs.isDirty(hitb)){
+                hbs.markDirty(keyboardHash);
+                PostureModel.delete(mContext, keyboardHash);
+                Log.d(TAG, "Dropped the outdated postures of keyboard " + keyboardHash);
+            }
         }
     }
 
-    // updates the hitboxes by using the statistics gathered in some Keystats object using
-    // normal-distribution modelling under some constraints (see documentation)
-    public static void computeHitboxes(KeyStats stats, Hitboxes hitb, int minWidth, int minHeight){
+    // summarizes the KeyStats of each row of a keyboard into one KeyStat per row.
+    // We will abuse the KeyStats class for this a little. The code gives the top coordinate of
+    // the row to identify whether a key belongs to this row or not
+    public static KeyStats computeRowStats(KeyStats stats, Hitboxes hitb){
         // we will use the fact that the hitboxes object containts all keys in the order topleft to
         // bottomright
-
-        // first we care about the vertical layout, that is how much height each row is assigned
-        // we will abuse the KeyStats class for this a little. The code gives the top coordinate of
-        // the row to identify whether a key belongs to this row or not
         KeyStats cumRow = new KeyStats(stats.getKeyboardHash());
         KeyStat curRow = null;
         int nAllKeys = 0;
@@ -195,180 +656,22 @@ public class LayoutLearner {
             curRow.multiplyN((double) nAllKeys / (nAllKeys - nSpecialKeys));
         }
 
-        int sumN = 0;
-        Iterator<KeyStat> rowIt = cumRow.iterator();
-        while(rowIt.hasNext()){
-            sumN += rowIt.next().getN();
-        }
-
-        // compute the actual borders of each row and insert it into the corresponding hitboxes
-        if(cumRow.size() > 1){
-            rowIt = cumRow.iterator();
-            curRow = rowIt.next();
-            Hitbox curHit = hitb.findRowStart(curRow.getCode());
-            while(rowIt.hasNext()){
-                KeyStat nextRow = rowIt.next();
-                Hitbox nextHit = hitb.findRowStart(nextRow.getCode());
-
-                // if a row has too few observations (such as the bottom row, which only consists of
-                // special keys), dont do any changes
-                if(curHit != null && nextHit != null &&
-                        curRow.getN() > MIN_FREQUENCY_FOR_ADAPTION &&
-                        nextRow.getN() > MIN_FREQUENCY_FOR_ADAPTION) {
-                        int curTop = curHit.getTopLeft().getY();
-                        int curBottom = curHit.getBottomLeft().getY();
-                        int nextTop = nextHit.getTopLeft().getY();
-                        int nextBottom = nextHit.getBottomLeft().getY();
-                        int border = computeBorder(curTop, curBottom, nextTop, nextBottom,
-                                curRow.getMeanY(), nextRow.getMeanY(), curRow.getVarY(), nextRow.getVarY(),
-                                (double) curRow.getN() / sumN, (double) nextRow.getN() / sumN);
-
-                        boolean fulfillsMinSize = Math.abs(border - curTop) >= minHeight &
-                                Math.abs(border - nextBottom) >= minHeight;
-
-                        if (border != curBottom & fulfillsMinSize) {
-                            //Log.d(TAG, "Adapted border of row " + curHit.getCode() + " from " + curBottom + " to " + border);
-                            // assign the new border to all involved hitboxes
-                            hitIt = hitb.iterator();
-                            while (hitIt.hasNext()) {
-                                Hitbox curHitb = hitIt.next();
-                                if (curHitb.getBottomLeft().getY() == curBottom) {
-                                    curHitb.setBottom(border);
-                                } else if (curHitb.getTopLeft().getY() == nextTop) {
-                                    curHitb.setTop(border);
-                                }
-                            }
-                        }
-
-
-                }
-
-                curRow = nextRow;
-                curHit = nextHit;
-            }
-        }
-
-        // now we'll take care of the horizontal layout
-        hitIt = hitb.iterator();
-        Hitbox curHit = hitIt.next();
-        KeyStat curStat = stats.findCode(curHit.getCode());
-        //TODO: Set curHit's xLeft to 0
-        Hitbox nextHit;
-        rowIt = cumRow.iterator();
-        curRow = rowIt.next();
-        while(hitIt.hasNext()){
-            nextHit = hitIt.next();
-            KeyStat nextStat = stats.findCode(nextHit.getCode());
-            // check if the two keys are in the same row
-            if(curHit.getTopLeft().getY() == nextHit.getTopLeft().getY()){
-                // Don't edit special keys or rarely occuring keys
-                if(curStat != null && nextStat != null &&
-                        curStat.getN() > MIN_FREQUENCY_FOR_ADAPTION &&
-                        nextStat.getN() > MIN_FREQUENCY_FOR_ADAPTION &&
-                        curRow.getN() > MIN_FREQUENCY_FOR_ADAPTION){
-                    int curLeft = curHit.getTopLeft().getX();
-                    int curRight = curHit.getTopRight().getX();
-                    int nextLeft = nextHit.getTopLeft().getX();
-                    int nextRight = nextHit.getTopRight().getX();
-                    int border = computeBorder(curLeft, curRight, nextLeft, nextRight,
-                            curStat.getMeanX(), nextStat.getMeanX(), curStat.getVarX(), nextStat.getVarX(),
-                            (double) curStat.getN() / curRow.getN(), (double) nextStat.getN() / curRow.getN());
-
-                    // prevent making the keys too small
-                    if(Math.abs(border - curLeft) < minWidth){
-                        border = curLeft + minWidth;
-                    }
-                    if(Math.abs(border - nextRight) < minWidth){
-                        border = nextRight - minWidth;
-                    }
-
-
-                    // border could still be conflicting minSize if the keys were already too small
-                    // before; Then we do not change anything
-                    boolean fulfillsMinSize = Math.abs(border - curLeft) >= minWidth &
-                            Math.abs(border - nextRight) >= minWidth;
-
-                    if(border != curRight & fulfillsMinSize){
-                        //Log.d(TAG, "Adapted border of key " + curHit.getCode() + " from " + curRight + " to " + border);
-                        curHit.setRight(border);
-                        nextHit.setLeft(border);
-                    }
-                }
-            } else {
-                //TODO: Set curHit's xRight to keyboard width and nextHit's xLeft to 0
-                curRow = rowIt.next();
-            }
-            curHit = nextHit;
-            curStat = nextStat;
-        }
-    }
-
-    // computes the breakpoint at which the right normal distribution gets bigger than the left one
-    // (breakpoint is rounded down to next int)
-    public static int computeBorder(int startLeft, int endLeft, int startRight, int endRight,
-                                    double meanLeft, double meanRight, double varLeft, double varRight,
-                                    double priorLeft, double priorRight){
-        // Handle special keys
-        if(priorRight == 0 | varRight == 0 | priorLeft == 0 | varLeft == 0){
-            return startRight;
-        }
-
-        // the following is just computing at which point two normal distributions intersect
-        int border;
-        if(varLeft - varRight != 0){
-            double p = (2 * meanRight * varLeft - 2 * meanLeft * varRight) / (varRight - varLeft);
-            double q = (varRight * meanLeft*meanLeft - varLeft * meanRight*meanRight - 2 * varLeft * varRight *
-                    (Math.log(priorLeft / Math.sqrt(varLeft)) - Math.log(priorRight / Math.sqrt(varRight)))) /
-                    (varRight - varLeft);
-            border = (int) Math.floor(- p / 2 - Math.sqrt((p / 2)*(p / 2) - q));
-            if(!(startLeft < border & border < endRight)){
-                border = (int) Math.floor(- p / 2 + Math.sqrt((p / 2)*(p / 2) - q));
-                if(!(startLeft < border & border < endRight)){
-                    border = endLeft;
-                }
-            }
-        } else {
-            border = (int) Math.floor((varLeft * 2 * (Math.log(priorLeft / Math.sqrt(varLeft)) - Math.log(priorRight / Math.sqrt(varRight))) - meanLeft*meanLeft + meanRight*meanRight) /
-                    (2 * (meanRight - meanLeft)));
-        }
-
-        return border;
+        return cumRow;
     }
 
     // logs the number of known hitboxes, keystats etc to the console
     // TODO: Move this to utils
     public void logStatus(){
-        File[] hitboxes = null;
-        File[] keyStats = null;
-        File hbFolder = new File(mContext.getFilesDir(),"Hitboxes");
-        if(hbFolder.exists()) {
-            hitboxes = hbFolder.listFiles(new FilenameFilter() {
-                @Override
-                public boolean accept(File file, String filename) {
-                    return filename.startsWith("Hitboxes") & filename.endsWith(".ser");
-                }
-            });
+        ModelStore store = ModelStore.get(mContext);
+        List<ModelStore.Entry> hitboxes = store.list(ModelStore.KIND_HITBOXES);
+        List<ModelStore.Entry> keyStats = store.list(ModelStore.KIND_KEYSTATS);
+        Log.i(TAG, "Found " + hitboxes.size() + " Hitboxes:");
+        for(ModelStore.Entry entry:hitboxes){
+            Log.i(TAG, entry.toString());
         }
-        File ksFolder = new File(mContext.getFilesDir(),"KeyStats");
-        if(ksFolder.exists()) {
-            keyStats = ksFolder.listFiles(new FilenameFilter() {
-                @Override
-                public boolean accept(File file, String filename) {
-                    return filename.startsWith("KeyStats") & filename.endsWith(".ser");
-                }
-            });
-        }
-        if(hitboxes != null){
-            Log.i(TAG, "Found " + hitboxes.length + " Hitboxes files:");
-            for(File file:hitboxes){
-                Log.i(TAG, file.getName());
-            }
-        }
-        if(keyStats != null){
-            Log.i(TAG, "Found " + keyStats.length + " KeyStats files:");
-            for(File file:keyStats){
-                Log.i(TAG, file.getName());
-            }
+        Log.i(TAG, "Found " + keyStats.size() + " KeyStats:");
+        for(ModelStore.Entry entry:keyStats){
+            Log.i(TAG, entry.toString());
         }
     }
 }
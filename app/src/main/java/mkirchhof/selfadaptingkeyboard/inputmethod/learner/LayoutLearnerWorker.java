@@ -17,15 +17,22 @@
 package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
 
 import android.content.Context;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.work.Data;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
-// this is a background task collecting the cached loggers and calculating an optimal keyboard layout
+import mkirchhof.selfadaptingkeyboard.inputmethod.latin.settings.Settings;
+
+// this is a background task collecting the cached loggers and calculating an optimal keyboard layout.
+// It is scheduled by the LearnerScheduler, or run right away when the user asks for it
 public class LayoutLearnerWorker extends Worker {
     private static final String TAG = LayoutLearnerWorker.class.getSimpleName();
+    // the progress key of the last stage of the LayoutLearner that the run reached (0 = none yet)
+    public static final String PROGRESS_STAGE = "stage";
     Context mContext;
 
     public LayoutLearnerWorker(@NonNull Context context, @NonNull WorkerParameters params){
@@ -33,15 +40,43 @@ public class LayoutLearnerWorker extends Worker {
         mContext = context;
     }
 
-    // this is the code chunk that gets called each night
+    // this is the code chunk that gets called once enough keystrokes are cached
     @Override
     public Result doWork(){
         Log.i(TAG, "Running scheduled LayoutLearner");
+        LearnerScheduler.Backlog backlog = LearnerScheduler.onRunStarted(mContext, getTags());
 
         LayoutLearner ll = new LayoutLearner(mContext);
+        // there is enough time in the background to refine the key models
+        ll.setRefinementBudget(LayoutLearner.REFINEMENT_BUDGET_MILLIS);
+        publishStage(0);
+        ll.setProgressListener(new LayoutLearner.ProgressListener() {
+            private int mLastStage = 0;
+
+            @Override
+            public void onStage(int stage) {
+                // a stage is reached once per deleted Logger, but only published once
+                if(stage != mLastStage){
+                    mLastStage = stage;
+                    publishStage(stage);
+                }
+            }
+        });
+
+        boolean learnt = ll.learn();
 
-        ll.learn();
+        // drop the models of keyboards that are not used anymore
+        long budget = Settings.readLearnerStorageBudget(
+                PreferenceManager.getDefaultSharedPreferences(mContext)) * 1024L * 1024L;
+        StorageQuota quota = new StorageQuota(mContext, budget, StorageQuota.DEFAULT_STALE_DAYS);
+        Log.i(TAG, "Learner storage: " + quota.enforce(ll));
+
+        LearnerScheduler.onRunFinished(mContext, backlog, learnt);
+
+        return learnt ? Result.success() : Result.failure();
+    }
 
-        return Result.success();
+    private void publishStage(int stage){
+        setProgressAsync(new Data.Builder().putInt(PROGRESS_STAGE, stage).build());
     }
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+// projects the hitboxes of a newly seen keyboard from related keyboards in the background
+// (see LayoutLearner.projectLayout). The keyboard is rebuilt with them once they are published.
+// It runs as unique work per keyboard, so a keyboard that is shown again while its projection
+// waits does not start another one
+public class LayoutProjectionWorker extends Worker {
+    private static final String TAG = LayoutProjectionWorker.class.getSimpleName();
+    private static final String WORK_NAME_PREFIX = "layout_projection_";
+    private static final String KEY_KEYBOARD_HASH = "keyboard_hash";
+    Context mContext;
+
+    public LayoutProjectionWorker(@NonNull Context context, @NonNull WorkerParameters params){
+        super(context, params);
+        mContext = context;
+    }
+
+    // projects the hitboxes of the keyboard whose KeyboardGeometry was just saved
+    public static void enqueue(Context context, int keyboardHash){
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(LayoutProjectionWorker.class)
+                .setInputData(new Data.Builder().putInt(KEY_KEYBOARD_HASH, keyboardHash).build())
+                .build();
+        try{
+            WorkManager.getInstance(context).enqueueUniqueWork(WORK_NAME_PREFIX + keyboardHash,
+                    ExistingWorkPolicy.KEEP, request);
+        } catch(Exception e){
+            Log.e(TAG, "Failed to schedule the projection of keyboard " + keyboardHash + ": " +
+                    e.toString());
+        }
+    }
+
+    @Override
+    public Result doWork(){
+        int keyboardHash = getInputData().getInt(KEY_KEYBOARD_HASH, 0);
+        KeyboardGeometry geometry = KeyboardGeometry.load(mContext, keyboardHash);
+        if(geometry == null){
+            return Result.success();
+        }
+        new LayoutLearner(mContext).projectLayout(geometry);
+        return Result.success();
+    }
+}
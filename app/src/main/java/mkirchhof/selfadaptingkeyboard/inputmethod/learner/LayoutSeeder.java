@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import mkirchhof.selfadaptingkeyboard.inputmethod.keyboard.Keyboard;
+
+// Saves the default hitboxes and the reference geometry of a keyboard that was built without
+// learned hitboxes, so that the LayoutLearner has something to learn on. A new geometry gets its
+// hitboxes projected from related keyboards (e.g. the same layout before a resize or rotation)
+// instead of starting to learn from scratch (see LayoutProjectionWorker).
+// Keyboards are built on the UI thread, so the KeyboardLayoutSet only hands the built keyboard
+// over and the files are written on a background thread, under the lock of the LayoutLearner.
+public class LayoutSeeder {
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private LayoutSeeder(){
+        // static methods only
+    }
+
+    // seeds a keyboard that was just built without learned hitboxes in the background
+    public static void seedInBackground(final Context context, final Keyboard keyboard){
+        final Context appContext = context.getApplicationContext();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                seed(appContext, keyboard);
+            }
+        });
+    }
+
+    // saves what is missing of the models of a keyboard that was built without learned hitboxes
+    static void seed(Context context, Keyboard keyboard){
+        int keyboardHash = keyboard.mId.layoutHashCode();
+        boolean isNewGeometry = false;
+        synchronized(LayoutLearner.sRunLock){
+            if(!Hitboxes.savedHitboxesExists(context, keyboardHash)){
+                Hitboxes.toHitboxes(keyboard).save(context);
+            }
+            // the reference geometry can only be taken from a keyboard without learned hitboxes
+            if(!KeyboardGeometry.exists(context, keyboardHash)){
+                KeyboardGeometry.toGeometry(keyboard).save(context);
+                isNewGeometry = true;
+            }
+        }
+        if(isNewGeometry){
+            LayoutProjectionWorker.enqueue(context, keyboardHash);
+        }
+    }
+}
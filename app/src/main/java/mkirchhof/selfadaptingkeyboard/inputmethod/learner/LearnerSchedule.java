@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+// Decides when the LayoutLearner should run next, from the keystrokes that are cached but not
+// learnt yet. A few keystrokes are not worth waking the device, so nothing is planned until
+// there are MIN_BACKLOG of them or the oldest one waited for IDLE_STALENESS_MILLIS. Such runs
+// wait for the device to be idle and charging. A backlog of HEAVY_BACKLOG keystrokes, or one
+// whose oldest keystroke waited for MAX_STALENESS_MILLIS, makes the layouts lag behind the user,
+// so it is learnt as soon as the battery is not low. Runs are at least MIN_INTERVAL_MILLIS apart,
+// so that a fast typist gets one larger run instead of many small ones.
+public class LearnerSchedule {
+    public static final int MIN_BACKLOG = 500;
+    public static final int HEAVY_BACKLOG = 5000;
+    public static final long IDLE_STALENESS_MILLIS = 12 * 60 * 60 * 1000L;
+    public static final long MAX_STALENESS_MILLIS = 48 * 60 * 60 * 1000L;
+    public static final long MIN_INTERVAL_MILLIS = 60 * 60 * 1000L;
+
+    // returns the next run for the given backlog or null if none is needed yet. oldestPendingAt
+    // is the time the oldest unlearnt keystroke was cached, lastRunAt the time of the last run
+    // (0 = never)
+    public static Plan plan(int pendingKeystrokes, long oldestPendingAt, long lastRunAt, long now){
+        if(pendingKeystrokes <= 0){
+            return null;
+        }
+        long waited = now - oldestPendingAt;
+        boolean isUrgent = pendingKeystrokes >= HEAVY_BACKLOG || waited >= MAX_STALENESS_MILLIS;
+        if(!isUrgent && pendingKeystrokes < MIN_BACKLOG && waited < IDLE_STALENESS_MILLIS){
+            return null;
+        }
+        return new Plan(Math.max(now, lastRunAt + MIN_INTERVAL_MILLIS), isUrgent);
+    }
+
+    // returns an urgent run regardless of the backlog, e.g. since the cache exceeds the storage
+    // budget (see StorageQuota.check). It is still MIN_INTERVAL_MILLIS after the last run
+    public static Plan planUrgent(long lastRunAt, long now){
+        return new Plan(Math.max(now, lastRunAt + MIN_INTERVAL_MILLIS), true);
+    }
+
+    public static class Plan {
+        private final long mRunAt;
+        private final boolean mIsUrgent;
+
+        public Plan(long runAt, boolean isUrgent){
+            mRunAt = runAt;
+            mIsUrgent = isUrgent;
+        }
+
+        // the earliest time of the run
+        public long getRunAt(){ return mRunAt; }
+
+        // whether the run may start without the device being idle and charging
+        public boolean isUrgent(){ return mIsUrgent; }
+
+        // whether this plan has to replace the planned one (null = none). A run that is already
+        // planned is kept if it is at least as urgent, so that new keystrokes coalesce into it
+        // instead of postponing it
+        public boolean replaces(Plan planned){
+            return planned == null || (mIsUrgent && !planned.mIsUrgent);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Schedules the LayoutLearnerWorker from the IME by the backlog of cached keystrokes, see
+// LearnerSchedule. The IME counts the keystrokes of every Logger it saves, and the next run is
+// enqueued as unique one-time work once the backlog asks for one. A planned run is kept while
+// more keystrokes come in, unless they make it urgent, and every run plans the next one from
+// what is left. The backlog and the planned run are kept in the preferences, so that they
+// survive the IME process and the settings can show them.
+// A scheduled run plans the next one while it is still running, and replacing its own unique work
+// would cancel it. So the planned runs take turns between two unique names, and the next run is
+// always enqueued under the name that the running one does not use.
+public class LearnerScheduler {
+    private static final String TAG = LearnerScheduler.class.getSimpleName();
+    static final String WORK_NAME = "learner_work";
+    // the name of every other scheduled run, see schedule
+    static final String NEXT_WORK_NAME = "learner_next_work";
+    // runs that the user started, see runNow
+    static final String MANUAL_WORK_NAME = "learner_manual_work";
+    // the fixed periodic work that the settings activity enqueued before
+    private static final String LEGACY_WORK_NAME = "save_work_request";
+
+    // time of the planned run (0 = none)
+    public static final String PREF_PLANNED_RUN_AT = "learner_planned_run_at";
+    private static final String PREF_PLANNED_URGENT = "learner_planned_urgent";
+    // the unique work names of the planned and of the running scheduled run
+    private static final String PREF_PLANNED_WORK_NAME = "learner_planned_work_name";
+    private static final String PREF_RUNNING_WORK_NAME = "learner_running_work_name";
+    private static final String PREF_PENDING_KEYSTROKES = "learner_pending_keystrokes";
+    private static final String PREF_OLDEST_PENDING_AT = "learner_oldest_pending_at";
+    private static final String PREF_LAST_RUN_AT = "learner_last_run_at";
+
+    // checks the planned run against the WorkManager (see verifyPlannedRun)
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    // is called when the IME is created. Replaces the periodic work of older versions and makes
+    // sure on a background thread that the planned run was not lost
+    public static synchronized void init(final Context context){
+        WorkManager.getInstance(context).cancelUniqueWork(LEGACY_WORK_NAME);
+        final String planned = PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(PREF_PLANNED_WORK_NAME, null);
+        if(planned == null){
+            schedule(context);
+            return;
+        }
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<WorkInfo> infos;
+                try{
+                    infos = WorkManager.getInstance(context)
+                            .getWorkInfosForUniqueWork(planned).get();
+                } catch(Exception e){
+                    Log.e(TAG, "Failed to look up the planned LayoutLearner: " + e.toString());
+                    return;
+                }
+                verifyPlannedRun(context, planned, infos);
+            }
+        });
+    }
+
+    // forgets the planned run if the WorkManager has no unfinished work under its name, e.g.
+    // since the app data was cleared while the preferences were backed up, and plans it again.
+    // Otherwise the lost run would cover all later ones (see LearnerSchedule.Plan.replaces), so
+    // the cache would never be learnt
+    static synchronized void verifyPlannedRun(Context context, String name, List<WorkInfo> infos){
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if(!name.equals(prefs.getString(PREF_PLANNED_WORK_NAME, null))){
+            // the run started or another one was planned in the meantime
+            return;
+        }
+        for(WorkInfo info:infos){
+            if(!info.getState().isFinished()){
+                return;
+            }
+        }
+        Log.w(TAG, "The planned LayoutLearner " + name + " was lost, planning it again");
+        prefs.edit()
+                .remove(PREF_PLANNED_RUN_AT)
+                .remove(PREF_PLANNED_URGENT)
+                .remove(PREF_PLANNED_WORK_NAME)
+                .apply();
+        schedule(context);
+    }
+
+    // blocks until the planned run that init() checks is verified
+    static void waitForVerification() throws InterruptedException, ExecutionException {
+        sExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    // is called by the IME whenever it saved a Logger with the given number of keystrokes
+    public static synchronized void onLoggerSaved(Context context, int keystrokes){
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putInt(PREF_PENDING_KEYSTROKES, prefs.getInt(PREF_PENDING_KEYSTROKES, 0) + keystrokes);
+        if(prefs.getLong(PREF_OLDEST_PENDING_AT, 0) == 0){
+            editor.putLong(PREF_OLDEST_PENDING_AT, System.currentTimeMillis());
+        }
+        editor.apply();
+        schedule(context);
+    }
+
+    // is called when the cache has to be learnt soon, e.g. since it exceeds the storage budget.
+    // Makes the planned run urgent or plans an urgent one
+    public static synchronized void requestUrgentRun(Context context){
+        schedule(context, PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(PREF_RUNNING_WORK_NAME, null), true);
+    }
+
+    // is called by a run with the tags of its worker before it reads the cache. The run takes
+    // over the backlog, so that the keystrokes cached in the meantime count towards the next run,
+    // and the planned run is cancelled unless it is this one
+    static synchronized Backlog onRunStarted(Context context, Set<String> tags){
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Backlog backlog = new Backlog(prefs.getInt(PREF_PENDING_KEYSTROKES, 0),
+                prefs.getLong(PREF_OLDEST_PENDING_AT, 0));
+        String running = tags.contains(WORK_NAME) ? WORK_NAME
+                : tags.contains(NEXT_WORK_NAME) ? NEXT_WORK_NAME : null;
+        String planned = prefs.getString(PREF_PLANNED_WORK_NAME, null);
+        if(planned != null && !planned.equals(running)){
+            try{
+                WorkManager.getInstance(context).cancelUniqueWork(planned);
+            } catch(Exception e){
+                Log.e(TAG, "Failed to cancel the planned LayoutLearner: " + e.toString());
+            }
+        }
+        SharedPreferences.Editor editor = prefs.edit()
+                .remove(PREF_PENDING_KEYSTROKES)
+                .remove(PREF_OLDEST_PENDING_AT)
+                .remove(PREF_PLANNED_RUN_AT)
+                .remove(PREF_PLANNED_URGENT)
+                .remove(PREF_PLANNED_WORK_NAME);
+        if(running != null){
+            editor.putString(PREF_RUNNING_WORK_NAME, running);
+        }
+        editor.apply();
+        return backlog;
+    }
+
+    // is called by a run when it is done. If it could not learn the cache, its backlog is given
+    // back. Plans the next run
+    static synchronized void onRunFinished(Context context, Backlog backlog, boolean learnt){
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putLong(PREF_LAST_RUN_AT, System.currentTimeMillis());
+        // the worker is still running until this returns, so the next run must not replace it
+        String running = prefs.getString(PREF_RUNNING_WORK_NAME, null);
+        editor.remove(PREF_RUNNING_WORK_NAME);
+        if(!learnt && backlog.mKeystrokes > 0){
+            long oldest = prefs.getLong(PREF_OLDEST_PENDING_AT, 0);
+            editor.putInt(PREF_PENDING_KEYSTROKES,
+                    prefs.getInt(PREF_PENDING_KEYSTROKES, 0) + backlog.mKeystrokes);
+            editor.putLong(PREF_OLDEST_PENDING_AT,
+                    oldest == 0 ? backlog.mOldestAt : Math.min(oldest, backlog.mOldestAt));
+        }
+        editor.apply();
+        schedule(context, running, false);
+    }
+
+    // runs the learner as soon as possible. Taps while a manual run is waiting or running join it
+    // instead of starting another one, and the scheduled runs wait for it (see LayoutLearner.learn)
+    public static void runNow(Context context){
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(LayoutLearnerWorker.class)
+                .build();
+        WorkManager.getInstance(context)
+                .enqueueUniqueWork(MANUAL_WORK_NAME, ExistingWorkPolicy.KEEP, request);
+    }
+
+    // the state and progress of the last manual run (see LayoutLearnerWorker.PROGRESS_STAGE)
+    public static LiveData<List<WorkInfo>> getManualRun(Context context){
+        return WorkManager.getInstance(context).getWorkInfosForUniqueWorkLiveData(MANUAL_WORK_NAME);
+    }
+
+    // returns the planned run or null if there is none
+    public static LearnerSchedule.Plan getPlannedRun(Context context){
+        return getPlannedRun(PreferenceManager.getDefaultSharedPreferences(context));
+    }
+
+    // the number of cached keystrokes that no run took over yet
+    public static int getPendingKeystrokes(Context context){
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getInt(PREF_PENDING_KEYSTROKES, 0);
+    }
+
+    private static LearnerSchedule.Plan getPlannedRun(SharedPreferences prefs){
+        long runAt = prefs.getLong(PREF_PLANNED_RUN_AT, 0);
+        if(runAt == 0){
+            return null;
+        }
+        return new LearnerSchedule.Plan(runAt, prefs.getBoolean(PREF_PLANNED_URGENT, false));
+    }
+
+    private static void schedule(Context context){
+        schedule(context, PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(PREF_RUNNING_WORK_NAME, null), false);
+    }
+
+    // enqueues the run that the backlog asks for (an urgent one if urgent is set), unless the
+    // planned one covers it. A planned run is replaced under its own name, a new one is enqueued
+    // under the name that the running scheduled run (if any) does not use
+    private static void schedule(Context context, String running, boolean urgent){
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        long now = System.currentTimeMillis();
+        LearnerSchedule.Plan plan = LearnerSchedule.plan(prefs.getInt(PREF_PENDING_KEYSTROKES, 0),
+                prefs.getLong(PREF_OLDEST_PENDING_AT, now), prefs.getLong(PREF_LAST_RUN_AT, 0), now);
+        if(urgent && (plan == null || !plan.isUrgent())){
+            plan = LearnerSchedule.planUrgent(prefs.getLong(PREF_LAST_RUN_AT, 0), now);
+        }
+        if(plan == null || !plan.replaces(getPlannedRun(prefs))){
+            return;
+        }
+
+        Constraints.Builder constraints = new Constraints.Builder()
+                .setRequiresBatteryNotLow(true);
+        if(!plan.isUrgent()){
+            constraints.setRequiresCharging(true);
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.M){
+                constraints.setRequiresDeviceIdle(true);
+            }
+        }
+        String name = prefs.getString(PREF_PLANNED_WORK_NAME, null);
+        if(name == null){
+            name = WORK_NAME.equals(running) ? NEXT_WORK_NAME : WORK_NAME;
+        }
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(LayoutLearnerWorker.class)
+                .addTag(name)
+                .setInitialDelay(plan.getRunAt() - now, TimeUnit.MILLISECONDS)
+                .setConstraints(constraints.build())
+                .build();
+        try{
+            WorkManager.getInstance(context)
+                    .enqueueUniqueWork(name, ExistingWorkPolicy.REPLACE, request);
+        } catch(Exception e){
+            Log.e(TAG, "Failed to schedule the LayoutLearner: " + e.toString());
+            return;
+        }
+        prefs.edit()
+                .putLong(PREF_PLANNED_RUN_AT, plan.getRunAt())
+                .putBoolean(PREF_PLANNED_URGENT, plan.isUrgent())
+                .putString(PREF_PLANNED_WORK_NAME, name)
+                .apply();
+        Log.d(TAG, "Planned " + (plan.isUrgent() ? "an urgent" : "an idle") + " run in " +
+                (plan.getRunAt() - now) / 60000 + " minutes");
+    }
+
+    // the keystrokes that a run took over
+    static class Backlog {
+        final int mKeystrokes;
+        final long mOldestAt;
+
+        Backlog(int keystrokes, long oldestAt){
+            mKeystrokes = keystrokes;
+            mOldestAt = oldestAt;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Adapts the hitboxes while the user is typing, inside of the IME process.
+// Keystrokes are buffered until enough newer keystrokes followed, so that they are unlikely to
+// be deleted again. Every ADAPT_INTERVAL of these finalized keystrokes, a background thread adds
+// them to in-memory copies of the KeyStats, recomputes the key borders of only those rows whose
+// keys were hit and publishes the new hitboxes to the HitboxRegistry in memory. The keyboard picks
+// them up the next time it is shown (see KeyboardSwitcher.updateKeyboardLayout). Like in a learner
+// run, the hitboxes are solved from the stats backed off to the ones of related keyboards (see
+// BackoffStats). Every publish rebuilds the keyboard and its resolved layout, so the updates of
+// one keyboard are published at most every MIN_PUBLISH_INTERVAL_MILLIS, together.
+// Nothing is saved here, since the LayoutLearner learns the same keystrokes from the Logger later.
+// The in-memory stats and hitboxes are dropped whenever it did so.
+public class LiveAdapter {
+    final static String TAG = LiveAdapter.class.getSimpleName();
+    // number of finalized keystrokes after which the hitboxes are updated
+    public static final int ADAPT_INTERVAL = 50;
+    // keystrokes among the last FINALIZE_LAG ones may still be deleted and are not used yet
+    public static final int FINALIZE_LAG = 10;
+    // time the BorderSolver may spend on one update
+    private static final int SOLVER_BUDGET_MILLIS = 4;
+    // minimum time between two publishes of the same keyboard
+    public static final long MIN_PUBLISH_INTERVAL_MILLIS = 60 * 1000;
+
+    private final Context mContext;
+    private final int mMinWidth;
+    private final int mMinHeight;
+    private final double mHalfLife;
+    private final ExecutorService mExecutor;
+    private long mMinPublishIntervalMillis = MIN_PUBLISH_INTERVAL_MILLIS;
+    private long mSolverBudgetMillis = SOLVER_BUDGET_MILLIS;
+    // keystrokes that are not finalized yet. Only accessed on the UI thread
+    private final ArrayList<Touch> mPending = new ArrayList<>();
+    // in-memory state of each keyboard. Only accessed on the background thread
+    private final HashMap<Integer, LiveLayout> mLayouts = new HashMap<>();
+
+    public LiveAdapter(Context context){
+        mContext = context;
+        LayoutLearner learner = new LayoutLearner(context);
+        mMinWidth = learner.getMinPixelWidth();
+        mMinHeight = learner.getMinPixelHeight();
+        mHalfLife = learner.getDecayHalfLife();
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    // is called on the UI thread for every logged keystroke, with the cursor like Logger.set
+    public void onKeystroke(int code, int x, int y, int keyboardHash, int cursorStart,
+                            int cursorEnd){
+        if(cursorStart < cursorEnd){
+            onDelete(cursorStart, cursorEnd);
+        }
+        for(Touch touch:mPending){
+            if(touch.mTextPos != Touch.UNKNOWN_POS && touch.mTextPos >= cursorStart){
+                touch.mTextPos++;
+            }
+        }
+        mPending.add(new Touch(code, x, y, keyboardHash, cursorStart));
+        if(mPending.size() >= ADAPT_INTERVAL + FINALIZE_LAG){
+            List<Touch> finalized = mPending.subList(0, ADAPT_INTERVAL);
+            final ArrayList<Touch> batch = new ArrayList<>(finalized);
+            finalized.clear();
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    adapt(batch);
+                }
+            });
+        }
+    }
+
+    // is called on the UI thread when the user deletes characters, with the cursor like
+    // Logger.delete. The keystrokes that typed them were mistakes or got corrected, so they are
+    // not used. Keystrokes that were finalized already stay, since the Logger keeps them as well
+    public void onDelete(int cursorStart, int cursorEnd){
+        int nDeleted = Math.max(1, cursorEnd - cursorStart);
+        Iterator<Touch> it = mPending.iterator();
+        while(it.hasNext()){
+            Touch touch = it.next();
+            if(touch.mTextPos == Touch.UNKNOWN_POS){
+                continue;
+            }
+            if(touch.mTextPos >= cursorStart + nDeleted){
+                touch.mTextPos -= nDeleted;
+            } else if(touch.mTextPos >= cursorStart){
+                it.remove();
+            }
+        }
+    }
+
+    // is called on the UI thread when the text changed outside of the keyboard. The pending
+    // keystrokes can no longer be told apart by their position, so none of them gets deleted
+    public void onTextReset(){
+        for(Touch touch:mPending){
+            touch.mTextPos = Touch.UNKNOWN_POS;
+        }
+    }
+
+    // stops the background thread. Pending keystrokes are learnt by the LayoutLearner
+    public void shutdown(){
+        mExecutor.shutdown();
+    }
+
+    // lets tests publish more often
+    void setMinPublishInterval(long millis){
+        mMinPublishIntervalMillis = millis;
+    }
+
+    // lets tests solve the hitboxes independently of the speed of the device
+    void setSolverBudget(long millis){
+        mSolverBudgetMillis = millis;
+    }
+
+    // adds a batch of finalized keystrokes and publishes the updated hitboxes
+    void adapt(ArrayList<Touch> batch){
+        long start = System.nanoTime();
+        HashMap<Integer, HashSet<Integer>> changedRows = new HashMap<>();
+        for(Touch touch:batch){
+            LiveLayout layout = getLayout(touch.mKeyboardHash);
+            Hitbox box = layout.mHitboxes.findCode(touch.mCode);
+            if(box == null){
+                continue;
+            }
+            layout.mStats.add(touch.mCode, touch.mX, touch.mY);
+            HashSet<Integer> rows = changedRows.get(touch.mKeyboardHash);
+            if(rows == null){
+                rows = new HashSet<>();
+                changedRows.put(touch.mKeyboardHash, rows);
+            }
+            rows.add(box.getTopLeft().getY());
+        }
+
+        long now = System.currentTimeMillis();
+        for(Integer keyboardHash:changedRows.keySet()){
+            LiveLayout layout = mLayouts.get(keyboardHash);
+            layout.mChangedRows.addAll(changedRows.get(keyboardHash));
+            if(now - layout.mPublishedAt >= mMinPublishIntervalMillis){
+                publish(layout, now);
+            }
+        }
+        Log.d(TAG, "Adapted " + changedRows.size() + " keyboards live in " +
+                (System.nanoTime() - start) / 1000 + " us");
+    }
+
+    // recomputes the rows that changed since the last publish on a copy of the current hitboxes
+    // and replaces them. The rows are kept for the next batch if the solver ran out of time
+    private void publish(LiveLayout layout, long now){
+        HashSet<Integer> rows = layout.mChangedRows;
+        KeyStats stats = layout.mGeometry == null ? layout.mStats :
+                layout.mBackoff.backoff(layout.mStats, layout.mGeometry);
+        Hitboxes hitb = layout.mHitboxes.copy();
+        BorderSolver solver = new BorderSolver(mMinWidth, mMinHeight, mSolverBudgetMillis);
+        solver.solveKeysOfRows(stats, hitb, rows);
+        if(!solver.isCompleted()){
+            return;
+        }
+
+        int top = Integer.MAX_VALUE;
+        int bottom = Integer.MIN_VALUE;
+        for(Hitbox cur:hitb){
+            if(rows.contains(cur.getTopLeft().getY())){
+                top = Math.min(top, cur.getTopLeft().getY());
+                bottom = Math.max(bottom, cur.getBottomLeft().getY());
+            }
+        }
+        // nothing is published if nothing moved, since every new version rebuilds the keyboard
+        HitboxRaster raster = HitboxRaster.recompile(layout.mRaster, stats, hitb, top, bottom);
+        boolean rasterChanged = raster != null && !raster.hasSameCells(layout.mRaster);
+        rows.clear();
+        if(!rasterChanged && hitb.hasSameGeometry(layout.mHitboxes)){
+            return;
+        }
+        if(!rasterChanged){
+            raster = layout.mRaster;
+        }
+        long version = HitboxRegistry.get(mContext).publishLive(hitb, raster,
+                layout.mHitboxesVersion);
+        if(version == HitboxRegistry.NO_VERSION){
+            // the LayoutLearner published new hitboxes, getLayout reloads them with the next batch
+            mLayouts.remove(hitb.getKeyboardHash());
+            return;
+        }
+        layout.mHitboxes = hitb;
+        layout.mRaster = raster;
+        layout.mHitboxesVersion = version;
+        layout.mPublishedAt = now;
+    }
+
+    // returns the in-memory state of a keyboard and reloads it if the LayoutLearner or someone
+    // else changed the hitboxes in the meantime
+    private LiveLayout getLayout(int keyboardHash){
+        LiveLayout layout = mLayouts.get(keyboardHash);
+        HitboxRegistry.Layout published = HitboxRegistry.get(mContext).getLayout(keyboardHash);
+        if(layout == null || !published.hasHitboxes() ||
+                published.getVersion() != layout.mHitboxesVersion){
+            LiveLayout previous = layout;
+            layout = new LiveLayout();
+            layout.mStats = KeyStats.load(mContext, keyboardHash);
+            layout.mStats.setHalfLife(mHalfLife);
+            layout.mGeometry = KeyboardGeometry.load(mContext, keyboardHash);
+            if(layout.mGeometry != null){
+                layout.mBackoff = BackoffStats.load(mContext, mHalfLife);
+            }
+            // a keyboard without saved hitboxes starts from its default ones, like a projection
+            // (see LayoutLearner.projectLayout)
+            layout.mHitboxes = published.hasHitboxes() ? published.getHitboxes().toHitboxes() :
+                    layout.mGeometry != null ? layout.mGeometry.getDefaults().copy() :
+                    new Hitboxes(keyboardHash);
+            // a reload does not reset the time of the last publish
+            layout.mPublishedAt = previous != null ? previous.mPublishedAt : 0;
+            layout.mRaster = published.getRaster();
+            layout.mHitboxesVersion = published.getVersion();
+            mLayouts.put(keyboardHash, layout);
+        }
+        return layout;
+    }
+
+    private static class LiveLayout {
+        KeyStats mStats;
+        // null if the keyboard was never seen with its default hitboxes, mBackoff as well then
+        KeyboardGeometry mGeometry;
+        BackoffStats mBackoff;
+        Hitboxes mHitboxes;
+        HitboxRaster mRaster;
+        long mHitboxesVersion;
+        // the rows that changed since the last publish
+        final HashSet<Integer> mChangedRows = new HashSet<>();
+        long mPublishedAt;
+    }
+
+    static class Touch {
+        static final int UNKNOWN_POS = -1;
+        final int mCode;
+        final int mX;
+        final int mY;
+        final int mKeyboardHash;
+        // the position in the text of the character that the keystroke typed
+        int mTextPos;
+
+        Touch(int code, int x, int y, int keyboardHash, int textPos){
+            mCode = code;
+            mX = x;
+            mY = y;
+            mKeyboardHash = keyboardHash;
+            mTextPos = textPos;
+        }
+    }
+}
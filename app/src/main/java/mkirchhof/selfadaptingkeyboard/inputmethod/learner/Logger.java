@@ -21,18 +21,26 @@ import android.util.Log;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.ListIterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Logger extends Object implements Serializable{
     static final String TAG = "Logger";
     private ArrayList<LogItem> mLog;
+    // counts the edits, so that the CorrectionMiner can tell which text was typed after a deletion
+    private long mClock = 0;
+    // saves the Loggers one after another, in the order in which the input fields were left
+    private static final ExecutorService sSaveExecutor = Executors.newSingleThreadExecutor();
 
     public Logger(){
         mLog = new ArrayList<LogItem>(256);
@@ -90,17 +98,22 @@ public class Logger extends Object implements Serializable{
         ListIterator<LogItem> it = listIterator(cursorPos, false);
 
         // insert the new information
+        LogItem cur;
         if(!it.hasNext()){
-            it.add(new LogItem(cursorPos, code, text, posX, posY, keyboardHash));
+            cur = new LogItem(cursorPos, code, text, posX, posY, keyboardHash);
+            it.add(cur);
         } else {
-            LogItem cur = it.next();
+            cur = it.next();
             if(cur.isDeleted()){
+                cur.markReplaced();
                 cur.set(cursorPos, code, text, posX, posY, keyboardHash);
             } else {
                 it.previous();
-                it.add(new LogItem(cursorPos, code, text, posX, posY, keyboardHash));
+                cur = new LogItem(cursorPos, code, text, posX, posY, keyboardHash);
+                it.add(cur);
             }
         }
+        cur.mTypedAt = ++mClock;
 
         increaseFollowingTextPos(it);
     }
@@ -122,7 +135,9 @@ public class Logger extends Object implements Serializable{
 
         ListIterator<LogItem> it = listIterator(cursorPos, true);
         if(it.hasNext()){
-            it.next().delete();
+            LogItem cur = it.next();
+            cur.delete();
+            cur.mDeletedAt = ++mClock;
         }
 
         decreaseFollowingTextPos(it);
@@ -171,26 +186,42 @@ public class Logger extends Object implements Serializable{
             if(!folder.exists()){
                 folder.mkdir();
             }
-            File tempFile = File.createTempFile("Logger", ".ser", folder);
-            FileOutputStream fos = new FileOutputStream(tempFile);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-
-            // write number of objects to the file so that the load method will know when the file ends
-            // (otherwise, this is only possible in ObjectInputStream by using exceptions which is bad style)
-            oos.writeInt(mLog.size());
-            Iterator<LogItem> it = mLog.listIterator();
-            Log.d(TAG, "Starting serialization");
-            while(it.hasNext()){
-                LogItem cur = it.next();
-                if(cur.getCode() != -1 & cur.getPosX() != -1 & cur.getPosY() != -1 & !cur.isDeleted()) {
-                    oos.writeObject(cur);
+            // the Loggers are the journal of the LayoutLearner, so a file is written and synced
+            // under a temporary name first. The learner only sees complete files
+            File tempFile = File.createTempFile("Logger", ".tmp", folder);
+
+            // deleted items are kept, since the CorrectionMiner learns from the corrections
+            final ArrayList<LogItem> complete = new ArrayList<>(mLog.size());
+            for(LogItem cur:mLog){
+                if(isComplete(cur)) {
+                    complete.add(cur);
                 }
             }
 
-            fos.close();
-            oos.close();
-            Log.i(TAG, "Logger saved to " + tempFile.getName());
-            return tempFile.toString();
+            String name = tempFile.getName();
+            File file = new File(folder, name.substring(0, name.length() - 4) + ".ser");
+            boolean published = AtomicFileWriter.writeNew(tempFile, file,
+                    new AtomicFileWriter.Content() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    ObjectOutputStream oos = new ObjectOutputStream(out);
+                    // write number of objects to the file so that the load method will know when
+                    // the file ends (otherwise, this is only possible in ObjectInputStream by
+                    // using exceptions which is bad style)
+                    oos.writeInt(complete.size());
+                    Log.d(TAG, "Starting serialization");
+                    for(LogItem cur:complete){
+                        oos.writeObject(cur);
+                    }
+                    oos.flush();
+                }
+            });
+            if(!published){
+                Log.e(TAG, "Could not publish Logger " + file.getName());
+                return null;
+            }
+            Log.i(TAG, "Logger saved to " + file.getName());
+            return file.toString();
 
         } catch(IOException ex){
             Log.e(TAG, "Error while saving Logger: " + ex.toString());
@@ -198,14 +229,63 @@ public class Logger extends Object implements Serializable{
         }
     }
 
-    // loads KeyStat objects from a saved file
+    // saves the Logger like save(), but on a background thread, since save() syncs the file to
+    // the disk. onSaved runs on that thread once the file is published. The Logger must not be
+    // changed afterwards, the caller starts a new one
+    public void saveInBackground(final Context context, final Runnable onSaved){
+        sSaveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(save(context) != null && onSaved != null){
+                    onSaved.run();
+                }
+            }
+        });
+    }
+
+    // blocks until all Loggers that saveInBackground was called for are saved
+    public static void waitForSaves() throws InterruptedException, ExecutionException {
+        sSaveExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    // the number of items that save() writes, i.e. the keystrokes that the learner gets from this
+    public int countComplete(){
+        int n = 0;
+        for(LogItem cur:mLog){
+            if(isComplete(cur)){
+                n++;
+            }
+        }
+        return n;
+    }
+
+    // the keyboards that the items which save() writes were typed on
+    public HashSet<Integer> getKeyboardHashes(){
+        HashSet<Integer> keyboardHashes = new HashSet<>();
+        for(LogItem cur:mLog){
+            if(isComplete(cur)){
+                keyboardHashes.add(cur.getKeyboardHash());
+            }
+        }
+        return keyboardHashes;
+    }
+
+    // items of the text that existed before the Logger was started have no touch
+    private static boolean isComplete(LogItem item){
+        return item.getCode() != -1 & item.getPosX() != -1 & item.getPosY() != -1;
+    }
+
+    // loads a Logger from a saved file. Returns null if the file could not be read completely, a
+    // partial Logger would make the learner consume a file that it only learnt half of
     public static Logger load(Context context, String fullPath){
         Logger l = new Logger();
+        FileInputStream fis = null;
         try {
-            //File folder = new File(context.getCacheDir(),"Logger");
-            //File file = new File(folder, filename);
-            File file = new File(fullPath);
-            FileInputStream fis = new FileInputStream(file);
+            fis = new FileInputStream(new File(fullPath));
             ObjectInputStream ois = new ObjectInputStream(fis);
 
             int nObjects = ois.readInt();
@@ -214,11 +294,17 @@ public class Logger extends Object implements Serializable{
                 cur = (LogItem) ois.readObject();
                 l.add(cur);
             }
-
-            fis.close();
-            ois.close();
         } catch(Exception ex){
             Log.e("Logger.load", "Could not read Logger: " + ex.toString());
+            return null;
+        } finally {
+            if(fis != null){
+                try{
+                    fis.close();
+                } catch(IOException e){
+                    Log.e("Logger.load", "Could not close Logger: " + e.toString());
+                }
+            }
         }
         return l;
     }
@@ -298,6 +384,11 @@ public class Logger extends Object implements Serializable{
         return mLog.size();
     }
 
+    // returns the index-th deleted or non-deleted LogItem
+    public LogItem get(int index){
+        return mLog.get(index);
+    }
+
     public class LogItem extends Object implements Serializable {
         private static final long serialVersionUID = 2L;
 
@@ -308,6 +399,13 @@ public class Logger extends Object implements Serializable{
         private int mPosY;
         private int mKeyboardHash;
         private boolean mIsDeleted;
+        // whether this item overwrote a deleted keystroke (see Logger.set). It then still holds
+        // the touch position of that keystroke, whose code is kept in mOriginalCode
+        private boolean mIsReplacement;
+        private int mOriginalCode;
+        // values of the Logger's edit counter when this item was last typed and deleted (0 = never)
+        private long mTypedAt;
+        private long mDeletedAt;
 
         public LogItem(int textPos){
             mIsDeleted = false;
@@ -340,6 +438,21 @@ public class Logger extends Object implements Serializable{
             mIsDeleted = true;
         }
 
+        // remembers the code of the deleted keystroke before it is overwritten. Only the first
+        // keystroke is kept, since it is the one that the touch position belongs to
+        private void markReplaced(){
+            if(mIsDeleted & !mIsReplacement & mPosX != -1 & mPosY != -1){
+                mIsReplacement = true;
+                mOriginalCode = mCode;
+            }
+        }
+
+        // assigns the touch position to another key, e.g. the one the user meant to hit
+        public void relabel(int code){
+            mCode = code;
+            mIsDeleted = false;
+        }
+
         public int getTextPos() {return mTextPos; }
 
         public int getCode(){
@@ -364,6 +477,14 @@ public class Logger extends Object implements Serializable{
             return mIsDeleted;
         }
 
+        public boolean isReplacement(){ return mIsReplacement; }
+
+        public int getOriginalCode(){ return mOriginalCode; }
+
+        public long getTypedAt(){ return mTypedAt; }
+
+        public long getDeletedAt(){ return mDeletedAt; }
+
         public String toString(){
             String s = "TextPos = " + mTextPos + ", Code = " + mCode + ", PosX = "
                     + mPosX + ", PosY = " + mPosY + ", isDeleted = " + mIsDeleted +
@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+// The undo information of one generation of the models in the ModelStore (see
+// ModelStore.rollback). For every model that the generation changed, it holds the bytes that the
+// model had before, encoded as the runs in which they differ from the bytes it had afterwards
+// (the base). A learner run moves a few keys and changes the stats of the keys that were typed on,
+// so the runs are much smaller than the models and a history of several generations costs little
+// more than one copy of the models. Undoing a change only reads its runs and the base.
+// The bytes between the runs are copied from the base, shifted by the offset that the run before
+// them sets. So a key that is added to or removed from a model only costs a run for the bytes
+// around it, and the rest of the model lines up again behind it. The shifts are found by looking
+// up blocks of the old bytes in an index of the blocks of the base.
+// Each change records the length and CRC32 of its base, so it is never applied to a model that
+// changed in a way the history does not know about.
+class ModelDelta {
+    // version 2 added the shift of each run. Version 1 was never released, records of it are
+    // rejected like broken ones
+    public static final int FORMAT_VERSION = 2;
+    // version of a model that did not exist before the generation. Undoing it removes the model
+    public static final int NO_MODEL = -1;
+    // runs that are closer than this are merged, since every run costs 12 bytes of header
+    static final int MIN_GAP = 8;
+    // size of the blocks that are looked up in the base to find a shift
+    static final int BLOCK = 16;
+
+    // the changes of one generation
+    static class Record {
+        private final ArrayList<Change> mChanges = new ArrayList<>();
+
+        public int size(){ return mChanges.size(); }
+
+        public Change get(int i){ return mChanges.get(i); }
+
+        // returns the change of a model or null if the generation did not change it
+        public Change find(int keyboardHash, int kind){
+            for(Change change:mChanges){
+                if(change.mKeyboardHash == keyboardHash && change.mKind == kind){
+                    return change;
+                }
+            }
+            return null;
+        }
+
+        // records that a model changed from old to base (either may be null if the model did not
+        // exist). A previous change of the same model is replaced
+        public void put(int keyboardHash, int kind, int oldVersion, ByteBuffer old, ByteBuffer base){
+            Change change = Change.diff(keyboardHash, kind, oldVersion, old, base);
+            for(int i = 0; i < mChanges.size(); i++){
+                if(mChanges.get(i).mKeyboardHash == keyboardHash && mChanges.get(i).mKind == kind){
+                    mChanges.set(i, change);
+                    return;
+                }
+            }
+            mChanges.add(change);
+        }
+
+        public ByteBuffer encode(){
+            int length = 4;
+            for(Change change:mChanges){
+                length += change.encodedLength();
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            buffer.putInt(mChanges.size());
+            for(Change change:mChanges){
+                change.encode(buffer);
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        // reads a record written by encode() in the given format version. Throws an IOException
+        // if it is broken
+        public static Record decode(ByteBuffer data, int version) throws IOException {
+            if(version != FORMAT_VERSION){
+                throw new IOException("Unknown history version " + version);
+            }
+            ByteBuffer buffer = data.slice();
+            Record record = new Record();
+            try{
+                int nChanges = buffer.getInt();
+                if(nChanges < 0){
+                    throw new IOException("Negative number of changes");
+                }
+                for(int i = 0; i < nChanges; i++){
+                    record.mChanges.add(Change.decode(buffer));
+                }
+            } catch(RuntimeException e){
+                throw new IOException("Truncated history record: " + e.toString());
+            }
+            return record;
+        }
+    }
+
+    // the change of one model
+    static class Change {
+        private final int mKeyboardHash;
+        private final int mKind;
+        private final int mOldVersion;
+        // length and checksum of the bytes the model had after the change, -1 if it was removed
+        private final int mBaseLength;
+        private final int mBaseCrc;
+        private final int mOldLength;
+        // start and length of each run in the old bytes, the shift of the base bytes that follow
+        // it and the old bytes of all runs in a row
+        private final int[] mOffsets;
+        private final int[] mLengths;
+        private final int[] mShifts;
+        private final byte[] mData;
+
+        private Change(int keyboardHash, int kind, int oldVersion, int baseLength, int baseCrc,
+                       int oldLength, int[] offsets, int[] lengths, int[] shifts, byte[] data){
+            mKeyboardHash = keyboardHash;
+            mKind = kind;
+            mOldVersion = oldVersion;
+            mBaseLength = baseLength;
+            mBaseCrc = baseCrc;
+            mOldLength = oldLength;
+            mOffsets = offsets;
+            mLengths = lengths;
+            mShifts = shifts;
+            mData = data;
+        }
+
+        public int getKeyboardHash(){ return mKeyboardHash; }
+
+        public int getKind(){ return mKind; }
+
+        // the format version of the old model or NO_MODEL if it did not exist
+        public int getOldVersion(){ return mOldVersion; }
+
+        // number of old bytes that are stored
+        public int getDataLength(){ return mData.length; }
+
+        static Change diff(int keyboardHash, int kind, int oldVersion, ByteBuffer old,
+                           ByteBuffer base){
+            byte[] oldBytes = old == null ? new byte[0] : toBytes(old);
+            byte[] baseBytes = base == null ? null : toBytes(base);
+            int baseLength = baseBytes == null ? -1 : baseBytes.length;
+            int baseCrc = baseBytes == null ? 0 : crc(baseBytes);
+            if(old == null){
+                return new Change(keyboardHash, kind, NO_MODEL, baseLength, baseCrc, 0,
+                        new int[0], new int[0], new int[0], new byte[0]);
+            }
+
+            // find the runs of old bytes that the base does not have at the current shift
+            HashMap<Integer, ArrayList<Integer>> blocks = indexBlocks(baseBytes);
+            ArrayList<int[]> runs = new ArrayList<>();
+            int nBytes = 0;
+            int shift = 0;
+            int i = 0;
+            while(i < oldBytes.length){
+                if(!differs(oldBytes, baseBytes, i, shift)){
+                    i++;
+                    continue;
+                }
+                int start = i;
+                int end = i + 1;
+                int nextShift = shift;
+                // a run ends after MIN_GAP equal bytes, or where the old bytes continue somewhere
+                // else in the base. The base is only searched once the run is MIN_GAP long, so
+                // that a few changed bytes do not move the rest of the model to another shift
+                while(end < oldBytes.length){
+                    int gap = 0;
+                    while(end + gap < oldBytes.length && gap < MIN_GAP &&
+                            !differs(oldBytes, baseBytes, end + gap, shift)){
+                        gap++;
+                    }
+                    if(gap == MIN_GAP || end + gap == oldBytes.length){
+                        break;
+                    }
+                    Integer found = end - start < MIN_GAP ? null :
+                            findBlock(blocks, oldBytes, baseBytes, end, shift);
+                    if(found != null && found - end != shift){
+                        nextShift = found - end;
+                        break;
+                    }
+                    end++;
+                }
+                runs.add(new int[]{start, end - start, nextShift});
+                nBytes += end - start;
+                shift = nextShift;
+                i = end;
+            }
+
+            int[] offsets = new int[runs.size()];
+            int[] lengths = new int[runs.size()];
+            int[] shifts = new int[runs.size()];
+            byte[] data = new byte[nBytes];
+            int pos = 0;
+            for(int r = 0; r < runs.size(); r++){
+                offsets[r] = runs.get(r)[0];
+                lengths[r] = runs.get(r)[1];
+                shifts[r] = runs.get(r)[2];
+                System.arraycopy(oldBytes, offsets[r], data, pos, lengths[r]);
+                pos += lengths[r];
+            }
+            return new Change(keyboardHash, kind, oldVersion, baseLength, baseCrc,
+                    oldBytes.length, offsets, lengths, shifts, data);
+        }
+
+        private static boolean differs(byte[] old, byte[] base, int i, int shift){
+            return base == null || i + shift < 0 || i + shift >= base.length ||
+                    old[i] != base[i + shift];
+        }
+
+        // maps the hash of each aligned block of the base to the positions of the blocks
+        private static HashMap<Integer, ArrayList<Integer>> indexBlocks(byte[] base){
+            HashMap<Integer, ArrayList<Integer>> blocks = new HashMap<>();
+            if(base == null){
+                return blocks;
+            }
+            for(int pos = 0; pos + BLOCK <= base.length; pos += BLOCK){
+                int hash = hashBlock(base, pos);
+                ArrayList<Integer> positions = blocks.get(hash);
+                if(positions == null){
+                    positions = new ArrayList<>();
+                    blocks.put(hash, positions);
+                }
+                positions.add(pos);
+            }
+            return blocks;
+        }
+
+        // returns the position of a block of the base that has the old bytes from pos on, or null.
+        // Models repeat themselves (e.g. empty stats), so of several blocks the one closest to
+        // the current shift is taken
+        private static Integer findBlock(HashMap<Integer, ArrayList<Integer>> blocks, byte[] old,
+                                         byte[] base, int pos, int shift){
+            if(blocks.isEmpty() || pos + BLOCK > old.length){
+                return null;
+            }
+            ArrayList<Integer> positions = blocks.get(hashBlock(old, pos));
+            if(positions == null){
+                return null;
+            }
+            // the positions are sorted, so the closest ones are next to where the block would be
+            int index = Collections.binarySearch(positions, pos + shift);
+            index = index >= 0 ? index : -index - 1;
+            Integer best = null;
+            for(int k = Math.max(0, index - 1); k <= Math.min(positions.size() - 1, index); k++){
+                int found = positions.get(k);
+                if(best != null && Math.abs(found - pos - shift) >= Math.abs(best - pos - shift)){
+                    continue;
+                }
+                boolean equal = true;
+                for(int b = 0; b < BLOCK && equal; b++){
+                    equal = old[pos + b] == base[found + b];
+                }
+                if(equal){
+                    best = found;
+                }
+            }
+            return best;
+        }
+
+        private static int hashBlock(byte[] bytes, int pos){
+            int hash = 1;
+            for(int k = 0; k < BLOCK; k++){
+                hash = 31 * hash + bytes[pos + k];
+            }
+            return hash;
+        }
+
+        // returns the bytes the model had before the change or null if it did not exist.
+        // base has to be the model as the change left it (null if it was removed)
+        public ByteBuffer undo(ByteBuffer base) throws IOException {
+            byte[] baseBytes = base == null ? null : toBytes(base);
+            if(baseBytes == null ? mBaseLength != -1 :
+                    baseBytes.length != mBaseLength || crc(baseBytes) != mBaseCrc){
+                throw new IOException("The history of " + ModelStore.kindName(mKind) +
+                        mKeyboardHash + " does not match the model");
+            }
+            if(mOldVersion == NO_MODEL){
+                return null;
+            }
+            byte[] old = new byte[mOldLength];
+            int pos = 0;
+            int shift = 0;
+            int dataPos = 0;
+            for(int r = 0; r < mOffsets.length; r++){
+                copyBase(baseBytes, old, pos, mOffsets[r], shift);
+                System.arraycopy(mData, dataPos, old, mOffsets[r], mLengths[r]);
+                dataPos += mLengths[r];
+                pos = mOffsets[r] + mLengths[r];
+                shift = mShifts[r];
+            }
+            copyBase(baseBytes, old, pos, mOldLength, shift);
+            return ByteBuffer.wrap(old);
+        }
+
+        // copies the old bytes from start to end from the base, shifted by shift
+        private void copyBase(byte[] base, byte[] old, int start, int end, int shift)
+                throws IOException {
+            if(start == end){
+                return;
+            }
+            if(base == null || start + shift < 0 || end + shift > base.length){
+                throw new IOException("The history of " + ModelStore.kindName(mKind) +
+                        mKeyboardHash + " points outside of the model");
+            }
+            System.arraycopy(base, start + shift, old, start, end - start);
+        }
+
+        int encodedLength(){
+            return 4 * 7 + 12 * mOffsets.length + mData.length;
+        }
+
+        void encode(ByteBuffer buffer){
+            buffer.putInt(mKeyboardHash);
+            buffer.putInt(mKind);
+            buffer.putInt(mOldVersion);
+            buffer.putInt(mBaseLength);
+            buffer.putInt(mBaseCrc);
+            buffer.putInt(mOldLength);
+            buffer.putInt(mOffsets.length);
+            for(int r = 0; r < mOffsets.length; r++){
+                buffer.putInt(mOffsets[r]);
+                buffer.putInt(mLengths[r]);
+                buffer.putInt(mShifts[r]);
+            }
+            buffer.put(mData);
+        }
+
+        // reads a change written by encode()
+        static Change decode(ByteBuffer buffer) throws IOException {
+            int keyboardHash = buffer.getInt();
+            int kind = buffer.getInt();
+            int oldVersion = buffer.getInt();
+            int baseLength = buffer.getInt();
+            int baseCrc = buffer.getInt();
+            int oldLength = buffer.getInt();
+            int nRuns = buffer.getInt();
+            if(oldLength < 0 || nRuns < 0 || nRuns > buffer.remaining() / 12){
+                throw new IOException("Broken change of " + ModelStore.kindName(kind) + keyboardHash);
+            }
+            int[] offsets = new int[nRuns];
+            int[] lengths = new int[nRuns];
+            int[] shifts = new int[nRuns];
+            int nBytes = 0;
+            int end = 0;
+            for(int r = 0; r < nRuns; r++){
+                offsets[r] = buffer.getInt();
+                lengths[r] = buffer.getInt();
+                shifts[r] = buffer.getInt();
+                // the runs follow each other, so that the bytes between them can be copied
+                if(offsets[r] < end || lengths[r] < 0 || offsets[r] + lengths[r] > oldLength){
+                    throw new IOException("Broken run in " + ModelStore.kindName(kind) + keyboardHash);
+                }
+                end = offsets[r] + lengths[r];
+                nBytes += lengths[r];
+            }
+            byte[] data = new byte[nBytes];
+            buffer.get(data);
+            return new Change(keyboardHash, kind, oldVersion, baseLength, baseCrc, oldLength,
+                    offsets, lengths, shifts, data);
+        }
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer){
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static int crc(byte[] bytes){
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,866 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Holds the learned models of all keyboards (KeyStats and Hitboxes), the shared BackoffStats and
+// the journal of the LayoutLearner in a single file (/Models/ModelStore.bin), so that no directory
+// has to be listed to find them and all of them can be changed in one atomic update.
+// The file starts with an index of all models, sorted by keyboard hash and kind. Each entry holds
+// the position and length of the model in the file, the version of its format and the time it
+// was saved. The models are encoded by their classes (see KeyStats.toBuffer, PackedHitboxes.pack).
+// The file is mapped into memory, so a lookup is a binary search in the index and a model is read
+// straight from the mapping. Updates are copy-on-write: an Edit writes a new file with all models
+// that it did not change, syncs it to the disk and replaces the old file at once. So after a crash
+// the store holds either all or none of the changes of an Edit. Mappings of the old file (e.g. the
+// PackedHitboxes of a keyboard) stay valid.
+// Learner runs and imports are generations of the models. The store keeps what is needed to undo
+// the last MAX_GENERATIONS of them as compact deltas (see ModelDelta and rollback). The small
+// updates in between only add a delta of the models they changed (a step), which the next
+// generation folds into the one before it.
+// There is one ModelStore per process. Readers synchronize on the store. Commits are serialized by a
+// writer lock and build, write and sync the new file without holding the monitor of the store, so
+// a reader on the UI thread only waits while the new file is mapped. Every write publishes the new
+// hitboxes to the HitboxRegistry, which the keyboard reads them from.
+public class ModelStore {
+    private static final String TAG = ModelStore.class.getSimpleName();
+    public static final int KIND_KEYSTATS = 1;
+    public static final int KIND_HITBOXES = 2;
+    public static final int KIND_BACKOFF = 3;
+    public static final int KIND_JOURNAL = 4;
+    // the undo information of a generation (see ModelDelta). Its keyboard hash is the number of
+    // the generation, which grows by one with every generation
+    public static final int KIND_HISTORY = 5;
+    // the undo information of an update after the latest generation. Its keyboard hash is a
+    // number from the same sequence as the generations
+    public static final int KIND_HISTORY_STEP = 6;
+    // keyboard hash of the models that belong to no keyboard (BackoffStats, journal)
+    public static final int NO_KEYBOARD = 0;
+
+    private static final int MAGIC = 0x4D4F444C; // "MODL"
+    public static final int FORMAT_VERSION = 1;
+    // magic number, format version, number of entries
+    private static final int HEADER_BYTES = 4 + 4 + 4;
+    // keyboard hash, kind, version, offset, length, timestamp
+    private static final int ENTRY_BYTES = 4 + 4 + 4 + 8 + 4 + 8;
+    // number of generations that can be rolled back
+    public static final int MAX_GENERATIONS = 5;
+
+    // set once the models in files of the old format were moved into the store. A store that is
+    // deleted later is created empty
+    static final String PREF_FILES_IMPORTED = "model_store_files_imported";
+
+    private static ModelStore sInstance;
+
+    private final File mFile;
+    // the mapped file and its index, sorted by keyboard hash and kind
+    private ByteBuffer mBuffer;
+    private Entry[] mEntries;
+    // whether mBuffer and mEntries show the current file. Only write() replaces the file, so the
+    // readers do not have to look at it again until then
+    private boolean mMapped;
+    // held by the one commit that writes the store at a time. Lock order is the writer lock
+    // before the HitboxRegistry before the monitor of the store
+    private final Object mWriteLock = new Object();
+
+    private ModelStore(File file){
+        mFile = file;
+        mEntries = new Entry[0];
+        mMapped = false;
+    }
+
+    // returns the ModelStore of the app. The models in files of the old format (one file per
+    // keyboard and kind) are moved into the store when it is created for the first time
+    public static synchronized ModelStore get(Context context){
+        File file = getFile(context);
+        if(sInstance == null || !sInstance.mFile.equals(file) || !file.exists()){
+            ModelStore store = new ModelStore(file);
+            if(!file.exists()){
+                store.create(context);
+            }
+            // the registry may still hold the hitboxes of a store that was deleted
+            synchronized(store.mWriteLock){
+                HitboxRegistry.onStoreChanged(store);
+            }
+            sInstance = store;
+        }
+        return sInstance;
+    }
+
+    // is held while the HitboxRegistry is filled, so that no commit is published in between
+    Object getWriteLock(){
+        return mWriteLock;
+    }
+
+    // returns the file of the store, e.g. to back it up
+    public static File getFile(Context context){
+        return new File(new File(context.getFilesDir(), "Models"), "ModelStore.bin");
+    }
+
+    public static class Entry {
+        private final int mKeyboardHash;
+        private final int mKind;
+        private final int mVersion;
+        private final long mOffset;
+        private final int mLength;
+        private final long mTimestamp;
+
+        Entry(int keyboardHash, int kind, int version, long offset, int length, long timestamp){
+            mKeyboardHash = keyboardHash;
+            mKind = kind;
+            mVersion = version;
+            mOffset = offset;
+            mLength = length;
+            mTimestamp = timestamp;
+        }
+
+        public int getKeyboardHash(){ return mKeyboardHash; }
+
+        public int getKind(){ return mKind; }
+
+        // the format version of the model (e.g. KeyStats.FORMAT_VERSION)
+        public int getVersion(){ return mVersion; }
+
+        public int getLength(){ return mLength; }
+
+        // the time the model was saved. It changes with every save
+        public long getTimestamp(){ return mTimestamp; }
+
+        @Override
+        public String toString(){
+            return kindName(mKind) + mKeyboardHash + " (version " + mVersion + ", " + mLength +
+                    " bytes)";
+        }
+    }
+
+    static String kindName(int kind){
+        switch(kind){
+            case KIND_KEYSTATS: return "KeyStats";
+            case KIND_HITBOXES: return "Hitboxes";
+            case KIND_BACKOFF: return "BackoffStats";
+            case KIND_JOURNAL: return "Journal";
+            case KIND_HISTORY: return "History";
+            case KIND_HISTORY_STEP: return "HistoryStep";
+            default: return "Kind" + kind;
+        }
+    }
+
+    // returns the index entry of a model or null if there is none
+    public synchronized Entry find(int keyboardHash, int kind){
+        refresh();
+        int index = indexOf(mEntries, keyboardHash, kind);
+        return index >= 0 ? mEntries[index] : null;
+    }
+
+    // returns the time a model was saved or null if there is none
+    public Long getTimestamp(int keyboardHash, int kind){
+        Entry entry = find(keyboardHash, kind);
+        return entry != null ? entry.getTimestamp() : null;
+    }
+
+    // returns a read-only view of a model or null if there is none
+    public synchronized ByteBuffer read(int keyboardHash, int kind){
+        refresh();
+        int index = indexOf(mEntries, keyboardHash, kind);
+        return index >= 0 ? slice(mBuffer, mEntries[index]) : null;
+    }
+
+    // returns the entries of all models of a kind
+    public synchronized List<Entry> list(int kind){
+        refresh();
+        ArrayList<Entry> entries = new ArrayList<>();
+        for(Entry entry:mEntries){
+            if(entry.mKind == kind){
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    // returns the entries of all models
+    public synchronized List<Entry> list(){
+        refresh();
+        return Collections.unmodifiableList(Arrays.asList(mEntries));
+    }
+
+    public Edit edit(){
+        return new Edit();
+    }
+
+    // returns the entries of the generations that can be rolled back, the oldest first
+    public List<Entry> listGenerations(){
+        return list(KIND_HISTORY);
+    }
+
+    // returns an update that restores the models as they were before the given generation and
+    // removes it and all newer generations and steps from the history. Only the changes in the history are
+    // read, so this takes time in the size of the changes, not of the models. Returns null if
+    // the generation is unknown or its history does not match the models
+    public synchronized Edit rollback(int generation){
+        refresh();
+        if(indexOf(mEntries, generation, KIND_HISTORY) < 0){
+            return null;
+        }
+        Edit edit = new Edit();
+        edit.mHistoryMode = HISTORY_KEEP;
+        // the restored models and their versions so far, per key
+        HashMap<Long, ByteBuffer> models = new HashMap<>();
+        HashMap<Long, Integer> versions = new HashMap<>();
+        try{
+            for(int i = mEntries.length - 1; i >= 0; i--){
+                Entry entry = mEntries[i];
+                if(!isHistory(entry.mKind) || entry.mKeyboardHash < generation){
+                    continue;
+                }
+                ModelDelta.Record record = ModelDelta.Record.decode(slice(mBuffer, entry),
+                        entry.mVersion);
+                for(int c = 0; c < record.size(); c++){
+                    ModelDelta.Change change = record.get(c);
+                    long key = key(change.getKeyboardHash(), change.getKind());
+                    int index = indexOf(mEntries, change.getKeyboardHash(), change.getKind());
+                    ByteBuffer base = models.containsKey(key) ? models.get(key) :
+                            index >= 0 ? slice(mBuffer, mEntries[index]) : null;
+                    models.put(key, change.undo(base));
+                    versions.put(key, change.getOldVersion());
+                }
+                edit.remove(entry.mKeyboardHash, entry.mKind);
+            }
+        } catch(IOException e){
+            Log.e(TAG, "Failed to roll back generation " + generation + ": " + e.toString());
+            return null;
+        }
+        for(Long key:models.keySet()){
+            int keyboardHash = (int) (key >> 32);
+            int kind = (int) (long) key;
+            if(models.get(key) == null){
+                edit.remove(keyboardHash, kind);
+            } else {
+                edit.put(keyboardHash, kind, versions.get(key), models.get(key));
+            }
+        }
+        return edit;
+    }
+
+    // removes all models
+    public boolean clear(){
+        synchronized(mWriteLock){
+            return write(new Entry[0], new ByteBuffer[0], null);
+        }
+    }
+
+    // how a commit changes the history: the changed models are recorded in a step after the
+    // latest generation, a new generation is started or the history is left as it is
+    private static final int HISTORY_STEP = 0;
+    private static final int HISTORY_GENERATION = 1;
+    private static final int HISTORY_KEEP = 2;
+
+    // collects changes of several models, which are written at once by commit()
+    public class Edit {
+        private final ArrayList<Entry> mPutEntries = new ArrayList<>();
+        private final ArrayList<ByteBuffer> mPutData = new ArrayList<>();
+        private final ArrayList<Entry> mRemoved = new ArrayList<>();
+        private int mHistoryMode = HISTORY_STEP;
+
+        // makes the commit a new generation of the models, which rollback() can undo. Meant for
+        // learner runs and imports, not for the small updates in between
+        public Edit asGeneration(){
+            mHistoryMode = HISTORY_GENERATION;
+            return this;
+        }
+
+        // the keyboards whose models are changed, without the models that belong to no keyboard
+        Set<Integer> getKeyboardHashes(){
+            HashSet<Integer> hashes = new HashSet<>();
+            for(Entry entry:mPutEntries){
+                if(isTracked(entry.mKind) && entry.mKeyboardHash != NO_KEYBOARD){
+                    hashes.add(entry.mKeyboardHash);
+                }
+            }
+            for(Entry entry:mRemoved){
+                if(isTracked(entry.mKind) && entry.mKeyboardHash != NO_KEYBOARD){
+                    hashes.add(entry.mKeyboardHash);
+                }
+            }
+            return hashes;
+        }
+
+        // sets the model of a keyboard. data is read from its position to its limit on commit
+        public Edit put(int keyboardHash, int kind, int version, ByteBuffer data){
+            mPutEntries.add(new Entry(keyboardHash, kind, version, 0, data.remaining(), 0));
+            mPutData.add(data);
+            return this;
+        }
+
+        // removes the model of a keyboard, if there is one
+        public Edit remove(int keyboardHash, int kind){
+            mRemoved.add(new Entry(keyboardHash, kind, 0, 0, 0, 0));
+            return this;
+        }
+
+        // writes the new store and returns whether it succeeded
+        public boolean commit(){
+            return commit(null);
+        }
+
+        // like commit(), but runs beforeReplace once the new store is written and synced, right
+        // before it replaces the old one. Lets tests fail a commit at its most critical point
+        boolean commit(Runnable beforeReplace){
+            if(mPutEntries.isEmpty() && mRemoved.isEmpty()){
+                return true;
+            }
+            synchronized(mWriteLock){
+                return apply(this, beforeReplace);
+            }
+        }
+    }
+
+    // writes a new file with the models of an Edit replacing or adding to the current ones and
+    // without the removed ones. Is called while holding the writer lock, so the mapping cannot be
+    // replaced by anyone else until the new file is written
+    private boolean apply(Edit edit, Runnable beforeReplace){
+        Entry[] base;
+        ByteBuffer buffer;
+        synchronized(this){
+            refresh();
+            base = mEntries;
+            buffer = mBuffer;
+        }
+        ArrayList<Entry> puts = edit.mPutEntries;
+        ArrayList<ByteBuffer> data = edit.mPutData;
+        ArrayList<Entry> removed = edit.mRemoved;
+        ArrayList<Entry> entries = new ArrayList<>(Arrays.asList(base));
+        ArrayList<ByteBuffer> contents = new ArrayList<>();
+        for(Entry entry:base){
+            contents.add(slice(buffer, entry));
+        }
+        long now = System.currentTimeMillis();
+        for(int i = 0; i < puts.size(); i++){
+            Entry put = puts.get(i);
+            int index = -1;
+            for(int k = 0; k < entries.size(); k++){
+                if(entries.get(k).mKeyboardHash == put.mKeyboardHash && entries.get(k).mKind == put.mKind){
+                    index = k;
+                }
+            }
+            // the timestamp has to change with every save, since it tells readers to reload
+            long timestamp = index >= 0 ? Math.max(now, entries.get(index).mTimestamp + 1) : now;
+            Entry entry = new Entry(put.mKeyboardHash, put.mKind, put.mVersion, 0, put.mLength, timestamp);
+            if(index >= 0){
+                entries.set(index, entry);
+                contents.set(index, data.get(i).duplicate());
+            } else {
+                entries.add(entry);
+                contents.add(data.get(i).duplicate());
+            }
+        }
+        for(Entry remove:removed){
+            for(int k = entries.size() - 1; k >= 0; k--){
+                if(entries.get(k).mKeyboardHash == remove.mKeyboardHash && entries.get(k).mKind == remove.mKind){
+                    entries.remove(k);
+                    contents.remove(k);
+                }
+            }
+        }
+        if(edit.mHistoryMode != HISTORY_KEEP){
+            updateHistory(edit, base, buffer, entries, contents, now);
+        }
+        return write(entries.toArray(new Entry[entries.size()]),
+                contents.toArray(new ByteBuffer[contents.size()]), beforeReplace);
+    }
+
+    // the models whose changes are kept in the history
+    private static boolean isTracked(int kind){
+        return kind == KIND_KEYSTATS || kind == KIND_HITBOXES || kind == KIND_BACKOFF;
+    }
+
+    private static boolean isHistory(int kind){
+        return kind == KIND_HISTORY || kind == KIND_HISTORY_STEP;
+    }
+
+    private static long key(int keyboardHash, int kind){
+        return ((long) keyboardHash << 32) | (kind & 0xFFFFFFFFL);
+    }
+
+    private static int indexOf(ArrayList<Entry> entries, int keyboardHash, int kind){
+        for(int k = 0; k < entries.size(); k++){
+            if(entries.get(k).mKeyboardHash == keyboardHash && entries.get(k).mKind == kind){
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    // keeps the history in the new entries up to date with the models an Edit changed. A new
+    // generation records how to undo all of them. Other updates add a step that records the same,
+    // if there is a generation that can be rolled back. Only the changed models are compared, the
+    // history is not read. So undoing the generations and steps from the newest one always starts
+    // from the current models
+    private static void updateHistory(Edit edit, Entry[] base, ByteBuffer buffer,
+                                      ArrayList<Entry> entries, ArrayList<ByteBuffer> contents,
+                                      long now){
+        // the changed models, each once
+        ArrayList<Entry> changed = new ArrayList<>();
+        HashSet<Long> keys = new HashSet<>();
+        for(Entry entry:edit.mPutEntries){
+            if(isTracked(entry.mKind) && keys.add(key(entry.mKeyboardHash, entry.mKind))){
+                changed.add(entry);
+            }
+        }
+        for(Entry entry:edit.mRemoved){
+            if(isTracked(entry.mKind) && keys.add(key(entry.mKeyboardHash, entry.mKind))){
+                changed.add(entry);
+            }
+        }
+        if(changed.isEmpty()){
+            return;
+        }
+
+        // the generations and steps, the newest first
+        ArrayList<Integer> history = new ArrayList<>();
+        int nGenerations = 0;
+        for(int k = 0; k < entries.size(); k++){
+            if(isHistory(entries.get(k).mKind)){
+                history.add(k);
+            }
+            if(entries.get(k).mKind == KIND_HISTORY){
+                nGenerations++;
+            }
+        }
+        if(edit.mHistoryMode != HISTORY_GENERATION && nGenerations == 0){
+            return;
+        }
+        final ArrayList<Entry> unsorted = entries;
+        Collections.sort(history, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(unsorted.get(b).mKeyboardHash, unsorted.get(a).mKeyboardHash);
+            }
+        });
+
+        ModelDelta.Record record = new ModelDelta.Record();
+        for(Entry entry:changed){
+            int oldIndex = indexOf(base, entry.mKeyboardHash, entry.mKind);
+            int newIndex = indexOf(entries, entry.mKeyboardHash, entry.mKind);
+            record.put(entry.mKeyboardHash, entry.mKind,
+                    oldIndex >= 0 ? base[oldIndex].mVersion : ModelDelta.NO_MODEL,
+                    oldIndex >= 0 ? slice(buffer, base[oldIndex]) : null,
+                    newIndex >= 0 ? contents.get(newIndex) : null);
+        }
+        int number = history.isEmpty() ? 1 : entries.get(history.get(0)).mKeyboardHash + 1;
+        int kind = edit.mHistoryMode == HISTORY_GENERATION ? KIND_HISTORY : KIND_HISTORY_STEP;
+        if(kind == KIND_HISTORY){
+            foldSteps(base, buffer, entries, contents, history);
+        }
+        ByteBuffer data = record.encode();
+        entries.add(new Entry(number, kind, ModelDelta.FORMAT_VERSION, 0, data.remaining(), now));
+        contents.add(data);
+
+        // the oldest generations are forgotten
+        if(kind == KIND_HISTORY){
+            ArrayList<Integer> generations = new ArrayList<>();
+            for(Entry entry:entries){
+                if(entry.mKind == KIND_HISTORY){
+                    generations.add(entry.mKeyboardHash);
+                }
+            }
+            if(generations.size() > MAX_GENERATIONS){
+                Collections.sort(generations, Collections.<Integer>reverseOrder());
+                removeHistory(entries, contents, generations.get(MAX_GENERATIONS));
+            }
+        }
+    }
+
+    // replaces the latest generation and the steps after it by one record of the generation that
+    // undoes all of them from the current models. Is called before a new generation starts, so
+    // the steps never pile up. If the history is broken, all of it is dropped, since rolling back
+    // to a generation undoes all newer ones
+    private static void foldSteps(Entry[] base, ByteBuffer buffer, ArrayList<Entry> entries,
+                                  ArrayList<ByteBuffer> contents, ArrayList<Integer> history){
+        // the steps after the latest generation, the newest first, and the generation
+        ArrayList<Integer> folded = new ArrayList<>();
+        int generation = -1;
+        for(Integer k:history){
+            folded.add(k);
+            if(entries.get(k).mKind == KIND_HISTORY){
+                generation = k;
+                break;
+            }
+        }
+        if(generation < 0 || folded.size() == 1){
+            return;
+        }
+
+        // the models as they were before the generation and their versions, per key
+        HashMap<Long, ByteBuffer> models = new HashMap<>();
+        HashMap<Long, Integer> versions = new HashMap<>();
+        Entry latest = entries.get(generation);
+        try{
+            for(Integer k:folded){
+                ModelDelta.Record record = ModelDelta.Record.decode(contents.get(k),
+                        entries.get(k).mVersion);
+                for(int c = 0; c < record.size(); c++){
+                    ModelDelta.Change change = record.get(c);
+                    long key = key(change.getKeyboardHash(), change.getKind());
+                    int index = indexOf(base, change.getKeyboardHash(), change.getKind());
+                    ByteBuffer current = models.containsKey(key) ? models.get(key) :
+                            index >= 0 ? slice(buffer, base[index]) : null;
+                    models.put(key, change.undo(current));
+                    versions.put(key, change.getOldVersion());
+                }
+            }
+        } catch(IOException e){
+            Log.e(TAG, "Dropping the broken history up to generation " + latest.mKeyboardHash +
+                    ": " + e.toString());
+            removeHistory(entries, contents, Integer.MAX_VALUE);
+            return;
+        }
+
+        ModelDelta.Record record = new ModelDelta.Record();
+        for(Long key:models.keySet()){
+            int keyboardHash = (int) (key >> 32);
+            int kind = (int) (long) key;
+            int index = indexOf(base, keyboardHash, kind);
+            record.put(keyboardHash, kind, versions.get(key), models.get(key),
+                    index >= 0 ? slice(buffer, base[index]) : null);
+        }
+        ByteBuffer data = record.encode();
+        entries.set(generation, new Entry(latest.mKeyboardHash, KIND_HISTORY,
+                ModelDelta.FORMAT_VERSION, 0, data.remaining(), latest.mTimestamp));
+        contents.set(generation, data);
+        for(int k = entries.size() - 1; k >= 0; k--){
+            if(entries.get(k).mKind == KIND_HISTORY_STEP){
+                entries.remove(k);
+                contents.remove(k);
+            }
+        }
+    }
+
+    // removes the history of the given generation and all older generations and steps
+    private static void removeHistory(ArrayList<Entry> entries, ArrayList<ByteBuffer> contents,
+                                      int generation){
+        for(int k = entries.size() - 1; k >= 0; k--){
+            if(isHistory(entries.get(k).mKind) && entries.get(k).mKeyboardHash <= generation){
+                entries.remove(k);
+                contents.remove(k);
+            }
+        }
+    }
+
+    // writes the given models to a temporary file, replaces the store by it and maps it. Only the
+    // replacement and the new mapping hold the monitor of the store, readers do not wait for the
+    // file to be written and synced
+    private boolean write(Entry[] entries, ByteBuffer[] contents, Runnable beforeReplace){
+        // sort the entries (and their contents) by keyboard hash and kind
+        Integer[] order = new Integer[entries.length];
+        for(int i = 0; i < order.length; i++){
+            order[i] = i;
+        }
+        final Entry[] unsorted = entries;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return compareKeys(unsorted[a].mKeyboardHash, unsorted[a].mKind,
+                        unsorted[b].mKeyboardHash, unsorted[b].mKind);
+            }
+        });
+
+        Entry[] sorted = new Entry[entries.length];
+        long offset = HEADER_BYTES + (long) ENTRY_BYTES * entries.length;
+        ByteBuffer index = ByteBuffer.allocate(HEADER_BYTES + ENTRY_BYTES * entries.length);
+        index.putInt(MAGIC);
+        index.putInt(FORMAT_VERSION);
+        index.putInt(entries.length);
+        for(int i = 0; i < order.length; i++){
+            Entry entry = entries[order[i]];
+            sorted[i] = new Entry(entry.mKeyboardHash, entry.mKind, entry.mVersion, offset,
+                    entry.mLength, entry.mTimestamp);
+            index.putInt(entry.mKeyboardHash);
+            index.putInt(entry.mKind);
+            index.putInt(entry.mVersion);
+            index.putLong(offset);
+            index.putInt(entry.mLength);
+            index.putLong(entry.mTimestamp);
+            offset += entry.mLength;
+        }
+        index.flip();
+
+        File tmp;
+        try{
+            File folder = mFile.getParentFile();
+            if(!folder.exists()){
+                folder.mkdir();
+            }
+            tmp = new File(folder, mFile.getName() + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try{
+                FileChannel channel = fos.getChannel();
+                writeFully(channel, index);
+                for(Integer i:order){
+                    writeFully(channel, contents[i].duplicate());
+                }
+                // the new file has to be on the disk before it replaces the old one, or a crash
+                // could leave an empty or partial store behind the rename
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            if(beforeReplace != null){
+                beforeReplace.run();
+            }
+        } catch(IOException e){
+            Log.e(TAG, "Failed to write the model store: " + e.toString());
+            return false;
+        }
+        synchronized(this){
+            if(!tmp.renameTo(mFile)){
+                tmp.delete();
+                Log.e(TAG, "Failed to replace " + mFile.getName());
+                return false;
+            }
+            mMapped = false;
+            refresh();
+        }
+        HitboxRegistry.onStoreChanged(this);
+        return true;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+    }
+
+    // maps the file if it was replaced since it was mapped. Costs nothing after that
+    private void refresh(){
+        if(mMapped){
+            return;
+        }
+        mMapped = true;
+        if(!mFile.exists()){
+            mBuffer = null;
+            mEntries = new Entry[0];
+            return;
+        }
+        try{
+            RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+            try{
+                FileChannel channel = raf.getChannel();
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                mEntries = readIndex(buffer);
+                mBuffer = buffer;
+            } finally {
+                raf.close();
+            }
+        } catch(IOException e){
+            Log.e(TAG, "Failed to read the model store: " + e.toString());
+            mBuffer = null;
+            mEntries = new Entry[0];
+        }
+    }
+
+    // the content of a store without models, e.g. for a backup of a store that was never written
+    static byte[] emptyStore(){
+        ByteBuffer index = ByteBuffer.allocate(HEADER_BYTES);
+        index.putInt(MAGIC);
+        index.putInt(FORMAT_VERSION);
+        index.putInt(0);
+        return index.array();
+    }
+
+    // reads and checks the index of a mapped store
+    static Entry[] readIndex(ByteBuffer buffer) throws IOException {
+        if(buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC){
+            throw new IOException("Not a model store");
+        }
+        int version = buffer.getInt(4);
+        if(version < 1 || version > FORMAT_VERSION){
+            throw new IOException("Unknown model store version " + version);
+        }
+        int nEntries = buffer.getInt(8);
+        if(nEntries < 0 || buffer.limit() < HEADER_BYTES + (long) ENTRY_BYTES * nEntries){
+            throw new IOException("Truncated model store");
+        }
+        Entry[] entries = new Entry[nEntries];
+        for(int i = 0; i < nEntries; i++){
+            int pos = HEADER_BYTES + ENTRY_BYTES * i;
+            entries[i] = new Entry(buffer.getInt(pos), buffer.getInt(pos + 4), buffer.getInt(pos + 8),
+                    buffer.getLong(pos + 12), buffer.getInt(pos + 20), buffer.getLong(pos + 24));
+            if(entries[i].mOffset < 0 || entries[i].mLength < 0 ||
+                    entries[i].mOffset + entries[i].mLength > buffer.limit()){
+                throw new IOException("Invalid entry " + entries[i]);
+            }
+        }
+        return entries;
+    }
+
+    static ByteBuffer slice(ByteBuffer buffer, Entry entry){
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) entry.mOffset);
+        view.limit((int) entry.mOffset + entry.mLength);
+        return view.slice();
+    }
+
+    // binary search in entries sorted by keyboard hash and kind. Returns -1 if there is no entry
+    private static int indexOf(Entry[] entries, int keyboardHash, int kind){
+        int low = 0;
+        int high = entries.length - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            int cmp = compareKeys(entries[mid].mKeyboardHash, entries[mid].mKind, keyboardHash, kind);
+            if(cmp < 0){
+                low = mid + 1;
+            } else if(cmp > 0){
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private static int compareKeys(int hashA, int kindA, int hashB, int kindB){
+        if(hashA != hashB){
+            return hashA < hashB ? -1 : 1;
+        }
+        return kindA < kindB ? -1 : kindA == kindB ? 0 : 1;
+    }
+
+    // writes the store file. The first time, it is filled with the models in files of the old
+    // format, which are deleted afterwards
+    private void create(Context context){
+        Edit edit = edit();
+        ArrayList<File> imported = new ArrayList<>();
+        boolean done = PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(PREF_FILES_IMPORTED, false);
+        if(!done){
+            importFiles(context, edit, imported);
+        }
+        // the store is created even if there is nothing to import, so that get does not have to
+        // create it again
+        synchronized(mWriteLock){
+            if(!apply(edit, null)){
+                return;
+            }
+        }
+        if(done){
+            return;
+        }
+        for(File file:imported){
+            file.delete();
+        }
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putBoolean(PREF_FILES_IMPORTED, true).apply();
+        Log.i(TAG, "Imported " + imported.size() + " model files");
+    }
+
+    // adds the models saved in one file per keyboard to the edit and the files to imported. KeyStats
+    // and Hitboxes were saved either as serialized objects (.ser) or already in their binary format
+    // (.bin). The BackoffStats had a file of their own
+    private static void importFiles(Context context, Edit edit, List<File> imported){
+        File[] files = new File(context.getFilesDir(), "KeyStats").listFiles();
+        for(File file:files != null ? files : new File[0]){
+            Integer keyboardHash = parseHash(file.getName(), "KeyStats");
+            if(keyboardHash == null){
+                continue;
+            }
+            try{
+                ByteBuffer data = file.getName().endsWith(".bin") ? readFile(file) :
+                        KeyStats.loadLegacy(file, keyboardHash).toBuffer();
+                // fails if the file is broken
+                KeyStats.check(data.duplicate(), keyboardHash);
+                edit.put(keyboardHash, KIND_KEYSTATS, KeyStats.FORMAT_VERSION, data);
+                imported.add(file);
+            } catch(Exception e){
+                Log.e(TAG, "Could not import " + file.getName() + ": " + e.toString());
+            }
+        }
+        files = new File(context.getFilesDir(), "Hitboxes").listFiles();
+        for(File file:files != null ? files : new File[0]){
+            Integer keyboardHash = parseHash(file.getName(), "Hitboxes");
+            if(keyboardHash == null){
+                continue;
+            }
+            try{
+                ByteBuffer data = file.getName().endsWith(".bin") ? readFile(file) :
+                        PackedHitboxes.pack(Hitboxes.loadLegacy(file));
+                PackedHitboxes.unpack(data.duplicate(), keyboardHash);
+                edit.put(keyboardHash, KIND_HITBOXES, PackedHitboxes.FORMAT_VERSION, data);
+                imported.add(file);
+            } catch(Exception e){
+                Log.e(TAG, "Could not import " + file.getName() + ": " + e.toString());
+            }
+        }
+        // the shared stats keep their encoding (see BackoffStats.toBuffer)
+        File backoff = new File(new File(context.getFilesDir(), "KeyStats"), "BackoffStats.ser");
+        if(backoff.exists()){
+            try{
+                ByteBuffer data = readFile(backoff);
+                BackoffStats.fromBuffer(data.duplicate(), 0);
+                edit.put(NO_KEYBOARD, KIND_BACKOFF, BackoffStats.FORMAT_VERSION, data);
+                imported.add(backoff);
+            } catch(Exception e){
+                Log.e(TAG, "Could not import " + backoff.getName() + ": " + e.toString());
+            }
+        }
+    }
+
+    // returns the keyboard hash in names like <prefix><hash>.ser or null if the name is different
+    private static Integer parseHash(String name, String prefix){
+        if(!name.startsWith(prefix) || !(name.endsWith(".ser") || name.endsWith(".bin"))){
+            return null;
+        }
+        try{
+            return Integer.parseInt(name.substring(prefix.length(), name.length() - 4));
+        } catch(NumberFormatException e){
+            return null;
+        }
+    }
+
+    private static ByteBuffer readFile(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try{
+            FileChannel channel = fis.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while(buffer.hasRemaining() && channel.read(buffer) >= 0){
+                // read until the buffer is full
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            fis.close();
+        }
+    }
+}
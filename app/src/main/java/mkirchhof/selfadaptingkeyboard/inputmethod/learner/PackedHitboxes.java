@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+
+// The hitboxes of a keyboard as they are saved (see Hitboxes.save), read without creating an
+// object per key. They are a flat array of ints:
+// a header (magic number, format version, keyboard hash, number of keys, number of rows),
+// one record (code, left, top, right, bottom) per key sorted by code, the record index of each
+// hitbox in the order of the Hitboxes list, and a row table of (top, height) pairs sorted by top,
+// where height is that of the first hitbox of the row.
+// The KeyboardBuilder reads them from the mapped ModelStore (through the HitboxRegistry) and looks
+// keys up by binary search in O(log n).
+public class PackedHitboxes {
+    private static final int MAGIC = 0x48425850; // "HBXP"
+    public static final int FORMAT_VERSION = 1;
+    private static final int HEADER_INTS = 5;
+    private static final int RECORD_INTS = 5;
+    private static final int ROW_INTS = 2;
+
+    private final ByteBuffer mBuffer;
+    private final int mKeyboardHash;
+    private final int mSize;
+    private final int mRows;
+    // positions of the tables in mBuffer in bytes
+    private final int mRecordStart;
+    private final int mOrderStart;
+    private final int mRowStart;
+
+    private PackedHitboxes(ByteBuffer buffer, int keyboardHash, int size, int rows){
+        mBuffer = buffer;
+        mKeyboardHash = keyboardHash;
+        mSize = size;
+        mRows = rows;
+        mRecordStart = 4 * HEADER_INTS;
+        mOrderStart = mRecordStart + 4 * RECORD_INTS * size;
+        mRowStart = mOrderStart + 4 * size;
+    }
+
+    public int getKeyboardHash(){ return mKeyboardHash; }
+
+    public int size(){ return mSize; }
+
+    public int getCode(int index){ return get(index, 0); }
+
+    public int getLeft(int index){ return get(index, 1); }
+
+    public int getTop(int index){ return get(index, 2); }
+
+    public int getRight(int index){ return get(index, 3); }
+
+    public int getBottom(int index){ return get(index, 4); }
+
+    public int getWidth(int index){ return getRight(index) - getLeft(index); }
+
+    public int getHeight(int index){ return getBottom(index) - getTop(index); }
+
+    private int get(int index, int field){
+        return mBuffer.getInt(mRecordStart + 4 * (RECORD_INTS * index + field));
+    }
+
+    // CRC32 of the packed hitboxes. Unlike the versions of the HitboxRegistry, it identifies the
+    // hitboxes across restarts of the process
+    public long getChecksum(){
+        byte[] bytes = new byte[4 * (HEADER_INTS + (RECORD_INTS + 1) * mSize + ROW_INTS * mRows)];
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(0);
+        buffer.get(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    // returns the index of the hitbox of a key or -1 if there is none. If several hitboxes
+    // have the code, the first one of the Hitboxes list is found (as by Hitboxes.findCode)
+    public int indexOfCode(int code){
+        int low = 0;
+        int high = mSize;
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(getCode(mid) < code){
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low < mSize && getCode(low) == code ? low : -1;
+    }
+
+    // returns the height of the first hitbox of the row whose top coordinate is yTop, or -1 if
+    // there is no such row (see Hitboxes.findRowStart)
+    public int getRowHeight(int yTop){
+        int low = 0;
+        int high = mRows - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            int top = mBuffer.getInt(mRowStart + 4 * ROW_INTS * mid);
+            if(top < yTop){
+                low = mid + 1;
+            } else if(top > yTop){
+                high = mid - 1;
+            } else {
+                return mBuffer.getInt(mRowStart + 4 * (ROW_INTS * mid + 1));
+            }
+        }
+        return -1;
+    }
+
+    // creates Hitbox objects of all keys in the order in which they were saved
+    public Hitboxes toHitboxes(){
+        Hitboxes hitb = new Hitboxes(mKeyboardHash);
+        for(int i = 0; i < mSize; i++){
+            int index = mBuffer.getInt(mOrderStart + 4 * i);
+            int left = getLeft(index);
+            int top = getTop(index);
+            int right = getRight(index);
+            int bottom = getBottom(index);
+            hitb.add(new Hitbox(getCode(index), new Point(left, top), new Point(right, top),
+                    new Point(left, bottom), new Point(right, bottom)));
+        }
+        return hitb;
+    }
+
+    // encodes hitboxes in the packed format
+    static ByteBuffer pack(final Hitboxes hitb){
+        final Hitbox[] boxes = hitb.toArray(new Hitbox[hitb.size()]);
+        // the order of the records, the sort is stable, so equal codes keep the order of the list
+        Integer[] records = new Integer[boxes.length];
+        for(int i = 0; i < boxes.length; i++){
+            records[i] = i;
+        }
+        Arrays.sort(records, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(boxes[a].getCode(), boxes[b].getCode());
+            }
+        });
+        int[] recordOfBox = new int[boxes.length];
+        for(int r = 0; r < records.length; r++){
+            recordOfBox[records[r]] = r;
+        }
+
+        // the first hitbox of each row in the order of the list
+        int[] rowTops = new int[boxes.length];
+        int[] rowHeights = new int[boxes.length];
+        int nRows = 0;
+        for(Hitbox box:boxes){
+            int top = box.getTopLeft().getY();
+            int pos = Arrays.binarySearch(rowTops, 0, nRows, top);
+            if(pos < 0){
+                pos = -pos - 1;
+                System.arraycopy(rowTops, pos, rowTops, pos + 1, nRows - pos);
+                System.arraycopy(rowHeights, pos, rowHeights, pos + 1, nRows - pos);
+                rowTops[pos] = top;
+                rowHeights[pos] = box.getHeight();
+                nRows++;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 * (HEADER_INTS + (RECORD_INTS + 1) * boxes.length +
+                ROW_INTS * nRows));
+        buffer.putInt(MAGIC);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putInt(hitb.getKeyboardHash());
+        buffer.putInt(boxes.length);
+        buffer.putInt(nRows);
+        for(Integer record:records){
+            Hitbox box = boxes[record];
+            buffer.putInt(box.getCode());
+            buffer.putInt(box.getTopLeft().getX());
+            buffer.putInt(box.getTopLeft().getY());
+            buffer.putInt(box.getBottomRight().getX());
+            buffer.putInt(box.getBottomRight().getY());
+        }
+        for(int record:recordOfBox){
+            buffer.putInt(record);
+        }
+        for(int r = 0; r < nRows; r++){
+            buffer.putInt(rowTops[r]);
+            buffer.putInt(rowHeights[r]);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // wraps a buffer written by pack. Throws an IOException if the buffer does not hold the
+    // hitboxes of the given keyboard in a known version of the format
+    static PackedHitboxes unpack(ByteBuffer data, int keyboardHash) throws IOException {
+        ByteBuffer buffer = data.slice();
+        if(buffer.remaining() < 4 * HEADER_INTS || buffer.getInt(0) != MAGIC){
+            throw new IOException("Not a Hitboxes file");
+        }
+        int version = buffer.getInt(4);
+        if(version < 1 || version > FORMAT_VERSION){
+            throw new IOException("Unknown Hitboxes format version " + version);
+        }
+        int hash = buffer.getInt(8);
+        if(hash != keyboardHash){
+            throw new IOException("File holds the Hitboxes of keyboard " + hash);
+        }
+        int size = buffer.getInt(12);
+        int rows = buffer.getInt(16);
+        if(size < 0 || rows < 0 || buffer.remaining() <
+                4L * (HEADER_INTS + (RECORD_INTS + 1) * (long) size + ROW_INTS * (long) rows)){
+            throw new IOException("Truncated Hitboxes file");
+        }
+        return new PackedHitboxes(buffer, keyboardHash, size, rows);
+    }
+
+    // returns the saved hitboxes of a keyboard as they were last published to the HitboxRegistry.
+    // Returns null if there are none
+    public static PackedHitboxes load(Context context, int keyboardHash){
+        return HitboxRegistry.get(context).getLayout(keyboardHash).getHitboxes();
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+// Detects the posture the user is currently typing in from the last PostureWindow.SIZE touches
+// on a keyboard and returns the raster of that posture (see PostureModel). Each touch takes
+// constant time, so this can run on the UI thread for every keystroke.
+public class PostureDetector {
+    private final PostureModel mModel;
+    private final PostureWindow mWindow = new PostureWindow();
+    private final double[] mFeatures = new double[PostureWindow.N_FEATURES];
+    private int mPosture = 0;
+
+    public PostureDetector(PostureModel model){
+        mModel = model;
+    }
+
+    public int getPosture(){ return mPosture; }
+
+    public HitboxRaster getRaster(){ return mModel.getRaster(mPosture); }
+
+    // adds a touch at (x, y) on the key with the given bounds and returns the raster of the
+    // posture detected afterwards
+    public HitboxRaster onTouch(int x, int y, int keyLeft, int keyTop, int keyWidth, int keyHeight,
+                                int keyboardWidth){
+        mWindow.add(x, y, keyLeft, keyTop, keyWidth, keyHeight, keyboardWidth);
+        if(mWindow.isFull()){
+            mPosture = mModel.classify(mWindow.getFeatures(mFeatures), mPosture);
+        }
+        return getRaster();
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// One-thumb, two-thumb and index finger typing hit the keys with very different offsets, and a
+// single distribution per key averages them into blurry borders. So the touches of a keyboard
+// are cut into windows of PostureWindow.SIZE keystrokes, which are clustered by k-means on their
+// offset features into at most MAX_POSTURES postures. Each posture gets its own HitboxRaster,
+// compiled from the touches of its windows with the stats of all touches as a prior. All rasters
+// use the same hitboxes, so the keyboard can switch between them without being rebuilt (see
+// PostureDetector).
+public class PostureModel implements Serializable {
+    private static final String TAG = PostureModel.class.getSimpleName();
+    private static final long serialVersionUID = 1L;
+
+    public static final int MAX_POSTURES = 3;
+    // minimum number of windows that a posture has to be observed in
+    public static final int MIN_WINDOWS = 10;
+    // postures whose centroids are closer than this (in key sizes) are not worth separate rasters
+    public static final double MIN_SEPARATION = 0.1;
+    // another posture is only detected if it is closer than this fraction of the distance to the
+    // current posture, so that the rasters do not flicker between similar postures
+    public static final double SWITCH_MARGIN = 0.8;
+    private static final int KMEANS_ITERATIONS = 20;
+
+    private final int mKeyboardHash;
+    private final double[][] mCentroids;
+    private final HitboxRaster[] mRasters;
+
+    private PostureModel(int keyboardHash, double[][] centroids, HitboxRaster[] rasters){
+        mKeyboardHash = keyboardHash;
+        mCentroids = centroids;
+        mRasters = rasters;
+    }
+
+    public int getKeyboardHash(){ return mKeyboardHash; }
+
+    public int getSize(){ return mRasters.length; }
+
+    public HitboxRaster getRaster(int posture){ return mRasters[posture]; }
+
+    // returns the posture whose centroid is closest to the features, but stays with current
+    // unless another posture is clearly closer
+    public int classify(double[] features, int current){
+        int best = current;
+        double bestDistance = distance(features, mCentroids[current]) * SWITCH_MARGIN;
+        for(int k = 0; k < mCentroids.length; k++){
+            double d = distance(features, mCentroids[k]);
+            if(d < bestDistance){
+                best = k;
+                bestDistance = d;
+            }
+        }
+        return best;
+    }
+
+    // whether both models switch between the same rasters
+    public boolean hasSameRasters(PostureModel other){
+        if(other == null || other.mRasters.length != mRasters.length){
+            return false;
+        }
+        for(int k = 0; k < mRasters.length; k++){
+            if(!mRasters[k].hasSameCells(other.mRasters[k])){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // fits the postures of a keyboard to its logged touches (in the order they were typed).
+    // stats are the stats of all touches of the keyboard, which are the prior of each posture.
+    // Returns null if there are not enough touches or not at least two distinct postures
+    public static PostureModel fit(ArrayList<Logger.LogItem> touches, Hitboxes hitb,
+                                   KeyStats stats, double halfLife){
+        HashMap<Integer, Hitbox> boxOfCode = new HashMap<>();
+        int keyboardWidth = 0;
+        for(Hitbox cur:hitb){
+            boxOfCode.put(cur.getCode(), cur);
+            keyboardWidth = Math.max(keyboardWidth, cur.getTopRight().getX());
+        }
+
+        // cut the touches into windows
+        ArrayList<double[]> features = new ArrayList<>();
+        ArrayList<ArrayList<Logger.LogItem>> windows = new ArrayList<>();
+        PostureWindow window = new PostureWindow();
+        ArrayList<Logger.LogItem> windowTouches = new ArrayList<>();
+        for(Logger.LogItem touch:touches){
+            Hitbox box = boxOfCode.get(touch.getCode());
+            if(box == null){
+                continue;
+            }
+            window.add(touch.getPosX(), touch.getPosY(), box.getTopLeft().getX(),
+                    box.getTopLeft().getY(), box.getWidth(), box.getHeight(), keyboardWidth);
+            windowTouches.add(touch);
+            if(window.isFull()){
+                features.add(window.getFeatures(new double[PostureWindow.N_FEATURES]));
+                windows.add(windowTouches);
+                window.clear();
+                windowTouches = new ArrayList<>();
+            }
+        }
+
+        // use as many postures as there is data for
+        int[] assignment = null;
+        double[][] centroids = null;
+        for(int k = Math.min(MAX_POSTURES, features.size() / MIN_WINDOWS); k >= 2; k--){
+            centroids = initCentroids(features, k);
+            assignment = kMeans(features, centroids);
+            if(isValid(assignment, centroids)){
+                break;
+            }
+            assignment = null;
+        }
+        if(assignment == null){
+            return null;
+        }
+
+        HitboxRaster[] rasters = new HitboxRaster[centroids.length];
+        for(int k = 0; k < centroids.length; k++){
+            KeyStats postureStats = new KeyStats(hitb.getKeyboardHash());
+            postureStats.setHalfLife(halfLife);
+            for(int w = 0; w < windows.size(); w++){
+                if(assignment[w] == k){
+                    for(Logger.LogItem touch:windows.get(w)){
+                        postureStats.add(touch.getCode(), touch.getPosX(), touch.getPosY());
+                    }
+                }
+            }
+            rasters[k] = HitboxRaster.compile(BackoffStats.withPrior(postureStats, stats), hitb);
+            if(rasters[k] == null){
+                return null;
+            }
+        }
+        return new PostureModel(hitb.getKeyboardHash(), centroids, rasters);
+    }
+
+    // starts with the mean of all windows and then takes the window that is farthest away from
+    // all centroids chosen so far, so that the result is deterministic
+    private static double[][] initCentroids(ArrayList<double[]> features, int k){
+        double[][] centroids = new double[k][PostureWindow.N_FEATURES];
+        for(double[] f:features){
+            for(int i = 0; i < PostureWindow.N_FEATURES; i++){
+                centroids[0][i] += f[i] / features.size();
+            }
+        }
+        for(int c = 1; c < k; c++){
+            double farthest = -1;
+            for(double[] f:features){
+                double d = Double.MAX_VALUE;
+                for(int prev = 0; prev < c; prev++){
+                    d = Math.min(d, distance(f, centroids[prev]));
+                }
+                if(d > farthest){
+                    farthest = d;
+                    centroids[c] = f.clone();
+                }
+            }
+        }
+        return centroids;
+    }
+
+    // Lloyd's algorithm. Updates the centroids and returns the posture of each window
+    private static int[] kMeans(ArrayList<double[]> features, double[][] centroids){
+        int[] assignment = new int[features.size()];
+        for(int iteration = 0; iteration < KMEANS_ITERATIONS; iteration++){
+            boolean changed = false;
+            for(int w = 0; w < features.size(); w++){
+                int best = 0;
+                for(int k = 1; k < centroids.length; k++){
+                    if(distance(features.get(w), centroids[k]) <
+                            distance(features.get(w), centroids[best])){
+                        best = k;
+                    }
+                }
+                changed |= iteration == 0 || assignment[w] != best;
+                assignment[w] = best;
+            }
+            if(!changed){
+                break;
+            }
+
+            int[] counts = new int[centroids.length];
+            for(double[] centroid:centroids){
+                Arrays.fill(centroid, 0);
+            }
+            for(int w = 0; w < features.size(); w++){
+                counts[assignment[w]]++;
+                for(int i = 0; i < PostureWindow.N_FEATURES; i++){
+                    centroids[assignment[w]][i] += features.get(w)[i];
+                }
+            }
+            for(int k = 0; k < centroids.length; k++){
+                for(int i = 0; i < PostureWindow.N_FEATURES; i++){
+                    centroids[k][i] = counts[k] == 0 ? 0 : centroids[k][i] / counts[k];
+                }
+            }
+        }
+        return assignment;
+    }
+
+    // every posture needs enough windows and has to differ from the other postures
+    private static boolean isValid(int[] assignment, double[][] centroids){
+        int[] counts = new int[centroids.length];
+        for(int posture:assignment){
+            counts[posture]++;
+        }
+        for(int k = 0; k < centroids.length; k++){
+            if(counts[k] < MIN_WINDOWS){
+                return false;
+            }
+            for(int other = 0; other < k; other++){
+                if(distance(centroids[k], centroids[other]) < MIN_SEPARATION){
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static double distance(double[] a, double[] b){
+        double sum = 0;
+        for(int i = 0; i < a.length; i++){
+            sum += (a[i] - b[i]) * (a[i] - b[i]);
+        }
+        return Math.sqrt(sum);
+    }
+
+    // saves this object next to the hitboxes of the same keyboard
+    public void save(Context context){
+        try{
+            File folder = new File(context.getFilesDir(),"Hitboxes");
+            // readers on other threads never see a partially written file
+            AtomicFileWriter.write(new File(folder, "Posture" + mKeyboardHash + ".ser"),
+                    new AtomicFileWriter.Content() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    ObjectOutputStream oos = new ObjectOutputStream(out);
+                    oos.writeObject(PostureModel.this);
+                    oos.flush();
+                }
+            });
+        } catch(Exception e){
+            Log.e(TAG, "Failed to save PostureModel: " + e.toString());
+        }
+    }
+
+    // loads a PostureModel from an internal file (/Hitboxes/Posture<HASH>.ser).
+    // Returns null if there is none
+    public static PostureModel load(Context context, int keyboardHash){
+        PostureModel model = null;
+        try{
+            File folder = new File(context.getFilesDir(),"Hitboxes");
+            File file = new File(folder, "Posture" + keyboardHash + ".ser");
+            if(file.exists()) {
+                FileInputStream fis = new FileInputStream(file);
+                ObjectInputStream ois = new ObjectInputStream(fis);
+
+                model = (PostureModel) ois.readObject();
+
+                ois.close();
+                fis.close();
+            }
+        } catch(Exception e){
+            Log.e(TAG, "Failed to load PostureModel for hash " + keyboardHash +
+                    ": " + e.toString());
+        }
+        return model;
+    }
+
+    // deletes the saved posture model of a keyboard, e.g. because its hitboxes were rolled back
+    public static void delete(Context context, int keyboardHash){
+        File folder = new File(context.getFilesDir(),"Hitboxes");
+        File file = new File(folder, "Posture" + keyboardHash + ".ser");
+        if(file.exists()){
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+// The last SIZE touches on a keyboard, summarized into the features that describe the posture
+// the user types in: the mean offset of the touches from the centres of their keys (in key
+// widths and heights), separately for keys on the left and on the right half of the keyboard.
+// E.g. when typing with the right thumb, keys on the left are hit further right than keys on the
+// right. Adding a touch and computing the features take constant time.
+class PostureWindow {
+    public static final int SIZE = 12;
+    public static final int N_FEATURES = 4;
+
+    private final double[] mDx = new double[SIZE];
+    private final double[] mDy = new double[SIZE];
+    private final boolean[] mIsRight = new boolean[SIZE];
+    private int mCount = 0;
+    private int mNext = 0;
+    // sums of dx and dy on the left (0, 1) and on the right (2, 3) and the number of touches
+    private final double[] mSums = new double[N_FEATURES];
+    private int mRightCount = 0;
+
+    // adds the touch at (x, y) on a key with the given bounds. The oldest touch is dropped if
+    // the window is full
+    public void add(int x, int y, int keyLeft, int keyTop, int keyWidth, int keyHeight,
+                    int keyboardWidth){
+        if(keyWidth <= 0 | keyHeight <= 0){
+            return;
+        }
+        double centerX = keyLeft + keyWidth / 2.0;
+        double centerY = keyTop + keyHeight / 2.0;
+        if(mCount == SIZE){
+            remove(mNext);
+        } else {
+            mCount++;
+        }
+        mDx[mNext] = (x - centerX) / keyWidth;
+        mDy[mNext] = (y - centerY) / keyHeight;
+        mIsRight[mNext] = 2 * centerX > keyboardWidth;
+        int offset = mIsRight[mNext] ? 2 : 0;
+        mSums[offset] += mDx[mNext];
+        mSums[offset + 1] += mDy[mNext];
+        if(mIsRight[mNext]){
+            mRightCount++;
+        }
+        mNext = (mNext + 1) % SIZE;
+    }
+
+    private void remove(int index){
+        int offset = mIsRight[index] ? 2 : 0;
+        mSums[offset] -= mDx[index];
+        mSums[offset + 1] -= mDy[index];
+        if(mIsRight[index]){
+            mRightCount--;
+        }
+    }
+
+    public boolean isFull(){ return mCount == SIZE; }
+
+    public void clear(){
+        mCount = 0;
+        mNext = 0;
+        mRightCount = 0;
+        for(int i = 0; i < N_FEATURES; i++){
+            mSums[i] = 0;
+        }
+    }
+
+    // writes the mean offsets into features. A half without touches has no offset
+    public double[] getFeatures(double[] features){
+        int leftCount = mCount - mRightCount;
+        features[0] = leftCount == 0 ? 0 : mSums[0] / leftCount;
+        features[1] = leftCount == 0 ? 0 : mSums[1] / leftCount;
+        features[2] = mRightCount == 0 ? 0 : mSums[2] / mRightCount;
+        features[3] = mRightCount == 0 ? 0 : mSums[3] / mRightCount;
+        return features;
+    }
+}
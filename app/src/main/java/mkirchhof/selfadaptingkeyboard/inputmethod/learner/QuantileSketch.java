@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+// A mergeable sketch of a distribution of touch coordinates with a bounded number of centroids,
+// similar to a merging t-digest (see https://github.com/tdunning/t-digest).
+// Each centroid is a (mean, weight) pair. New values are buffered as single centroids and the
+// buffer is compressed once it is full. Centroids near the median may become heavier than those
+// in the tails, so the quantiles of the tails stay accurate.
+// Weights are doubles, so that the sketch can be decayed together with its KeyStat.
+public class QuantileSketch implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // maximum number of centroids after compression
+    public static final int CAPACITY = 32;
+
+    private double[] mMeans;
+    private double[] mWeights;
+    private int mSize;
+    private double mTotalWeight;
+    private double mMin;
+    private double mMax;
+
+    public QuantileSketch(){
+        mMeans = new double[2 * CAPACITY];
+        mWeights = new double[2 * CAPACITY];
+        mSize = 0;
+        mTotalWeight = 0;
+        mMin = Double.POSITIVE_INFINITY;
+        mMax = Double.NEGATIVE_INFINITY;
+    }
+
+    public void add(double value){
+        add(value, 1);
+    }
+
+    public void add(double value, double weight){
+        if(weight <= 0){
+            return;
+        }
+        if(mSize == mMeans.length){
+            compress();
+        }
+        mMeans[mSize] = value;
+        mWeights[mSize] = weight;
+        mSize++;
+        mTotalWeight += weight;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    // adds all centroids of other, with their weights multiplied by factor (other is not changed)
+    public void merge(QuantileSketch other, double factor){
+        if(other == null || factor <= 0){
+            return;
+        }
+        for(int i = 0; i < other.mSize; i++){
+            add(other.mMeans[i], other.mWeights[i] * factor);
+        }
+        // the extremes of other are no centroid means if they were merged into neighbours
+        if(other.mSize > 0){
+            mMin = Math.min(mMin, other.mMin);
+            mMax = Math.max(mMax, other.mMax);
+        }
+    }
+
+    public void merge(QuantileSketch other){
+        merge(other, 1.0);
+    }
+
+    // returns a copy of this sketch with all values mapped to offset + scale * value (scale > 0)
+    public QuantileSketch transform(double offset, double scale){
+        QuantileSketch sketch = new QuantileSketch();
+        for(int i = 0; i < mSize; i++){
+            sketch.mMeans[i] = offset + scale * mMeans[i];
+            sketch.mWeights[i] = mWeights[i];
+        }
+        sketch.mSize = mSize;
+        sketch.mTotalWeight = mTotalWeight;
+        sketch.mMin = offset + scale * mMin;
+        sketch.mMax = offset + scale * mMax;
+        return sketch;
+    }
+
+    // multiplies all weights by factor
+    public void scale(double factor){
+        for(int i = 0; i < mSize; i++){
+            mWeights[i] *= factor;
+        }
+        mTotalWeight *= factor;
+    }
+
+    public double getTotalWeight(){ return mTotalWeight; }
+
+    // returns the number of centroids that are currently stored
+    public int getSize(){ return mSize; }
+
+    // returns the estimated q-quantile (0 <= q <= 1) or NaN if the sketch is empty
+    public double quantile(double q){
+        if(mSize == 0){
+            return Double.NaN;
+        }
+        compress();
+        if(mSize == 1){
+            return mMeans[0];
+        }
+
+        // each centroid's mean is located at the middle of its weight. Between these points
+        // (and the extremes) the quantile function is interpolated linearly
+        double target = Math.max(0, Math.min(1, q)) * mTotalWeight;
+        double prevPos = 0;
+        double prevValue = mMin;
+        double cumulated = 0;
+        for(int i = 0; i < mSize; i++){
+            double pos = cumulated + mWeights[i] / 2;
+            if(target <= pos){
+                return interpolate(prevPos, prevValue, pos, mMeans[i], target);
+            }
+            prevPos = pos;
+            prevValue = mMeans[i];
+            cumulated += mWeights[i];
+        }
+        return interpolate(prevPos, prevValue, mTotalWeight, mMax, target);
+    }
+
+    public double median(){
+        return quantile(0.5);
+    }
+
+    // returns the distance between the trim- and the (1-trim)-quantile
+    public double trimmedRange(double trim){
+        return quantile(1 - trim) - quantile(trim);
+    }
+
+    private static double interpolate(double x0, double y0, double x1, double y1, double x){
+        if(x1 <= x0){
+            return y1;
+        }
+        return y0 + (y1 - y0) * (x - x0) / (x1 - x0);
+    }
+
+    // returns the number of bytes that writeTo needs. Compresses the sketch first, so that the
+    // size does not change until the next value is added
+    int getBinarySize(){
+        compress();
+        return 4 + 2 * 8 + mSize * 2 * 8;
+    }
+
+    // writes the number of centroids, the extremes and the (mean, weight) pairs of the
+    // compressed sketch
+    void writeTo(ByteBuffer buffer){
+        compress();
+        buffer.putInt(mSize);
+        buffer.putDouble(mMin);
+        buffer.putDouble(mMax);
+        for(int i = 0; i < mSize; i++){
+            buffer.putDouble(mMeans[i]);
+            buffer.putDouble(mWeights[i]);
+        }
+    }
+
+    // reads a sketch written by writeTo
+    static QuantileSketch readFrom(ByteBuffer buffer) throws IOException {
+        QuantileSketch sketch = new QuantileSketch();
+        int size = buffer.getInt();
+        if(size < 0 || size > CAPACITY){
+            throw new IOException("Invalid number of centroids: " + size);
+        }
+        sketch.mMin = buffer.getDouble();
+        sketch.mMax = buffer.getDouble();
+        for(int i = 0; i < size; i++){
+            sketch.mMeans[i] = buffer.getDouble();
+            sketch.mWeights[i] = buffer.getDouble();
+            sketch.mTotalWeight += sketch.mWeights[i];
+        }
+        sketch.mSize = size;
+        return sketch;
+    }
+
+    // moves the buffer behind a sketch written by writeTo without reading it
+    static void skip(ByteBuffer buffer) throws IOException {
+        if(buffer.remaining() < 4 + 2 * 8){
+            throw new IOException("Truncated sketch");
+        }
+        int size = buffer.getInt();
+        if(size < 0 || size > CAPACITY){
+            throw new IOException("Invalid number of centroids: " + size);
+        }
+        if(buffer.remaining() < 2 * 8 + size * 2 * 8){
+            throw new IOException("Truncated sketch");
+        }
+        buffer.position(buffer.position() + 2 * 8 + size * 2 * 8);
+    }
+
+    // merges neighbouring centroids so that at most CAPACITY of them remain. Two centroids are
+    // merged if their combined weight stays below a limit that is smallest in the tails
+    private void compress(){
+        if(mSize <= 1){
+            return;
+        }
+        sort();
+
+        int newSize = 0;
+        double weightSoFar = 0;
+        double curMean = mMeans[0];
+        double curWeight = mWeights[0];
+        for(int i = 1; i < mSize; i++){
+            double proposed = curWeight + mWeights[i];
+            double q0 = weightSoFar / mTotalWeight;
+            double q2 = (weightSoFar + proposed) / mTotalWeight;
+            double limit = 4 * mTotalWeight * Math.min(q0 * (1 - q0), q2 * (1 - q2)) / CAPACITY;
+            if(proposed <= limit){
+                curMean += (mMeans[i] - curMean) * mWeights[i] / proposed;
+                curWeight = proposed;
+            } else {
+                mMeans[newSize] = curMean;
+                mWeights[newSize] = curWeight;
+                newSize++;
+                weightSoFar += curWeight;
+                curMean = mMeans[i];
+                curWeight = mWeights[i];
+            }
+        }
+        mMeans[newSize] = curMean;
+        mWeights[newSize] = curWeight;
+        newSize++;
+        mSize = newSize;
+
+        // enforce the hard bound by merging the lightest pairs of neighbours
+        while(mSize > CAPACITY){
+            int lightest = 0;
+            for(int i = 1; i < mSize - 1; i++){
+                if(mWeights[i] + mWeights[i + 1] < mWeights[lightest] + mWeights[lightest + 1]){
+                    lightest = i;
+                }
+            }
+            double weight = mWeights[lightest] + mWeights[lightest + 1];
+            mMeans[lightest] += (mMeans[lightest + 1] - mMeans[lightest]) * mWeights[lightest + 1] / weight;
+            mWeights[lightest] = weight;
+            System.arraycopy(mMeans, lightest + 2, mMeans, lightest + 1, mSize - lightest - 2);
+            System.arraycopy(mWeights, lightest + 2, mWeights, lightest + 1, mSize - lightest - 2);
+            mSize--;
+        }
+    }
+
+    // insertion sort of the centroids by their means (the arrays are small and mostly sorted)
+    private void sort(){
+        for(int i = 1; i < mSize; i++){
+            double mean = mMeans[i];
+            double weight = mWeights[i];
+            int j = i - 1;
+            while(j >= 0 && mMeans[j] > mean){
+                mMeans[j + 1] = mMeans[j];
+                mWeights[j + 1] = mWeights[j];
+                j--;
+            }
+            mMeans[j + 1] = mean;
+            mWeights[j + 1] = weight;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Keeps the storage of the learner within a budget. The cached Loggers grow without bound if the
+// LayoutLearnerWorker never gets to run (it waits for the device to be idle), and every keyboard
+// size or locale the user ever had keeps its models in the ModelStore forever.
+// enforce() first drops the models of keyboards that were not used for the given number of days
+// (see KeyboardUsage). Their typing habits live on in the BackoffStats, so they are projected
+// again if the keyboard comes back (see LayoutLearner.projectLayout). If the storage is still
+// above the budget, the cached Loggers are folded into the KeyStats by a LayoutLearner run, and
+// only the ones that could not be learnt are deleted, the oldest first. The IME does not learn
+// the cache itself, it asks the LearnerScheduler for an urgent run instead (see check).
+public class StorageQuota {
+    private static final String TAG = StorageQuota.class.getSimpleName();
+    // keyboards that were not used for this long lose their models
+    public static final int DEFAULT_STALE_DAYS = 90;
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    // the IME checks the quota at most this often (see checkInBackground)
+    private static final long CHECK_INTERVAL_MILLIS = 60 * 60 * 1000;
+    // the IME only deletes cached Loggers without learning them once the storage exceeds the
+    // budget by this factor (see check)
+    static final int HARD_LIMIT_FACTOR = 2;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+    private static long sLastCheck = 0;
+
+    private final Context mContext;
+    private final long mBudgetBytes;
+    private final long mStaleMillis;
+
+    public StorageQuota(Context context, long budgetBytes, int staleDays){
+        this(context, budgetBytes, staleDays * DAY_MILLIS);
+    }
+
+    StorageQuota(Context context, long budgetBytes, long staleMillis){
+        mContext = context;
+        mBudgetBytes = budgetBytes;
+        mStaleMillis = staleMillis;
+    }
+
+    public long getBudgetBytes(){ return mBudgetBytes; }
+
+    // the bytes that the learner currently uses
+    public static class Usage {
+        private long mLoggerBytes;
+        private int mLoggers;
+        private long mModelBytes;
+        private int mKeyboards;
+        private long mDerivedBytes;
+
+        // cached keystrokes that were not learnt yet
+        public long getLoggerBytes(){ return mLoggerBytes; }
+
+        public int getLoggers(){ return mLoggers; }
+
+        // the ModelStore with the KeyStats and Hitboxes of all keyboards
+        public long getModelBytes(){ return mModelBytes; }
+
+        public int getKeyboards(){ return mKeyboards; }
+
+        // rasters, posture models and geometries, which belong to the keyboards in the store
+        public long getDerivedBytes(){ return mDerivedBytes; }
+
+        public long getTotalBytes(){ return mLoggerBytes + mModelBytes + mDerivedBytes; }
+
+        @Override
+        public String toString(){
+            return getTotalBytes() + " bytes (" + mLoggers + " Loggers: " + mLoggerBytes +
+                    ", " + mKeyboards + " keyboards: " + (mModelBytes + mDerivedBytes) + ")";
+        }
+    }
+
+    public Usage getUsage(){
+        Usage usage = new Usage();
+        for(File file:listLoggers()){
+            usage.mLoggerBytes += file.length();
+            usage.mLoggers++;
+        }
+        File store = ModelStore.getFile(mContext);
+        usage.mModelBytes = store.exists() ? store.length() : 0;
+        usage.mKeyboards = ModelStore.get(mContext).list(ModelStore.KIND_HITBOXES).size();
+        File[] derived = new File(mContext.getFilesDir(), "Hitboxes").listFiles();
+        for(File file:derived != null ? derived : new File[0]){
+            usage.mDerivedBytes += file.length();
+        }
+        return usage;
+    }
+
+    // drops stale keyboards and brings the storage below the budget. learner folds the cached
+    // Loggers into the KeyStats before they are deleted (null = delete them right away).
+    // Returns the usage afterwards
+    public Usage enforce(LayoutLearner learner){
+        return enforce(learner, System.currentTimeMillis());
+    }
+
+    Usage enforce(LayoutLearner learner, long now){
+        Usage usage = getUsage();
+        if(usage.getTotalBytes() > mBudgetBytes && usage.mLoggers > 0 && learner != null){
+            Log.i(TAG, "Learning the cache to free storage, using " + usage);
+            learner.learn();
+            usage = getUsage();
+        }
+        usage = dropStale(usage, now);
+        if(usage.getTotalBytes() > mBudgetBytes){
+            deleteOldestLoggers(usage);
+        }
+        return usage;
+    }
+
+    // the check of the IME. Learning the cache takes minutes, so it asks the LearnerScheduler for
+    // an urgent run, which learns the cache and enforces the quota. The run may still wait for
+    // the battery, so the oldest Loggers are deleted right away once the storage exceeds the
+    // budget by HARD_LIMIT_FACTOR. Returns the usage afterwards
+    Usage check(long now){
+        Usage usage = getUsage();
+        if(usage.getTotalBytes() > mBudgetBytes && usage.mLoggers > 0){
+            Log.i(TAG, "Requesting an urgent run to free storage, using " + usage);
+            LearnerScheduler.requestUrgentRun(mContext);
+        }
+        usage = dropStale(usage, now);
+        if(usage.getTotalBytes() > HARD_LIMIT_FACTOR * mBudgetBytes){
+            deleteOldestLoggers(usage);
+        }
+        return usage;
+    }
+
+    private Usage dropStale(Usage usage, long now){
+        // Loggers of older versions were saved without recording the use of their keyboards, so
+        // keyboards are only dropped once the cache is learnt
+        if(usage.mLoggers > 0){
+            return usage;
+        }
+        int nDropped = dropStaleKeyboards(now);
+        if(nDropped == 0){
+            return usage;
+        }
+        Log.i(TAG, "Dropped the models of " + nDropped + " stale keyboards");
+        return getUsage();
+    }
+
+    // deletes the oldest Loggers until the usage is within the budget
+    private void deleteOldestLoggers(Usage usage){
+        int nDeleted = 0;
+        File[] loggers = listLoggers();
+        LayoutLearner.sortOldestFirst(loggers);
+        for(File file:loggers){
+            if(usage.getTotalBytes() <= mBudgetBytes){
+                break;
+            }
+            long length = file.length();
+            if(file.delete()){
+                usage.mLoggerBytes -= length;
+                usage.mLoggers--;
+                nDeleted++;
+            }
+        }
+        Log.i(TAG, "Deleted the " + nDeleted + " oldest Loggers, using " + usage);
+    }
+
+    // removes the models of all keyboards that were last used before now minus the stale time.
+    // Keyboards whose use was never recorded (e.g. since they were only seeded) count as used
+    // when their models were last written. Returns how many keyboards were dropped
+    int dropStaleKeyboards(long now){
+        ModelStore store = ModelStore.get(mContext);
+        HashMap<Integer, Long> lastWritten = new HashMap<>();
+        for(ModelStore.Entry entry:store.list()){
+            if(entry.getKind() != ModelStore.KIND_KEYSTATS &&
+                    entry.getKind() != ModelStore.KIND_HITBOXES){
+                continue;
+            }
+            Long written = lastWritten.get(entry.getKeyboardHash());
+            if(written == null || entry.getTimestamp() > written){
+                lastWritten.put(entry.getKeyboardHash(), entry.getTimestamp());
+            }
+        }
+        HashMap<Integer, Long> lastUsed = KeyboardUsage.load(mContext);
+        for(Map.Entry<Integer, Long> written:lastWritten.entrySet()){
+            if(!lastUsed.containsKey(written.getKey())){
+                lastUsed.put(written.getKey(), written.getValue());
+            }
+        }
+
+        ModelStore.Edit edit = store.edit();
+        ArrayList<Integer> stale = new ArrayList<>();
+        ArrayList<Integer> dropped = new ArrayList<>();
+        for(Map.Entry<Integer, Long> used:lastUsed.entrySet()){
+            if(used.getValue() >= now - mStaleMillis){
+                continue;
+            }
+            stale.add(used.getKey());
+            // the use of keyboards without models is only forgotten
+            if(lastWritten.containsKey(used.getKey())){
+                edit.remove(used.getKey(), ModelStore.KIND_KEYSTATS);
+                edit.remove(used.getKey(), ModelStore.KIND_HITBOXES);
+                dropped.add(used.getKey());
+            }
+        }
+        if(stale.isEmpty() || !edit.commit()){
+            return 0;
+        }
+        // the files derived from the models go after them, so that they never outlive them by
+        // more than a crash
+        File folder = new File(mContext.getFilesDir(), "Hitboxes");
+        for(Integer keyboardHash:dropped){
+            new File(folder, "HitboxRaster" + keyboardHash + ".ser").delete();
+            new File(folder, "Posture" + keyboardHash + ".ser").delete();
+            new File(folder, "Geometry" + keyboardHash + ".ser").delete();
+        }
+        KeyboardUsage.remove(mContext, stale);
+        return dropped.size();
+    }
+
+    private File[] listLoggers(){
+        File[] files = new File(mContext.getCacheDir(), "Logger").listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File file, String filename) {
+                return filename.startsWith("Logger") & filename.endsWith(".ser");
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+
+    // is called by the IME whenever it saved a Logger. Checks the quota on a background thread,
+    // at most once per CHECK_INTERVAL_MILLIS
+    public static synchronized void checkInBackground(final Context context, final long budgetBytes){
+        long now = System.currentTimeMillis();
+        if(now - sLastCheck < CHECK_INTERVAL_MILLIS){
+            return;
+        }
+        sLastCheck = now;
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                new StorageQuota(context, budgetBytes, DEFAULT_STALE_DAYS)
+                        .check(System.currentTimeMillis());
+            }
+        });
+    }
+}
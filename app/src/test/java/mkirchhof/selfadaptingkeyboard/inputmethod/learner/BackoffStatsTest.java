@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BackoffStatsTest {
+    final private static int KEYBOARD_HASH_1 = 1;
+    final private static int KEYBOARD_HASH_2 = 2;
+    final private static int KEYBOARD_HASH_3 = 3;
+
+    // one row of two keys of the given size
+    private KeyboardGeometry sampleGeometry(int keyboardHash, String locale, int width, int height){
+        Hitboxes hb = new Hitboxes(keyboardHash);
+        hb.add(new Hitbox(1, new Point(0, 0), new Point(width, 0),
+                new Point(0, height), new Point(width, height)));
+        hb.add(new Hitbox(2, new Point(width, 0), new Point(2 * width, 0),
+                new Point(width, height), new Point(2 * width, height)));
+        return new KeyboardGeometry(keyboardHash, locale, 0, hb);
+    }
+
+    @Test
+    public void normalizeTest(){
+        KeyboardGeometry geometry = sampleGeometry(KEYBOARD_HASH_1, "en_US", 20, 40);
+        KeyStat stat = new KeyStat(2, 35, 30, 16, 64, 0, 10);
+
+        // key 2 spans from 20 to 40, so a mean of 35 is a quarter key width right of its centre
+        KeyStat normalized = geometry.normalize(stat);
+        assertEquals(0.25, normalized.getMeanX(), 1e-9);
+        assertEquals(0.25, normalized.getMeanY(), 1e-9);
+        assertEquals(16.0 / 400, normalized.getVarX(), 1e-9);
+        assertEquals(64.0 / 1600, normalized.getVarY(), 1e-9);
+        assertEquals(10, normalized.getN());
+
+        KeyStat projected = geometry.project(normalized);
+        assertEquals(35, projected.getMeanX(), 1e-9);
+        assertEquals(16, projected.getVarX(), 1e-9);
+    }
+
+    @Test
+    public void resizedKeyboardTest(){
+        // a wide keyboard has lots of data, key 2 is hit a quarter key width right of its centre
+        KeyboardGeometry wide = sampleGeometry(KEYBOARD_HASH_1, "en_US", 40, 40);
+        KeyStats wideStats = new KeyStats(KEYBOARD_HASH_1);
+        for(int i = 0; i < 100; i++){
+            wideStats.add(2, 70, 20);
+        }
+        BackoffStats backoff = new BackoffStats(0);
+        backoff.update(wideStats, wide);
+
+        // a narrow keyboard of the same locale has no data at all, but starts with the habits of
+        // the wide one in its own coordinates
+        KeyboardGeometry narrow = sampleGeometry(KEYBOARD_HASH_2, "en_US", 20, 40);
+        KeyStats narrowStats = backoff.backoff(new KeyStats(KEYBOARD_HASH_2), narrow);
+        KeyStat key = narrowStats.findCode(2);
+        assertNotNull(key);
+        assertEquals(35, key.getMeanX(), 1e-9);
+        assertTrue(key.getN() > LayoutLearner.MIN_FREQUENCY_FOR_ADAPTION);
+        assertNull(narrowStats.findCode(1));
+    }
+
+    @Test
+    public void ownDataTakesOverTest(){
+        KeyboardGeometry geometry = sampleGeometry(KEYBOARD_HASH_1, "en_US", 20, 20);
+        KeyStats shared = new KeyStats(KEYBOARD_HASH_1);
+        for(int i = 0; i < 1000; i++){
+            shared.add(1, 5, 10);
+        }
+        BackoffStats backoff = new BackoffStats(0);
+        backoff.update(shared, geometry);
+
+        // the prior is limited to BACKOFF_WEIGHT, so lots of own data dominates
+        KeyStats own = new KeyStats(KEYBOARD_HASH_1);
+        for(int i = 0; i < 1800; i++){
+            own.add(1, 15, 10);
+        }
+        KeyStat key = backoff.backoff(own, geometry).findCode(1);
+        assertEquals(2000, key.getN());
+        assertEquals(14, key.getMeanX(), 1e-6);
+        // the own stats are not changed
+        assertEquals(1800, own.findCode(1).getN());
+    }
+
+    @Test
+    public void globalBackoffTest(){
+        // data of another locale is only available through the global stats
+        KeyboardGeometry german = sampleGeometry(KEYBOARD_HASH_1, "de_DE", 20, 20);
+        KeyStats germanStats = new KeyStats(KEYBOARD_HASH_1);
+        for(int i = 0; i < 50; i++){
+            germanStats.add(1, 5, 10);
+        }
+        BackoffStats backoff = new BackoffStats(0);
+        backoff.update(germanStats, german);
+        assertNull(backoff.getLocaleStats("en_US"));
+
+        KeyboardGeometry english = sampleGeometry(KEYBOARD_HASH_3, "en_US", 20, 20);
+        KeyStat key = backoff.backoff(new KeyStats(KEYBOARD_HASH_3), english).findCode(1);
+        assertEquals(5, key.getMeanX(), 1e-9);
+        assertEquals(50, key.getN());
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class BorderSolverTest {
+    final private static int KEYBOARD_HASH_1 = 1;
+
+    @Test
+    public void normalCdfTest(){
+        assertEquals(0.5, BorderSolver.normalCdf(0), 1e-6);
+        assertEquals(0.8413447, BorderSolver.normalCdf(1), 1e-6);
+        assertEquals(0.0227501, BorderSolver.normalCdf(-2), 1e-6);
+    }
+
+    @Test
+    public void symmetricRowTest(){
+        Hitboxes hb = new Hitboxes(KEYBOARD_HASH_1);
+        hb.add(new Hitbox(1, new Point(0, 0), new Point(10, 0),
+                new Point(0, 10), new Point(10, 10)));
+        hb.add(new Hitbox(2, new Point(10, 0), new Point(20, 0),
+                new Point(10, 10), new Point(20, 10)));
+        hb.add(new Hitbox(3, new Point(20, 0), new Point(30, 0),
+                new Point(20, 10), new Point(30, 10)));
+
+        // every key is hit 4 pixels right of its centre
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        ks.add(new KeyStat(1, 9, 5, 4, 4, 0, 50));
+        ks.add(new KeyStat(2, 19, 5, 4, 4, 0, 50));
+        ks.add(new KeyStat(3, 29, 5, 4, 4, 0, 50));
+
+        BorderSolver solver = new BorderSolver(0, 0, 1000);
+        solver.solve(ks, hb);
+
+        assertTrue(solver.isCompleted());
+        assertTrue(solver.getIterations() > 0);
+        // the borders lie halfway between the means, the outer borders stay where they are
+        assertEquals(0, hb.findCode(1).getTopLeft().getX());
+        assertEquals(14, hb.findCode(1).getTopRight().getX());
+        assertEquals(14, hb.findCode(2).getTopLeft().getX());
+        assertEquals(24, hb.findCode(2).getTopRight().getX());
+        assertEquals(24, hb.findCode(3).getTopLeft().getX());
+        assertEquals(30, hb.findCode(3).getTopRight().getX());
+    }
+
+    @Test
+    public void minWidthTest(){
+        Hitboxes hb = new Hitboxes(KEYBOARD_HASH_1);
+        hb.add(new Hitbox(1, new Point(0, 0), new Point(10, 0),
+                new Point(0, 10), new Point(10, 10)));
+        hb.add(new Hitbox(2, new Point(10, 0), new Point(20, 0),
+                new Point(10, 10), new Point(20, 10)));
+        hb.add(new Hitbox(3, new Point(20, 0), new Point(30, 0),
+                new Point(20, 10), new Point(30, 10)));
+
+        // key 1 is hit very often and far to the right, which pushes the other keys to their
+        // minimum width. The greedy pairwise solution cannot handle this in one pass
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        ks.add(new KeyStat(1, 22, 5, 9, 4, 0, 500));
+        ks.add(new KeyStat(2, 24, 5, 9, 4, 0, 20));
+        ks.add(new KeyStat(3, 26, 5, 9, 4, 0, 20));
+
+        BorderSolver solver = new BorderSolver(6, 6, 1000);
+        solver.solve(ks, hb);
+
+        assertEquals(18, hb.findCode(1).getTopRight().getX());
+        assertEquals(18, hb.findCode(2).getTopLeft().getX());
+        assertEquals(24, hb.findCode(2).getTopRight().getX());
+        assertEquals(24, hb.findCode(3).getTopLeft().getX());
+        for(Hitbox hit:hb){
+            assertTrue(hit.getWidth() >= 6);
+        }
+    }
+
+    @Test
+    public void specialKeysTest(){
+        // the first key of each row is a special key and must keep its width
+        Hitboxes hb = new Hitboxes(KEYBOARD_HASH_1);
+        hb.add(new Hitbox(1, new Point(0, 0), new Point(10, 0),
+                new Point(0, 10), new Point(10, 10)));
+        hb.add(new Hitbox(2, new Point(10, 0), new Point(20, 0),
+                new Point(10, 10), new Point(20, 10)));
+        hb.add(new Hitbox(3, new Point(20, 0), new Point(30, 0),
+                new Point(20, 10), new Point(30, 10)));
+        hb.add(new Hitbox(4, new Point(0, 10), new Point(15, 10),
+                new Point(0, 20), new Point(15, 20)));
+        hb.add(new Hitbox(5, new Point(15, 10), new Point(30, 10),
+                new Point(15, 20), new Point(30, 20)));
+
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        ks.add(new KeyStat(2, 17, 8, 4, 4, 0, 50));
+        ks.add(new KeyStat(3, 27, 8, 4, 4, 0, 50));
+        ks.add(new KeyStat(4, 7, 16, 4, 4, 0, 50));
+        ks.add(new KeyStat(5, 22, 16, 4, 4, 0, 50));
+
+        BorderSolver solver = new BorderSolver(0, 0, 1000);
+        solver.solve(ks, hb);
+
+        assertEquals(0, hb.findCode(1).getTopLeft().getX());
+        assertEquals(10, hb.findCode(1).getTopRight().getX());
+        assertEquals(22, hb.findCode(2).getTopRight().getX());
+
+        // both rows were hit below their centre, so the row border moved down
+        assertEquals(12, hb.findCode(1).getBottomLeft().getY());
+        assertEquals(12, hb.findCode(3).getBottomLeft().getY());
+        assertEquals(12, hb.findCode(4).getTopLeft().getY());
+        assertEquals(20, hb.findCode(5).getBottomLeft().getY());
+    }
+
+    @Test
+    public void budgetTest(){
+        Hitboxes hb = new Hitboxes(KEYBOARD_HASH_1);
+        hb.add(new Hitbox(1, new Point(0, 0), new Point(10, 0),
+                new Point(0, 10), new Point(10, 10)));
+        hb.add(new Hitbox(2, new Point(10, 0), new Point(20, 0),
+                new Point(10, 10), new Point(20, 10)));
+
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        ks.add(new KeyStat(1, 9, 5, 4, 4, 0, 50));
+        ks.add(new KeyStat(2, 19, 5, 4, 4, 0, 50));
+
+        // a negative budget is always exceeded, so nothing may change
+        BorderSolver solver = new BorderSolver(0, 0, -1);
+        solver.solve(ks, hb);
+
+        assertFalse(solver.isCompleted());
+        assertEquals(0, solver.getIterations());
+        assertEquals(10, hb.findCode(1).getTopRight().getX());
+    }
+
+    @Test
+    public void solveKeysOfRowsTest(){
+        Hitboxes hb = new Hitboxes(KEYBOARD_HASH_1);
+        hb.add(new Hitbox(1, new Point(0, 0), new Point(10, 0),
+                new Point(0, 10), new Point(10, 10)));
+        hb.add(new Hitbox(2, new Point(10, 0), new Point(20, 0),
+                new Point(10, 10), new Point(20, 10)));
+        hb.add(new Hitbox(3, new Point(0, 10), new Point(10, 10),
+                new Point(0, 20), new Point(10, 20)));
+        hb.add(new Hitbox(4, new Point(10, 10), new Point(20, 10),
+                new Point(10, 20), new Point(20, 20)));
+
+        // both rows are hit right of their centres, but only the second row is recomputed
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        ks.add(new KeyStat(1, 9, 8, 4, 4, 0, 50));
+        ks.add(new KeyStat(2, 19, 8, 4, 4, 0, 50));
+        ks.add(new KeyStat(3, 9, 18, 4, 4, 0, 50));
+        ks.add(new KeyStat(4, 19, 18, 4, 4, 0, 50));
+
+        BorderSolver solver = new BorderSolver(0, 0, 1000);
+        solver.solveKeysOfRows(ks, hb, Collections.singletonList(10));
+
+        assertTrue(solver.isCompleted());
+        assertEquals(10, hb.findCode(1).getTopRight().getX());
+        assertEquals(14, hb.findCode(3).getTopRight().getX());
+        assertEquals(14, hb.findCode(4).getTopLeft().getX());
+        // the row heights stay as they are
+        assertEquals(10, hb.findCode(1).getBottomLeft().getY());
+        assertEquals(10, hb.findCode(3).getTopLeft().getY());
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CorrectionMinerTest {
+    final private static int KEYBOARD_HASH_1 = 1;
+
+    // types a character at the cursor, the touch position is x = posX, y = 0
+    private void type(Logger l, int cursorPos, char c, int posX){
+        l.set(cursorPos, cursorPos, c, c, posX, 0, KEYBOARD_HASH_1);
+    }
+
+    // presses backspace with the cursor behind cursorPos
+    private void backspace(Logger l, int cursorPos){
+        l.delete(cursorPos - 1, cursorPos);
+    }
+
+    private void assertItem(Logger.LogItem item, int code, int posX, boolean isDeleted){
+        assertEquals(code, item.getCode());
+        assertEquals(posX, item.getPosX());
+        assertEquals(isDeleted, item.isDeleted());
+    }
+
+    @Test
+    public void substitutionTest(){
+        // r is typed, deleted and replaced by t, then the user continues with "he"
+        Logger l = new Logger();
+        type(l, 0, 'r', 10);
+        backspace(l, 1);
+        type(l, 0, 't', 20);
+        type(l, 1, 'h', 30);
+        type(l, 2, 'e', 40);
+
+        assertEquals(1, CorrectionMiner.mine(l));
+        // the touch of r was meant to hit t
+        assertItem(l.get(0), 't', 10, false);
+        assertItem(l.get(1), 'h', 30, false);
+        assertItem(l.get(2), 'e', 40, false);
+    }
+
+    @Test
+    public void transpositionTest(){
+        // "hte" is deleted and retyped as "the"
+        Logger l = new Logger();
+        type(l, 0, 'h', 1);
+        type(l, 1, 't', 2);
+        type(l, 2, 'e', 3);
+        backspace(l, 3);
+        backspace(l, 2);
+        backspace(l, 1);
+        type(l, 0, 't', 4);
+        type(l, 1, 'h', 5);
+        type(l, 2, 'e', 6);
+        assertEquals("the", l.getText());
+
+        // the Logger gave the touch of h to t, but h was hit correctly and t just too late
+        assertEquals(0, CorrectionMiner.mine(l));
+        assertItem(l.get(0), 'h', 1, false);
+        assertTrue(l.get(1).isDeleted());
+        assertItem(l.get(2), 'e', 3, false);
+    }
+
+    @Test
+    public void insertionTest(){
+        // "te" is corrected to "the" by deleting e and typing "he"
+        Logger l = new Logger();
+        type(l, 0, 't', 1);
+        type(l, 1, 'e', 2);
+        backspace(l, 2);
+        type(l, 1, 'h', 3);
+        type(l, 2, 'e', 4);
+
+        // e was hit correctly, the Logger gave its touch to h though
+        assertEquals(0, CorrectionMiner.mine(l));
+        assertItem(l.get(1), 'e', 2, false);
+        assertItem(l.get(2), 'e', 4, false);
+    }
+
+    @Test
+    public void rewriteTest(){
+        // "cat" is deleted and replaced by "dog", which is no typo
+        Logger l = new Logger();
+        type(l, 0, 'c', 1);
+        type(l, 1, 'a', 2);
+        type(l, 2, 't', 3);
+        backspace(l, 3);
+        backspace(l, 2);
+        backspace(l, 1);
+        type(l, 0, 'd', 4);
+        type(l, 1, 'o', 5);
+        type(l, 2, 'g', 6);
+
+        assertEquals(0, CorrectionMiner.mine(l));
+        for(int i = 0; i < 3; i++){
+            assertTrue(l.get(i).isDeleted());
+        }
+    }
+
+    @Test
+    public void olderTextTest(){
+        // a is deleted without typing anything else, b was typed before
+        Logger l = new Logger();
+        type(l, 0, 'a', 1);
+        type(l, 1, 'b', 2);
+        backspace(l, 1);
+
+        assertEquals(0, CorrectionMiner.mine(l));
+        assertTrue(l.get(0).isDeleted());
+        assertItem(l.get(1), 'b', 2, false);
+    }
+}
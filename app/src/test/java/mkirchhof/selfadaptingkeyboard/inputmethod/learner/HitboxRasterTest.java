@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HitboxRasterTest {
+    final private static int KEYBOARD_HASH_1 = 1;
+
+    // one row with a special key (code 1) and two learned keys (codes 2 and 3)
+    private Hitboxes sampleHitboxes(){
+        Hitboxes hb = new Hitboxes(KEYBOARD_HASH_1);
+        hb.add(new Hitbox(1, new Point(0, 0), new Point(20, 0),
+                new Point(0, 20), new Point(20, 20)));
+        hb.add(new Hitbox(2, new Point(20, 0), new Point(40, 0),
+                new Point(20, 20), new Point(40, 20)));
+        hb.add(new Hitbox(3, new Point(40, 0), new Point(60, 0),
+                new Point(40, 20), new Point(60, 20)));
+        return hb;
+    }
+
+    @Test
+    public void classifyTest(){
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        // key 2 is usually hit far to its right, so it should take over a part of key 3
+        ks.add(new KeyStat(2, 38, 10, 16, 16, 0, 100));
+        ks.add(new KeyStat(3, 52, 10, 16, 16, 0, 100));
+
+        HitboxRaster raster = HitboxRaster.compile(ks, sampleHitboxes(), 2);
+        assertNotNull(raster);
+
+        // the special key keeps its rectangle
+        assertEquals(1, raster.classify(10, 10));
+        // the centres of the distributions belong to their keys
+        assertEquals(2, raster.classify(38, 10));
+        assertEquals(3, raster.classify(52, 10));
+        // the border lies halfway between the means instead of at the rectangle border
+        assertEquals(2, raster.classify(43, 10));
+        assertEquals(3, raster.classify(47, 10));
+        // positions outside of the keyboard are left to the rectangles
+        assertEquals(HitboxRaster.NO_CODE, raster.classify(-1, 10));
+        assertEquals(HitboxRaster.NO_CODE, raster.classify(10, 100));
+    }
+
+    @Test
+    public void priorTest(){
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        // equal distributions, but key 3 is hit much more often
+        ks.add(new KeyStat(2, 30, 10, 16, 16, 0, 10));
+        ks.add(new KeyStat(3, 50, 10, 16, 16, 0, 1000));
+
+        HitboxRaster raster = HitboxRaster.compile(ks, sampleHitboxes(), 2);
+        assertEquals(3, raster.classify(39, 10));
+    }
+
+    @Test
+    public void noStatsTest(){
+        assertNull(HitboxRaster.compile(new KeyStats(KEYBOARD_HASH_1), sampleHitboxes(), 2));
+    }
+
+    @Test
+    public void recompileTest(){
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        ks.add(new KeyStat(2, 30, 10, 16, 16, 0, 100));
+        ks.add(new KeyStat(3, 50, 10, 16, 16, 0, 100));
+        HitboxRaster previous = HitboxRaster.compile(ks, sampleHitboxes());
+
+        // key 2 moved to the right, but only the upper half of the row is recomputed
+        KeyStats moved = new KeyStats(KEYBOARD_HASH_1);
+        moved.add(new KeyStat(2, 38, 10, 16, 16, 0, 100));
+        moved.add(new KeyStat(3, 52, 10, 16, 16, 0, 100));
+        HitboxRaster raster = HitboxRaster.recompile(previous, moved, sampleHitboxes(), 0, 8);
+
+        assertEquals(2, raster.classify(43, 2));
+        assertEquals(3, raster.classify(43, 14));
+        // the previous raster is not changed
+        assertEquals(3, previous.classify(43, 2));
+
+        // without a fitting previous raster, everything is compiled
+        HitboxRaster full = HitboxRaster.recompile(null, moved, sampleHitboxes(), 0, 8);
+        assertEquals(2, full.classify(43, 14));
+    }
+
+    @Test
+    public void sameCellsTest(){
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        ks.add(new KeyStat(2, 30, 10, 16, 16, 0, 100));
+        ks.add(new KeyStat(3, 50, 10, 16, 16, 0, 100));
+        HitboxRaster raster = HitboxRaster.compile(ks, sampleHitboxes());
+        assertTrue(raster.hasSameCells(HitboxRaster.compile(ks, sampleHitboxes())));
+        assertFalse(raster.hasSameCells(null));
+
+        // more observations at the same place do not change the raster
+        KeyStats more = new KeyStats(KEYBOARD_HASH_1);
+        more.add(new KeyStat(2, 30, 10, 16, 16, 0, 200));
+        more.add(new KeyStat(3, 50, 10, 16, 16, 0, 200));
+        assertTrue(raster.hasSameCells(HitboxRaster.compile(more, sampleHitboxes())));
+
+        KeyStats moved = new KeyStats(KEYBOARD_HASH_1);
+        moved.add(new KeyStat(2, 38, 10, 16, 16, 0, 100));
+        moved.add(new KeyStat(3, 52, 10, 16, 16, 0, 100));
+        assertFalse(raster.hasSameCells(HitboxRaster.compile(moved, sampleHitboxes())));
+    }
+
+    @Test
+    public void duplicateCodesTest(){
+        // two special keys with the same code (like the two shift keys) around a learned key
+        Hitboxes hb = new Hitboxes(KEYBOARD_HASH_1);
+        hb.add(new Hitbox(1, new Point(0, 0), new Point(20, 0),
+                new Point(0, 20), new Point(20, 20)));
+        hb.add(new Hitbox(2, new Point(20, 0), new Point(40, 0),
+                new Point(20, 20), new Point(40, 20)));
+        hb.add(new Hitbox(1, new Point(40, 0), new Point(60, 0),
+                new Point(40, 20), new Point(60, 20)));
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        ks.add(new KeyStat(2, 30, 10, 16, 16, 0, 100));
+        HitboxRaster raster = HitboxRaster.compile(ks, hb, 2);
+
+        // each key finds the index of its own hitbox, which the cells of that hitbox refer to
+        assertEquals(0, raster.indexOf(1, 10, 10));
+        assertEquals(2, raster.indexOf(1, 50, 10));
+        assertEquals(1, raster.indexOf(2, 30, 10));
+        assertEquals(-1, raster.indexOf(3, 30, 10));
+        assertEquals(0, raster.classifyIndex(10, 10));
+        assertEquals(2, raster.classifyIndex(50, 10));
+    }
+}
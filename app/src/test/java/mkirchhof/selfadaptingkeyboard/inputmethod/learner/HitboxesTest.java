@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HitboxesTest {
+    final private static int KEYBOARD_HASH_1 = 1;
+
+    // one row of two keys
+    private Hitboxes sampleHitboxes(){
+        Hitboxes hb = new Hitboxes(KEYBOARD_HASH_1);
+        hb.add(new Hitbox(1, new Point(0, 0), new Point(20, 0),
+                new Point(0, 20), new Point(20, 20)));
+        hb.add(new Hitbox(2, new Point(20, 0), new Point(40, 0),
+                new Point(20, 20), new Point(40, 20)));
+        return hb;
+    }
+
+    @Test
+    public void sameGeometryTest(){
+        Hitboxes hb = sampleHitboxes();
+        Hitboxes copy = hb.copy();
+        assertTrue(hb.hasSameGeometry(copy));
+        assertEquals(hb.geometryHashCode(), copy.geometryHashCode());
+
+        // moving the border between the keys changes the geometry
+        copy.get(0).setRight(22);
+        copy.get(1).setLeft(22);
+        assertFalse(hb.hasSameGeometry(copy));
+        assertNotEquals(hb.geometryHashCode(), copy.geometryHashCode());
+
+        assertFalse(hb.hasSameGeometry(null));
+        assertFalse(hb.hasSameGeometry(new Hitboxes(KEYBOARD_HASH_1)));
+    }
+}
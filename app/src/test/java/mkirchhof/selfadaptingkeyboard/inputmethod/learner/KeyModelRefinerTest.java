@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class KeyModelRefinerTest {
+    final private static int KEYBOARD_HASH_1 = 1;
+
+    // one row of two keys that are 100 pixels wide
+    private Hitboxes sampleHitboxes(){
+        Hitboxes hb = new Hitboxes(KEYBOARD_HASH_1);
+        hb.add(new Hitbox(1, new Point(0, 0), new Point(100, 0),
+                new Point(0, 100), new Point(100, 100)));
+        hb.add(new Hitbox(2, new Point(100, 0), new Point(200, 0),
+                new Point(100, 100), new Point(200, 100)));
+        return hb;
+    }
+
+    // both keys are usually hit in their centre
+    private KeyStats sampleOldStats(){
+        KeyStats old = new KeyStats(KEYBOARD_HASH_1);
+        old.add(new KeyStat(1, 50, 50, 100, 100, 0, 100));
+        old.add(new KeyStat(2, 150, 50, 100, 100, 0, 100));
+        return old;
+    }
+
+    private ArrayList<Logger.LogItem> toList(Logger l){
+        ArrayList<Logger.LogItem> touches = new ArrayList<>();
+        Iterator<Logger.LogItem> it = l.iterator();
+        while(it.hasNext()){
+            touches.add(it.next());
+        }
+        return touches;
+    }
+
+    private KeyStats summarize(ArrayList<Logger.LogItem> touches){
+        KeyStats hard = new KeyStats(KEYBOARD_HASH_1);
+        for(Logger.LogItem cur:touches){
+            hard.add(cur.getCode(), cur.getPosX(), cur.getPosY());
+        }
+        return hard;
+    }
+
+    @Test
+    public void softAssignmentTest(){
+        // 20 touches in the centre of key 1 and 20 touches right in the centre of key 2 that
+        // were nevertheless emitted as key 1
+        Logger l = new Logger();
+        for(int i = 0; i < 40; i++){
+            l.set(i, i, 1, 'a', i < 20 ? 50 : 148, 50, KEYBOARD_HASH_1);
+        }
+        ArrayList<Logger.LogItem> touches = toList(l);
+        KeyStats hard = summarize(touches);
+        assertEquals(99, hard.findCode(1).getMeanX(), 1e-9);
+
+        KeyModelRefiner refiner = new KeyModelRefiner(1000, 0);
+        KeyStats soft = refiner.refineKeyboard(touches, hard, sampleOldStats(), sampleHitboxes(),
+                Long.MAX_VALUE);
+        assertNotSame(hard, soft);
+
+        // the misplaced touches are moved to key 2, no observation is lost
+        KeyStat key1 = soft.findCode(1);
+        KeyStat key2 = soft.findCode(2);
+        assertNotNull(key2);
+        assertEquals(40, key1.getWeight() + key2.getWeight(), 1e-6);
+        assertTrue(key2.getWeight() > 19);
+        assertEquals(50, key1.getMeanX(), 1);
+        assertEquals(148, key2.getMeanX(), 1e-6);
+        assertEquals(40, soft.getClock());
+    }
+
+    @Test
+    public void clearTouchesStayTest(){
+        // touches that are clearly on their key keep their label
+        Logger l = new Logger();
+        for(int i = 0; i < 20; i++){
+            l.set(i, i, i % 2 == 0 ? 1 : 2, 'a', i % 2 == 0 ? 45 : 155, 50, KEYBOARD_HASH_1);
+        }
+        ArrayList<Logger.LogItem> touches = toList(l);
+        KeyStats hard = summarize(touches);
+
+        KeyModelRefiner refiner = new KeyModelRefiner(1000, 0);
+        KeyStats soft = refiner.refineKeyboard(touches, hard, sampleOldStats(), sampleHitboxes(),
+                Long.MAX_VALUE);
+        assertEquals(10, soft.findCode(1).getWeight(), 1e-6);
+        assertEquals(10, soft.findCode(2).getWeight(), 1e-6);
+        assertEquals(45, soft.findCode(1).getMeanX(), 1e-6);
+    }
+
+    @Test
+    public void budgetTest(){
+        Logger l = new Logger();
+        for(int i = 0; i < 40; i++){
+            l.set(i, i, 1, 'a', 148, 50, KEYBOARD_HASH_1);
+        }
+        ArrayList<Logger.LogItem> touches = toList(l);
+        KeyStats hard = summarize(touches);
+
+        // without any time left, the hard-assigned stats are kept
+        KeyModelRefiner refiner = new KeyModelRefiner(0, 0);
+        KeyStats soft = refiner.refineKeyboard(touches, hard, sampleOldStats(), sampleHitboxes(),
+                System.nanoTime() - 1);
+        assertSame(hard, soft);
+        assertFalse(refiner.isCompleted());
+    }
+}
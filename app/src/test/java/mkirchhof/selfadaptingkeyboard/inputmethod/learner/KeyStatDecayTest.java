@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeyStatDecayTest {
+    final private static int KEYBOARD_HASH_1 = 1;
+
+    @Test
+    public void halfLifeTest(){
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        ks.setHalfLife(10);
+
+        // 1 observation of key 1, followed by 10 of key 2
+        ks.add(1, 10, 10);
+        for(int i = 0; i < 10; i++){
+            ks.add(2, 50, 10);
+        }
+        assertEquals(11, ks.getClock());
+
+        // bring key 1 to the current time by merging an empty stat
+        KeyStats empty = new KeyStats(KEYBOARD_HASH_1);
+        ks.prepend(empty);
+        assertEquals(0.5, ks.findCode(1).getWeight(), 1e-9);
+    }
+
+    @Test
+    public void meanFollowsRecentDataTest(){
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        ks.setHalfLife(5);
+
+        for(int i = 0; i < 100; i++){
+            ks.add(1, 10, 10);
+        }
+        for(int i = 0; i < 20; i++){
+            ks.add(1, 20, 10);
+        }
+        // after four half-lives, the old habit only has a weight of about 1/16 of its maximum
+        KeyStat key = ks.findCode(1);
+        assertTrue(key.getMeanX() > 19);
+        assertTrue(key.getWeight() < 5 / Math.log(2) + 1);
+    }
+
+    @Test
+    public void prependEqualsSequentialTest(){
+        int[][] data = {{231, 738}, {473, 282}, {272, 112}, {282, 638}, {228, 283}, {385, 292}};
+
+        KeyStats sequential = new KeyStats(KEYBOARD_HASH_1);
+        sequential.setHalfLife(3);
+        KeyStats older = new KeyStats(KEYBOARD_HASH_1);
+        older.setHalfLife(3);
+        KeyStats newer = new KeyStats(KEYBOARD_HASH_1);
+        newer.setHalfLife(3);
+        for(int i = 0; i < data.length; i++){
+            int code = i % 2 + 1;
+            sequential.add(code, data[i][0], data[i][1]);
+            (i < 4 ? older : newer).add(code, data[i][0], data[i][1]);
+        }
+
+        newer.prepend(older);
+        sequential.prepend(new KeyStats(KEYBOARD_HASH_1));
+        assertEquals(sequential.getClock(), newer.getClock());
+        for(int code = 1; code <= 2; code++){
+            KeyStat expected = sequential.findCode(code);
+            KeyStat actual = newer.findCode(code);
+            assertEquals(expected.getWeight(), actual.getWeight(), 1e-9);
+            assertEquals(expected.getMeanX(), actual.getMeanX(), 1e-6);
+            assertEquals(expected.getMeanY(), actual.getMeanY(), 1e-6);
+            assertEquals(expected.getVarX(), actual.getVarX(), 1e-6);
+            assertEquals(expected.getVarY(), actual.getVarY(), 1e-6);
+            assertEquals(expected.getCovXY(), actual.getCovXY(), 1e-6);
+        }
+    }
+
+    @Test
+    public void noDecayTest(){
+        // without a half-life, the statistics are the plain sample statistics
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        ks.add(1, 231, 738);
+        ks.add(1, 473, 282);
+        ks.add(1, 272, 112);
+        ks.add(1, 282, 638);
+        ks.add(1, 228, 283);
+        ks.add(1, 385, 292);
+
+        KeyStat key = ks.findCode(1);
+        assertEquals(312, Math.round(key.getMeanX()));
+        assertEquals(391, Math.round(key.getMeanY()));
+        assertEquals(9473, Math.round(key.getVarX()));
+        assertEquals(58521, Math.round(key.getVarY()));
+        assertEquals(-8012, Math.round(key.getCovXY()));
+        assertEquals(6, key.getN());
+    }
+
+    @Test
+    public void fractionalWeightTest(){
+        // decayed weights are not whole numbers, scaling them must not round them
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        ks.setHalfLife(10);
+        for(int i = 0; i < 5; i++){
+            ks.add(1, 100 + i, 200);
+        }
+        KeyStat key = ks.findCode(1);
+        double weight = key.getWeight();
+        assertTrue(Math.abs(weight - Math.round(weight)) > 1e-6);
+
+        key.multiplyN(1.3);
+        assertEquals(1.3 * weight, key.getWeight(), 1e-9);
+        key.reduceData(0.5);
+        assertEquals(0.65 * weight, key.getWeight(), 1e-9);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class KeyStatsFormatTest {
+    final private static int KEYBOARD_HASH_1 = 1;
+    final private static int KEYBOARD_HASH_2 = 2;
+
+    private KeyStats sampleKeyStats(){
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        ks.setHalfLife(100);
+        for(int i = 0; i < 200; i++){
+            ks.add(1 + i % 3, 20 * (i % 3) + i % 7, 10 + i % 5);
+        }
+        return ks;
+    }
+
+    @Test
+    public void roundTripTest() throws IOException {
+        KeyStats ks = sampleKeyStats();
+        KeyStats ks2 = KeyStats.fromBuffer(ks.toBuffer(), KEYBOARD_HASH_1);
+
+        assertEquals(ks.getKeyboardHash(), ks2.getKeyboardHash());
+        assertEquals(ks.getClock(), ks2.getClock());
+        assertEquals(ks.size(), ks2.size());
+        Iterator<KeyStat> it1 = ks.iterator();
+        Iterator<KeyStat> it2 = ks2.iterator();
+        while(it1.hasNext() | it2.hasNext()){
+            KeyStat cur1 = it1.next();
+            KeyStat cur2 = it2.next();
+            assertEquals(cur1.getCode(), cur2.getCode());
+            assertEquals(cur1.getWeight(), cur2.getWeight(), 0);
+            assertEquals(cur1.getTime(), cur2.getTime());
+            assertEquals(cur1.getMeanX(), cur2.getMeanX(), 0);
+            assertEquals(cur1.getMeanY(), cur2.getMeanY(), 0);
+            assertEquals(cur1.getVarX(), cur2.getVarX(), 0);
+            assertEquals(cur1.getVarY(), cur2.getVarY(), 0);
+            assertEquals(cur1.getCovXY(), cur2.getCovXY(), 0);
+            assertEquals(cur1.getSketchX().getTotalWeight(), cur2.getSketchX().getTotalWeight(), 1e-9);
+            assertEquals(cur1.getSketchX().quantile(0.25), cur2.getSketchX().quantile(0.25), 1e-9);
+            assertEquals(cur1.getMedianY(), cur2.getMedianY(), 1e-9);
+        }
+    }
+
+    @Test
+    public void emptyTest() throws IOException {
+        KeyStats ks = KeyStats.fromBuffer(new KeyStats(KEYBOARD_HASH_1).toBuffer(), KEYBOARD_HASH_1);
+        assertEquals(0, ks.size());
+        assertEquals(0, ks.getClock());
+    }
+
+    @Test
+    public void recordLayoutTest(){
+        // the records have a fixed size and come before the sketches
+        KeyStats ks = sampleKeyStats();
+        ByteBuffer buffer = ks.toBuffer();
+        int firstRecord = 4 + 4 + 4 + 8 + 4;
+        assertEquals(2, buffer.getInt(firstRecord + KeyStat.RECORD_BYTES));
+        assertEquals(3, buffer.getInt(firstRecord + 2 * KeyStat.RECORD_BYTES));
+    }
+
+    @Test
+    public void invalidFilesTest(){
+        ByteBuffer buffer = sampleKeyStats().toBuffer();
+        // stats of another keyboard
+        try {
+            KeyStats.fromBuffer(buffer.duplicate(), KEYBOARD_HASH_2);
+            fail();
+        } catch(IOException e){
+            // expected
+        }
+
+        // a newer version of the format
+        ByteBuffer newer = buffer.duplicate();
+        newer.putInt(4, KeyStats.FORMAT_VERSION + 1);
+        try {
+            KeyStats.fromBuffer(newer, KEYBOARD_HASH_1);
+            fail();
+        } catch(IOException e){
+            // expected
+        }
+
+        // a file that was cut off after the header
+        ByteBuffer truncated = buffer.duplicate();
+        truncated.limit(30);
+        try {
+            KeyStats.fromBuffer(truncated, KEYBOARD_HASH_1);
+            fail();
+        } catch(IOException e){
+            // expected
+        }
+    }
+
+    @Test
+    public void checkTest() throws IOException {
+        ByteBuffer buffer = sampleKeyStats().toBuffer();
+        ByteBuffer checked = buffer.duplicate();
+        KeyStats.check(checked, KEYBOARD_HASH_1);
+        // the check walks over the whole file, like decoding it
+        assertEquals(buffer.limit(), checked.position());
+        ByteBuffer decoded = buffer.duplicate();
+        KeyStats.fromBuffer(decoded, KEYBOARD_HASH_1);
+        assertEquals(buffer.limit(), decoded.position());
+
+        // a file that was cut off in the sketches
+        ByteBuffer truncated = buffer.duplicate();
+        truncated.limit(buffer.limit() - 8);
+        try {
+            KeyStats.check(truncated, KEYBOARD_HASH_1);
+            fail();
+        } catch(IOException e){
+            // expected
+        }
+
+        // a sketch with too many centroids
+        ByteBuffer invalid = buffer.duplicate();
+        invalid.putInt(4 + 4 + 4 + 8 + 4 + 3 * KeyStat.RECORD_BYTES, QuantileSketch.CAPACITY + 1);
+        try {
+            KeyStats.check(invalid, KEYBOARD_HASH_1);
+            fail();
+        } catch(IOException e){
+            // expected
+        }
+    }
+}
@@ -26,19 +26,7 @@ public class LayoutLearnerTest {
     final private static int KEYBOARD_HASH_1 = 1;
 
     @Test
-    public void computeBorderTest(){
-        int border = LayoutLearner.computeBorder(0, 5, 6, 10, 3, 6, 4, 3, 0.75, 0.25);
-        assertEquals(5, border);
-        int border2 = LayoutLearner.computeBorder(0, 5, 6, 10, 3, 5, 4, 4, 0.5, 0.5);
-        assertEquals(4, border2);
-        int border3 = LayoutLearner.computeBorder(0, 5, 6, 10, 3, 7, 1, 5, 0.9, 0.1);
-        assertEquals(5, border3);
-        int border4 = LayoutLearner.computeBorder(0, 5, 6, 10, 4, 3, 5, 1, 0.1, 0.9);
-        assertEquals(5, border4);
-    }
-
-    @Test
-    public void computeHitboxesTest(){
+    public void solveHitboxesTest(){
         // assign a sample ks and hb for a keyboard with two rows, where the first row has 3 and
         // the second has 2 Keys. Also, the first Key in the first Row is a special key
         Hitboxes hb = new Hitboxes(KEYBOARD_HASH_1);
@@ -59,7 +47,7 @@ public class LayoutLearnerTest {
         ks.add(new KeyStat(4, 4, 7.5, 4, 16, 0, 16));
         ks.add(new KeyStat(5, 15, 7.5, 16, 16, 0, 16));
 
-        LayoutLearner.computeHitboxes(ks, hb, 0, 0);
+        new BorderSolver(0, 0, 1000).solve(ks, hb);
         Iterator<Hitbox> hitIt = hb.iterator();
         while(hitIt.hasNext()){
             Hitbox hit = hitIt.next();
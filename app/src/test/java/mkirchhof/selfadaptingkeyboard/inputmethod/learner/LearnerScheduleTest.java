@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LearnerScheduleTest {
+    private static final long NOW = 100L * 24 * 60 * 60 * 1000;
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    @Test
+    public void smallBacklogTest(){
+        assertNull(LearnerSchedule.plan(0, NOW, 0, NOW));
+        // a few fresh keystrokes are not worth a run
+        assertNull(LearnerSchedule.plan(LearnerSchedule.MIN_BACKLOG - 1, NOW - HOUR, 0, NOW));
+
+        // but they are learnt once they waited long enough
+        LearnerSchedule.Plan plan = LearnerSchedule.plan(10,
+                NOW - LearnerSchedule.IDLE_STALENESS_MILLIS, 0, NOW);
+        assertNotNull(plan);
+        assertFalse(plan.isUrgent());
+        assertEquals(NOW, plan.getRunAt());
+
+        plan = LearnerSchedule.plan(10, NOW - LearnerSchedule.MAX_STALENESS_MILLIS, 0, NOW);
+        assertTrue(plan.isUrgent());
+    }
+
+    @Test
+    public void backlogTest(){
+        LearnerSchedule.Plan plan = LearnerSchedule.plan(LearnerSchedule.MIN_BACKLOG, NOW, 0, NOW);
+        assertFalse(plan.isUrgent());
+
+        plan = LearnerSchedule.plan(LearnerSchedule.HEAVY_BACKLOG, NOW, 0, NOW);
+        assertTrue(plan.isUrgent());
+        assertEquals(NOW, plan.getRunAt());
+    }
+
+    @Test
+    public void coalesceTest(){
+        // runs keep their distance to the last one
+        LearnerSchedule.Plan plan = LearnerSchedule.plan(LearnerSchedule.HEAVY_BACKLOG, NOW,
+                NOW - HOUR / 4, NOW);
+        assertEquals(NOW - HOUR / 4 + LearnerSchedule.MIN_INTERVAL_MILLIS, plan.getRunAt());
+
+        // more keystrokes do not postpone a planned run
+        LearnerSchedule.Plan idle = new LearnerSchedule.Plan(NOW, false);
+        LearnerSchedule.Plan later = LearnerSchedule.plan(LearnerSchedule.MIN_BACKLOG * 2,
+                NOW - HOUR, 0, NOW + HOUR);
+        assertFalse(later.replaces(idle));
+        assertTrue(later.replaces(null));
+
+        // unless they make it urgent
+        assertTrue(plan.replaces(idle));
+        assertFalse(idle.replaces(plan));
+        assertFalse(plan.replaces(new LearnerSchedule.Plan(NOW + HOUR, true)));
+    }
+
+    @Test
+    public void urgentTest(){
+        // a run that is asked for does not need a backlog, but keeps its distance to the last one
+        LearnerSchedule.Plan plan = LearnerSchedule.planUrgent(0, NOW);
+        assertTrue(plan.isUrgent());
+        assertEquals(NOW, plan.getRunAt());
+        plan = LearnerSchedule.planUrgent(NOW - HOUR / 4, NOW);
+        assertEquals(NOW - HOUR / 4 + LearnerSchedule.MIN_INTERVAL_MILLIS, plan.getRunAt());
+        assertTrue(plan.replaces(new LearnerSchedule.Plan(NOW, false)));
+    }
+}
@@ -268,4 +268,16 @@ public class LoggerTest {
         assertEquals(true, isEqualText);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void countComplete(){
+        // two characters of text that existed before
+        Logger l = new Logger(2);
+        l.set(2, 2, 5, 'a', 10, 10, KEYBOARD_HASH_1);
+        l.set(3, 3, 6, 'b', 20, 10, KEYBOARD_HASH_1);
+        l.delete(3, 3);
+
+        // the deleted keystroke is still saved for the CorrectionMiner
+        assertEquals(4, l.size());
+        assertEquals(2, l.countComplete());
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ModelDeltaTest {
+    final private static int KEYBOARD_HASH_1 = 1;
+
+    private static ByteBuffer bytes(int length, int seed){
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for(int i = 0; i < length; i++){
+            buffer.put((byte) (i * 31 + seed));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer){
+        byte[] array = new byte[buffer.remaining()];
+        buffer.duplicate().get(array);
+        return array;
+    }
+
+    @Test
+    public void smallChangeTest() throws IOException {
+        ByteBuffer old = bytes(1000, 0);
+        ByteBuffer base = bytes(1000, 0);
+        // two changes close to each other end up in one run, a third one far away in another
+        base.put(100, (byte) 1);
+        base.put(104, (byte) 2);
+        base.put(800, (byte) 3);
+
+        ModelDelta.Record record = new ModelDelta.Record();
+        record.put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, old, base);
+        ModelDelta.Change change = record.find(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS);
+        assertEquals(5 + 1, change.getDataLength());
+        assertArrayEquals(toArray(old), toArray(change.undo(base)));
+        assertEquals(1, change.getOldVersion());
+    }
+
+    @Test
+    public void lengthChangeTest() throws IOException {
+        ByteBuffer old = bytes(100, 0);
+        ByteBuffer longer = bytes(120, 0);
+        ByteBuffer shorter = bytes(60, 0);
+
+        ModelDelta.Record record = new ModelDelta.Record();
+        record.put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, old, longer);
+        assertEquals(0, record.get(0).getDataLength());
+        assertArrayEquals(toArray(old), toArray(record.get(0).undo(longer)));
+
+        record.put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, old, shorter);
+        assertEquals(1, record.size());
+        assertEquals(40, record.get(0).getDataLength());
+        assertArrayEquals(toArray(old), toArray(record.get(0).undo(shorter)));
+    }
+
+    @Test
+    public void shiftTest() throws IOException {
+        // a key is inserted into the model and another one removed further back
+        byte[] old = new byte[1000];
+        new Random(1).nextBytes(old);
+        ByteBuffer base = ByteBuffer.allocate(1000 + 24 - 40);
+        base.put(old, 0, 200);
+        base.put(toArray(bytes(24, 99)));
+        base.put(old, 200, 500);
+        base.put(old, 740, 260);
+        base.flip();
+
+        ModelDelta.Record record = new ModelDelta.Record();
+        record.put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, ByteBuffer.wrap(old), base);
+        // only the removed key and a few bytes around the shifts are stored, not everything
+        // behind the inserted key
+        assertTrue(record.get(0).getDataLength() < 40 + 3 * ModelDelta.BLOCK);
+        assertArrayEquals(old, toArray(record.get(0).undo(base)));
+
+        ModelDelta.Record decoded = ModelDelta.Record.decode(record.encode(),
+                ModelDelta.FORMAT_VERSION);
+        assertArrayEquals(old, toArray(decoded.get(0).undo(base)));
+    }
+
+    @Test
+    public void oldVersionTest(){
+        // records of the unreleased version 1 are rejected like broken ones
+        ModelDelta.Record record = new ModelDelta.Record();
+        record.put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, bytes(100, 0), bytes(100, 5));
+        try {
+            ModelDelta.Record.decode(record.encode(), 1);
+            fail();
+        } catch(IOException e){
+            // expected
+        }
+    }
+
+    @Test
+    public void addRemoveTest() throws IOException {
+        ByteBuffer model = bytes(50, 7);
+        ModelDelta.Record record = new ModelDelta.Record();
+        // a model that was added is removed again
+        record.put(KEYBOARD_HASH_1, ModelStore.KIND_HITBOXES, ModelDelta.NO_MODEL, null, model);
+        assertNull(record.get(0).undo(model));
+        // a model that was removed comes back in full
+        record.put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, model, null);
+        assertArrayEquals(toArray(model), toArray(record.get(1).undo(null)));
+    }
+
+    @Test
+    public void encodeDecodeTest() throws IOException {
+        ByteBuffer old = bytes(300, 0);
+        ByteBuffer base = bytes(300, 5);
+        ModelDelta.Record record = new ModelDelta.Record();
+        record.put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, old, base);
+        record.put(KEYBOARD_HASH_1, ModelStore.KIND_HITBOXES, ModelDelta.NO_MODEL, null, base);
+
+        ModelDelta.Record decoded = ModelDelta.Record.decode(record.encode(),
+                ModelDelta.FORMAT_VERSION);
+        assertEquals(2, decoded.size());
+        assertArrayEquals(toArray(old),
+                toArray(decoded.find(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS).undo(base)));
+        assertNull(decoded.find(KEYBOARD_HASH_1, ModelStore.KIND_HITBOXES).undo(base));
+
+        ByteBuffer truncated = record.encode();
+        truncated.limit(truncated.limit() - 10);
+        try{
+            ModelDelta.Record.decode(truncated, ModelDelta.FORMAT_VERSION);
+            fail();
+        } catch(IOException e){
+            // expected
+        }
+    }
+
+    @Test
+    public void wrongBaseTest(){
+        ByteBuffer old = bytes(100, 0);
+        ByteBuffer base = bytes(100, 1);
+        ModelDelta.Record record = new ModelDelta.Record();
+        record.put(KEYBOARD_HASH_1, ModelStore.KIND_KEYSTATS, 1, old, base);
+        try{
+            record.get(0).undo(bytes(100, 2));
+            fail();
+        } catch(IOException e){
+            // expected
+        }
+        try{
+            record.get(0).undo(null);
+            fail();
+        } catch(IOException e){
+            // expected
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class PackedHitboxesTest {
+    final private static int KEYBOARD_HASH_1 = 1;
+    final private static int KEYBOARD_HASH_2 = 2;
+
+    private static Hitbox box(int code, int left, int top, int right, int bottom){
+        return new Hitbox(code, new Point(left, top), new Point(right, top),
+                new Point(left, bottom), new Point(right, bottom));
+    }
+
+    // two rows of different heights, listed row by row and not sorted by code
+    private Hitboxes sampleHitboxes(){
+        Hitboxes hb = new Hitboxes(KEYBOARD_HASH_1);
+        hb.add(box(113, 0, 0, 20, 30));
+        hb.add(box(119, 20, 0, 40, 30));
+        hb.add(box(101, 40, 0, 60, 30));
+        hb.add(box(-1, 0, 30, 15, 50));
+        hb.add(box(32, 15, 30, 45, 50));
+        hb.add(box(-1, 45, 30, 60, 50));
+        return hb;
+    }
+
+    @Test
+    public void findTest() throws IOException {
+        Hitboxes hb = sampleHitboxes();
+        PackedHitboxes packed = PackedHitboxes.unpack(PackedHitboxes.pack(hb), KEYBOARD_HASH_1);
+
+        assertEquals(hb.size(), packed.size());
+        for(Hitbox cur:hb){
+            int index = packed.indexOfCode(cur.getCode());
+            assertTrue(index >= 0);
+            // the first hitbox of a code in the list is found, like in Hitboxes.findCode
+            Hitbox first = hb.findCode(cur.getCode());
+            assertEquals(first.getTopLeft().getX(), packed.getLeft(index));
+            assertEquals(first.getTopLeft().getY(), packed.getTop(index));
+            assertEquals(first.getWidth(), packed.getWidth(index));
+            assertEquals(first.getHeight(), packed.getHeight(index));
+        }
+        assertEquals(-1, packed.indexOfCode(97));
+        assertEquals(-1, packed.indexOfCode(200));
+
+        assertEquals(30, packed.getRowHeight(0));
+        assertEquals(20, packed.getRowHeight(30));
+        assertEquals(-1, packed.getRowHeight(10));
+    }
+
+    @Test
+    public void toHitboxesTest() throws IOException {
+        Hitboxes hb = sampleHitboxes();
+        Hitboxes hb2 = PackedHitboxes.unpack(PackedHitboxes.pack(hb), KEYBOARD_HASH_1).toHitboxes();
+        assertEquals(hb.getKeyboardHash(), hb2.getKeyboardHash());
+        // the order of the list is kept
+        assertTrue(hb.hasSameGeometry(hb2));
+        Iterator<Hitbox> it = hb2.iterator();
+        assertEquals(113, it.next().getCode());
+    }
+
+    @Test
+    public void checksumTest() throws IOException {
+        PackedHitboxes packed = PackedHitboxes.unpack(PackedHitboxes.pack(sampleHitboxes()),
+                KEYBOARD_HASH_1);
+        assertEquals(packed.getChecksum(), PackedHitboxes.unpack(
+                PackedHitboxes.pack(sampleHitboxes()), KEYBOARD_HASH_1).getChecksum());
+
+        // the hitboxes may lie anywhere in a bigger buffer, like in the ModelStore
+        ByteBuffer data = PackedHitboxes.pack(sampleHitboxes());
+        ByteBuffer store = ByteBuffer.allocate(data.remaining() + 12);
+        store.position(12);
+        store.put(data);
+        store.position(12);
+        assertEquals(packed.getChecksum(),
+                PackedHitboxes.unpack(store, KEYBOARD_HASH_1).getChecksum());
+
+        Hitboxes moved = sampleHitboxes();
+        moved.findCode(113).getTopRight().setX(21);
+        moved.findCode(113).getBottomRight().setX(21);
+        assertNotEquals(packed.getChecksum(),
+                PackedHitboxes.unpack(PackedHitboxes.pack(moved), KEYBOARD_HASH_1).getChecksum());
+    }
+
+    @Test
+    public void emptyTest() throws IOException {
+        PackedHitboxes packed = PackedHitboxes.unpack(
+                PackedHitboxes.pack(new Hitboxes(KEYBOARD_HASH_1)), KEYBOARD_HASH_1);
+        assertEquals(0, packed.size());
+        assertEquals(-1, packed.indexOfCode(32));
+        assertEquals(-1, packed.getRowHeight(0));
+        assertTrue(packed.toHitboxes().isEmpty());
+    }
+
+    @Test
+    public void invalidFilesTest(){
+        ByteBuffer buffer = PackedHitboxes.pack(sampleHitboxes());
+        try {
+            PackedHitboxes.unpack(buffer.duplicate(), KEYBOARD_HASH_2);
+            fail();
+        } catch(IOException e){
+            // expected
+        }
+
+        ByteBuffer truncated = buffer.duplicate();
+        truncated.limit(40);
+        try {
+            PackedHitboxes.unpack(truncated, KEYBOARD_HASH_1);
+            fail();
+        } catch(IOException e){
+            // expected
+        }
+    }
+}
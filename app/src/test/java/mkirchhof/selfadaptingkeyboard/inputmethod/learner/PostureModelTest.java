@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class PostureModelTest {
+    final private static int KEYBOARD_HASH_1 = 1;
+    final private static int KEY_WIDTH = 100;
+
+    // one row of four keys with the codes 0 to 3
+    private Hitboxes sampleHitboxes(){
+        Hitboxes hb = new Hitboxes(KEYBOARD_HASH_1);
+        for(int i = 0; i < 4; i++){
+            hb.add(new Hitbox(i, new Point(i * KEY_WIDTH, 0), new Point((i + 1) * KEY_WIDTH, 0),
+                    new Point(i * KEY_WIDTH, 100), new Point((i + 1) * KEY_WIDTH, 100)));
+        }
+        return hb;
+    }
+
+    // the x coordinate at which a key is hit. With the right thumb, the keys on the left are hit
+    // too far right, with the left thumb the keys on the right are hit too far left
+    private int touchX(int code, boolean isRightThumb){
+        int x = code * KEY_WIDTH + KEY_WIDTH / 2;
+        if(isRightThumb & code < 2){
+            x += 30;
+        } else if(!isRightThumb & code >= 2){
+            x -= 30;
+        }
+        return x;
+    }
+
+    // types nSessions sessions of 48 keystrokes, alternating between both thumbs if alternate
+    private ArrayList<Logger.LogItem> sampleTouches(int nSessions, boolean alternate){
+        Logger l = new Logger();
+        int pos = 0;
+        for(int session = 0; session < nSessions; session++){
+            boolean isRightThumb = alternate && session % 2 == 1;
+            for(int i = 0; i < 48; i++){
+                int code = i % 4;
+                l.set(pos, pos, code, 'a', touchX(code, isRightThumb), 50, KEYBOARD_HASH_1);
+                pos++;
+            }
+        }
+        ArrayList<Logger.LogItem> touches = new ArrayList<>();
+        Iterator<Logger.LogItem> it = l.iterator();
+        while(it.hasNext()){
+            touches.add(it.next());
+        }
+        return touches;
+    }
+
+    private KeyStats summarize(ArrayList<Logger.LogItem> touches){
+        KeyStats stats = new KeyStats(KEYBOARD_HASH_1);
+        for(Logger.LogItem cur:touches){
+            stats.add(cur.getCode(), cur.getPosX(), cur.getPosY());
+        }
+        return stats;
+    }
+
+    @Test
+    public void twoPosturesTest(){
+        ArrayList<Logger.LogItem> touches = sampleTouches(10, true);
+        Hitboxes hb = sampleHitboxes();
+        PostureModel model = PostureModel.fit(touches, hb, summarize(touches), 0);
+        assertNotNull(model);
+        assertEquals(2, model.getSize());
+
+        // the posture is detected from the last touches and switches the raster
+        PostureDetector detector = new PostureDetector(model);
+        HitboxRaster left = null;
+        for(int i = 0; i < PostureWindow.SIZE; i++){
+            left = detector.onTouch(touchX(i % 4, false), 50, (i % 4) * KEY_WIDTH, 0,
+                    KEY_WIDTH, 100, 4 * KEY_WIDTH);
+        }
+        int leftPosture = detector.getPosture();
+        HitboxRaster right = null;
+        for(int i = 0; i < PostureWindow.SIZE; i++){
+            right = detector.onTouch(touchX(i % 4, true), 50, (i % 4) * KEY_WIDTH, 0,
+                    KEY_WIDTH, 100, 4 * KEY_WIDTH);
+        }
+        assertNotEquals(leftPosture, detector.getPosture());
+        assertNotSame(left, right);
+
+        // with the right thumb, key 1 is hit right of its rectangle
+        assertEquals(1, right.classify(2 * KEY_WIDTH + 5, 50));
+        assertEquals(2, left.classify(2 * KEY_WIDTH + 5, 50));
+    }
+
+    @Test
+    public void singlePostureTest(){
+        // touches that are all typed in the same way do not need several postures
+        ArrayList<Logger.LogItem> touches = sampleTouches(10, false);
+        assertNull(PostureModel.fit(touches, sampleHitboxes(), summarize(touches), 0));
+    }
+
+    @Test
+    public void notEnoughDataTest(){
+        ArrayList<Logger.LogItem> touches = sampleTouches(2, true);
+        assertNull(PostureModel.fit(touches, sampleHitboxes(), summarize(touches), 0));
+    }
+}
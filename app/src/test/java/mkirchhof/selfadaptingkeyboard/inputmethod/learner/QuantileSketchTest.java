@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2020 Michael Kirchhof
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mkirchhof.selfadaptingkeyboard.inputmethod.learner;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class QuantileSketchTest {
+    final private static int KEYBOARD_HASH_1 = 1;
+
+    @Test
+    public void quantileTest(){
+        QuantileSketch sketch = new QuantileSketch();
+        for(int i = 0; i <= 1000; i++){
+            sketch.add(i);
+        }
+
+        assertTrue(sketch.getSize() <= 2 * QuantileSketch.CAPACITY);
+        assertEquals(500, sketch.median(), 10);
+        assertEquals(250, sketch.quantile(0.25), 10);
+        assertEquals(990, sketch.quantile(0.99), 5);
+        assertEquals(0, sketch.quantile(0), 1e-9);
+        assertEquals(1000, sketch.quantile(1), 1e-9);
+        assertEquals(800, sketch.trimmedRange(0.1), 20);
+        // a quantile query compresses the sketch to the fixed number of centroids
+        assertTrue(sketch.getSize() <= QuantileSketch.CAPACITY);
+    }
+
+    @Test
+    public void mergeTest(){
+        // merging the sketches of two halves gives the same quantiles as one sketch of all data
+        Random random = new Random(42);
+        QuantileSketch all = new QuantileSketch();
+        QuantileSketch first = new QuantileSketch();
+        QuantileSketch second = new QuantileSketch();
+        for(int i = 0; i < 2000; i++){
+            double value = random.nextGaussian() * 10 + 100;
+            all.add(value);
+            (i % 2 == 0 ? first : second).add(value);
+        }
+        first.merge(second);
+
+        assertEquals(all.getTotalWeight(), first.getTotalWeight(), 1e-9);
+        assertEquals(all.median(), first.median(), 1);
+        assertEquals(all.quantile(0.1), first.quantile(0.1), 1);
+        assertEquals(all.quantile(0.9), first.quantile(0.9), 1);
+        assertEquals(2000, second.getTotalWeight() * 2, 1e-9);
+    }
+
+    @Test
+    public void robustAgainstOutliersTest(){
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        for(int i = 0; i < 50; i++){
+            ks.add(1, 100 + i % 5, 50 + i % 3);
+        }
+        // a few fat-finger touches far away skew the mean, but not the median
+        for(int i = 0; i < 3; i++){
+            ks.add(1, 400, 50);
+        }
+        KeyStat key = ks.findCode(1);
+
+        assertTrue(key.hasRobustEstimates());
+        assertTrue(key.getMeanX() > 110);
+        assertEquals(102, key.getMedianX(), 1);
+        assertTrue(key.isOutlier(400, 50));
+        assertFalse(key.isOutlier(103, 51));
+    }
+
+    @Test
+    public void decayTest(){
+        // the sketches are decayed together with the rest of the stat
+        KeyStats ks = new KeyStats(KEYBOARD_HASH_1);
+        ks.setHalfLife(10);
+        ks.add(1, 10, 10);
+        for(int i = 0; i < 10; i++){
+            ks.add(2, 50, 10);
+        }
+        ks.prepend(new KeyStats(KEYBOARD_HASH_1));
+        KeyStat key = ks.findCode(1);
+        assertEquals(key.getWeight(), key.getSketchX().getTotalWeight(), 1e-9);
+        assertEquals(key.getWeight(), key.getSketchY().getTotalWeight(), 1e-9);
+    }
+}